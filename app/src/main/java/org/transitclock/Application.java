@@ -19,7 +19,6 @@ import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.flywaydb.core.Flyway;
 import org.glassfish.jersey.servlet.ServletContainer;
-import org.hibernate.Session;
 import org.transitclock.api.EmbeddedJspStarter;
 import org.transitclock.api.utils.ApiLoggingFilter;
 import org.transitclock.api.utils.ApiOriginFilter;
@@ -29,14 +28,20 @@ import org.transitclock.config.ConfigFileReader;
 import org.transitclock.config.data.AgencyConfig;
 import org.transitclock.config.data.CoreConfig;
 import org.transitclock.config.data.DbSetupConfig;
+import org.transitclock.core.dataCache.CacheSnapshot;
+import org.transitclock.core.dataCache.CacheWarmer;
+import org.transitclock.core.dataCache.DwellTimeModelCacheFactory;
+import org.transitclock.core.dataCache.DwellTimeModelCacheInterface;
 import org.transitclock.core.dataCache.StopArrivalDepartureCacheFactory;
+import org.transitclock.core.dataCache.StopArrivalDepartureCacheInterface;
 import org.transitclock.core.dataCache.TripDataHistoryCacheFactory;
+import org.transitclock.core.dataCache.TripDataHistoryCacheInterface;
 import org.transitclock.core.dataCache.ehcache.CacheManagerFactory;
 import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
 import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
 import org.transitclock.domain.ApiKeyManager;
-import org.transitclock.domain.hibernate.HibernateUtils;
 import org.transitclock.domain.webstructs.WebAgency;
+import org.transitclock.gtfs.GtfsData;
 import org.transitclock.utils.Time;
 import org.transitclock.utils.threading.UncaughtExceptionHandler;
 
@@ -116,14 +121,24 @@ public class Application {
     private void run() {
         String agencyId = AgencyConfig.getAgencyId();
         try {
+            // Initialize the core now. Needs to be done before populating the
+            // caches since the caches use the config.
+            Core core = Core.createCore(agencyId, context.getModuleRegistry());
+
             try {
                 populateCaches();
             } catch (Exception e) {
                 logger.error("Failed to populate cache.", e);
             }
 
+            // Only now start processing AVL reports, with the caches warm
+            core.start();
+
             addShutdownHook("close-cache", () -> {
                 try {
+                    // Write the snapshot before closing the cache manager
+                    // so that it is known that Ehcache persisted the rest
+                    CacheSnapshot.write(agencyId, core.getDbConfig().getConfigRev(), true);
                     logger.info("Closing cache.");
                     CacheManagerFactory.getInstance().close();
                     logger.info("Cache closed.");
@@ -132,9 +147,6 @@ public class Application {
                 }
             });
 
-            // Initialize the core now
-            Core core = Core.createCore(agencyId, context.getModuleRegistry());
-
             Server server = createWebserver();
             server.start();
             logger.info("Go to http://localhost:{} in your browser", cli.port);
@@ -177,105 +189,75 @@ public class Application {
         }
     }
 
+    /**
+     * Populates the historical caches from the arrivals and departures in the db, using a single
+     * streaming pass over the data shared by all the caches.
+     */
     private void populateCaches() throws Exception {
-        Session session = HibernateUtils.getSession();
-
         Date endDate = Calendar.getInstance().getTime();
+        Date startDate = DateUtils.addDays(endDate, -CoreConfig.getDaysPopulateHistoricalCache());
+        boolean reloadPeriodConfigured = !CoreConfig.cacheReloadStartTimeStr.getValue().isEmpty()
+                && !CoreConfig.cacheReloadEndTimeStr.getValue().isEmpty();
+        if (reloadPeriodConfigured) {
+            startDate = new Date(Time.parse(CoreConfig.cacheReloadStartTimeStr.getValue()).getTime());
+            endDate = new Date(Time.parse(CoreConfig.cacheReloadEndTimeStr.getValue()).getTime());
+        }
 
-        if (!CoreConfig.cacheReloadStartTimeStr.getValue().isEmpty() && !CoreConfig.cacheReloadEndTimeStr.getValue().isEmpty()) {
-            if (TripDataHistoryCacheFactory.getInstance() != null) {
-                logger.debug(
-                        "Populating TripDataHistoryCache cache for period {} to {}",
-                        CoreConfig.cacheReloadStartTimeStr.getValue(),
-                        CoreConfig.cacheReloadEndTimeStr.getValue());
-                TripDataHistoryCacheFactory.getInstance()
-                        .populateCacheFromDb(
-                                session,
-                                new Date(Time.parse(CoreConfig.cacheReloadStartTimeStr.getValue()).getTime()),
-                                new Date(Time.parse(CoreConfig.cacheReloadEndTimeStr.getValue()).getTime())
-                        );
-            }
-
-            if (FrequencyBasedHistoricalAverageCache.getInstance() != null) {
-                logger.debug(
-                        "Populating FrequencyBasedHistoricalAverageCache cache for period {} to {}",
-                        CoreConfig.cacheReloadStartTimeStr.getValue(),
-                        CoreConfig.cacheReloadEndTimeStr.getValue());
-                FrequencyBasedHistoricalAverageCache.getInstance()
-                        .populateCacheFromDb(
-                                session,
-                                new Date(Time.parse(CoreConfig.cacheReloadStartTimeStr.getValue()).getTime()),
-                                new Date(Time.parse(CoreConfig.cacheReloadEndTimeStr.getValue()).getTime())
-                        );
-            }
-
-            if (StopArrivalDepartureCacheFactory.getInstance() != null) {
-                logger.debug(
-                        "Populating StopArrivalDepartureCache cache for period {} to {}",
-                        CoreConfig.cacheReloadStartTimeStr.getValue(),
-                        CoreConfig.cacheReloadEndTimeStr.getValue());
-                StopArrivalDepartureCacheFactory.getInstance()
-                        .populateCacheFromDb(
-                                session,
-                                new Date(Time.parse(CoreConfig.cacheReloadStartTimeStr.getValue()).getTime()),
-                                new Date(Time.parse(CoreConfig.cacheReloadEndTimeStr.getValue()).getTime())
-                        );
-            }
-            /*
-            if(ScheduleBasedHistoricalAverageCache.getInstance()!=null)
-            {
-            	logger.debug("Populating ScheduleBasedHistoricalAverageCache cache for period {} to {}",cacheReloadStartTimeStr.getValue(),cacheReloadEndTimeStr.getValue());
-            	ScheduleBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, new Date(Time.parse(cacheReloadStartTimeStr.getValue()).getTime()), new Date(Time.parse(cacheReloadEndTimeStr.getValue()).getTime()));
-            }
-            */
-        } else {
-            for (int i = 0; i < CoreConfig.getDaysPopulateHistoricalCache(); i++) {
-                Date startDate = DateUtils.addDays(endDate, -1);
-
-                if (TripDataHistoryCacheFactory.getInstance() != null) {
-                    logger.debug("Populating TripDataHistoryCache cache for period {} to {}", startDate, endDate);
-                    TripDataHistoryCacheFactory.getInstance().populateCacheFromDb(session, startDate, endDate);
-                }
-
-                if (FrequencyBasedHistoricalAverageCache.getInstance() != null) {
-                    logger.debug(
-                            "Populating FrequencyBasedHistoricalAverageCache cache for period {} to" + " {}",
-                            startDate,
-                            endDate);
-                    FrequencyBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, startDate, endDate);
-                }
-
-                endDate = startDate;
-            }
-
-            endDate = Calendar.getInstance().getTime();
-
-            /* populate one day at a time to avoid memory issue */
-            for (int i = 0; i < CoreConfig.getDaysPopulateHistoricalCache(); i++) {
-                Date startDate = DateUtils.addDays(endDate, -1);
-                if (StopArrivalDepartureCacheFactory.getInstance() != null) {
-                    logger.debug("Populating StopArrivalDepartureCache cache for period {} to {}", startDate, endDate);
-                    StopArrivalDepartureCacheFactory.getInstance().populateCacheFromDb(session, startDate, endDate);
-                }
+        // If the caches were restored from a snapshot then only the arrivals
+        // and departures since it was written are needed. The exception is
+        // the Ehcache based caches that are not in the snapshot if it wasn't
+        // written at shutdown, since then Ehcache didn't persist them.
+        Date snapshotStartDate = startDate;
+        Date persistedStartDate = startDate;
+        boolean tripDataHistoryInSnapshot = false;
+        CacheSnapshot snapshot = CacheSnapshot.restore(
+                AgencyConfig.getAgencyId(), Core.getInstance().getDbConfig().getConfigRev());
+        if (snapshot != null) {
+            if (snapshot.getCreatedTime().after(startDate)) snapshotStartDate = snapshot.getCreatedTime();
+            if (snapshot.isAtShutdown()) persistedStartDate = snapshotStartDate;
+            tripDataHistoryInSnapshot = snapshot.hasTripDataHistory();
+        }
 
-                endDate = startDate;
-            }
-            endDate = Calendar.getInstance().getTime();
+        // The historical averages look up previous events in the trip
+        // history so are dependent caches, populated for a day only once
+        // the trip history has that day and the day before.
+        CacheWarmer warmer = new CacheWarmer(CoreConfig.cacheWarmupThreads.getValue());
+
+        TripDataHistoryCacheInterface tripDataHistoryCache = TripDataHistoryCacheFactory.getInstance();
+        if (tripDataHistoryCache != null) {
+            warmer.addCache(
+                    "TripDataHistoryCache",
+                    tripDataHistoryInSnapshot ? snapshotStartDate : persistedStartDate,
+                    arrivalDeparture -> {
+                        if (GtfsData.routeNotFiltered(arrivalDeparture.getRouteId()))
+                            tripDataHistoryCache.putArrivalDeparture(arrivalDeparture);
+                    });
+        }
 
-            for (int i = 0; i < CoreConfig.getDaysPopulateHistoricalCache(); i++) {
-                Date startDate = DateUtils.addDays(endDate, -1);
+        FrequencyBasedHistoricalAverageCache frequencyBasedCache = FrequencyBasedHistoricalAverageCache.getInstance();
+        if (frequencyBasedCache != null) {
+            warmer.addDependentCache("FrequencyBasedHistoricalAverageCache", snapshotStartDate, arrivalDeparture -> {
+                if (GtfsData.routeNotFiltered(arrivalDeparture.getRouteId()))
+                    frequencyBasedCache.putArrivalDeparture(arrivalDeparture);
+            });
+        }
 
-                if (ScheduleBasedHistoricalAverageCache.getInstance() != null) {
-                    logger.debug(
-                            "Populating ScheduleBasedHistoricalAverageCache cache for period {} to" + " {}",
-                            startDate,
-                            endDate);
-                    ScheduleBasedHistoricalAverageCache.getInstance().populateCacheFromDb(session, startDate, endDate);
-                }
+        StopArrivalDepartureCacheInterface stopArrivalDepartureCache = StopArrivalDepartureCacheFactory.getInstance();
+        DwellTimeModelCacheInterface dwellTimeModelCache = DwellTimeModelCacheFactory.getInstance();
+        if (stopArrivalDepartureCache != null) {
+            warmer.addCache("StopArrivalDepartureCache", persistedStartDate, arrivalDeparture -> {
+                stopArrivalDepartureCache.putArrivalDeparture(arrivalDeparture);
+                if (dwellTimeModelCache != null) dwellTimeModelCache.addSample(arrivalDeparture);
+            });
+        }
 
-                endDate = startDate;
-            }
+        ScheduleBasedHistoricalAverageCache scheduleBasedCache = ScheduleBasedHistoricalAverageCache.getInstance();
+        if (scheduleBasedCache != null && !reloadPeriodConfigured) {
+            warmer.addDependentCache(
+                    "ScheduleBasedHistoricalAverageCache", snapshotStartDate, scheduleBasedCache::putArrivalDeparture);
         }
+
+        warmer.warm(endDate);
     }
 
     /**
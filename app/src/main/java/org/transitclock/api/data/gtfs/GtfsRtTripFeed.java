@@ -2,7 +2,6 @@
 package org.transitclock.api.data.gtfs;
 
 import com.google.transit.realtime.GtfsRealtime.*;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeEvent;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate;
 import com.google.transit.realtime.GtfsRealtime.TripUpdate.StopTimeUpdate.ScheduleRelationship;
@@ -19,9 +18,9 @@ import org.transitclock.service.VehiclesServiceImpl;
 import org.transitclock.utils.IntervalTimer;
 import org.transitclock.utils.Time;
 
-import java.rmi.RemoteException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * For creating GTFS-realtime trip feed. The data is obtained from the server via RMI.
@@ -32,6 +31,10 @@ import java.util.*;
  * to DELAYED_UNCERTAINTY_VALUE. And if a vehicle is late and the prediction is for a subsequent
  * trip then uncertainty is set to LATE_AND_SUBSEQUENT_TRIP_UNCERTAINTY_VALUE.
  *
+ * <p>The feed is maintained incrementally by an IncrementalFeed. The predictions are immutable
+ * and a new IpcPrediction is created whenever a prediction changes, so a TripUpdate only needs to
+ * be created again if the predictions for the trip are not the very same objects as last time.
+ *
  * @author SkiBu Smith
  */
 @Slf4j
@@ -61,11 +64,31 @@ public class GtfsRtTripFeed {
 
     private final SimpleDateFormat gtfsRealtimeTimeFormatter = new SimpleDateFormat("HH:mm:ss");
 
+    // The TripUpdates, each created from the predictions for a trip
+    private final IncrementalFeed<List<IpcPrediction>> feed =
+            new IncrementalFeed<>("2.0", GtfsRtTripFeed::samePredictions, this::createFeedEntity);
+
     public GtfsRtTripFeed(String agencyId) {
         this.agencyId = agencyId;
         this.gtfsRealtimeDateFormatter.setTimeZone(AgencyTimezoneCache.get(agencyId));
     }
 
+    /**
+     * Returns true if the lists contain the very same prediction objects. Since predictions are
+     * immutable the TripUpdate created from them would then be the same.
+     */
+    private static boolean samePredictions(List<IpcPrediction> preds1, List<IpcPrediction> preds2) {
+        if (preds1.size() != preds2.size()) return false;
+        for (int i = 0; i < preds1.size(); ++i) {
+            if (preds1.get(i) != preds2.get(i)) return false;
+        }
+        return true;
+    }
+
+    private FeedEntity.Builder createFeedEntity(List<IpcPrediction> predsForTrip) {
+        return FeedEntity.newBuilder().setTripUpdate(createTripUpdate(predsForTrip));
+    }
+
     /**
      * Create TripUpdate for the trip.
      *
@@ -189,19 +212,15 @@ public class GtfsRtTripFeed {
     }
 
     /**
-     * Creates a GTFS-realtime message for the predictions by trip passed in.
+     * Groups the predictions by trip into the predictions for each feed entity. For frequency based
+     * trips there is a separate entity for each trip start time, identified by the vehicle ID.
+     * Otherwise the entity is identified by the trip ID.
      *
-     * @param predsByTripMap the data to be put into the GTFS-realtime message
-     * @return the GTFS-realtime FeedMessage
+     * @param predsByTripMap the predictions by trip
+     * @return the predictions for each entity, keyed by entity ID
      */
-    private FeedMessage createMessage(Map<String, List<IpcPrediction>> predsByTripMap) {
-        FeedMessage.Builder message = FeedMessage.newBuilder();
-
-        FeedHeader.Builder feedheader = FeedHeader.newBuilder()
-                .setGtfsRealtimeVersion("2.0")
-                .setIncrementality(Incrementality.FULL_DATASET)
-                .setTimestamp(System.currentTimeMillis() / Time.MS_PER_SEC);
-        message.setHeader(feedheader);
+    private Map<String, List<IpcPrediction>> getPredictionsByEntity(Map<String, List<IpcPrediction>> predsByTripMap) {
+        Map<String, List<IpcPrediction>> predsByEntity = new HashMap<>(predsByTripMap.size());
 
         // For each trip...
         for (List<IpcPrediction> predsForTrip : predsByTripMap.values()) {
@@ -209,37 +228,24 @@ public class GtfsRtTripFeed {
             //  Need to check if predictions for frequency based trip and group by start time if
             // they are.
             if (isFrequencyBasedTrip(predsForTrip)) {
-                try {
-                    Map<Long, List<IpcPrediction>> map = createFreqStartTimePredictionMap(predsForTrip);
-
-                    for (Long key : map.keySet()) {
-                        if (!map.get(key).isEmpty()) {
-                            FeedEntity.Builder feedEntity = FeedEntity.newBuilder()
-                                    .setId(map.get(key).get(0).getVehicleId());
-                            TripUpdate tripUpdate = createTripUpdate(map.get(key));
-                            feedEntity.setTripUpdate(tripUpdate);
-                            message.addEntity(feedEntity);
-                        }
+                Map<Long, List<IpcPrediction>> map = createFreqStartTimePredictionMap(predsForTrip);
+
+                for (Map.Entry<Long, List<IpcPrediction>> entry : map.entrySet()) {
+                    if (!entry.getValue().isEmpty()) {
+                        // Entity IDs need to be unique so if vehicle has
+                        // multiple start times add the start time
+                        String id = entry.getValue().get(0).getVehicleId();
+                        if (predsByEntity.containsKey(id)) id += "_" + entry.getKey();
+                        predsByEntity.put(id, entry.getValue());
                     }
-                } catch (Exception e) {
-                    logger.warn("{}", e.getMessage(), e);
                 }
             } else {
                 // Create feed entity for each schedule trip
-                FeedEntity.Builder feedEntity = FeedEntity.newBuilder()
-                                .setId(predsForTrip.get(0).getTripId());
-                try {
-                    TripUpdate tripUpdate = createTripUpdate(predsForTrip);
-                    feedEntity.setTripUpdate(tripUpdate);
-
-                    message.addEntity(feedEntity);
-                } catch (Exception e) {
-                    logger.error("Error parsing trip update data. {}", predsForTrip, e);
-                }
+                predsByEntity.put(predsForTrip.get(0).getTripId(), predsForTrip);
             }
         }
 
-        return message.build();
+        return predsByEntity;
     }
 
     private boolean isFrequencyBasedTrip(List<IpcPrediction> predsForTrip) {
@@ -298,46 +304,39 @@ public class GtfsRtTripFeed {
     }
 
     /**
-     * Gets the Vehicle data from RMI and creates corresponding GTFS-RT vehicle feed.
+     * Gets the predictions for each feed entity from the server.
      *
-     * @return GTFS-RT FeedMessage for vehicle positions
+     * @return Map keyed on entity ID of List of Predictions for the entity
      */
-    public FeedMessage createMessage() {
+    private Map<String, List<IpcPrediction>> getPredictionsByEntity() {
         // Get prediction data from server
         IntervalTimer timer = new IntervalTimer();
         Map<String, List<IpcPrediction>> predsByTrip = getPredictionsPerTrip();
         logger.debug(
-                "Getting predictions via RMI for GtfsRtTripFeed.createMessage() took {} msec",
+                "Getting predictions via RMI for GtfsRtTripFeed took {} msec",
                 timer.elapsedMsec());
 
-        // Use prediction data to create GTFS-RT message and return it.
-        return createMessage(predsByTrip);
+        return getPredictionsByEntity(predsByTrip);
     }
 
-    // For getPossiblyCachedMessage()
-    private static final DataCache tripFeedDataCache = new DataCache();
+    // One incrementally maintained feed per agency
+    private static final Map<String, GtfsRtTripFeed> tripFeeds = new ConcurrentHashMap<>();
 
     /**
-     * For caching Vehicle Positions feed messages.
+     * Returns the trip updates feed. The feed is updated if it is older than
+     * transitclock.api.gtfsRtCacheSeconds. Only the TripUpdates for trips whose predictions changed
+     * are created again.
      *
      * @param agencyId
-     * @return
+     * @param sinceVersion If not null then a DIFFERENTIAL feed with the changes since that version of
+     *     the feed is returned. Otherwise the full dataset.
+     * @return the encoded feed, or null if there is no feed yet
      */
-    public static FeedMessage getPossiblyCachedMessage(String agencyId) {
-        FeedMessage feedMessage = tripFeedDataCache.get(agencyId);
-        if (feedMessage != null) return feedMessage;
-
-        synchronized (tripFeedDataCache) {
-
-            // Cache may have been filled while waiting.
-            feedMessage = tripFeedDataCache.get(agencyId);
-            if (feedMessage != null) return feedMessage;
-
-            GtfsRtTripFeed feed = new GtfsRtTripFeed(agencyId);
-            feedMessage = feed.createMessage();
-            tripFeedDataCache.put(agencyId, feedMessage);
-        }
+    public static IncrementalFeed.FeedBytes getFeed(String agencyId, Long sinceVersion) {
+        GtfsRtTripFeed tripFeed = tripFeeds.computeIfAbsent(agencyId, GtfsRtTripFeed::new);
+        tripFeed.feed.updateIfOlderThan(
+                (long) ApiConfig.gtfsRtCacheSeconds.getValue() * Time.MS_PER_SEC, tripFeed::getPredictionsByEntity);
 
-        return feedMessage;
+        return sinceVersion == null ? tripFeed.feed.getFullDataset() : tripFeed.feed.getDifferential(sinceVersion);
     }
 }
@@ -2,7 +2,6 @@
 package org.transitclock.api.data.gtfs;
 
 import com.google.transit.realtime.GtfsRealtime.*;
-import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
 import com.google.transit.realtime.GtfsRealtime.TripDescriptor.ScheduleRelationship;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition.VehicleStopStatus;
 import org.slf4j.Logger;
@@ -12,18 +11,24 @@ import org.transitclock.service.dto.IpcAvl;
 import org.transitclock.service.dto.IpcVehicleConfig;
 import org.transitclock.service.dto.IpcVehicleGtfsRealtime;
 import org.transitclock.service.contract.VehiclesInterface;
+import org.transitclock.config.data.ApiConfig;
 import org.transitclock.service.VehiclesServiceImpl;
 import org.transitclock.utils.Time;
 
-import java.rmi.RemoteException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * For creating GTFS-realtime Vehicle feed. The data is obtained via RMI.
  *
+ * <p>The feed is maintained incrementally by an IncrementalFeed so that a VehiclePosition is only
+ * encoded again if it actually changed.
+ *
  * @author SkiBu Smith
  */
 public class GtfsRtVehicleFeed {
@@ -37,6 +42,11 @@ public class GtfsRtVehicleFeed {
 
     private static final Logger logger = LoggerFactory.getLogger(GtfsRtVehicleFeed.class);
 
+    // The VehiclePositions. Protobuf messages implement equals() so can
+    // simply compare them to determine if need to be encoded again.
+    private final IncrementalFeed<VehiclePosition> feed = new IncrementalFeed<>(
+            "1.0", VehiclePosition::equals, vehiclePosition -> FeedEntity.newBuilder().setVehicle(vehiclePosition));
+
     public GtfsRtVehicleFeed(String agencyId) {
         this.agencyId = agencyId;
 
@@ -129,19 +139,13 @@ public class GtfsRtVehicleFeed {
     }
 
     /**
-     * Creates a GTFS-realtime message for the list of ApiVehicle passed in.
+     * Creates the GTFS-realtime VehiclePositions for the list of vehicles passed in.
      *
-     * @param vehicles the data to be put into the GTFS-realtime message
-     * @return the GTFS-realtime FeedMessage
+     * @param vehicles the data to be put into the GTFS-realtime feed
+     * @return the VehiclePositions keyed by entity ID
      */
-    private FeedMessage createMessage(Collection<IpcVehicleGtfsRealtime> vehicles) {
-        FeedMessage.Builder message = FeedMessage.newBuilder();
-
-        FeedHeader.Builder feedheader = FeedHeader.newBuilder()
-                .setGtfsRealtimeVersion("1.0")
-                .setIncrementality(Incrementality.FULL_DATASET)
-                .setTimestamp(System.currentTimeMillis() / Time.MS_PER_SEC);
-        message.setHeader(feedheader);
+    private Map<String, VehiclePosition> createVehiclePositions(Collection<IpcVehicleGtfsRealtime> vehicles) {
+        Map<String, VehiclePosition> vehiclePositions = new HashMap<>(vehicles.size());
 
         for (IpcVehicleGtfsRealtime vehicle : vehicles) {
 
@@ -190,20 +194,17 @@ public class GtfsRtVehicleFeed {
                     vehicle.getPredictedLatitude(),
                     vehicle.getPredictedLongitude(),
                     vehicle.isCanceled());
-            FeedEntity.Builder vehiclePositionEntity = FeedEntity.newBuilder()
-                    .setId(vehicle.getVehicleName() == null ? vehicle.getId() : vehicle.getVehicleName());
+            String id = vehicle.getVehicleName() == null ? vehicle.getId() : vehicle.getVehicleName();
 
             try {
                 // vehicle
-                VehiclePosition vehiclePosition = createVehiclePosition(newVehicle);
-                vehiclePositionEntity.setVehicle(vehiclePosition);
-                message.addEntity(vehiclePositionEntity);
+                vehiclePositions.put(id, createVehiclePosition(newVehicle));
             } catch (Exception e) {
                 logger.error("Error parsing vehicle data for vehicle={}", vehicle, e);
             }
         }
 
-        return message.build();
+        return vehiclePositions;
     }
 
     /**
@@ -229,39 +230,34 @@ public class GtfsRtVehicleFeed {
     }
 
     /**
-     * Gets the Vehicle data from RMI and creates corresponding GTFS-RT vehicle feed.
+     * Gets the Vehicle data from RMI and creates corresponding GTFS-RT vehicle positions.
      *
-     * @return GTFS-RT FeedMessage for vehicle positions
+     * @return VehiclePositions keyed by entity ID
      */
-    public FeedMessage createMessage() {
+    private Map<String, VehiclePosition> createVehiclePositions() {
         Collection<IpcVehicleGtfsRealtime> vehicles = getVehicles();
-        return createMessage(vehicles);
+        return createVehiclePositions(vehicles);
     }
 
-    // For getPossiblyCachedMessage()
-    private static final DataCache vehicleFeedDataCache = new DataCache();
+    // One incrementally maintained feed per agency
+    private static final Map<String, GtfsRtVehicleFeed> vehicleFeeds = new ConcurrentHashMap<>();
 
     /**
-     * For caching Vehicle Positions feed messages.
+     * Returns the vehicle positions feed. The feed is updated if it is older than
+     * transitclock.api.gtfsRtCacheSeconds.
      *
      * @param agencyId
-     * @return
+     * @param sinceVersion If not null then a DIFFERENTIAL feed with the changes since that version of
+     *     the feed is returned. Otherwise the full dataset.
+     * @return the encoded feed, or null if there is no feed yet
      */
-    public static FeedMessage getPossiblyCachedMessage(String agencyId) {
-        FeedMessage feedMessage = vehicleFeedDataCache.get(agencyId);
-        if (feedMessage != null) return feedMessage;
-
-        synchronized (vehicleFeedDataCache) {
-
-            // Cache may have been filled while waiting.
-            feedMessage = vehicleFeedDataCache.get(agencyId);
-            if (feedMessage != null) return feedMessage;
-
-            GtfsRtVehicleFeed feed = new GtfsRtVehicleFeed(agencyId);
-            feedMessage = feed.createMessage();
-            vehicleFeedDataCache.put(agencyId, feedMessage);
-        }
-
-        return feedMessage;
+    public static IncrementalFeed.FeedBytes getFeed(String agencyId, Long sinceVersion) {
+        GtfsRtVehicleFeed vehicleFeed = vehicleFeeds.computeIfAbsent(agencyId, GtfsRtVehicleFeed::new);
+        vehicleFeed.feed.updateIfOlderThan(
+                (long) ApiConfig.gtfsRtCacheSeconds.getValue() * Time.MS_PER_SEC, vehicleFeed::createVehiclePositions);
+
+        return sinceVersion == null
+                ? vehicleFeed.feed.getFullDataset()
+                : vehicleFeed.feed.getDifferential(sinceVersion);
     }
 }
@@ -0,0 +1,283 @@
+/* (C)2023 */
+package org.transitclock.api.data.gtfs;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.utils.Time;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A GTFS-realtime feed that is maintained incrementally. Each entity, such as the TripUpdate for a
+ * trip or the VehiclePosition for a vehicle, is kept already encoded along with the data it was
+ * created from. When the feed is updated an entity is only created and encoded again if its data
+ * actually changed. The feed itself is then just the encoded header followed by the already encoded
+ * entities, which is exactly how protobuf encodes the repeated entity field of a FeedMessage. This
+ * way the cost of an update depends on how much changed instead of on the size of the fleet.
+ *
+ * <p>Every update that changes something gets a new version and each entity remembers the version
+ * in which it last changed. This makes it possible to provide a DIFFERENTIAL feed containing only
+ * the entities that changed since a version the client already has, along with deletions for the
+ * entities that went away.
+ *
+ * @param <T> The data that an entity is created from
+ */
+@Slf4j
+public class IncrementalFeed<T> {
+    // How long deleted entities are remembered for differential feeds. A
+    // client asking for changes since an older version gets the full dataset.
+    private static final long DELETION_RETENTION_MSEC = 15 * Time.MS_PER_MIN;
+
+    /** An already encoded entity along with the data it was created from. */
+    private static class EncodedEntity<T> {
+        private final T source;
+        private final byte[] bytes;
+        private final long version;
+
+        private EncodedEntity(T source, byte[] bytes, long version) {
+            this.source = source;
+            this.bytes = bytes;
+            this.version = version;
+        }
+    }
+
+    /** Remembers when an entity was deleted so that differential feeds can include it. */
+    private static class Deletion {
+        private final long version;
+        private final long time;
+
+        private Deletion(long version, long time) {
+            this.version = version;
+            this.time = time;
+        }
+    }
+
+    /** An encoded FeedMessage along with the version of the feed it was created from. */
+    @Getter
+    public static class FeedBytes {
+        private final long version;
+        private final byte[] bytes;
+
+        private FeedBytes(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the decoded FeedMessage, for when need it in human readable form
+         * @throws InvalidProtocolBufferException if the bytes are not a valid message
+         */
+        public FeedMessage toFeedMessage() throws InvalidProtocolBufferException {
+            return FeedMessage.parseFrom(bytes);
+        }
+    }
+
+    private final String gtfsRealtimeVersion;
+    private final BiPredicate<T, T> unchanged;
+    private final Function<T, FeedEntity.Builder> entityCreator;
+
+    // Guarded by synchronizing on this object
+    private final Map<String, EncodedEntity<T>> entities = new LinkedHashMap<>();
+    private final Map<String, Deletion> deletions = new HashMap<>();
+    private long version;
+    // Deletions up to this version have been forgotten so can't provide a
+    // differential feed for a version before it
+    private long oldestDifferentialVersion;
+
+    // So that only a single thread updates the feed at a time
+    private final ReentrantLock updateLock = new ReentrantLock();
+
+    private volatile FeedBytes fullDataset;
+    private volatile long lastUpdateTime;
+
+    /**
+     * @param gtfsRealtimeVersion Version of the GTFS-realtime spec to put into the header
+     * @param unchanged Returns true if the entity created from the first data would be the same as
+     *     the one created from the second, meaning that it doesn't need to be created again
+     * @param entityCreator Creates the entity from the data. The id does not need to be set.
+     */
+    public IncrementalFeed(
+            String gtfsRealtimeVersion, BiPredicate<T, T> unchanged, Function<T, FeedEntity.Builder> entityCreator) {
+        this.gtfsRealtimeVersion = gtfsRealtimeVersion;
+        this.unchanged = unchanged;
+        this.entityCreator = entityCreator;
+    }
+
+    /**
+     * Updates the feed if it is older than maxAgeMsec. Only a single thread updates the feed. If
+     * there already is a feed then other threads don't wait for the update but simply use the
+     * existing one. This prevents a stampede of threads all creating the feed when it expires.
+     *
+     * @param maxAgeMsec How old the feed can be before it needs to be updated
+     * @param sources Supplies the data for all the entities, keyed by entity id
+     */
+    public void updateIfOlderThan(long maxAgeMsec, Supplier<Map<String, T>> sources) {
+        if (fullDataset != null && System.currentTimeMillis() - lastUpdateTime < maxAgeMsec) return;
+
+        // If there is no feed yet then need to wait for it
+        if (fullDataset == null) updateLock.lock();
+        else if (!updateLock.tryLock()) return;
+
+        try {
+            // Feed might have been updated while waiting for the lock
+            if (fullDataset != null && System.currentTimeMillis() - lastUpdateTime < maxAgeMsec) return;
+            update(sources.get());
+        } finally {
+            updateLock.unlock();
+        }
+    }
+
+    /**
+     * Updates the feed with the current data for all the entities. Entities whose data didn't
+     * change are kept as is. Entities that are no longer in sourcesById are deleted.
+     *
+     * @param sourcesById The data for all the entities, keyed by entity id
+     */
+    public synchronized void update(Map<String, T> sourcesById) {
+        long now = System.currentTimeMillis();
+        long newVersion = version + 1;
+        int numberEncoded = 0;
+        int numberDeleted = 0;
+
+        // Delete entities that went away
+        Iterator<Map.Entry<String, EncodedEntity<T>>> iterator = entities.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, EncodedEntity<T>> entry = iterator.next();
+            if (!sourcesById.containsKey(entry.getKey())) {
+                iterator.remove();
+                deletions.put(entry.getKey(), new Deletion(newVersion, now));
+                ++numberDeleted;
+            }
+        }
+
+        // Create and encode the entities that are new or changed
+        for (Map.Entry<String, T> entry : sourcesById.entrySet()) {
+            String id = entry.getKey();
+            T source = entry.getValue();
+            EncodedEntity<T> existing = entities.get(id);
+            if (existing != null && unchanged.test(existing.source, source)) continue;
+
+            try {
+                FeedEntity entity = entityCreator.apply(source).setId(id).build();
+                entities.put(id, new EncodedEntity<>(source, encode(FeedMessage.ENTITY_FIELD_NUMBER, entity), newVersion));
+                deletions.remove(id);
+                ++numberEncoded;
+            } catch (Exception e) {
+                logger.error("Error creating GTFS-realtime entity id={} for {}", id, source, e);
+                if (entities.remove(id) != null) {
+                    deletions.put(id, new Deletion(newVersion, now));
+                    ++numberDeleted;
+                }
+            }
+        }
+
+        // Forget old deletions
+        Iterator<Deletion> deletionIterator = deletions.values().iterator();
+        while (deletionIterator.hasNext()) {
+            Deletion deletion = deletionIterator.next();
+            if (now - deletion.time > DELETION_RETENTION_MSEC) {
+                deletionIterator.remove();
+                oldestDifferentialVersion = Math.max(oldestDifferentialVersion, deletion.version);
+            }
+        }
+
+        if (numberEncoded > 0 || numberDeleted > 0 || fullDataset == null) version = newVersion;
+
+        List<byte[]> encodedEntities = new ArrayList<>(entities.size());
+        for (EncodedEntity<T> encodedEntity : entities.values()) encodedEntities.add(encodedEntity.bytes);
+        fullDataset = new FeedBytes(version, assemble(Incrementality.FULL_DATASET, now, encodedEntities));
+        lastUpdateTime = now;
+
+        logger.debug("Updated GTFS-realtime feed to version {}. Encoded {} and deleted {} of {} entities in {} msec",
+                version, numberEncoded, numberDeleted, entities.size(), System.currentTimeMillis() - now);
+    }
+
+    /**
+     * @return the full feed, or null if the feed has not yet been updated
+     */
+    public FeedBytes getFullDataset() {
+        return fullDataset;
+    }
+
+    /**
+     * Returns a DIFFERENTIAL feed containing the entities that changed since the specified version
+     * along with deletions for the entities that went away. If the changes since that version are
+     * no longer known then the full dataset is returned instead.
+     *
+     * @param sinceVersion The version of the feed that the client already has
+     * @return the feed, or null if the feed has not yet been updated
+     */
+    public synchronized FeedBytes getDifferential(long sinceVersion) {
+        if (fullDataset == null || sinceVersion < oldestDifferentialVersion || sinceVersion > version)
+            return fullDataset;
+
+        List<byte[]> encodedEntities = new ArrayList<>();
+        for (EncodedEntity<T> encodedEntity : entities.values()) {
+            if (encodedEntity.version > sinceVersion) encodedEntities.add(encodedEntity.bytes);
+        }
+        for (Map.Entry<String, Deletion> entry : deletions.entrySet()) {
+            if (entry.getValue().version > sinceVersion) {
+                FeedEntity deleted = FeedEntity.newBuilder()
+                        .setId(entry.getKey())
+                        .setIsDeleted(true)
+                        .build();
+                encodedEntities.add(encode(FeedMessage.ENTITY_FIELD_NUMBER, deleted));
+            }
+        }
+
+        return new FeedBytes(version, assemble(Incrementality.DIFFERENTIAL, lastUpdateTime, encodedEntities));
+    }
+
+    /** Creates the encoded FeedMessage from the header and the already encoded entities. */
+    private byte[] assemble(Incrementality incrementality, long time, List<byte[]> encodedEntities) {
+        FeedHeader header = FeedHeader.newBuilder()
+                .setGtfsRealtimeVersion(gtfsRealtimeVersion)
+                .setIncrementality(incrementality)
+                .setTimestamp(time / Time.MS_PER_SEC)
+                .build();
+        byte[] encodedHeader = encode(FeedMessage.HEADER_FIELD_NUMBER, header);
+
+        int size = encodedHeader.length;
+        for (byte[] encodedEntity : encodedEntities) size += encodedEntity.length;
+
+        byte[] bytes = new byte[size];
+        System.arraycopy(encodedHeader, 0, bytes, 0, encodedHeader.length);
+        int offset = encodedHeader.length;
+        for (byte[] encodedEntity : encodedEntities) {
+            System.arraycopy(encodedEntity, 0, bytes, offset, encodedEntity.length);
+            offset += encodedEntity.length;
+        }
+        return bytes;
+    }
+
+    /** Encodes the message as a field of a FeedMessage, including the tag and length. */
+    private static byte[] encode(int fieldNumber, MessageLite message) {
+        byte[] bytes = new byte[CodedOutputStream.computeMessageSize(fieldNumber, message)];
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+            output.writeMessage(fieldNumber, message);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // Can't really happen when writing to a byte array of the right size
+            throw new IllegalStateException("Could not encode " + message, e);
+        }
+        return bytes;
+    }
+}
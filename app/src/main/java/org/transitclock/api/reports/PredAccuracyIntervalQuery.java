@@ -3,11 +3,10 @@ package org.transitclock.api.reports;
 
 import lombok.extern.slf4j.Slf4j;
 import org.transitclock.api.reports.ChartJsonBuilder.RowBuilder;
-import org.transitclock.statistics.Statistics;
+import org.transitclock.core.predAccuracy.PredictionAccuracySketch;
 
 import java.sql.SQLException;
 import java.text.ParseException;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -34,45 +33,45 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
     }
 
     /**
-     * Goes through data array (must already be sorted!) and determines the index of the array that
+     * Goes through the sorted data and determines the index of the data that
      * corresponds to the minimum element. For example, if the fraction is specified as 0.70 which
      * means that want to know the minimum value such that 70% of the predictions are between the
      * min and the max, then will return the index for the item whose index is at (100%-70%)/2 = 15%
      * in the array.
      *
-     * @param data Sorted list of data
+     * @param data Sketch of the data
      * @param percentage The percentage (0.0 - 100.0%) of prediction accuracy data that should be
      *     between the min and the max
      * @return Value of the desired element or null if fraction not valid
      */
-    private Long getMin(List<Integer> data, double percentage) {
+    private Long getMin(PredictionAccuracySketch data, double percentage) {
         if (percentage == 0.0 || Double.isNaN(percentage)) return null;
 
         double fraction = percentage / 100.0;
 
-        int index = (int) (data.size() * (1 - fraction) / 2);
-        return (long) data.get(index);
+        long index = (long) (data.getCount() * (1 - fraction) / 2);
+        return (long) data.getValueAtIndex(index);
     }
 
     /**
-     * Goes through data array (must already be sorted!) and determines the index of the array that
+     * Goes through the sorted data and determines the index of the data that
      * corresponds to the maximum element. For example, if the fraction is specified as 0.70 which
      * means that want to know the minimum value such that 70% of the predictions are between the
      * min and the max, then will return the index for the item whose index is at 85% in the array.
      *
-     * @param data Sorted list of data
+     * @param data Sketch of the data
      * @param percentage The percentage (0.0 - 100.0%) of prediction accuracy data that should be
      *     between the min and the max
      * @return Value of the desired element or null if fraction not valid
      */
-    private Long getMax(List<Integer> data, double percentage) {
+    private Long getMax(PredictionAccuracySketch data, double percentage) {
         if (percentage == 0.0 || Double.isNaN(percentage)) return null;
-        if (percentage == 100.0) return (long) data.get(data.size() - 1);
+        if (percentage == 100.0) return (long) data.getValueAtIndex(data.getCount() - 1);
 
         double fraction = percentage / 100.0;
 
-        int index = (int) (data.size() * (fraction + (1 - fraction) / 2));
-        return (long) data.get(index);
+        long index = (long) (data.getCount() * (fraction + (1 - fraction) / 2));
+        return (long) data.getValueAtIndex(index);
     }
 
     /**
@@ -149,21 +148,17 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
             // Add prediction mean and intervals data for each source
             for (String source : map.keySet()) {
                 // Determine mean and standard deviation for this source
-                List<List<Integer>> dataForSource = map.get(source);
-                List<Integer> listForPredBucket = null;
+                List<PredictionAccuracySketch> dataForSource = map.get(source);
+                PredictionAccuracySketch sketchForPredBucket = null;
                 if (dataForSource != null && dataForSource.size() > predBucketIdx)
-                    listForPredBucket = dataForSource.get(predBucketIdx);
-
-                // Sort the prediction accuracy data so that can call
-                // getMin() and getMax() using necessary sort list.
-                if (listForPredBucket != null) Collections.sort(listForPredBucket);
+                    sketchForPredBucket = dataForSource.get(predBucketIdx);
 
                 // Log some info for debugging
                 logger.info(
-                        "For source {} for prediction bucket minute {} " + "sorted datapoints={}",
+                        "For source {} for prediction bucket minute {} " + "datapoints={}",
                         source,
                         predBucketSecs,
-                        listForPredBucket);
+                        sketchForPredBucket);
 
                 // If there is enough data then handle stats for this prediction
                 // bucket. If there are fewer than
@@ -172,15 +167,14 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
                 // based min and max intervals would not be valid either. This
                 // would cause an unsightly and inappropriate necking of data
                 // for this bucket.
-                if (listForPredBucket != null && listForPredBucket.size() >= MIN_DATA_POINTS_PER_PRED_BUCKET) {
+                if (sketchForPredBucket != null && sketchForPredBucket.getCount() >= MIN_DATA_POINTS_PER_PRED_BUCKET) {
                     // Determine the mean
-                    double[] dataForPredBucket = Statistics.toDoubleArray(listForPredBucket);
-                    double mean = Statistics.mean(dataForPredBucket);
+                    double mean = sketchForPredBucket.getMean();
 
                     // Determine the standard deviation and handle special case
                     // of when there is only a single data point such that the
                     // standard deviation is NaN.
-                    double stdDev = Statistics.getSampleStandardDeviation(dataForPredBucket, mean);
+                    double stdDev = sketchForPredBucket.getSampleStandardDeviation(mean);
                     if (Double.isNaN(stdDev)) stdDev = 0.0;
 
                     // Output the mean value
@@ -192,8 +186,8 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
                     Long intervalMin;
                     Long intervalMax;
                     if (intervalsType == IntervalsType.PERCENTAGE) {
-                        intervalMin = getMin(listForPredBucket, intervalPercentage1);
-                        intervalMax = getMax(listForPredBucket, intervalPercentage1);
+                        intervalMin = getMin(sketchForPredBucket, intervalPercentage1);
+                        intervalMax = getMax(sketchForPredBucket, intervalPercentage1);
                     } else {
                         // Use single standard deviation
                         intervalMin = Math.round(mean - stdDev);
@@ -211,14 +205,14 @@ public class PredAccuracyIntervalQuery extends PredictionAccuracyQuery {
                         // out this interval info.
                         if (intervalPercentage2 == 0.0 || Double.isNaN(intervalPercentage2)) continue;
 
-                        intervalMin = getMin(listForPredBucket, intervalPercentage2);
-                        intervalMax = getMax(listForPredBucket, intervalPercentage2);
+                        intervalMin = getMin(sketchForPredBucket, intervalPercentage2);
+                        intervalMax = getMax(sketchForPredBucket, intervalPercentage2);
                     } else if (intervalsType == IntervalsType.BOTH) {
                         // Use percentage but since also displaying results
                         // for a single deviation use a fraction that
                         // corresponds, which is 0.68.
-                        intervalMin = getMin(listForPredBucket, 0.68);
-                        intervalMax = getMax(listForPredBucket, 0.68);
+                        intervalMin = getMin(sketchForPredBucket, 0.68);
+                        intervalMax = getMax(sketchForPredBucket, 0.68);
                     } else {
                         // Using standard deviation for second interval. Use
                         // 1.5 standard deviations, which corresponds to 86.6%
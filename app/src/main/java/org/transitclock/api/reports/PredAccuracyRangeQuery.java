@@ -3,6 +3,7 @@ package org.transitclock.api.reports;
 
 import lombok.extern.slf4j.Slf4j;
 import org.transitclock.api.reports.ChartJsonBuilder.RowBuilder;
+import org.transitclock.core.predAccuracy.PredictionAccuracySketch;
 import org.transitclock.utils.StringUtils;
 
 import java.sql.SQLException;
@@ -85,7 +86,7 @@ public class PredAccuracyRangeQuery extends PredictionAccuracyQuery {
         }
 
         // Only dealing with a single source so get data for that source
-        List<List<Integer>> dataForSource = null;
+        List<PredictionAccuracySketch> dataForSource = null;
         for (String source : map.keySet()) {
             dataForSource = map.get(source);
         }
@@ -95,23 +96,21 @@ public class PredAccuracyRangeQuery extends PredictionAccuracyQuery {
             // Prediction length in seconds
             double predBucketSecs = predBucketIdx * PREDICTION_LENGTH_BUCKET_SIZE / 60.0;
 
-            List<Integer> listForPredBucket = null;
+            PredictionAccuracySketch sketchForPredBucket = null;
             if (dataForSource != null && dataForSource.size() > predBucketIdx) {
-                listForPredBucket = dataForSource.get(predBucketIdx);
+                sketchForPredBucket = dataForSource.get(predBucketIdx);
 
-                // For this prediction bucket track whether prediction below
+                // For this prediction bucket determine whether prediction below
                 // min,
                 // between min and max, and above max.
-                int tooEarly = 0, ok = 0, tooLate = 0;
-                for (int accuracyInSecs : listForPredBucket) {
-                    if (accuracyInSecs < -maxEarlySec) ++tooEarly;
-                    else if (accuracyInSecs < maxLateSec) ++ok;
-                    else ++tooLate;
-                }
+                long numPreds = sketchForPredBucket.getCount();
+                long tooEarly = sketchForPredBucket.countLessThan(-maxEarlySec);
+                long notTooLate = sketchForPredBucket.countLessThan(maxLateSec);
+                long ok = notTooLate - tooEarly;
+                long tooLate = numPreds - notTooLate;
 
                 // If no data for this prediction bucket then continue to next
                 // one
-                int numPreds = listForPredBucket.size();
                 if (numPreds == 0) continue;
 
                 double tooEarlyPercentage = 100.0 * tooEarly / numPreds;
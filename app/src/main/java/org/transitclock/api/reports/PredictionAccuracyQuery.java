@@ -2,6 +2,9 @@
 package org.transitclock.api.reports;
 
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.time.DateUtils;
+import org.transitclock.core.predAccuracy.PredictionAccuracyRollups;
+import org.transitclock.core.predAccuracy.PredictionAccuracySketch;
 import org.transitclock.domain.GenericQuery;
 import org.transitclock.utils.Time;
 
@@ -12,8 +15,10 @@ import java.sql.Timestamp;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * For doing SQL query and generating JSON data for a prediction accuracy chart. This abstract class
@@ -26,16 +31,16 @@ import java.util.Map;
  */
 @Slf4j
 public abstract class PredictionAccuracyQuery extends GenericQuery {
-    protected static final int MAX_PRED_LENGTH = 900;
-    protected static final int PREDICTION_LENGTH_BUCKET_SIZE = 30;
+    protected static final int MAX_PRED_LENGTH = PredictionAccuracyRollups.MAX_PRED_LENGTH_SECS;
+    protected static final int PREDICTION_LENGTH_BUCKET_SIZE = PredictionAccuracyRollups.PRED_LENGTH_BUCKET_SECS;
 
     // Keyed on source (so can show data for multiple sources at
     // once in order to compare prediction accuracy. Contains a array,
-    // with an element for each prediction bucket, containing an array
+    // with an element for each prediction bucket, containing a sketch
     // of the prediction accuracy values in seconds for that bucket. Each bucket
     // is for
     // a certain prediction range, specified by predictionLengthBucketSize.
-    protected final Map<String, List<List<Integer>>> map = new HashMap<>();
+    protected final Map<String, List<PredictionAccuracySketch>> map = new HashMap<>();
 
     // Defines the output type for the intervals, whether should show
     // standard deviation, percentage, or both.
@@ -94,7 +99,24 @@ public abstract class PredictionAccuracyQuery extends GenericQuery {
      * @return
      */
     private static int index(int predLength) {
-        return (predLength + PREDICTION_LENGTH_BUCKET_SIZE / 2) / PREDICTION_LENGTH_BUCKET_SIZE;
+        return PredictionAccuracyRollups.predLengthBucket(predLength);
+    }
+
+    /**
+     * Returns the sketch for the prediction bucket for the source, creating it if needed.
+     *
+     * @param predictionBucketIndex
+     * @param source
+     * @return the sketch, or null if the index is not valid
+     */
+    private PredictionAccuracySketch getSketch(int predictionBucketIndex, String source) {
+        if (predictionBucketIndex < 0) return null;
+
+        // Get the prediction buckets for the specified source
+        List<PredictionAccuracySketch> predictionBuckets = map.computeIfAbsent(source, k -> new ArrayList<>());
+        while (predictionBuckets.size() < predictionBucketIndex + 1)
+            predictionBuckets.add(new PredictionAccuracySketch());
+        return predictionBuckets.get(predictionBucketIndex);
     }
 
     /**
@@ -105,15 +127,11 @@ public abstract class PredictionAccuracyQuery extends GenericQuery {
      * @param source
      */
     private void addDataToMap(int predLength, int predAccuracy, String source) {
-        // Get the prediction buckets for the specified source
-        List<List<Integer>> predictionBuckets = map.computeIfAbsent(source, k -> new ArrayList<>());
-
         // Determine the index of the appropriate prediction bucket
         int predictionBucketIndex = index(predLength);
 
-        while (predictionBuckets.size() < predictionBucketIndex + 1) predictionBuckets.add(new ArrayList<>());
-        if (predictionBucketIndex < predictionBuckets.size() && predictionBucketIndex >= 0) {
-            List<Integer> predictionAccuracies = predictionBuckets.get(predictionBucketIndex);
+        PredictionAccuracySketch predictionAccuracies = getSketch(predictionBucketIndex, source);
+        if (predictionAccuracies != null) {
             // Add the prediction accuracy to the bucket.
             predictionAccuracies.add(predAccuracy);
         } else {
@@ -217,7 +235,7 @@ public abstract class PredictionAccuracyQuery extends GenericQuery {
         // all), "AffectedByWaitStop", or "NotAffectedByWaitStop".
         String predTypeSql = "";
         if (predType != null && !predType.isEmpty()) {
-            if (predSource.equals("AffectedByWaitStop")) {
+            if (predType.equals("AffectedByWaitStop")) {
                 // Only "AffectedByLayover" predictions
                 predTypeSql = " AND affected_by_wait_stop = true ";
             } else {
@@ -225,68 +243,121 @@ public abstract class PredictionAccuracyQuery extends GenericQuery {
                 predTypeSql = " AND affected_by_wait_stop = false ";
             }
         }
+        // Determine the date parameters for the query
+        Timestamp beginDate = null;
+        java.util.Date date = Time.parse(beginDateStr);
+        beginDate = new Timestamp(date.getTime());
+
+        // Determine the time parameters for the query
+        // If begin time not set but end time is then use midnight as begin
+        // time
+        if ((beginTimeStr == null || beginTimeStr.isEmpty()) && endTimeStr != null && !endTimeStr.isEmpty()) {
+            beginTimeStr = "00:00:00";
+        }
+        // If end time not set but begin time is then use midnight as end
+        // time
+        if ((endTimeStr == null || endTimeStr.isEmpty()) && beginTimeStr != null && !beginTimeStr.isEmpty()) {
+            endTimeStr = "23:59:59";
+        }
+
+        java.sql.Time beginTime = null;
+        java.sql.Time endTime = null;
+        if (beginTimeStr != null && !beginTimeStr.isEmpty()) {
+            beginTime = new java.sql.Time(Time.parseTimeOfDay(beginTimeStr) * Time.MS_PER_SEC);
+        }
+        if (endTimeStr != null && !endTimeStr.isEmpty()) {
+            endTime = new java.sql.Time(Time.parseTimeOfDay(endTimeStr) * Time.MS_PER_SEC);
+        }
+
+        logger.debug(
+                "beginDate {} beginDateStr {} endDateStr {} beginTime {} beginTimeStr {}"
+                        + " endTime {} endTimeStr {}",
+                beginDate,
+                beginDateStr,
+                numDays,
+                beginTime,
+                beginTimeStr,
+                endTime,
+                endTimeStr);
+
+        Timestamp endDate = new Timestamp(DateUtils.addDays(beginDate, numDays).getTime());
+        String filterSql = routeSql + sourceSql + predTypeSql;
+        try {
+            if (ReportsConfig.isPredAccuracyFromRollups()) {
+                // The rollups are far fewer rows than prediction_accuracy so
+                // use them if configured to. The hours that aren't recorded as
+                // complete, such as from before the rollups were stored or
+                // when the module crashed, are read from prediction_accuracy
+                // instead. The rollups are per hour so the time of day range is
+                // widened to the hours it overlaps, and for prediction_accuracy
+                // the rows are filtered by their hour in the same way so that
+                // all the hours of the report are treated the same.
+                String hourTimeSql = "";
+                java.sql.Time hourBeginTime = null;
+                if (beginTime != null) {
+                    hourTimeSql = " AND date_trunc('hour', arrival_departure_time)::time BETWEEN ? AND ? ";
+                    hourBeginTime = new java.sql.Time(beginTime.getTime() / Time.MS_PER_HOUR * Time.MS_PER_HOUR);
+                }
+                Set<Long> completeHours = getCompleteRollupHours(beginDate, endDate);
+                doRollupQuery(beginDate, endDate, hourBeginTime, endTime, routeIds, filterSql, completeHours);
+                for (long[] range : rangesWithoutRollups(beginDate.getTime(), endDate.getTime(), completeHours)) {
+                    doRawQuery(
+                            new Timestamp(range[0]),
+                            new Timestamp(range[1]),
+                            hourTimeSql,
+                            hourBeginTime,
+                            endTime,
+                            routeIds,
+                            filterSql);
+                }
+            } else {
+                doRawQuery(beginDate, endDate, timeSql, beginTime, endTime, routeIds, filterSql);
+            }
+        } finally {
+            if (!getConnection().isClosed()) {
+                getConnection().close();
+            }
+        }
+    }
+
+    /**
+     * Queries the prediction_accuracy rows for the time range and puts the data into the map.
+     *
+     * @param beginTimestamp Inclusive
+     * @param endTimestamp Exclusive
+     * @param timeSql The time of day portion of the SQL, or empty string
+     * @param beginTime null if no time of day range
+     * @param endTime null if no time of day range
+     * @param routeIds
+     * @param filterSql The route, source, and prediction type portions of the SQL
+     * @throws SQLException
+     */
+    private void doRawQuery(
+            Timestamp beginTimestamp,
+            Timestamp endTimestamp,
+            String timeSql,
+            java.sql.Time beginTime,
+            java.sql.Time endTime,
+            String[] routeIds,
+            String filterSql)
+            throws SQLException {
         // TODO generate database independent SQL if possible!
         // Put the entire SQL query together
         String sql = "SELECT to_char(predicted_time-prediction_read_time, 'SSSS')::integer as predLength, "
                 + "prediction_accuracy_msecs/1000 as predAccuracy, "
                 + " prediction_source as source  FROM prediction_accuracy WHERE"
-                + " arrival_departure_time BETWEEN ? AND TIMESTAMP '" + beginDateStr
-                + "' + INTERVAL '"
-                + numDays
-                + " day' "
+                + " arrival_departure_time >= ? AND arrival_departure_time < ? "
                 + timeSql
                 + "  AND predicted_time - prediction_read_time < '00:15:00' "
-                + routeSql
-                + sourceSql
-                + predTypeSql;
+                + filterSql;
 
-
-
-        PreparedStatement statement = null;
-        try {
+        try (PreparedStatement statement = getConnection().prepareStatement(sql)) {
             logger.debug("SQL: {}", sql);
-            statement = getConnection().prepareStatement(sql);
-
-            // Determine the date parameters for the query
-            Timestamp beginDate = null;
-            java.util.Date date = Time.parse(beginDateStr);
-            beginDate = new Timestamp(date.getTime());
-
-            // Determine the time parameters for the query
-            // If begin time not set but end time is then use midnight as begin
-            // time
-            if ((beginTimeStr == null || beginTimeStr.isEmpty()) && endTimeStr != null && !endTimeStr.isEmpty()) {
-                beginTimeStr = "00:00:00";
-            }
-            // If end time not set but begin time is then use midnight as end
-            // time
-            if ((endTimeStr == null || endTimeStr.isEmpty()) && beginTimeStr != null && !beginTimeStr.isEmpty()) {
-                endTimeStr = "23:59:59";
-            }
-
-            java.sql.Time beginTime = null;
-            java.sql.Time endTime = null;
-            if (beginTimeStr != null && !beginTimeStr.isEmpty()) {
-                beginTime = new java.sql.Time(Time.parseTimeOfDay(beginTimeStr) * Time.MS_PER_SEC);
-            }
-            if (endTimeStr != null && !endTimeStr.isEmpty()) {
-                endTime = new java.sql.Time(Time.parseTimeOfDay(endTimeStr) * Time.MS_PER_SEC);
-            }
-
-            logger.debug(
-                    "beginDate {} beginDateStr {} endDateStr {} beginTime {} beginTimeStr {}"
-                            + " endTime {} endTimeStr {}",
-                    beginDate,
-                    beginDateStr,
-                    numDays,
-                    beginTime,
-                    beginTimeStr,
-                    endTime,
-                    endTimeStr);
 
             // Set the parameters for the query
             int i = 1;
-            statement.setTimestamp(i++, beginDate);
+            statement.setTimestamp(i++, beginTimestamp);
+            statement.setTimestamp(i++, endTimestamp);
 
             if (beginTime != null) {
                 statement.setTime(i++, beginTime);
@@ -307,27 +378,158 @@ public abstract class PredictionAccuracyQuery extends GenericQuery {
             }
 
             // Actually execute the query
-            ResultSet rs = statement.executeQuery();
+            try (ResultSet rs = statement.executeQuery()) {
+                // Process results of query
+                while (rs.next()) {
+                    int predLength = rs.getInt("predLength");
+                    int predAccuracy = rs.getInt("predAccuracy");
+                    String sourceResult = rs.getString("source");
+
+                    addDataToMap(predLength, predAccuracy, sourceResult);
+                    logger.debug(
+                            "predLength={} predAccuracy={} source={}", predLength, predAccuracy, sourceResult);
+                }
+            }
+        }
+    }
 
-            // Process results of query
-            while (rs.next()) {
-                int predLength = rs.getInt("predLength");
-                int predAccuracy = rs.getInt("predAccuracy");
-                String sourceResult = rs.getString("source");
+    /**
+     * Same as doRawQuery() but uses the prediction_accuracy_rollups, which have a sketch of the
+     * accuracy per route/hour/prediction length bucket, and merges the sketches into the map. Only
+     * the rollups of the complete hours are used, since the other hours are read from
+     * prediction_accuracy.
+     *
+     * @param beginDate Inclusive
+     * @param endDate Exclusive
+     * @param beginTime Start of the hour of the time of day range, null if no time of day range
+     * @param endTime null if no time of day range
+     * @param routeIds
+     * @param filterSql The route, source, and prediction type portions of the SQL
+     * @param completeHours Start times of the hours that all the rollups are stored for
+     * @throws SQLException
+     */
+    private void doRollupQuery(
+            Timestamp beginDate,
+            Timestamp endDate,
+            java.sql.Time beginTime,
+            java.sql.Time endTime,
+            String[] routeIds,
+            String filterSql,
+            Set<Long> completeHours)
+            throws SQLException {
+        String timeSql = beginTime != null ? " AND rollup_hour::time BETWEEN ? AND ? " : "";
+        String sql = "SELECT rollup_hour, pred_length_bucket, prediction_source as source, accuracy_secs,"
+                + " accuracy_counts "
+                + "FROM prediction_accuracy_rollups WHERE"
+                + " rollup_hour >= ? AND rollup_hour < ? "
+                + timeSql
+                + filterSql;
 
-                addDataToMap(predLength, predAccuracy, sourceResult);
-                logger.debug("predLength={} predAccuracy={} source={}", predLength, predAccuracy, sourceResult);
+        try (PreparedStatement statement = getConnection().prepareStatement(sql)) {
+            logger.debug("SQL: {}", sql);
+
+            // Set the parameters for the query
+            int i = 1;
+            statement.setTimestamp(i++, beginDate);
+            statement.setTimestamp(i++, endDate);
+            if (beginTime != null) {
+                statement.setTime(i++, beginTime);
+                statement.setTime(i++, endTime);
+            }
+            if (routeIds != null) {
+                for (String routeId : routeIds)
+                    if (!routeId.trim().isEmpty()) {
+                        statement.setString(i++, routeId);
+                        statement.setString(i++, routeId);
+                    }
             }
 
-            rs.close();
-        } catch (SQLException e) {
-            throw e;
-        } finally {
-            if (statement != null)
-                statement.close();
-            if (!getConnection().isClosed()) {
-                getConnection().close();
+            // Actually execute the query
+            try (ResultSet rs = statement.executeQuery()) {
+                // Process results of query
+                int numRollups = 0;
+                while (rs.next()) {
+                    // Part of an hour, such as stored on shutdown
+                    if (!completeHours.contains(rs.getTimestamp("rollup_hour").getTime())) continue;
+
+                    int predLengthBucket = rs.getInt("pred_length_bucket");
+                    String sourceResult = rs.getString("source");
+                    PredictionAccuracySketch sketch = new PredictionAccuracySketch(
+                            parseIntList(rs.getString("accuracy_secs")),
+                            parseIntList(rs.getString("accuracy_counts")));
+
+                    getSketch(predLengthBucket, sourceResult).merge(sketch);
+                    ++numRollups;
+                }
+                logger.debug("Merged {} prediction accuracy rollups", numRollups);
+            }
+        }
+    }
+
+    /**
+     * Returns the hours in the date range that are recorded as complete, meaning that all their
+     * rollups have been stored. An hour that isn't, even if it has some rollups, has to be read
+     * from prediction_accuracy instead.
+     *
+     * @param beginDate Inclusive
+     * @param endDate Exclusive
+     * @return Start times of the hours, in epoch msec
+     * @throws SQLException
+     */
+    private Set<Long> getCompleteRollupHours(Timestamp beginDate, Timestamp endDate) throws SQLException {
+        String sql = "SELECT DISTINCT rollup_hour FROM report_rollup_hours "
+                + "WHERE rollups_table = ? AND rollup_hour >= ? AND rollup_hour < ?";
+        Set<Long> hours = new HashSet<>();
+        try (PreparedStatement statement = getConnection().prepareStatement(sql)) {
+            statement.setString(1, PredictionAccuracyRollups.ROLLUPS_TABLE);
+            statement.setTimestamp(2, beginDate);
+            statement.setTimestamp(3, endDate);
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) hours.add(rs.getTimestamp("rollup_hour").getTime());
             }
         }
+        return hours;
+    }
+
+    /**
+     * Returns the time ranges between begin and end that consist of whole hours without complete
+     * rollups. Adjacent hours are combined into a single range so that as few queries as possible
+     * are needed.
+     *
+     * @param begin Inclusive, in epoch msec
+     * @param end Exclusive, in epoch msec
+     * @param hoursWithRollups Start times of the hours that have complete rollups
+     * @return the ranges as {begin, end} pairs, begin inclusive and end exclusive
+     */
+    static List<long[]> rangesWithoutRollups(long begin, long end, Set<Long> hoursWithRollups) {
+        List<long[]> ranges = new ArrayList<>();
+        long rangeBegin = -1;
+        for (long hour = Time.getStartOfHour(begin); hour < end; hour += Time.MS_PER_HOUR) {
+            if (hoursWithRollups.contains(hour)) {
+                if (rangeBegin >= 0) {
+                    ranges.add(new long[] {rangeBegin, hour});
+                    rangeBegin = -1;
+                }
+            } else if (rangeBegin < 0) {
+                rangeBegin = Math.max(hour, begin);
+            }
+        }
+        if (rangeBegin >= 0) ranges.add(new long[] {rangeBegin, end});
+        return ranges;
+    }
+
+    /**
+     * Parses a JSON array of integers, as stored for the rollup sketches.
+     *
+     * @param json such as "[-3, 0, 12]"
+     * @return the integers
+     */
+    private static List<Integer> parseIntList(String json) {
+        List<Integer> list = new ArrayList<>();
+        String contents = json.trim();
+        contents = contents.substring(1, contents.length() - 1).trim();
+        if (contents.isEmpty()) return list;
+        for (String element : contents.split(",")) list.add(Integer.parseInt(element.trim()));
+        return list;
     }
 }
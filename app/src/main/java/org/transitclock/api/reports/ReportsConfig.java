@@ -10,7 +10,36 @@ public class ReportsConfig {
             true,
             "Whether prediction source UI element should be visible.");
 
+    private static final BooleanConfigValue predAccuracyFromRollups = new BooleanConfigValue(
+            "transitclock.reports.predAccuracyFromRollups",
+            false,
+            "Whether the prediction accuracy reports should be created from the hourly "
+                    + "prediction_accuracy_rollups instead of from every prediction_accuracy row. "
+                    + "Hours without complete rollups, such as before "
+                    + "transitclock.predAccuracy.storeRollups was set or when the module crashed, "
+                    + "are read from prediction_accuracy. Time of day ranges are then widened to "
+                    + "whole hours for all the hours.");
+
+    private static final BooleanConfigValue reportsFromRollups = new BooleanConfigValue(
+            "transitclock.reports.reportsFromRollups",
+            false,
+            "Whether the schedule adherence and trips with travel times reports should be "
+                    + "created from the schedule_adherence_rollups and trip_stop_time_rollups "
+                    + "maintained by the ReportRollupsModule instead of from arrivals_departures. "
+                    + "Reports for dates that aren't completely rolled up, such as from before the "
+                    + "module was running or while it was down, are read from arrivals_departures. "
+                    + "Time of day ranges of the schedule adherence report are then widened to "
+                    + "whole hours.");
+
     public static boolean isShowPredictionSource() {
         return showPredictionSource.getValue();
     }
+
+    public static boolean isPredAccuracyFromRollups() {
+        return predAccuracyFromRollups.getValue();
+    }
+
+    public static boolean isReportsFromRollups() {
+        return reportsFromRollups.getValue();
+    }
 }
@@ -1,16 +1,18 @@
 /* (C)2023 */
 package org.transitclock.api.resources;
 
-import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.Response.Status;
 import jakarta.ws.rs.core.StreamingOutput;
 import org.transitclock.api.data.gtfs.GtfsRtTripFeed;
+import org.transitclock.api.data.gtfs.IncrementalFeed.FeedBytes;
 import org.transitclock.api.data.gtfs.GtfsRtVehicleFeed;
 import org.transitclock.api.utils.StandardParameters;
+import org.transitclock.api.utils.WebUtils;
 import org.transitclock.gtfs.realtime.OctalDecoder;
 
 /**
@@ -20,12 +22,31 @@ import org.transitclock.gtfs.realtime.OctalDecoder;
  */
 @Path("/key/{key}/agency/{agency}")
 public class GtfsRealtimeApi {
+    // Response header containing the version of the feed. Can be passed in
+    // as the "since" parameter to get a DIFFERENTIAL feed.
+    private static final String FEED_VERSION_HEADER = "X-Feed-Version";
+
+    /**
+     * For when there is no feed yet because it couldn't be created. The client can simply try again
+     * later.
+     *
+     * @param feedName For the message
+     * @return Exception to be thrown, with a SERVICE_UNAVAILABLE response
+     */
+    private static WebApplicationException feedNotAvailable(String feedName) {
+        return WebUtils.badRequestException(
+                Status.SERVICE_UNAVAILABLE.getStatusCode(),
+                "GTFS-realtime " + feedName + " feed is not yet available.");
+    }
+
     /**
      * For getting GTFS-realtime Vehicle Positions data for all vehicles.
      *
      * @param stdParameters
      * @param format if set to "human" then will output GTFS-rt data in human readable format.
      *     Otherwise will output data in binary format.
+     * @param since if set to the version of a previously returned feed then a DIFFERENTIAL feed
+     *     with only the changes since that version is returned
      * @return
      * @throws WebApplicationException
      */
@@ -40,7 +61,10 @@ public class GtfsRealtimeApi {
             final @BeanParam StandardParameters stdParameters,
             @Parameter(description = "If specified as human, it will get the output in human readable format. Otherwise will output data in binary format")
             @QueryParam(value = "format")
-            String format) throws WebApplicationException {
+            String format,
+            @Parameter(description = "If specified as the " + FEED_VERSION_HEADER + " of a previous response, only the changes since then are returned as a DIFFERENTIAL feed")
+            @QueryParam(value = "since")
+            Long since) throws WebApplicationException {
 
         // Make sure request is valid
         stdParameters.validate();
@@ -55,22 +79,24 @@ public class GtfsRealtimeApi {
         // use MediaType.APPLICATION_OCTET_STREAM.
         String mediaType = humanFormatOutput ? MediaType.TEXT_PLAIN : MediaType.APPLICATION_OCTET_STREAM;
 
+        FeedBytes feed = GtfsRtVehicleFeed.getFeed(stdParameters.getAgencyId(), since);
+        if (feed == null) throw feedNotAvailable("vehicle positions");
+
         // Prepare a StreamingOutput object so can write using it
         StreamingOutput stream = outputStream -> {
             try {
-                FeedMessage message = GtfsRtVehicleFeed.getPossiblyCachedMessage(
-                        stdParameters.getAgencyId());
 
                 // Output in human-readable format or in standard binary
                 // format
                 if (humanFormatOutput) {
                     // Output data in human-readable format. First, convert
                     // the octal escaped message to regular UTF encoding.
-                    String decodedMessage = OctalDecoder.convertOctalEscapedString(message.toString());
+                    String decodedMessage = OctalDecoder.convertOctalEscapedString(
+                            feed.toFeedMessage().toString());
                     outputStream.write(decodedMessage.getBytes());
                 } else {
-                    // Standard binary output
-                    message.writeTo(outputStream);
+                    // Standard binary output. Already encoded.
+                    outputStream.write(feed.getBytes());
                 }
             } catch (Exception e) {
                 throw new WebApplicationException(e);
@@ -78,7 +104,10 @@ public class GtfsRealtimeApi {
         };
 
         // Write out the data using the output stream
-        return Response.ok(stream).type(mediaType).build();
+        return Response.ok(stream)
+                .type(mediaType)
+                .header(FEED_VERSION_HEADER, feed.getVersion())
+                .build();
     }
 
     /**
@@ -87,6 +116,8 @@ public class GtfsRealtimeApi {
      * @param stdParameters
      * @param format if set to "human" then will output GTFS-rt data in human readable format.
      *     Otherwise will output data in binary format.
+     * @param since if set to the version of a previously returned feed then a DIFFERENTIAL feed
+     *     with only the changes since that version is returned
      * @return
      * @throws WebApplicationException
      */
@@ -101,7 +132,10 @@ public class GtfsRealtimeApi {
             final @BeanParam StandardParameters stdParameters,
             @Parameter(description = "If specified as human, it will get the output in human readable format. Otherwise will output data in binary format")
             @QueryParam(value = "format")
-            String format) throws WebApplicationException {
+            String format,
+            @Parameter(description = "If specified as the " + FEED_VERSION_HEADER + " of a previous response, only the changes since then are returned as a DIFFERENTIAL feed")
+            @QueryParam(value = "since")
+            Long since) throws WebApplicationException {
 
         // Make sure request is valid
         stdParameters.validate();
@@ -116,22 +150,24 @@ public class GtfsRealtimeApi {
         // use MediaType.APPLICATION_OCTET_STREAM.
         String mediaType = humanFormatOutput ? MediaType.TEXT_PLAIN : MediaType.APPLICATION_OCTET_STREAM;
 
+        FeedBytes feed = GtfsRtTripFeed.getFeed(stdParameters.getAgencyId(), since);
+        if (feed == null) throw feedNotAvailable("trip updates");
+
         // Prepare a StreamingOutput object so can write using it
         StreamingOutput stream = outputStream -> {
             try {
-                FeedMessage message = GtfsRtTripFeed.getPossiblyCachedMessage(
-                        stdParameters.getAgencyId());
 
                 // Output in human-readable format or in standard binary
                 // format
                 if (humanFormatOutput) {
                     // Output data in human-readable format. First, convert
                     // the octal escaped message to regular UTF encoding.
-                    String decodedMessage = OctalDecoder.convertOctalEscapedString(message.toString());
+                    String decodedMessage = OctalDecoder.convertOctalEscapedString(
+                            feed.toFeedMessage().toString());
                     outputStream.write(decodedMessage.getBytes());
                 } else {
-                    // Standard binary output
-                    message.writeTo(outputStream);
+                    // Standard binary output. Already encoded.
+                    outputStream.write(feed.getBytes());
                 }
             } catch (Exception e) {
                 throw new WebApplicationException(e);
@@ -139,6 +175,9 @@ public class GtfsRealtimeApi {
         };
 
         // Write out the data using the output stream
-        return Response.ok(stream).type(mediaType).build();
+        return Response.ok(stream)
+                .type(mediaType)
+                .header(FEED_VERSION_HEADER, feed.getVersion())
+                .build();
     }
 }
@@ -0,0 +1,189 @@
+/* (C)2023 */
+package org.transitclock.api.resources;
+
+import io.swagger.v3.oas.annotations.Operation;
+import jakarta.ws.rs.BeanParam;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.MediaType;
+import org.transitclock.Core;
+import org.transitclock.api.utils.StandardParameters;
+import org.transitclock.core.avl.AvlExecutor;
+import org.transitclock.core.avl.AvlProcessingLane;
+import org.transitclock.domain.hibernate.DbQueue;
+import org.transitclock.monitoring.PipelineMetrics;
+import org.transitclock.monitoring.PipelineMetrics.Stage;
+import org.transitclock.utils.LatencyHistogram;
+import org.transitclock.utils.Time;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Scrape endpoint for the metrics of processing AVL reports into predictions. The output is in the
+ * Prometheus text exposition format so it can be scraped by Prometheus or anything compatible.
+ * Requires an API key like the other commands.
+ */
+@Path("/key/{key}")
+public class MetricsApi {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    @Path("/metrics")
+    @GET
+    @Produces(MediaType.TEXT_PLAIN)
+    @Operation(
+            summary = "Returns the AVL processing metrics.",
+            description = "Returns latency summaries for each stage of processing an AVL report, "
+                    + "counters for the AVL report queue, the depth and latency of the AVL lanes, "
+                    + "and the state of the db write queues, in the Prometheus text format.",
+            tags = {"monitoring"})
+    public String getMetrics(@BeanParam StandardParameters stdParameters) throws WebApplicationException {
+        // Make sure request is valid
+        stdParameters.validate();
+
+        // The db queues only exist once the core is running
+        List<DbQueue<?>> dbQueues =
+                Core.isCoreApplication() ? Core.getInstance().getDbLogger().getQueues() : List.of();
+        return metricsText(PipelineMetrics.getInstance(), AvlExecutor.getStartedLanes(), dbQueues);
+    }
+
+    /** The metrics in the Prometheus text format. */
+    static String metricsText(PipelineMetrics metrics, List<AvlProcessingLane> lanes, List<DbQueue<?>> dbQueues) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("# HELP transitclock_avl_stage_seconds Time taken by each stage of processing an AVL report.\n");
+        sb.append("# TYPE transitclock_avl_stage_seconds summary\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = metrics.getHistogram(stage);
+            String label = "stage=\"" + stage.name().toLowerCase(Locale.ROOT) + "\"";
+            for (double quantile : QUANTILES) {
+                appendSample(sb, "transitclock_avl_stage_seconds",
+                        label + ",quantile=\"" + quantile + "\"",
+                        seconds(histogram.getValueAtPercentile(quantile * 100)));
+            }
+            appendSample(sb, "transitclock_avl_stage_seconds_sum", label, seconds(histogram.getTotal()));
+            appendSample(sb, "transitclock_avl_stage_seconds_count", label, histogram.getCount());
+        }
+
+        sb.append("# HELP transitclock_avl_stage_max_seconds Longest time taken by each stage.\n");
+        sb.append("# TYPE transitclock_avl_stage_max_seconds gauge\n");
+        for (Stage stage : Stage.values()) {
+            appendSample(sb, "transitclock_avl_stage_max_seconds",
+                    "stage=\"" + stage.name().toLowerCase(Locale.ROOT) + "\"",
+                    seconds(metrics.getHistogram(stage).getMax()));
+        }
+
+        sb.append("# HELP transitclock_avl_queue_reports_total AVL reports handled by the AVL report queue.\n");
+        sb.append("# TYPE transitclock_avl_queue_reports_total counter\n");
+        appendSample(sb, "transitclock_avl_queue_reports_total", "result=\"queued\"", metrics.getAvlReportsQueued());
+        appendSample(sb, "transitclock_avl_queue_reports_total", "result=\"rejected\"",
+                metrics.getAvlReportsRejected());
+        appendSample(sb, "transitclock_avl_queue_reports_total", "result=\"obsolete\"",
+                metrics.getAvlReportsObsolete());
+
+        appendLaneMetrics(sb, lanes);
+        if (!dbQueues.isEmpty()) appendDbQueueMetrics(sb, dbQueues);
+
+        return sb.toString();
+    }
+
+    private static void appendLaneMetrics(StringBuilder sb, List<AvlProcessingLane> lanes) {
+        if (lanes.isEmpty()) return;
+
+        sb.append("# HELP transitclock_avl_lane_depth Vehicles waiting in each lane of the sharded AVL executor.\n");
+        sb.append("# TYPE transitclock_avl_lane_depth gauge\n");
+        for (AvlProcessingLane lane : lanes) {
+            appendSample(sb, "transitclock_avl_lane_depth", laneLabel(lane), lane.queueDepth());
+        }
+
+        sb.append("# HELP transitclock_avl_lane_level Fraction of the capacity of each lane that is used.\n");
+        sb.append("# TYPE transitclock_avl_lane_level gauge\n");
+        for (AvlProcessingLane lane : lanes) {
+            appendSample(sb, "transitclock_avl_lane_level", laneLabel(lane), lane.queueLevel());
+        }
+
+        sb.append("# HELP transitclock_avl_lane_reports_total AVL reports handled by each lane.\n");
+        sb.append("# TYPE transitclock_avl_lane_reports_total counter\n");
+        for (AvlProcessingLane lane : lanes) {
+            String label = laneLabel(lane);
+            appendSample(sb, "transitclock_avl_lane_reports_total", label + ",result=\"processed\"",
+                    lane.getProcessedCount());
+            appendSample(sb, "transitclock_avl_lane_reports_total", label + ",result=\"coalesced\"",
+                    lane.getCoalescedCount());
+            appendSample(sb, "transitclock_avl_lane_reports_total", label + ",result=\"rejected\"",
+                    lane.getRejectedCount());
+        }
+
+        sb.append("# HELP transitclock_avl_lane_latency_seconds Time from a report being queued in a lane "
+                + "until it was processed.\n");
+        sb.append("# TYPE transitclock_avl_lane_latency_seconds gauge\n");
+        for (AvlProcessingLane lane : lanes) {
+            String label = laneLabel(lane);
+            appendSample(sb, "transitclock_avl_lane_latency_seconds", label + ",stat=\"avg\"",
+                    lane.getAverageLatencyMsec() / Time.MS_PER_SEC);
+            appendSample(sb, "transitclock_avl_lane_latency_seconds", label + ",stat=\"max\"",
+                    lane.getMaxLatencyMsec() / Time.MS_PER_SEC);
+        }
+    }
+
+    private static String laneLabel(AvlProcessingLane lane) {
+        return "lane=\"" + lane.getLaneIndex() + "\"";
+    }
+
+    private static void appendDbQueueMetrics(StringBuilder sb, List<DbQueue<?>> queues) {
+        sb.append("# HELP transitclock_db_queue_size Objects waiting in each DataDbLogger queue.\n");
+        sb.append("# TYPE transitclock_db_queue_size gauge\n");
+        for (DbQueue<?> queue : queues) {
+            appendSample(sb, "transitclock_db_queue_size", typeLabel(queue), queue.queueSize());
+        }
+
+        sb.append("# HELP transitclock_db_queue_level Fraction of the capacity of each queue that is used.\n");
+        sb.append("# TYPE transitclock_db_queue_level gauge\n");
+        for (DbQueue<?> queue : queues) {
+            appendSample(sb, "transitclock_db_queue_level", typeLabel(queue), queue.queueLevel());
+        }
+
+        sb.append("# HELP transitclock_db_queue_backpressured Whether optional objects are being shed.\n");
+        sb.append("# TYPE transitclock_db_queue_backpressured gauge\n");
+        for (DbQueue<?> queue : queues) {
+            appendSample(sb, "transitclock_db_queue_backpressured", typeLabel(queue), queue.isBackpressured() ? 1 : 0);
+        }
+
+        sb.append("# HELP transitclock_db_queue_objects_total Objects handled by each queue.\n");
+        sb.append("# TYPE transitclock_db_queue_objects_total counter\n");
+        for (DbQueue<?> queue : queues) {
+            String label = typeLabel(queue);
+            appendSample(sb, "transitclock_db_queue_objects_total", label + ",result=\"written\"",
+                    queue.getWrittenCount());
+            appendSample(sb, "transitclock_db_queue_objects_total", label + ",result=\"dropped\"",
+                    queue.getDroppedCount());
+            appendSample(sb, "transitclock_db_queue_objects_total", label + ",result=\"shed\"",
+                    queue.getShedCount());
+        }
+
+        sb.append("# HELP transitclock_db_queue_batch_seconds Time taken to commit a batch to the db.\n");
+        sb.append("# TYPE transitclock_db_queue_batch_seconds gauge\n");
+        for (DbQueue<?> queue : queues) {
+            String label = typeLabel(queue);
+            appendSample(sb, "transitclock_db_queue_batch_seconds", label + ",stat=\"avg\"",
+                    queue.getAverageBatchLatencyMsec() / Time.MS_PER_SEC);
+            appendSample(sb, "transitclock_db_queue_batch_seconds", label + ",stat=\"max\"",
+                    (double) queue.getMaxBatchLatencyMsec() / Time.MS_PER_SEC);
+        }
+    }
+
+    private static String typeLabel(DbQueue<?> queue) {
+        return "type=\"" + queue.getShortType().getSimpleName() + "\"";
+    }
+
+    private static void appendSample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return (double) nanos / (Time.NSEC_PER_MSEC * Time.MS_PER_SEC);
+    }
+}
@@ -0,0 +1,169 @@
+/* (C)2023 */
+package org.transitclock.api.resources;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.Parameter;
+import jakarta.ws.rs.BeanParam;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.transitclock.Core;
+import org.transitclock.api.utils.StandardParameters;
+import org.transitclock.api.utils.StreamingHub;
+import org.transitclock.api.utils.WebUtils;
+import org.transitclock.domain.structs.Route;
+import org.transitclock.domain.structs.Stop;
+import org.transitclock.gtfs.DbConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming versions of the predictions and vehiclesDetails commands. Instead of polling, a client
+ * opens a server-sent events connection and is pushed the current data right away and then the
+ * data that changed, as it changes. The route/stop and vehicle parameters are the same as for the
+ * polling commands.
+ *
+ * <p>Predictions are pushed as "predictions" events and vehicles as "vehicles" events. The data of
+ * each event is the JSON of the corresponding polling command. For vehicles only the vehicles that
+ * changed are included.
+ */
+@Path("/key/{key}/agency/{agency}")
+public class StreamingApi {
+
+    /**
+     * Streams the predictions for the route/stops and stops.
+     *
+     * @param stdParameters StdParametersBean that gets the standard parameters from the URI, query
+     *     string, and headers.
+     * @param routeStopStrs List of route/stops, as for the predictions command: "rs=43|2029"
+     * @param stopStrs List of stops, for all routes serving the stop. Stop ID or stop code.
+     * @param numberPredictions Maximum number of predictions per route/stop/destination
+     * @param sink The client connection
+     * @param sse For creating events
+     */
+    @Path("/command/predictions/stream")
+    @GET
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @Operation(
+            summary = "Streams predictions as they change",
+            description = "Opens a server-sent events stream that pushes the predictions for the"
+                    + " route/stops when they change. Takes the same parameters as the"
+                    + " predictions command.",
+            tags = {"prediction"})
+    public void streamPredictions(
+            @BeanParam StandardParameters stdParameters,
+            @Parameter(description = "List of route/stops to stream predictions for, separated by \"|\".")
+                    @QueryParam(value = "rs")
+                    List<String> routeStopStrs,
+            @Parameter(description = "List of stops to stream predictions for. Can use either stop ID or stop code.")
+                    @QueryParam(value = "s")
+                    List<String> stopStrs,
+            @Parameter(description = "Maximum number of predictions to return.")
+                    @QueryParam(value = "numPreds")
+                    @DefaultValue("3")
+                    int numberPredictions,
+            @Context SseEventSink sink,
+            @Context Sse sse)
+            throws WebApplicationException {
+        // Make sure request is valid
+        stdParameters.validate();
+
+        DbConfig dbConfig = Core.getInstance().getDbConfig();
+        List<String[]> routeStops = new ArrayList<>();
+        for (String routeStopStr : routeStopStrs) {
+            // Each route/stop is specified as a single string using "|"
+            // as a divider (e.g. "routeId|stopId")
+            String[] routeStopParams = routeStopStr.split("\\|");
+            if (routeStopParams.length == 1) {
+                routeStops.add(new String[] {null, determineStopId(dbConfig, routeStopParams[0])});
+            } else {
+                routeStops.add(new String[] {
+                    determineRouteShortName(dbConfig, routeStopParams[0]),
+                    determineStopId(dbConfig, routeStopParams[1])
+                });
+            }
+        }
+        for (String stopStr : stopStrs) {
+            routeStops.add(new String[] {null, determineStopId(dbConfig, stopStr)});
+        }
+        if (routeStops.isEmpty()) throw WebUtils.badRequestException("No route/stops or stops specified");
+
+        StreamingHub.getInstance().subscribePredictions(sink, sse, routeStops, numberPredictions);
+    }
+
+    /**
+     * Streams the details of the vehicles, specified by vehicle ID and by route.
+     *
+     * @param stdParameters StdParametersBean that gets the standard parameters from the URI, query
+     *     string, and headers.
+     * @param vehicleIds Vehicles to stream
+     * @param routesIdOrShortNames Routes whose vehicles to stream
+     * @param sink The client connection
+     * @param sse For creating events
+     */
+    @Path("/command/vehiclesDetails/stream")
+    @GET
+    @Produces(MediaType.SERVER_SENT_EVENTS)
+    @Operation(
+            summary = "Streams vehicle details as vehicles change",
+            description = "Opens a server-sent events stream that pushes the details of the"
+                    + " specified vehicles, or of the vehicles on the specified routes, when they"
+                    + " change.",
+            tags = {"vehicle"})
+    public void streamVehiclesDetails(
+            @BeanParam StandardParameters stdParameters,
+            @Parameter(description = "Specifies which vehicles to stream")
+                    @QueryParam(value = "v")
+                    List<String> vehicleIds,
+            @Parameter(description = "Specifies which routes to stream the vehicles of")
+                    @QueryParam(value = "r")
+                    List<String> routesIdOrShortNames,
+            @Context SseEventSink sink,
+            @Context Sse sse)
+            throws WebApplicationException {
+        // Make sure request is valid
+        stdParameters.validate();
+
+        if (vehicleIds.isEmpty() && routesIdOrShortNames.isEmpty())
+            throw WebUtils.badRequestException("No vehicles or routes specified");
+
+        DbConfig dbConfig = Core.getInstance().getDbConfig();
+        List<String> routeShortNames = new ArrayList<>();
+        for (String routeIdOrShortName : routesIdOrShortNames) {
+            routeShortNames.add(determineRouteShortName(dbConfig, routeIdOrShortName));
+        }
+
+        StreamingHub.getInstance()
+                .subscribeVehicles(sink, sse, stdParameters.getAgencyId(), vehicleIds, routeShortNames);
+    }
+
+    /**
+     * The route short name for a route ID or short name, since the caches are keyed by short name.
+     */
+    private static String determineRouteShortName(DbConfig dbConfig, String routeIdOrShortName) {
+        Route route = dbConfig.getRouteById(routeIdOrShortName);
+        if (route != null) return route.getShortName();
+        if (dbConfig.getRouteByShortName(routeIdOrShortName) != null) return routeIdOrShortName;
+        throw WebUtils.badRequestException("Route " + routeIdOrShortName + " not valid");
+    }
+
+    /** The stop ID for a stop ID or stop code. */
+    private static String determineStopId(DbConfig dbConfig, String stopIdOrCode) {
+        if (dbConfig.getStop(stopIdOrCode) != null) return stopIdOrCode;
+        try {
+            Stop stop = dbConfig.getStop(Integer.parseInt(stopIdOrCode));
+            if (stop != null) return stop.getId();
+        } catch (NumberFormatException e) {
+            // Not a stop code either
+        }
+        throw WebUtils.badRequestException("Stop " + stopIdOrCode + " not valid");
+    }
+}
@@ -27,6 +27,7 @@ import jakarta.ws.rs.core.Response;
 import org.apache.commons.lang3.StringUtils;
 import org.hibernate.Session;
 import org.transitclock.api.data.*;
+import org.transitclock.api.reports.ReportsConfig;
 import org.transitclock.api.utils.PredsByLoc;
 import org.transitclock.api.utils.StandardParameters;
 import org.transitclock.api.utils.WebUtils;
@@ -323,15 +324,25 @@ public class TransitimeApi {
             throws WebApplicationException {
         stdParameters.validate();
         try {
-            String response = Reports.getScheduleAdhByStops(
-                    stdParameters.getAgencyId(),
-                    routeId,
-                    beginDate,
-                    allowableEarly,
-                    allowableLate,
-                    beginTime,
-                    endTime,
-                    numDays);
+            String response = ReportsConfig.isReportsFromRollups()
+                    ? Reports.getScheduleAdhByStopsFromRollups(
+                            stdParameters.getAgencyId(),
+                            routeId,
+                            beginDate,
+                            allowableEarly,
+                            allowableLate,
+                            beginTime,
+                            endTime,
+                            numDays)
+                    : Reports.getScheduleAdhByStops(
+                            stdParameters.getAgencyId(),
+                            routeId,
+                            beginDate,
+                            allowableEarly,
+                            allowableLate,
+                            beginTime,
+                            endTime,
+                            numDays);
             return stdParameters.createResponse(response);
         } catch (Exception e) {
             // If problem getting data then return a Bad Request
@@ -1690,7 +1701,9 @@ public class TransitimeApi {
 
         try {
 
-            String response = Reports.getTripsWithTravelTimes(stdParameters.getAgencyId(), date);
+            String response = ReportsConfig.isReportsFromRollups()
+                    ? Reports.getTripsWithTravelTimesFromRollups(stdParameters.getAgencyId(), date)
+                    : Reports.getTripsWithTravelTimes(stdParameters.getAgencyId(), date);
             return stdParameters.createResponse(response);
         } catch (Exception e) {
             throw WebUtils.badRequestException(e);
@@ -0,0 +1,531 @@
+/* (C)2023 */
+package org.transitclock.api.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.AnnotationIntrospectorPair;
+import com.fasterxml.jackson.databind.introspect.JacksonAnnotationIntrospector;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+import com.fasterxml.jackson.module.jakarta.xmlbind.JakartaXmlBindAnnotationIntrospector;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response.Status;
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseEventSink;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.Core;
+import org.transitclock.api.data.ApiPredictions;
+import org.transitclock.api.data.ApiVehiclesDetails;
+import org.transitclock.config.data.ApiConfig;
+import org.transitclock.core.dataCache.PredictionDataCache;
+import org.transitclock.core.dataCache.VehicleDataCache;
+import org.transitclock.gtfs.DbConfig;
+import org.transitclock.service.dto.IpcPredictionsForRouteStopDest;
+import org.transitclock.service.dto.IpcVehicle;
+import org.transitclock.service.dto.IpcVehicleComplete;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes predictions and vehicles to the clients of the streaming API so that they don't have to
+ * poll. Each client subscribes to a set of topics, such as the predictions for a route/stop or a
+ * vehicle. The PredictionDataCache and VehicleDataCache notify the hub when data changes, which
+ * only marks the matching topics as changed. Every transitclock.api.streamingPushIntervalMsec the
+ * changed topics are published: the payload of a topic is created and serialized to JSON once and
+ * the same event is sent to every client subscribed to the topic, no matter how many there are.
+ *
+ * <p>Clients get the current data for all their topics when they subscribe and after that only the
+ * topics that changed. Closed connections are detected when sending, including the periodic keep
+ * alive comments, and then the client is unsubscribed.
+ *
+ * <p>Clients can only subscribe to routes, stops and vehicles that exist, and the number of clients
+ * and of topics per client are limited by transitclock.api.streamingMaxClients and
+ * transitclock.api.streamingMaxTopicsPerClient. A topic is dropped when its last subscriber leaves.
+ */
+@Slf4j
+public class StreamingHub {
+
+    private static final StreamingHub singleton = new StreamingHub();
+
+    // Uses the JAXB annotations of the Api classes, as Jersey does, so that
+    // the JSON is the same as for the polling API
+    private static final ObjectMapper objectMapper = JsonMapper.builder()
+            .annotationIntrospector(new AnnotationIntrospectorPair(
+                    new JacksonAnnotationIntrospector(),
+                    new JakartaXmlBindAnnotationIntrospector(TypeFactory.defaultInstance())))
+            .build();
+
+    /** Where the pushed data comes from, and which IDs can be subscribed to. Replaced for testing. */
+    interface Source {
+        boolean isRoute(String routeShortName);
+
+        boolean isStop(String stopId);
+
+        boolean isVehicle(String vehicleId);
+
+        List<IpcPredictionsForRouteStopDest> getPredictions(
+                String routeShortName, String stopId, int numberPredictions);
+
+        IpcVehicleComplete getVehicle(String vehicleId);
+
+        Collection<IpcVehicleComplete> getVehiclesForRoute(String routeShortName);
+
+        void addListeners(PredictionDataCache.Listener predictionsListener, VehicleDataCache.Listener vehicleListener);
+    }
+
+    /** The caches and the config of the core. */
+    private static class CoreSource implements Source {
+        @Override
+        public boolean isRoute(String routeShortName) {
+            return dbConfig().getRouteByShortName(routeShortName) != null;
+        }
+
+        @Override
+        public boolean isStop(String stopId) {
+            return dbConfig().getStop(stopId) != null;
+        }
+
+        @Override
+        public boolean isVehicle(String vehicleId) {
+            return VehicleDataCache.getInstance().getVehicle(vehicleId) != null;
+        }
+
+        @Override
+        public List<IpcPredictionsForRouteStopDest> getPredictions(
+                String routeShortName, String stopId, int numberPredictions) {
+            return PredictionDataCache.getInstance().getPredictions(routeShortName, null, stopId, numberPredictions);
+        }
+
+        @Override
+        public IpcVehicleComplete getVehicle(String vehicleId) {
+            return VehicleDataCache.getInstance().getVehicle(vehicleId);
+        }
+
+        @Override
+        public Collection<IpcVehicleComplete> getVehiclesForRoute(String routeShortName) {
+            return VehicleDataCache.getInstance().getVehiclesForRoute(routeShortName);
+        }
+
+        @Override
+        public void addListeners(
+                PredictionDataCache.Listener predictionsListener, VehicleDataCache.Listener vehicleListener) {
+            PredictionDataCache.getInstance().addListener(predictionsListener);
+            VehicleDataCache.getInstance().addListener(vehicleListener);
+        }
+
+        private static DbConfig dbConfig() {
+            return Core.getInstance().getDbConfig();
+        }
+    }
+
+    /** Something clients can subscribe to. Creates the payload that is pushed. */
+    private abstract static class Topic {
+        final String key;
+        final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+        Topic(String key) {
+            this.key = key;
+        }
+
+        /** Name of the SSE event */
+        abstract String eventName();
+
+        /** Returns the object to push, or null if there is nothing to push. */
+        abstract Object createPayload(Source source) throws Exception;
+    }
+
+    /** The predictions for a route/stop, or for all routes of a stop if routeShortName is null. */
+    private static class PredictionsTopic extends Topic {
+        final String routeShortName;
+        final String stopId;
+        final int numberPredictions;
+
+        PredictionsTopic(String routeShortName, String stopId, int numberPredictions) {
+            super(predictionsTopicKey(routeShortName, stopId, numberPredictions));
+            this.routeShortName = routeShortName;
+            this.stopId = stopId;
+            this.numberPredictions = numberPredictions;
+        }
+
+        @Override
+        String eventName() {
+            return "predictions";
+        }
+
+        @Override
+        Object createPayload(Source source) {
+            return new ApiPredictions(source.getPredictions(routeShortName, stopId, numberPredictions));
+        }
+    }
+
+    /**
+     * The vehicles with the ID, or on the route. Only the vehicles that changed since the last
+     * push are pushed.
+     */
+    private static class VehiclesTopic extends Topic {
+        final String agencyId;
+        final Set<String> changedVehicleIds = ConcurrentHashMap.newKeySet();
+
+        VehiclesTopic(String key, String agencyId) {
+            super(key);
+            this.agencyId = agencyId;
+        }
+
+        @Override
+        String eventName() {
+            return "vehicles";
+        }
+
+        @Override
+        Object createPayload(Source source) throws Exception {
+            List<IpcVehicle> vehicles = new ArrayList<>();
+            for (String vehicleId : changedVehicleIds) {
+                changedVehicleIds.remove(vehicleId);
+                IpcVehicleComplete vehicle = source.getVehicle(vehicleId);
+                if (vehicle != null) vehicles.add(vehicle);
+            }
+            return vehicles.isEmpty() ? null : new ApiVehiclesDetails(vehicles, agencyId, Map.of(), false);
+        }
+    }
+
+    /** A client connection and the topics it is subscribed to. */
+    private class Subscription {
+        final SseEventSink sink;
+        // Set when subscribing, before the subscription is registered
+        final List<Topic> topics = new ArrayList<>();
+
+        Subscription(SseEventSink sink) {
+            this.sink = sink;
+        }
+
+        void send(OutboundSseEvent event) {
+            if (sink.isClosed()) {
+                unsubscribe(this);
+                return;
+            }
+            sink.send(event).whenComplete((result, e) -> {
+                if (e != null) {
+                    logger.debug("Could not send to streaming client, so unsubscribing it. {}", e.getMessage());
+                    unsubscribe(this);
+                }
+            });
+        }
+    }
+
+    private final Source source;
+
+    // All topics that have subscribers, keyed by Topic.key. Only modified
+    // while synchronized on the hub, together with the subscriptions.
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+
+    // The predictions topics by stop ID, so that a change to the predictions
+    // for a route/stop only needs to look at the topics for the stop. Stops
+    // without topics are removed.
+    private final Map<String, Set<PredictionsTopic>> predictionsTopicsByStop = new ConcurrentHashMap<>();
+
+    // All current subscriptions, for the keep alives
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+    // The topics that changed since the last push
+    private final Set<Topic> changedTopics = ConcurrentHashMap.newKeySet();
+
+    // Set by the first subscription. Jersey uses a single instance.
+    private volatile Sse sse;
+
+    private boolean started;
+
+    public static StreamingHub getInstance() {
+        return singleton;
+    }
+
+    private StreamingHub() {
+        this.source = new CoreSource();
+    }
+
+    /**
+     * For testing. Doesn't listen to the caches or push on a schedule, so changes are only pushed
+     * by calling predictionsChanged() and then pushChanges().
+     */
+    StreamingHub(Source source, Sse sse) {
+        this.source = source;
+        this.sse = sse;
+        this.started = true;
+    }
+
+    private static String predictionsTopicKey(String routeShortName, String stopId, int numberPredictions) {
+        return "p|" + (routeShortName != null ? routeShortName : "") + "|" + stopId + "|" + numberPredictions;
+    }
+
+    /**
+     * Starts listening to the caches and pushing changes. Done when the first client subscribes so
+     * that there is no overhead if the streaming API is not used.
+     */
+    private synchronized void startIfNeeded(Sse sse) {
+        if (started) return;
+
+        started = true;
+        this.sse = sse;
+        source.addListeners(this::predictionsChanged, this::vehicleChanged);
+
+        ScheduledExecutorService executor =
+                Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("streamingHub"));
+        long pushInterval = ApiConfig.streamingPushIntervalMsec.getValue();
+        executor.scheduleWithFixedDelay(this::pushChanges, pushInterval, pushInterval, TimeUnit.MILLISECONDS);
+        long keepAlive = ApiConfig.streamingKeepAliveSecs.getValue();
+        executor.scheduleWithFixedDelay(this::sendKeepAlives, keepAlive, keepAlive, TimeUnit.SECONDS);
+        logger.info("Started pushing predictions and vehicles to streaming API clients");
+    }
+
+    /** Called by the PredictionDataCache. Only marks the topics as changed. */
+    void predictionsChanged(String routeShortName, String stopId) {
+        Set<PredictionsTopic> topicsForStop = predictionsTopicsByStop.get(stopId);
+        if (topicsForStop == null) return;
+
+        // Topics for the route/stop and for all routes of the stop, for any
+        // number of predictions
+        for (PredictionsTopic topic : topicsForStop) {
+            if (topic.routeShortName == null || topic.routeShortName.equals(routeShortName)) {
+                changedTopics.add(topic);
+            }
+        }
+    }
+
+    /** Called by the VehicleDataCache. Only marks the topics as changed. */
+    void vehicleChanged(IpcVehicleComplete vehicle) {
+        if (topics.isEmpty()) return;
+
+        markVehicleChanged(topics.get("v|" + vehicle.getId()), vehicle.getId());
+        if (vehicle.getRouteShortName() != null) {
+            markVehicleChanged(topics.get("r|" + vehicle.getRouteShortName()), vehicle.getId());
+        }
+    }
+
+    private void markVehicleChanged(Topic topic, String vehicleId) {
+        if (topic instanceof VehiclesTopic vehiclesTopic) {
+            vehiclesTopic.changedVehicleIds.add(vehicleId);
+            changedTopics.add(topic);
+        }
+    }
+
+    /**
+     * Subscribes a client to the predictions for the route/stops.
+     *
+     * @param sink The client connection
+     * @param sse For creating events
+     * @param routeStops Each is the route short name, or null for all routes, and the stop ID
+     * @param numberPredictions Max number of predictions per route/stop/destination
+     * @throws WebApplicationException If a route or stop doesn't exist, or there are too many
+     *     route/stops or clients
+     */
+    public void subscribePredictions(
+            SseEventSink sink, Sse sse, Collection<String[]> routeStops, int numberPredictions) {
+        startIfNeeded(sse);
+
+        Map<String, Topic> newTopics = new LinkedHashMap<>();
+        for (String[] routeStop : routeStops) {
+            if (routeStop[0] != null && !source.isRoute(routeStop[0]))
+                throw WebUtils.badRequestException("Route " + routeStop[0] + " not valid");
+            if (!source.isStop(routeStop[1])) throw WebUtils.badRequestException("Stop " + routeStop[1] + " not valid");
+
+            PredictionsTopic topic = new PredictionsTopic(routeStop[0], routeStop[1], numberPredictions);
+            newTopics.putIfAbsent(topic.key, topic);
+        }
+        subscribe(new Subscription(sink), newTopics.values());
+    }
+
+    /**
+     * Subscribes a client to the vehicles, specified by vehicle ID and by route.
+     *
+     * @param sink The client connection
+     * @param sse For creating events
+     * @param agencyId For the times of the vehicle details
+     * @param vehicleIds IDs of the vehicles to push
+     * @param routeShortNames Routes whose vehicles to push
+     * @throws WebApplicationException If a vehicle or route doesn't exist, or there are too many
+     *     vehicles and routes or clients
+     */
+    public void subscribeVehicles(
+            SseEventSink sink,
+            Sse sse,
+            String agencyId,
+            Collection<String> vehicleIds,
+            Collection<String> routeShortNames) {
+        startIfNeeded(sse);
+
+        Map<String, Topic> newTopics = new LinkedHashMap<>();
+        for (String vehicleId : vehicleIds) {
+            if (!source.isVehicle(vehicleId)) throw WebUtils.badRequestException("Vehicle " + vehicleId + " not valid");
+            newTopics.computeIfAbsent("v|" + vehicleId, k -> new VehiclesTopic(k, agencyId));
+        }
+        for (String routeShortName : routeShortNames) {
+            if (!source.isRoute(routeShortName))
+                throw WebUtils.badRequestException("Route " + routeShortName + " not valid");
+            newTopics.computeIfAbsent("r|" + routeShortName, k -> new VehiclesTopic(k, agencyId));
+        }
+        subscribe(new Subscription(sink), newTopics.values());
+    }
+
+    /**
+     * Registers the subscription with its topics and sends it the current data. Topics that
+     * already exist are shared with their other subscribers instead of using the new ones.
+     */
+    private void subscribe(Subscription subscription, Collection<Topic> newTopics) {
+        int maxTopics = ApiConfig.streamingMaxTopicsPerClient.getValue();
+        if (newTopics.size() > maxTopics)
+            throw WebUtils.badRequestException("Can subscribe to at most " + maxTopics + " topics");
+
+        synchronized (this) {
+            if (subscriptions.size() >= ApiConfig.streamingMaxClients.getValue())
+                throw WebUtils.badRequestException(
+                        Status.SERVICE_UNAVAILABLE.getStatusCode(), "Too many streaming API clients");
+
+            for (Topic newTopic : newTopics) {
+                Topic topic = topics.computeIfAbsent(newTopic.key, k -> newTopic);
+                if (topic instanceof PredictionsTopic predictionsTopic) {
+                    predictionsTopicsByStop
+                            .computeIfAbsent(predictionsTopic.stopId, k -> ConcurrentHashMap.newKeySet())
+                            .add(predictionsTopic);
+                }
+                topic.subscriptions.add(subscription);
+                subscription.topics.add(topic);
+            }
+            subscriptions.add(subscription);
+        }
+
+        // Send current data for the topics
+        for (Topic topic : subscription.topics) {
+            OutboundSseEvent event;
+            if (topic instanceof VehiclesTopic vehiclesTopic) {
+                event = createVehiclesSnapshotEvent(vehiclesTopic);
+            } else {
+                event = createEvent(topic);
+            }
+            if (event != null) subscription.send(event);
+        }
+        logger.info("Streaming API client subscribed to {} topics. There are now {} clients.",
+                subscription.topics.size(), subscriptions.size());
+    }
+
+    /** Unsubscribes the client from all its topics, dropping topics that have no subscribers left. */
+    private void unsubscribe(Subscription subscription) {
+        synchronized (this) {
+            if (!subscriptions.remove(subscription)) return;
+
+            for (Topic topic : subscription.topics) {
+                topic.subscriptions.remove(subscription);
+                if (topic.subscriptions.isEmpty()) removeTopic(topic);
+            }
+        }
+        try {
+            subscription.sink.close();
+        } catch (Exception e) {
+            logger.debug("Exception closing streaming client", e);
+        }
+        logger.info("Streaming API client unsubscribed. There are now {} clients.", subscriptions.size());
+    }
+
+    /** Drops a topic that has no subscribers left. Called while synchronized on the hub. */
+    private void removeTopic(Topic topic) {
+        topics.remove(topic.key);
+        changedTopics.remove(topic);
+        if (topic instanceof PredictionsTopic predictionsTopic) {
+            Set<PredictionsTopic> topicsForStop = predictionsTopicsByStop.get(predictionsTopic.stopId);
+            topicsForStop.remove(predictionsTopic);
+            if (topicsForStop.isEmpty()) predictionsTopicsByStop.remove(predictionsTopic.stopId);
+        }
+    }
+
+    /**
+     * The current vehicles for a vehicles topic, for a new subscriber. Since the topic only tracks
+     * changes the payload is created from the VehicleDataCache directly.
+     */
+    private OutboundSseEvent createVehiclesSnapshotEvent(VehiclesTopic topic) {
+        Collection<IpcVehicleComplete> vehicles;
+        if (topic.key.startsWith("v|")) {
+            IpcVehicleComplete vehicle = source.getVehicle(topic.key.substring(2));
+            vehicles = vehicle != null ? List.of(vehicle) : List.of();
+        } else {
+            vehicles = source.getVehiclesForRoute(topic.key.substring(2));
+        }
+        if (vehicles == null || vehicles.isEmpty()) return null;
+
+        try {
+            return buildEvent(
+                    topic.eventName(), new ApiVehiclesDetails(new ArrayList<>(vehicles), topic.agencyId, Map.of(), false));
+        } catch (Exception e) {
+            logger.error("Could not create vehicles for streaming topic {}", topic.key, e);
+            return null;
+        }
+    }
+
+    /** Creates the event for the topic, serializing the payload once. Null if nothing to send. */
+    private OutboundSseEvent createEvent(Topic topic) {
+        try {
+            Object payload = topic.createPayload(source);
+            return payload != null ? buildEvent(topic.eventName(), payload) : null;
+        } catch (Exception e) {
+            logger.error("Could not create payload for streaming topic {}", topic.key, e);
+            return null;
+        }
+    }
+
+    private OutboundSseEvent buildEvent(String name, Object payload) throws Exception {
+        String json = objectMapper.writeValueAsString(payload);
+        return sse.newEventBuilder()
+                .name(name)
+                .mediaType(MediaType.APPLICATION_JSON_TYPE)
+                .data(String.class, json)
+                .build();
+    }
+
+    /** Pushes the topics that changed since the last push to their subscribers. */
+    void pushChanges() {
+        try {
+            for (Topic topic : changedTopics) {
+                if (!changedTopics.remove(topic) || topic.subscriptions.isEmpty()) continue;
+
+                OutboundSseEvent event = createEvent(topic);
+                if (event == null) continue;
+                for (Subscription subscription : topic.subscriptions) subscription.send(event);
+            }
+        } catch (RuntimeException e) {
+            // Don't want the scheduled task to stop
+            logger.error("Exception pushing changes to streaming API clients", e);
+        }
+    }
+
+    /** Sends a comment to every client so that idle connections are kept open, or found to be closed. */
+    void sendKeepAlives() {
+        try {
+            OutboundSseEvent keepAlive = sse.newEventBuilder().comment("keep-alive").build();
+            for (Subscription subscription : subscriptions) subscription.send(keepAlive);
+        } catch (RuntimeException e) {
+            logger.error("Exception sending keep alives to streaming API clients", e);
+        }
+    }
+
+    /** For testing. */
+    int getNumberClients() {
+        return subscriptions.size();
+    }
+
+    /** For testing. */
+    int getNumberTopics() {
+        return topics.size();
+    }
+
+    /** For testing. */
+    int getNumberStopsWithTopics() {
+        return predictionsTopicsByStop.size();
+    }
+}
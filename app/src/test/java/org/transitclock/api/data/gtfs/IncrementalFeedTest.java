@@ -0,0 +1,157 @@
+package org.transitclock.api.data.gtfs;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader.Incrementality;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IncrementalFeedTest {
+    private record Location(float lat, float lon) {}
+
+    private final AtomicInteger numberCreated = new AtomicInteger();
+
+    private final IncrementalFeed<Location> feed =
+            new IncrementalFeed<>("2.0", Location::equals, location -> {
+                numberCreated.incrementAndGet();
+                return entityBuilder(location);
+            });
+
+    private static FeedEntity.Builder entityBuilder(Location location) {
+        return FeedEntity.newBuilder()
+                .setVehicle(VehiclePosition.newBuilder()
+                        .setPosition(Position.newBuilder()
+                                .setLatitude(location.lat())
+                                .setLongitude(location.lon())));
+    }
+
+    private static FeedEntity entity(String id, Location location) {
+        return entityBuilder(location).setId(id).build();
+    }
+
+    private static Map<String, Location> locations(Object... idsAndLocations) {
+        Map<String, Location> locations = new LinkedHashMap<>();
+        for (int i = 0; i < idsAndLocations.length; i += 2)
+            locations.put((String) idsAndLocations[i], (Location) idsAndLocations[i + 1]);
+        return locations;
+    }
+
+    @Test
+    void fullDatasetIsSameAsEncodedByProtobuf() throws InvalidProtocolBufferException {
+        Location location1 = new Location(44.43f, 26.10f);
+        Location location2 = new Location(44.44f, 26.11f);
+        feed.update(locations("v1", location1, "v2", location2));
+
+        IncrementalFeed.FeedBytes fullDataset = feed.getFullDataset();
+        FeedMessage message = fullDataset.toFeedMessage();
+        assertThat(message.getHeader().getGtfsRealtimeVersion()).isEqualTo("2.0");
+        assertThat(message.getHeader().getIncrementality()).isEqualTo(Incrementality.FULL_DATASET);
+        assertThat(message.getEntityList()).containsExactly(entity("v1", location1), entity("v2", location2));
+
+        // The stitched together bytes are exactly what protobuf encodes
+        FeedMessage expected = FeedMessage.newBuilder()
+                .setHeader(message.getHeader())
+                .addEntity(entity("v1", location1))
+                .addEntity(entity("v2", location2))
+                .build();
+        assertThat(fullDataset.getBytes()).isEqualTo(expected.toByteArray());
+    }
+
+    @Test
+    void onlyChangedEntityIsCreatedAgain() throws InvalidProtocolBufferException {
+        Location location1 = new Location(44.43f, 26.10f);
+        Location location2 = new Location(44.44f, 26.11f);
+        feed.update(locations("v1", location1, "v2", location2));
+        long version = feed.getFullDataset().getVersion();
+
+        Location moved = new Location(44.45f, 26.12f);
+        feed.update(locations("v1", location1, "v2", moved));
+
+        assertThat(numberCreated.get()).isEqualTo(3);
+        assertThat(feed.getFullDataset().getVersion()).isEqualTo(version + 1);
+        assertThat(feed.getFullDataset().toFeedMessage().getEntityList())
+                .containsExactly(entity("v1", location1), entity("v2", moved));
+    }
+
+    @Test
+    void unchangedFeedKeepsVersion() {
+        Map<String, Location> locations = locations("v1", new Location(44.43f, 26.10f));
+        feed.update(locations);
+        long version = feed.getFullDataset().getVersion();
+
+        feed.update(locations);
+
+        assertThat(numberCreated.get()).isEqualTo(1);
+        assertThat(feed.getFullDataset().getVersion()).isEqualTo(version);
+    }
+
+    @Test
+    void removedEntityIsDropped() throws InvalidProtocolBufferException {
+        Location location1 = new Location(44.43f, 26.10f);
+        feed.update(locations("v1", location1, "v2", new Location(44.44f, 26.11f)));
+        long version = feed.getFullDataset().getVersion();
+
+        feed.update(locations("v1", location1));
+
+        assertThat(feed.getFullDataset().getVersion()).isEqualTo(version + 1);
+        assertThat(feed.getFullDataset().toFeedMessage().getEntityList()).containsExactly(entity("v1", location1));
+    }
+
+    @Test
+    void differentialHasChangesAndDeletes() throws InvalidProtocolBufferException {
+        Location unchanged = new Location(44.43f, 26.10f);
+        feed.update(locations(
+                "unchanged", unchanged,
+                "moved", new Location(44.44f, 26.11f),
+                "removed", new Location(44.46f, 26.13f)));
+        long version = feed.getFullDataset().getVersion();
+
+        Location moved = new Location(44.45f, 26.12f);
+        Location added = new Location(44.47f, 26.14f);
+        feed.update(locations("unchanged", unchanged, "moved", moved, "added", added));
+
+        IncrementalFeed.FeedBytes differential = feed.getDifferential(version);
+        FeedMessage message = differential.toFeedMessage();
+        assertThat(differential.getVersion()).isEqualTo(feed.getFullDataset().getVersion());
+        assertThat(message.getHeader().getIncrementality()).isEqualTo(Incrementality.DIFFERENTIAL);
+        assertThat(message.getEntityList())
+                .containsExactlyInAnyOrder(
+                        entity("moved", moved),
+                        entity("added", added),
+                        FeedEntity.newBuilder().setId("removed").setIsDeleted(true).build());
+
+        // Nothing changed since the latest version
+        assertThat(feed.getDifferential(differential.getVersion()).toFeedMessage().getEntityList())
+                .isEmpty();
+    }
+
+    @Test
+    void differentialForUnknownVersionIsFullDataset() {
+        feed.update(locations("v1", new Location(44.43f, 26.10f)));
+        long version = feed.getFullDataset().getVersion();
+
+        assertThat(feed.getDifferential(version + 1)).isSameAs(feed.getFullDataset());
+    }
+
+    @Test
+    void readdedEntityIsNotDeletedInDifferential() throws InvalidProtocolBufferException {
+        Location location = new Location(44.43f, 26.10f);
+        feed.update(locations("v1", location));
+        long version = feed.getFullDataset().getVersion();
+
+        feed.update(locations());
+        feed.update(locations("v1", location));
+
+        assertThat(feed.getDifferential(version).toFeedMessage().getEntityList())
+                .isEqualTo(List.of(entity("v1", location)));
+    }
+}
@@ -0,0 +1,92 @@
+package org.transitclock.api.resources;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.avl.AvlProcessingLane;
+import org.transitclock.monitoring.PipelineMetrics;
+import org.transitclock.monitoring.PipelineMetrics.Stage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MetricsApiTest {
+    private static final Pattern SAMPLE = Pattern.compile(
+            "([a-zA-Z_:][a-zA-Z0-9_:]*)\\{([a-zA-Z_]\\w*=\"[^\"]*\"(?:,[a-zA-Z_]\\w*=\"[^\"]*\")*)\\} (\\S+)");
+    private static final Pattern HELP = Pattern.compile("# HELP ([a-zA-Z_:][a-zA-Z0-9_:]*) .+");
+    private static final Pattern TYPE =
+            Pattern.compile("# TYPE ([a-zA-Z_:][a-zA-Z0-9_:]*) (counter|gauge|summary|histogram|untyped)");
+
+    /** The values of the samples, keyed by name and labels as in the text. */
+    private static Map<String, Double> parse(String text) {
+        Map<String, Double> samples = new HashMap<>();
+        Set<String> described = new HashSet<>();
+        Map<String, String> types = new HashMap<>();
+        for (String line : text.split("\n")) {
+            Matcher help = HELP.matcher(line);
+            Matcher type = TYPE.matcher(line);
+            Matcher sample = SAMPLE.matcher(line);
+            if (help.matches()) {
+                assertThat(described.add(help.group(1))).as("HELP once for %s", help.group(1)).isTrue();
+            } else if (type.matches()) {
+                assertThat(types.put(type.group(1), type.group(2))).as("TYPE once for %s", type.group(1)).isNull();
+            } else {
+                assertThat(sample.matches()).as("sample line %s", line).isTrue();
+                String name = sample.group(1);
+                // The _sum and _count samples of a summary
+                String family = name.replaceAll("_(sum|count)$", "");
+                String familyType = types.containsKey(name) ? types.get(name) : types.get(family);
+                assertThat(familyType).as("TYPE before %s", line).isNotNull();
+                if (!types.containsKey(name)) assertThat(familyType).isEqualTo("summary");
+                assertThat(described).as("HELP before %s", line).contains(types.containsKey(name) ? name : family);
+
+                double value = Double.parseDouble(sample.group(3));
+                assertThat(samples.put(name + "{" + sample.group(2) + "}", value))
+                        .as("duplicate sample %s", line)
+                        .isNull();
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    void textIsValidPrometheusFormat() {
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        long startNanos = System.nanoTime();
+        metrics.reportStarted();
+        metrics.addSince(Stage.SPATIAL_MATCH, System.nanoTime() - 2_000_000);
+        metrics.addSince(Stage.TEMPORAL_MATCH, System.nanoTime() - 1_000_000);
+        metrics.reportProcessed(startNanos);
+        List<AvlProcessingLane> lanes = List.of(new AvlProcessingLane(0, 10), new AvlProcessingLane(1, 10));
+
+        Map<String, Double> samples = parse(MetricsApi.metricsText(metrics, lanes, List.of()));
+
+        for (Stage stage : Stage.values()) {
+            String label = "stage=\"" + stage.name().toLowerCase(Locale.ROOT) + "\"";
+            assertThat(samples.get("transitclock_avl_stage_seconds_count{" + label + "}"))
+                    .isEqualTo((double) metrics.getHistogram(stage).getCount());
+
+            List<Double> quantiles = new ArrayList<>();
+            for (String quantile : List.of("0.5", "0.9", "0.99", "0.999")) {
+                String labels = label + ",quantile=\"" + quantile + "\"";
+                quantiles.add(samples.get("transitclock_avl_stage_seconds{" + labels + "}"));
+            }
+            assertThat(quantiles).doesNotContainNull().isSorted();
+            assertThat(samples).containsKey("transitclock_avl_stage_max_seconds{" + label + "}");
+        }
+        assertThat(samples.get("transitclock_avl_stage_seconds_sum{stage=\"spatial_match\"}"))
+                .isGreaterThanOrEqualTo(0.002);
+        assertThat(samples).containsKeys(
+                "transitclock_avl_queue_reports_total{result=\"queued\"}",
+                "transitclock_avl_lane_depth{lane=\"0\"}",
+                "transitclock_avl_lane_depth{lane=\"1\"}",
+                "transitclock_avl_lane_reports_total{lane=\"1\",result=\"rejected\"}");
+    }
+}
@@ -0,0 +1,222 @@
+package org.transitclock.api.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.ws.rs.WebApplicationException;
+import jakarta.ws.rs.sse.OutboundSseEvent;
+import jakarta.ws.rs.sse.Sse;
+import jakarta.ws.rs.sse.SseBroadcaster;
+import jakarta.ws.rs.sse.SseEventSink;
+import org.glassfish.jersey.media.sse.OutboundEvent;
+import org.junit.jupiter.api.Test;
+import org.transitclock.config.data.ApiConfig;
+import org.transitclock.core.dataCache.PredictionDataCache;
+import org.transitclock.core.dataCache.VehicleDataCache;
+import org.transitclock.service.dto.IpcPredictionsForRouteStopDest;
+import org.transitclock.service.dto.IpcVehicleComplete;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StreamingHubTest {
+    private static final int NUMBER_PREDICTIONS = 3;
+
+    /**
+     * Route short names start with "r", stop IDs with "s" and vehicle IDs with "v". There are no
+     * predictions or vehicles, but the predictions payload is still pushed.
+     */
+    private static class TestSource implements StreamingHub.Source {
+        final AtomicInteger predictionsReads = new AtomicInteger();
+
+        @Override
+        public boolean isRoute(String routeShortName) {
+            return routeShortName.startsWith("r");
+        }
+
+        @Override
+        public boolean isStop(String stopId) {
+            return stopId.startsWith("s");
+        }
+
+        @Override
+        public boolean isVehicle(String vehicleId) {
+            return vehicleId.startsWith("v");
+        }
+
+        @Override
+        public List<IpcPredictionsForRouteStopDest> getPredictions(
+                String routeShortName, String stopId, int numberPredictions) {
+            predictionsReads.incrementAndGet();
+            return List.of();
+        }
+
+        @Override
+        public IpcVehicleComplete getVehicle(String vehicleId) {
+            return null;
+        }
+
+        @Override
+        public Collection<IpcVehicleComplete> getVehiclesForRoute(String routeShortName) {
+            return List.of();
+        }
+
+        @Override
+        public void addListeners(
+                PredictionDataCache.Listener predictionsListener, VehicleDataCache.Listener vehicleListener) {}
+    }
+
+    private static class TestSse implements Sse {
+        @Override
+        public OutboundSseEvent.Builder newEventBuilder() {
+            return new OutboundEvent.Builder();
+        }
+
+        @Override
+        public SseBroadcaster newBroadcaster() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /** Records the events, other than keep alives, that are sent to it. */
+    private static class TestSink implements SseEventSink {
+        final List<OutboundSseEvent> events = new CopyOnWriteArrayList<>();
+        volatile boolean closed;
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public CompletionStage<?> send(OutboundSseEvent event) {
+            if (event.getName() != null) events.add(event);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private final TestSource source = new TestSource();
+    private final Sse sse = new TestSse();
+    private final StreamingHub hub = new StreamingHub(source, sse);
+
+    private TestSink subscribe(String routeShortName, String... stopIds) {
+        List<String[]> routeStops = new ArrayList<>();
+        for (String stopId : stopIds) routeStops.add(new String[] {routeShortName, stopId});
+        TestSink sink = new TestSink();
+        hub.subscribePredictions(sink, sse, routeStops, NUMBER_PREDICTIONS);
+        return sink;
+    }
+
+    @Test
+    void changedTopicIsSerializedOnceForAllSubscribers() {
+        List<TestSink> sinks = List.of(subscribe("r1", "s1"), subscribe("r1", "s1"), subscribe("r1", "s1"));
+        // Each gets the current predictions when subscribing
+        assertThat(sinks).allMatch(sink -> sink.events.size() == 1);
+        assertThat(hub.getNumberTopics()).isEqualTo(1);
+
+        source.predictionsReads.set(0);
+        hub.predictionsChanged("r1", "s1");
+        hub.pushChanges();
+
+        assertThat(source.predictionsReads.get()).isEqualTo(1);
+        OutboundSseEvent event = sinks.get(0).events.get(1);
+        assertThat(event.getName()).isEqualTo("predictions");
+        assertThat((String) event.getData()).startsWith("{");
+        for (TestSink sink : sinks) {
+            assertThat(sink.events).hasSize(2);
+            assertThat(sink.events.get(1)).isSameAs(event);
+        }
+    }
+
+    @Test
+    void onlyTopicsForChangedRouteStopArePushed() {
+        TestSink routeStop = subscribe("r1", "s1");
+        TestSink allRoutesOfStop = subscribe(null, "s1");
+        TestSink otherRoute = subscribe("r2", "s1");
+        TestSink otherStop = subscribe("r1", "s2");
+
+        hub.predictionsChanged("r1", "s1");
+        hub.pushChanges();
+        // Nothing changed since the last push
+        hub.pushChanges();
+
+        assertThat(routeStop.events).hasSize(2);
+        assertThat(allRoutesOfStop.events).hasSize(2);
+        assertThat(otherRoute.events).hasSize(1);
+        assertThat(otherStop.events).hasSize(1);
+    }
+
+    @Test
+    void topicIsRemovedWhenLastSubscriberLeaves() {
+        TestSink sink1 = subscribe("r1", "s1", "s2");
+        TestSink sink2 = subscribe("r1", "s1");
+        TestSink vehicleSink = new TestSink();
+        hub.subscribeVehicles(vehicleSink, sse, "agency", List.of("v1"), List.of("r1"));
+        assertThat(hub.getNumberClients()).isEqualTo(3);
+        assertThat(hub.getNumberTopics()).isEqualTo(4);
+        assertThat(hub.getNumberStopsWithTopics()).isEqualTo(2);
+
+        // Closed connections are found when sending the keep alives
+        sink1.close();
+        vehicleSink.close();
+        hub.sendKeepAlives();
+
+        assertThat(hub.getNumberClients()).isEqualTo(1);
+        assertThat(hub.getNumberTopics()).isEqualTo(1);
+        assertThat(hub.getNumberStopsWithTopics()).isEqualTo(1);
+
+        hub.predictionsChanged("r1", "s2");
+        hub.pushChanges();
+        // Only the predictions for s1 and s2 from when it subscribed
+        assertThat(sink1.events).hasSize(2);
+
+        sink2.close();
+        hub.sendKeepAlives();
+
+        assertThat(hub.getNumberClients()).isZero();
+        assertThat(hub.getNumberTopics()).isZero();
+        assertThat(hub.getNumberStopsWithTopics()).isZero();
+    }
+
+    @Test
+    void unknownIdsAreRejected() {
+        TestSink sink = new TestSink();
+
+        assertThatThrownBy(() -> subscribe("r1", "s1", "unknown")).isInstanceOf(WebApplicationException.class);
+        assertThatThrownBy(() -> subscribe("unknown", "s1")).isInstanceOf(WebApplicationException.class);
+        assertThatThrownBy(() -> hub.subscribeVehicles(sink, sse, "agency", List.of("v1", "unknown"), List.of()))
+                .isInstanceOf(WebApplicationException.class);
+        assertThatThrownBy(() -> hub.subscribeVehicles(sink, sse, "agency", List.of(), List.of("unknown")))
+                .isInstanceOf(WebApplicationException.class);
+
+        assertThat(hub.getNumberClients()).isZero();
+        assertThat(hub.getNumberTopics()).isZero();
+    }
+
+    @Test
+    void numberOfTopicsPerClientIsLimited() {
+        int maxTopics = ApiConfig.streamingMaxTopicsPerClient.getValue();
+        String[] stopIds = new String[maxTopics + 1];
+        for (int i = 0; i < stopIds.length; ++i) stopIds[i] = "s" + i;
+
+        assertThatThrownBy(() -> subscribe("r1", stopIds))
+                .isInstanceOfSatisfying(
+                        WebApplicationException.class, e -> assertThat(e.getResponse().getStatus()).isEqualTo(400));
+        assertThat(hub.getNumberTopics()).isZero();
+
+        // The same route/stop more than once is a single topic
+        stopIds[maxTopics] = stopIds[0];
+        subscribe("r1", stopIds);
+        assertThat(hub.getNumberTopics()).isEqualTo(maxTopics);
+    }
+}
@@ -0,0 +1,117 @@
+/* (C)2023 */
+package org.transitclock.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.transitclock.core.avl.AvlExecutor;
+import org.transitclock.core.avl.AvlProcessingLane;
+import org.transitclock.core.avl.AvlReportProcessor;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
+import org.transitclock.utils.threading.VirtualThreads;
+
+/**
+ * Time for the sharded AVL executor to get through a batch of reports, one per vehicle, when the
+ * processing of each report is dominated by blocking, as it is when waiting on the database.
+ * Compares the default thread pool with the AvlReportProcessorQueue, a few lanes on platform threads
+ * as with transitclock.avl.shardedExecutor, and many lanes on virtual threads as with
+ * transitclock.avl.virtualThreads. The pool is given the same number of threads as the platform
+ * lanes but, like in AvlExecutor, only grows beyond one thread once its queue is full. Virtual
+ * threads need Java 21+; on older JVMs the virtual case falls back to platform threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AvlLanesBenchmark {
+    private static final int NUM_VEHICLES = 400;
+    private static final int BLOCKING_MSEC = 20;
+
+    private static final int NUM_PLATFORM_THREADS = 8;
+
+    @Param({"pool", "platform", "virtual"})
+    private String threads;
+
+    // Only set for the pool
+    private ThreadPoolExecutor pool;
+    // Only set for the lanes
+    private List<AvlProcessingLane> lanes;
+    private final AtomicLong processedCount = new AtomicLong();
+    private long time;
+
+    /** Simulates a report whose processing is blocked on the database. */
+    private class BlockingAvlReportProcessor extends AvlReportProcessor {
+        private BlockingAvlReportProcessor(AvlReport avlReport) {
+            super(avlReport);
+        }
+
+        @Override
+        public void run() {
+            Time.sleep(BLOCKING_MSEC);
+            processedCount.incrementAndGet();
+        }
+    }
+
+    @Setup
+    public void setup() {
+        // Queue sizes such that a report is never rejected
+        switch (threads) {
+            case "pool" -> pool = AvlExecutor.createThreadPool(
+                    NUM_PLATFORM_THREADS, 2 * NUM_VEHICLES, new NamedThreadFactory("avlClient"));
+            case "platform" -> lanes = AvlExecutor.createLanes(
+                    NUM_PLATFORM_THREADS,
+                    NUM_PLATFORM_THREADS * NUM_VEHICLES,
+                    new NamedThreadFactory("platformLane"));
+            case "virtual" -> lanes = AvlExecutor.createLanes(
+                    256, 256 * NUM_VEHICLES, VirtualThreads.newThreadFactory("virtualLane"));
+            default -> throw new IllegalArgumentException("Unknown threads " + threads);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (pool != null) pool.shutdown();
+        if (lanes != null) lanes.forEach(AvlProcessingLane::shutdown);
+    }
+
+    @Benchmark
+    public long processBatch() {
+        long target = processedCount.get() + NUM_VEHICLES;
+        time += 1000;
+        for (int i = 0; i < NUM_VEHICLES; ++i) {
+            AvlReport avlReport = new AvlReport("v" + i, time, 12.34, 43.21, null);
+            BlockingAvlReportProcessor processor = new BlockingAvlReportProcessor(avlReport);
+            if (pool != null) {
+                pool.execute(processor);
+            } else {
+                lanes.get(Math.floorMod(avlReport.getVehicleId().hashCode(), lanes.size()))
+                        .offer(processor);
+            }
+        }
+
+        long processed;
+        do {
+            Time.sleep(1);
+            processed = processedCount.get();
+        } while (processed < target);
+        return processed;
+    }
+}
@@ -0,0 +1,70 @@
+/* (C)2023 */
+package org.transitclock.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.Vector;
+import org.transitclock.utils.Geo;
+
+/**
+ * The geometry that spatial matching does for every AVL report against every nearby segment of
+ * every assigned trip pattern. Each invocation matches one AVL location against all the segments
+ * of a route, which is about what the spatial matcher does for a vehicle.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeoBenchmark {
+    private static final int SEGMENTS_PER_MATCH = 116;
+
+    private List<Location> avlLocations;
+    private List<Vector> segments;
+    private int next;
+
+    @Setup
+    public void setup() {
+        SyntheticNetwork network = new SyntheticNetwork(20, 1, 42);
+        avlLocations = network.getAvlLocations(1024);
+        segments = network.getShapeSegments();
+    }
+
+    private Location nextLocation() {
+        next = (next + 1) % avlLocations.size();
+        return avlLocations.get(next);
+    }
+
+    @Benchmark
+    public void distance(Blackhole blackhole) {
+        Location location = nextLocation();
+        for (int i = 0; i < SEGMENTS_PER_MATCH; ++i) blackhole.consume(Geo.distance(location, segments.get(i).getL1()));
+    }
+
+    @Benchmark
+    public void distanceToVector(Blackhole blackhole) {
+        Location location = nextLocation();
+        for (int i = 0; i < SEGMENTS_PER_MATCH; ++i) blackhole.consume(Geo.distance(location, segments.get(i)));
+    }
+
+    @Benchmark
+    public void matchDistanceAlongVector(Blackhole blackhole) {
+        Location location = nextLocation();
+        for (int i = 0; i < SEGMENTS_PER_MATCH; ++i)
+            blackhole.consume(Geo.matchDistanceAlongVector(location, segments.get(i)));
+    }
+}
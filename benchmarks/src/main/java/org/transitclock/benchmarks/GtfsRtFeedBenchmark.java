@@ -0,0 +1,120 @@
+/* (C)2023 */
+package org.transitclock.benchmarks;
+
+import com.google.transit.realtime.GtfsRealtime.FeedEntity;
+import com.google.transit.realtime.GtfsRealtime.FeedHeader;
+import com.google.transit.realtime.GtfsRealtime.FeedMessage;
+import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
+import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.transitclock.api.data.gtfs.IncrementalFeed;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.utils.Time;
+
+/**
+ * Creating the GTFS-realtime vehicle positions feed for a fleet, where between feed requests only
+ * some of the vehicles reported a new position. Compares building and serializing the whole
+ * FeedMessage, as is done for each request without an incremental feed, with updating an
+ * IncrementalFeed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GtfsRtFeedBenchmark {
+    @Param({"2000"})
+    public int numVehicles;
+
+    // Percent of the vehicles that have a new position for each update
+    @Param({"5"})
+    public int percentChanged;
+
+    private List<Location> locations;
+    private Random random;
+    private Map<String, VehiclePosition> positions;
+    private IncrementalFeed<VehiclePosition> incrementalFeed;
+    private long time;
+
+    @Setup
+    public void setup() {
+        SyntheticNetwork network = new SyntheticNetwork(20, 1, 42);
+        locations = network.getAvlLocations(numVehicles * 4);
+        random = new Random(42);
+        time = System.currentTimeMillis();
+
+        positions = new LinkedHashMap<>();
+        for (int i = 0; i < numVehicles; ++i) positions.put("v" + i, createPosition(i));
+
+        incrementalFeed = new IncrementalFeed<>(
+                "1.0", VehiclePosition::equals, vehiclePosition -> FeedEntity.newBuilder().setVehicle(vehiclePosition));
+        incrementalFeed.update(positions);
+    }
+
+    private VehiclePosition createPosition(int vehicle) {
+        Location location = locations.get(random.nextInt(locations.size()));
+        return VehiclePosition.newBuilder()
+                .setVehicle(VehicleDescriptor.newBuilder().setId("v" + vehicle).setLabel("v" + vehicle))
+                .setTrip(TripDescriptor.newBuilder()
+                        .setTripId("t" + vehicle)
+                        .setRouteId("r" + vehicle % 20)
+                        .setStartDate("20240101"))
+                .setPosition(Position.newBuilder()
+                        .setLatitude((float) location.getLat())
+                        .setLongitude((float) location.getLon())
+                        .setBearing(random.nextInt(360))
+                        .setSpeed(random.nextFloat() * 15))
+                .setTimestamp(time / Time.MS_PER_SEC)
+                .build();
+    }
+
+    /** Gives some of the vehicles a new position, as happens between feed requests. */
+    private void moveSomeVehicles() {
+        time += 15 * Time.MS_PER_SEC;
+        int numChanged = numVehicles * percentChanged / 100;
+        for (int i = 0; i < numChanged; ++i) {
+            int vehicle = random.nextInt(numVehicles);
+            positions.put("v" + vehicle, createPosition(vehicle));
+        }
+    }
+
+    @Benchmark
+    public byte[] fullRebuild() {
+        moveSomeVehicles();
+        FeedMessage.Builder message = FeedMessage.newBuilder()
+                .setHeader(FeedHeader.newBuilder()
+                        .setGtfsRealtimeVersion("1.0")
+                        .setIncrementality(FeedHeader.Incrementality.FULL_DATASET)
+                        .setTimestamp(time / Time.MS_PER_SEC));
+        for (Map.Entry<String, VehiclePosition> entry : positions.entrySet()) {
+            message.addEntity(FeedEntity.newBuilder().setId(entry.getKey()).setVehicle(entry.getValue()));
+        }
+        return message.build().toByteArray();
+    }
+
+    @Benchmark
+    public byte[] incrementalUpdate() {
+        moveSomeVehicles();
+        incrementalFeed.update(positions);
+        return incrementalFeed.getFullDataset().getBytes();
+    }
+}
@@ -0,0 +1,60 @@
+/* (C)2023 */
+package org.transitclock.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.transitclock.core.predictiongenerator.kalman.KalmanPrediction;
+import org.transitclock.core.predictiongenerator.kalman.KalmanPredictionResult;
+import org.transitclock.core.predictiongenerator.kalman.TripSegment;
+import org.transitclock.core.predictiongenerator.kalman.Vehicle;
+import org.transitclock.core.predictiongenerator.kalman.VehicleStopDetail;
+
+/**
+ * The Kalman filter step done for each stop path of each prediction, using the number of
+ * historical days configured by transitclock.prediction.data.kalman.maxdays.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KalmanPredictionBenchmark {
+    @Param({"3", "7"})
+    public int historicalDays;
+
+    private final KalmanPrediction kalmanPrediction = new KalmanPrediction();
+    private TripSegment lastVehicleSegment;
+    private TripSegment[] historicalSegments;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        Vehicle vehicle = new Vehicle("v1");
+        VehicleStopDetail origin = new VehicleStopDetail(null, 0, vehicle);
+
+        historicalSegments = new TripSegment[historicalDays];
+        for (int i = 0; i < historicalDays; ++i) {
+            VehicleStopDetail destination = new VehicleStopDetail(null, 60_000 + random.nextInt(30_000), vehicle);
+            historicalSegments[i] = new TripSegment(origin, destination);
+        }
+        lastVehicleSegment = new TripSegment(origin, new VehicleStopDetail(null, 70_000, vehicle));
+    }
+
+    @Benchmark
+    public KalmanPredictionResult predict() throws Exception {
+        return kalmanPrediction.predict(lastVehicleSegment, historicalSegments, 72.40);
+    }
+}
@@ -0,0 +1,173 @@
+/* (C)2023 */
+package org.transitclock.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.transitclock.Core;
+import org.transitclock.core.ArrivalDepartureGeneratorDefaultImpl;
+import org.transitclock.core.BlockAssignmentMethod;
+import org.transitclock.core.PredictionGeneratorDefaultImpl;
+import org.transitclock.core.SpatialMatch;
+import org.transitclock.core.SpatialMatcher;
+import org.transitclock.core.SpatialMatcher.MatchingType;
+import org.transitclock.core.TemporalMatch;
+import org.transitclock.core.TemporalMatcher;
+import org.transitclock.core.VehicleState;
+import org.transitclock.core.dataCache.PredictionDataCache;
+import org.transitclock.core.dataCache.VehicleStateManager;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.service.dto.IpcPrediction;
+import org.transitclock.utils.SystemTime;
+
+/**
+ * Time for the steps of processing an AVL report of a predictable vehicle: spatial matching, both
+ * when assigning the vehicle to its block and when the vehicle already has a match, temporal
+ * matching, generating the arrivals/departures when the vehicle has passed a stop, generating the
+ * predictions and updating the predictions cache. The config is the SyntheticNetwork created in
+ * memory by SyntheticConfig so nothing is read from or stored to a db. The vehicle is one serving
+ * a trip of the network, half way through the trip.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatchingPredictionBenchmark {
+    private Block block;
+    private List<AvlReport> avlReports;
+    private final List<TemporalMatch> matches = new ArrayList<>();
+
+    // Index of the AVL report being processed. The vehicle has just passed
+    // a stop so arrivals/departures are generated for it.
+    private int step;
+
+    // The vehicle state as it is for the step, with just the previous match,
+    // for the matching
+    private VehicleState matchingState;
+    private List<SpatialMatch> spatialMatches;
+
+    // The predictions for the step and for the step after, for alternating
+    // between when updating the cache
+    private List<IpcPrediction> predictions;
+    private List<IpcPrediction> nextPredictions;
+    private boolean useNextPredictions;
+
+    private final ArrivalDepartureGeneratorDefaultImpl arrivalDepartureGenerator =
+            new ArrivalDepartureGeneratorDefaultImpl();
+    private final PredictionGeneratorDefaultImpl predictionGenerator = new PredictionGeneratorDefaultImpl();
+
+    @Setup
+    public void setup() {
+        SyntheticNetwork network = new SyntheticNetwork(20, 60, 42);
+        Core core = SyntheticConfig.createCore(network);
+        block = core.getDbConfig().getBlock(SyntheticNetwork.SERVICE_ID, SyntheticNetwork.blockId(0, 0));
+        avlReports = network.getAvlReports(0, 0);
+
+        // Match the whole trace, as AvlProcessor does, so that have the match
+        // for every report
+        VehicleState vehicleState = VehicleStateManager.getInstance().getVehicleState(SyntheticNetwork.vehicleId(0, 0));
+        for (AvlReport avlReport : avlReports) {
+            SystemTime.setVirtualTime(avlReport.getTime());
+            vehicleState.setAvlReport(avlReport);
+            TemporalMatch match;
+            if (matches.isEmpty()) {
+                List<SpatialMatch> spatialMatchesForBlock = SpatialMatcher.getSpatialMatches(
+                        avlReport, block, block.getTripsCurrentlyActive(avlReport), MatchingType.STANDARD_MATCHING);
+                match = TemporalMatcher.getInstance()
+                        .getBestTemporalMatchComparedToSchedule(avlReport, spatialMatchesForBlock);
+                vehicleState.setMatch(match);
+                vehicleState.setBlock(block, BlockAssignmentMethod.AVL_FEED_BLOCK_ASSIGNMENT, block.getId(), true);
+            } else {
+                match = TemporalMatcher.getInstance()
+                        .getBestTemporalMatch(vehicleState, SpatialMatcher.getSpatialMatches(vehicleState));
+                vehicleState.setMatch(match);
+            }
+            if (match == null) throw new IllegalStateException("Could not match " + avlReport);
+            matches.add(match);
+        }
+
+        // First report past the middle of the trip where a stop was passed
+        step = avlReports.size() / 2;
+        while (matches.get(step).getStopPathIndex() == matches.get(step - 1).getStopPathIndex()) ++step;
+
+        matchingState = new VehicleState(SyntheticNetwork.vehicleId(0, 0));
+        matchingState.setAvlReport(avlReports.get(step - 1));
+        matchingState.setBlock(block, BlockAssignmentMethod.AVL_FEED_BLOCK_ASSIGNMENT, block.getId(), true);
+        matchingState.setMatch(matches.get(step - 1));
+        matchingState.setAvlReport(avlReports.get(step));
+        spatialMatches = SpatialMatcher.getSpatialMatches(matchingState);
+
+        nextPredictions = predictionGenerator.generate(vehicleStateFor(step + 1));
+        predictions = predictionGenerator.generate(vehicleStateFor(step));
+        PredictionDataCache.getInstance().updatePredictions(null, predictions);
+    }
+
+    /**
+     * Sets the state of the vehicle to be as it was right after the report for the index was
+     * matched. The state of the VehicleStateManager is used since generating the
+     * arrivals/departures updates it.
+     */
+    private VehicleState vehicleStateFor(int index) {
+        VehicleState vehicleState = VehicleStateManager.getInstance().getVehicleState(SyntheticNetwork.vehicleId(0, 0));
+        SystemTime.setVirtualTime(avlReports.get(index).getTime());
+        vehicleState.setAvlReport(avlReports.get(index - 1));
+        vehicleState.setMatch(matches.get(index - 1));
+        vehicleState.setAvlReport(avlReports.get(index));
+        vehicleState.setMatch(matches.get(index));
+        vehicleState.setLastArrivalTime(0);
+        vehicleState.setArrivalToStoreToDb(null);
+        return vehicleState;
+    }
+
+    @Benchmark
+    public List<SpatialMatch> spatialMatchesForAssignment() {
+        AvlReport avlReport = avlReports.get(step);
+        return SpatialMatcher.getSpatialMatches(
+                avlReport, block, block.getTripsCurrentlyActive(avlReport), MatchingType.STANDARD_MATCHING);
+    }
+
+    @Benchmark
+    public List<SpatialMatch> spatialMatches() {
+        return SpatialMatcher.getSpatialMatches(matchingState);
+    }
+
+    @Benchmark
+    public TemporalMatch temporalMatch() {
+        return TemporalMatcher.getInstance().getBestTemporalMatch(matchingState, spatialMatches);
+    }
+
+    @Benchmark
+    public VehicleState arrivalsDepartures() {
+        VehicleState vehicleState = vehicleStateFor(step);
+        arrivalDepartureGenerator.generate(vehicleState);
+        return vehicleState;
+    }
+
+    @Benchmark
+    public List<IpcPrediction> predictions() {
+        return predictionGenerator.generate(vehicleStateFor(step));
+    }
+
+    @Benchmark
+    public List<IpcPrediction> updatePredictions() {
+        List<IpcPrediction> oldPredictions = useNextPredictions ? nextPredictions : predictions;
+        useNextPredictions = !useNextPredictions;
+        List<IpcPrediction> newPredictions = useNextPredictions ? nextPredictions : predictions;
+        PredictionDataCache.getInstance().updatePredictions(oldPredictions, newPredictions);
+        return newPredictions;
+    }
+}
@@ -0,0 +1,264 @@
+/* (C)2023 */
+package org.transitclock.benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.transitclock.Core;
+import org.transitclock.ModuleRegistry;
+import org.transitclock.config.data.TraveltimesConfig;
+import org.transitclock.domain.structs.Agency;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.domain.structs.Calendar;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.Route;
+import org.transitclock.domain.structs.ScheduleTime;
+import org.transitclock.domain.structs.Stop;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.TravelTimesForStopPath;
+import org.transitclock.domain.structs.TravelTimesForStopPath.HowSet;
+import org.transitclock.domain.structs.TravelTimesForTrip;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.gtfs.ConfigSnapshot;
+import org.transitclock.gtfs.DbConfig;
+import org.transitclock.gtfs.TitleFormatter;
+import org.transitclock.gtfs.model.GtfsAgency;
+import org.transitclock.gtfs.model.GtfsCalendar;
+import org.transitclock.gtfs.model.GtfsRoute;
+import org.transitclock.gtfs.model.GtfsStop;
+import org.transitclock.gtfs.model.GtfsTrip;
+import org.transitclock.utils.Time;
+
+/**
+ * Creates the config for a SyntheticNetwork in memory, the same as the GTFS loader would create it
+ * from the written GTFS files, so that the matching and prediction code can be benchmarked without
+ * a db. There is a trip pattern per route and a block per trip. The travel times are the schedule
+ * based ones.
+ */
+public class SyntheticConfig {
+    private static final int CONFIG_REV = 0;
+    private static final int TRAVEL_TIMES_REV = 0;
+
+    private static final TitleFormatter TITLE_FORMATTER = new TitleFormatter(null, false);
+
+    private final SyntheticNetwork network;
+
+    private final List<Route> routes = new ArrayList<>();
+    private final List<Stop> stops = new ArrayList<>();
+    private final List<TripPattern> tripPatterns = new ArrayList<>();
+    private final List<Trip> trips = new ArrayList<>();
+    private final List<Block> blocks = new ArrayList<>();
+
+    private SyntheticConfig(SyntheticNetwork network) {
+        this.network = network;
+    }
+
+    /**
+     * Creates the Core for the network, with a DbConfig created in memory. Nothing is read from or
+     * stored to a db. Can only be called once per JVM since Core is a singleton.
+     *
+     * @param network The network to create the config for
+     * @return The Core
+     */
+    public static Core createCore(SyntheticNetwork network) {
+        SyntheticConfig config = new SyntheticConfig(network);
+        for (int route = 0; route < network.getNumRoutes(); ++route) config.addRoute(route);
+
+        ConfigSnapshot snapshot = new ConfigSnapshot(
+                List.of(config.agency()),
+                List.of(config.calendar()),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                config.routes,
+                config.stops,
+                config.tripPatterns,
+                config.trips,
+                config.blocks);
+        DbConfig dbConfig = new DbConfig(SyntheticNetwork.AGENCY_ID, CONFIG_REV, TRAVEL_TIMES_REV, snapshot);
+        return Core.createCore(dbConfig, new ModuleRegistry(SyntheticNetwork.AGENCY_ID));
+    }
+
+    /** Adds the stops, the trip pattern, the trips and their blocks for the route. */
+    private void addRoute(int route) {
+        String routeId = SyntheticNetwork.routeId(route);
+        List<StopPath> stopPaths = createStopPaths(route);
+
+        TripPattern tripPattern = null;
+        for (int tripIndex = 0; tripIndex < network.getTripsPerRoute(); ++tripIndex) {
+            Trip trip = createTrip(route, tripIndex);
+            if (tripPattern == null) {
+                tripPattern = new TripPattern(CONFIG_REV, SyntheticNetwork.shapeId(route), stopPaths, trip);
+                tripPatterns.add(tripPattern);
+            } else {
+                tripPattern.addTrip(trip);
+            }
+            trip.setTripPattern(tripPattern);
+            trip.setTravelTimes(scheduleBasedTravelTimes(trip, network.getStopTimes(tripIndex)));
+            trips.add(trip);
+
+            blocks.add(new Block(
+                    CONFIG_REV,
+                    SyntheticNetwork.blockId(route, tripIndex),
+                    SyntheticNetwork.SERVICE_ID,
+                    trip.getStartTime(),
+                    trip.getEndTime(),
+                    new ArrayList<>(List.of(trip))));
+        }
+
+        GtfsRoute gtfsRoute = new GtfsRoute(
+                routeId, SyntheticNetwork.AGENCY_ID, "" + (route + 1), "Route " + (route + 1), "3", null, null);
+        routes.add(new Route(CONFIG_REV, gtfsRoute, new ArrayList<>(List.of(tripPattern)), TITLE_FORMATTER));
+    }
+
+    /**
+     * Creates the stops of the route and the stop paths to them along the shape. As for the GTFS
+     * loader the first stop path is just the location of the first stop.
+     */
+    private List<StopPath> createStopPaths(int route) {
+        String routeId = SyntheticNetwork.routeId(route);
+        List<Location> shape = network.getShape(route);
+        int pointsPerStop = SyntheticNetwork.SHAPE_POINTS_PER_STOP;
+
+        List<StopPath> stopPaths = new ArrayList<>(SyntheticNetwork.STOPS_PER_ROUTE);
+        String previousStopId = null;
+        for (int stop = 0; stop < SyntheticNetwork.STOPS_PER_ROUTE; ++stop) {
+            String stopId = SyntheticNetwork.stopId(route, stop);
+            int shapeIndex = stop * pointsPerStop;
+            Location stopLocation = shape.get(shapeIndex);
+            String name = "Stop " + route + "-" + stop;
+            GtfsStop gtfsStop = new GtfsStop(stopId, null, name, stopLocation.getLat(), stopLocation.getLon());
+            stops.add(new Stop(CONFIG_REV, gtfsStop, null, TITLE_FORMATTER));
+
+            boolean firstStop = stop == 0;
+            boolean lastStop = stop == SyntheticNetwork.STOPS_PER_ROUTE - 1;
+            StopPath stopPath = new StopPath(
+                    CONFIG_REV,
+                    StopPath.determinePathId(previousStopId, stopId),
+                    stopId,
+                    stop + 1,
+                    lastStop,
+                    routeId,
+                    firstStop,
+                    firstStop,
+                    firstStop || lastStop,
+                    null,
+                    null,
+                    null,
+                    null);
+            // The shape points from the previous stop up to and including this one
+            ArrayList<Location> locations = firstStop
+                    ? new ArrayList<>(List.of(stopLocation, stopLocation))
+                    : new ArrayList<>(shape.subList(shapeIndex - pointsPerStop, shapeIndex + 1));
+            stopPath.setLocations(locations);
+            stopPath.onLoad(null, null);
+            stopPaths.add(stopPath);
+
+            previousStopId = stopId;
+        }
+        return stopPaths;
+    }
+
+    /** Creates the trip with its schedule times. The trip pattern is set later. */
+    private Trip createTrip(int route, int tripIndex) {
+        String routeId = SyntheticNetwork.routeId(route);
+        GtfsTrip gtfsTrip = new GtfsTrip(
+                routeId,
+                SyntheticNetwork.SERVICE_ID,
+                SyntheticNetwork.tripId(route, tripIndex),
+                null,
+                null,
+                "0",
+                SyntheticNetwork.blockId(route, tripIndex),
+                SyntheticNetwork.shapeId(route));
+        Trip trip = new Trip(CONFIG_REV, gtfsTrip, routeId, "" + (route + 1), "Route " + (route + 1), TITLE_FORMATTER);
+
+        List<SyntheticNetwork.StopTime> stopTimes = network.getStopTimes(tripIndex);
+        List<ScheduleTime> scheduleTimes = new ArrayList<>(stopTimes.size());
+        for (int stop = 0; stop < stopTimes.size(); ++stop) {
+            SyntheticNetwork.StopTime stopTime = stopTimes.get(stop);
+            Integer arrival = stop == 0 ? null : stopTime.arrivalSecs();
+            Integer departure = stop == stopTimes.size() - 1 ? null : stopTime.departureSecs();
+            scheduleTimes.add(new ScheduleTime(arrival, departure));
+        }
+        trip.addScheduleTimes(scheduleTimes);
+        return trip;
+    }
+
+    /**
+     * Creates the travel times from the schedule, as TravelTimesProcessorForGtfsUpdates does when
+     * there is no historic data. Every stop has a schedule time so the time between stops is simply
+     * divided among the travel time segments of the stop path.
+     */
+    private static TravelTimesForTrip scheduleBasedTravelTimes(Trip trip, List<SyntheticNetwork.StopTime> stopTimes) {
+        TravelTimesForTrip travelTimes = new TravelTimesForTrip(CONFIG_REV, TRAVEL_TIMES_REV, trip);
+        List<StopPath> stopPaths = trip.getTripPattern().getStopPaths();
+
+        // The first stop path is just a stub with no travel or stop time
+        travelTimes.add(new TravelTimesForStopPath(
+                CONFIG_REV,
+                TRAVEL_TIMES_REV,
+                stopPaths.get(0).getId(),
+                stopPaths.get(0).length(),
+                List.of(0),
+                0,
+                -1,
+                HowSet.SCHED,
+                trip));
+
+        double maxSegmentLength = TraveltimesConfig.getMaxTravelTimeSegmentLength();
+        for (int i = 1; i < stopPaths.size(); ++i) {
+            StopPath stopPath = stopPaths.get(i);
+            int numberSegments = (int) Math.ceil(stopPath.length() / maxSegmentLength);
+            int travelTimeMsec =
+                    (stopTimes.get(i).arrivalSecs() - stopTimes.get(i - 1).departureSecs()) * Time.MS_PER_SEC;
+            List<Integer> travelTimesMsec = new ArrayList<>(numberSegments);
+            for (int segment = 0; segment < numberSegments; ++segment) {
+                travelTimesMsec.add(travelTimeMsec / numberSegments);
+            }
+
+            // No stop time for the last stop since the trip ends there
+            int stopTimeMsec = i < stopPaths.size() - 1 ? SyntheticNetwork.DWELL_SECS * Time.MS_PER_SEC : 0;
+            travelTimes.add(new TravelTimesForStopPath(
+                    CONFIG_REV,
+                    TRAVEL_TIMES_REV,
+                    stopPath.getId(),
+                    stopPath.length() / numberSegments,
+                    travelTimesMsec,
+                    stopTimeMsec,
+                    -1,
+                    HowSet.SCHED,
+                    trip));
+        }
+        return travelTimes;
+    }
+
+    private Agency agency() {
+        String csv = "agency_id,agency_name,agency_url,agency_timezone\n" + SyntheticNetwork.AGENCY_ID
+                + ",Synthetic Transit,http://example.com," + SyntheticNetwork.TIMEZONE + "\n";
+        try (CSVParser parser = CSVParser.parse(csv, CSVFormat.Builder.create().setHeader().build())) {
+            CSVRecord record = parser.getRecords().get(0);
+            return new Agency(CONFIG_REV, new GtfsAgency(record, false, "agency.txt"), routes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Calendar calendar() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+        dateFormat.setTimeZone(TimeZone.getTimeZone(SyntheticNetwork.TIMEZONE));
+        GtfsCalendar gtfsCalendar = new GtfsCalendar(
+                SyntheticNetwork.SERVICE_ID, "1", "1", "1", "1", "1", "1", "1", "20200101", "20991231");
+        return new Calendar(CONFIG_REV, gtfsCalendar, dateFormat);
+    }
+}
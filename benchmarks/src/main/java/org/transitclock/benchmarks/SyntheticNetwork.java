@@ -0,0 +1,333 @@
+/* (C)2023 */
+package org.transitclock.benchmarks;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.Vector;
+import org.transitclock.utils.Geo;
+import org.transitclock.utils.Time;
+
+/**
+ * Generates a synthetic but realistic looking transit network so that benchmarks and replays don't
+ * depend on the data of any particular agency. The routes are straight-ish lines radiating out from
+ * a city center with a stop about every 400m and shape points every 100m. The network is
+ * deterministic for a given seed.
+ *
+ * <p>The network is available in memory, for the micro benchmarks, and can also be written out as
+ * a GTFS directory plus an AVL trace in the CSV format read by AvlReplayFile. The GTFS can be
+ * loaded with the GTFS loader into a db and the trace then replayed through the full pipeline with
+ * AvlReplayModule, for measuring end to end latency per AVL report.
+ *
+ * <p>Usage: SyntheticNetwork outputDir [numRoutes] [tripsPerRoute]
+ */
+public class SyntheticNetwork {
+    static final String AGENCY_ID = "synthetic";
+    static final String SERVICE_ID = "all";
+    private static final double CENTER_LAT = 44.4268;
+    private static final double CENTER_LON = 26.1025;
+    static final String TIMEZONE = "Europe/Bucharest";
+    private static final double METERS_PER_DEGREE_LAT = Geo.RADIUS_OF_EARTH_IN_METERS * Math.PI / 180;
+
+    private static final double SHAPE_POINT_SPACING = 100.0;
+    static final int SHAPE_POINTS_PER_STOP = 4;
+    static final int STOPS_PER_ROUTE = 30;
+
+    // Average speed of 6 m/s is about 22 km/h, typical for urban buses
+    private static final double SPEED = 6.0;
+    static final int DWELL_SECS = 20;
+    private static final int AVL_PERIOD_SECS = 15;
+
+    // The day that the AVL trace is for
+    private static final long SERVICE_DATE =
+            LocalDate.of(2024, 1, 1).atStartOfDay(ZoneId.of(TIMEZONE)).toInstant().toEpochMilli();
+
+    private final int numRoutes;
+    private final int tripsPerRoute;
+    private final Random random;
+
+    // The shape points for each route, index by route
+    private final List<List<Location>> shapes = new ArrayList<>();
+
+    /**
+     * @param numRoutes Number of routes to create
+     * @param tripsPerRoute Number of trips per route, starting every 10 minutes from 6am
+     * @param seed For the random offsets so that the network is the same every time
+     */
+    public SyntheticNetwork(int numRoutes, int tripsPerRoute, long seed) {
+        this.numRoutes = numRoutes;
+        this.tripsPerRoute = tripsPerRoute;
+        this.random = new Random(seed);
+
+        for (int route = 0; route < numRoutes; ++route) shapes.add(createShape(route));
+    }
+
+    /** The scheduled times of a stop of a trip, in seconds into the day. */
+    record StopTime(int arrivalSecs, int departureSecs) {}
+
+    /** Creates the shape for the route, heading out from the center with a bit of wobble. */
+    private List<Location> createShape(int route) {
+        double heading = 2 * Math.PI * route / numRoutes;
+        int numPoints = (STOPS_PER_ROUTE - 1) * SHAPE_POINTS_PER_STOP + 1;
+        List<Location> points = new ArrayList<>(numPoints);
+
+        double lat = CENTER_LAT;
+        double lon = CENTER_LON;
+        for (int i = 0; i < numPoints; ++i) {
+            points.add(new Location(lat, lon));
+            double direction = heading + (random.nextDouble() - 0.5) * 0.4;
+            lat += SHAPE_POINT_SPACING * Math.cos(direction) / METERS_PER_DEGREE_LAT;
+            lon += SHAPE_POINT_SPACING * Math.sin(direction) / (METERS_PER_DEGREE_LAT * Math.cos(Math.toRadians(lat)));
+        }
+        return points;
+    }
+
+    public int getNumRoutes() {
+        return numRoutes;
+    }
+
+    public int getTripsPerRoute() {
+        return tripsPerRoute;
+    }
+
+    /**
+     * @param route Index of the route
+     * @return the shape points of the route, a stop every SHAPE_POINTS_PER_STOP points
+     */
+    public List<Location> getShape(int route) {
+        return shapes.get(route);
+    }
+
+    /**
+     * @return the shape points of all the routes
+     */
+    public List<Location> getShapePoints() {
+        List<Location> points = new ArrayList<>();
+        for (List<Location> shape : shapes) points.addAll(shape);
+        return points;
+    }
+
+    /**
+     * @return the segments between the shape points of all the routes
+     */
+    public List<Vector> getShapeSegments() {
+        List<Vector> segments = new ArrayList<>();
+        for (List<Location> shape : shapes) {
+            for (int i = 1; i < shape.size(); ++i) segments.add(new Vector(shape.get(i - 1), shape.get(i)));
+        }
+        return segments;
+    }
+
+    /**
+     * Returns locations near the routes, as a vehicle would report them, with up to about 20m of
+     * GPS error.
+     *
+     * @param count Number of locations
+     * @return the locations
+     */
+    public List<Location> getAvlLocations(int count) {
+        List<Location> points = getShapePoints();
+        List<Location> locations = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            Location point = points.get(random.nextInt(points.size()));
+            locations.add(new Location(
+                    point.getLat() + (random.nextDouble() - 0.5) * 40 / METERS_PER_DEGREE_LAT,
+                    point.getLon() + (random.nextDouble() - 0.5) * 40 / METERS_PER_DEGREE_LAT));
+        }
+        return locations;
+    }
+
+    /**
+     * Returns the schedule of a trip. The trips of all routes have the same schedule since the
+     * stops are the same distance apart.
+     *
+     * @param trip Index of the trip of the route
+     * @return the scheduled times of each stop of the trip
+     */
+    public List<StopTime> getStopTimes(int trip) {
+        int travelSecs = (int) Math.round(SHAPE_POINTS_PER_STOP * SHAPE_POINT_SPACING / SPEED);
+        List<StopTime> stopTimes = new ArrayList<>(STOPS_PER_ROUTE);
+        int secs = 6 * Time.SEC_PER_HOUR + trip * 10 * Time.SEC_PER_MIN;
+        for (int stop = 0; stop < STOPS_PER_ROUTE; ++stop) {
+            int departure = stop == 0 || stop == STOPS_PER_ROUTE - 1 ? secs : secs + DWELL_SECS;
+            stopTimes.add(new StopTime(secs, departure));
+            secs = departure + travelSecs;
+        }
+        return stopTimes;
+    }
+
+    /**
+     * Returns the AVL reports of the vehicle serving a trip, interpolated between the shape points
+     * while travelling between stops.
+     *
+     * @param route Index of the route
+     * @param trip Index of the trip of the route
+     * @return the AVL reports, in time order
+     */
+    public List<AvlReport> getAvlReports(int route, int trip) {
+        List<Location> shape = shapes.get(route);
+        List<StopTime> stopTimes = getStopTimes(trip);
+        String vehicleId = vehicleId(route, trip);
+        double secsPerPoint = SHAPE_POINT_SPACING / SPEED;
+
+        List<AvlReport> avlReports = new ArrayList<>();
+        int nextAvlSecs = stopTimes.get(0).departureSecs();
+        for (int stop = 0; stop < STOPS_PER_ROUTE - 1; ++stop) {
+            int travelStart = stopTimes.get(stop).departureSecs();
+            for (int point = 0; point < SHAPE_POINTS_PER_STOP; ++point) {
+                Location from = shape.get(stop * SHAPE_POINTS_PER_STOP + point);
+                Location to = shape.get(stop * SHAPE_POINTS_PER_STOP + point + 1);
+                double pointStart = travelStart + point * secsPerPoint;
+                while (nextAvlSecs < pointStart + secsPerPoint) {
+                    double fraction = Math.max(0, (nextAvlSecs - pointStart) / secsPerPoint);
+                    double lat = from.getLat() + fraction * (to.getLat() - from.getLat());
+                    double lon = from.getLon() + fraction * (to.getLon() - from.getLon());
+                    long time = SERVICE_DATE + (long) nextAvlSecs * Time.MS_PER_SEC;
+                    avlReports.add(new AvlReport(vehicleId, time, lat, lon, "synthetic"));
+                    nextAvlSecs += AVL_PERIOD_SECS;
+                }
+            }
+        }
+        return avlReports;
+    }
+
+    /**
+     * Writes the network as GTFS files plus an AVL trace, avl.csv, for one vehicle per trip.
+     *
+     * @param directory Where to write the files. Created if necessary.
+     * @throws IOException if the files can't be written
+     */
+    public void write(Path directory) throws IOException {
+        Files.createDirectories(directory);
+
+        try (PrintWriter out = writer(directory, "agency.txt")) {
+            out.println("agency_id,agency_name,agency_url,agency_timezone");
+            out.println(AGENCY_ID + ",Synthetic Transit,http://example.com," + TIMEZONE);
+        }
+
+        try (PrintWriter out = writer(directory, "calendar.txt")) {
+            out.println("service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date");
+            out.println(SERVICE_ID + ",1,1,1,1,1,1,1,20200101,20991231");
+        }
+
+        try (PrintWriter out = writer(directory, "routes.txt")) {
+            out.println("route_id,agency_id,route_short_name,route_long_name,route_type");
+            for (int route = 0; route < numRoutes; ++route) {
+                out.println(routeId(route) + "," + AGENCY_ID + "," + (route + 1) + ",Route " + (route + 1) + ",3");
+            }
+        }
+
+        try (PrintWriter out = writer(directory, "shapes.txt")) {
+            out.println("shape_id,shape_pt_lat,shape_pt_lon,shape_pt_sequence");
+            for (int route = 0; route < numRoutes; ++route) {
+                List<Location> shape = shapes.get(route);
+                for (int i = 0; i < shape.size(); ++i) {
+                    out.println(shapeId(route) + "," + format(shape.get(i).getLat()) + ","
+                            + format(shape.get(i).getLon()) + "," + i);
+                }
+            }
+        }
+
+        try (PrintWriter out = writer(directory, "stops.txt")) {
+            out.println("stop_id,stop_name,stop_lat,stop_lon");
+            for (int route = 0; route < numRoutes; ++route) {
+                List<Location> shape = shapes.get(route);
+                for (int stop = 0; stop < STOPS_PER_ROUTE; ++stop) {
+                    Location location = shape.get(stop * SHAPE_POINTS_PER_STOP);
+                    out.println(stopId(route, stop) + ",Stop " + route + "-" + stop + ","
+                            + format(location.getLat()) + "," + format(location.getLon()));
+                }
+            }
+        }
+
+        try (PrintWriter trips = writer(directory, "trips.txt");
+                PrintWriter stopTimes = writer(directory, "stop_times.txt");
+                PrintWriter avl = writer(directory, "avl.csv")) {
+            trips.println("route_id,service_id,trip_id,direction_id,block_id,shape_id");
+            stopTimes.println("trip_id,arrival_time,departure_time,stop_id,stop_sequence");
+            avl.println("vehicleId,time,latitude,longitude,assignmentId,assignmentType");
+
+            for (int route = 0; route < numRoutes; ++route) {
+                for (int trip = 0; trip < tripsPerRoute; ++trip) {
+                    trips.println(routeId(route) + "," + SERVICE_ID + "," + tripId(route, trip) + ",0,"
+                            + blockId(route, trip) + "," + shapeId(route));
+                    writeTrip(route, trip, stopTimes, avl);
+                }
+            }
+        }
+    }
+
+    /** Writes the stop times for the trip and the AVL reports of a vehicle serving it. */
+    private void writeTrip(int route, int trip, PrintWriter stopTimes, PrintWriter avl) {
+        String tripId = tripId(route, trip);
+        List<StopTime> times = getStopTimes(trip);
+        for (int stop = 0; stop < STOPS_PER_ROUTE; ++stop) {
+            stopTimes.println(tripId + "," + Time.timeOfDayStr(times.get(stop).arrivalSecs()) + ","
+                    + Time.timeOfDayStr(times.get(stop).departureSecs()) + "," + stopId(route, stop) + ","
+                    + (stop + 1));
+        }
+
+        for (AvlReport avlReport : getAvlReports(route, trip)) {
+            avl.println(avlReport.getVehicleId() + "," + avlReport.getTime() + "," + format(avlReport.getLat()) + ","
+                    + format(avlReport.getLon()) + "," + blockId(route, trip) + ",BLOCK_ID");
+        }
+    }
+
+    static String routeId(int route) {
+        return "r" + route;
+    }
+
+    static String shapeId(int route) {
+        return "s" + route;
+    }
+
+    static String tripId(int route, int trip) {
+        return "t" + route + "_" + trip;
+    }
+
+    static String blockId(int route, int trip) {
+        return "b" + route + "_" + trip;
+    }
+
+    static String vehicleId(int route, int trip) {
+        return "v" + route + "_" + trip;
+    }
+
+    static String stopId(int route, int stop) {
+        return "st" + route + "_" + stop;
+    }
+
+    private static String format(double coordinate) {
+        return String.format(Locale.ROOT, "%.6f", coordinate);
+    }
+
+    private static PrintWriter writer(Path directory, String fileName) throws IOException {
+        return new PrintWriter(Files.newBufferedWriter(directory.resolve(fileName), StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SyntheticNetwork outputDir [numRoutes] [tripsPerRoute]");
+            System.exit(1);
+        }
+        int numRoutes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int tripsPerRoute = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+        Path directory = Paths.get(args[0]);
+        new SyntheticNetwork(numRoutes, tripsPerRoute, 42).write(directory);
+        System.out.println("Wrote synthetic network with " + numRoutes + " routes and " + tripsPerRoute
+                + " trips per route to " + directory);
+    }
+}
@@ -0,0 +1,95 @@
+/* (C)2023 */
+package org.transitclock.benchmarks;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.transitclock.core.TemporalDifference;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.core.dataCache.memory.StringTable;
+import org.transitclock.core.dataCache.memory.TripHistory;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+
+/**
+ * Looking up the historical travel time for a stop path, which the Kalman prediction generator does
+ * for each stop path and each historical day. Compares the columnar TripHistory lookup with getting
+ * the history as a list of events and searching it, as is done with the Ehcache based caches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TripHistoryBenchmark {
+    private static final int STOP_PATHS = 40;
+
+    private TripHistory history;
+    private int stopPathIndex;
+
+    @Setup
+    public void setup() {
+        history = new TripHistory("t0_0", new StringTable());
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < STOP_PATHS; ++i) {
+            history.add(event(time + i * 60_000L, i, true));
+            history.add(event(time + i * 60_000L + 20_000, i, false));
+        }
+    }
+
+    private static IpcArrivalDeparture event(long time, int stopPathIndex, boolean isArrival) {
+        IpcArrivalDeparture event = new IpcArrivalDeparture();
+        event.setTime(new Date(time));
+        event.setStopPathIndex(stopPathIndex);
+        event.setArrival(isArrival);
+        event.setVehicleId("v0_0");
+        event.setStopId("st0_" + stopPathIndex);
+        event.setRouteId("r0");
+        event.setBlockId("b0_0");
+        event.setServiceId("all");
+        event.setDirectionId("0");
+        event.setScheduledAdherence(new TemporalDifference(-30_000));
+        return event;
+    }
+
+    private int nextStopPathIndex() {
+        stopPathIndex = stopPathIndex % (STOP_PATHS - 1) + 1;
+        return stopPathIndex;
+    }
+
+    @Benchmark
+    public TravelTimeDetails columnar() {
+        return history.getTravelTimeDetails(nextStopPathIndex());
+    }
+
+    @Benchmark
+    public TravelTimeDetails eventList() {
+        int index = nextStopPathIndex();
+        List<IpcArrivalDeparture> events = history.getEvents();
+        IpcArrivalDeparture arrival = null;
+        for (IpcArrivalDeparture event : events) {
+            if (event.isArrival() && event.getStopPathIndex() == index) {
+                arrival = event;
+                break;
+            }
+        }
+        if (arrival == null) return null;
+        for (IpcArrivalDeparture event : events) {
+            if (event.isDeparture() && event.getStopPathIndex() == index - 1) {
+                return new TravelTimeDetails(event, arrival);
+            }
+        }
+        return null;
+    }
+}
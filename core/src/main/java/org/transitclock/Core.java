@@ -32,6 +32,8 @@ import java.util.concurrent.*;
 public class Core {
     private static Core SINGLETON;
 
+    private final String agencyId;
+
     // Contains the configuration data read from database
     private final DbConfig configData;
 
@@ -40,6 +42,7 @@ public class Core {
 
     @SneakyThrows
     private Core(@NonNull String agencyId, ModuleRegistry moduleRegistry) {
+        this.agencyId = agencyId;
         this.moduleRegistry = moduleRegistry;
          // Read in config rev from ActiveRevisions table in db
          ActiveRevision activeRevision = ActiveRevision.get(agencyId);
@@ -72,7 +75,7 @@ public class Core {
          // HibernateUtils.clearSessionFactory();
 
          // Read in all GTFS based config data from the database
-         configData = new DbConfig(agencyId, configRev);
+         configData = new DbConfig(agencyId, configRev, activeRevision.getTravelTimesRev());
 
          // Create the DataDBLogger so that generated data can be stored
          // to database via a robust queue. But don't actually log data
@@ -85,9 +88,29 @@ public class Core {
          // to work across all threads it appears that sometimes it wouldn't
          // work if Db logger started first.
          dataDbLogger = DataDbLogger.getDataDbLogger(agencyId, CoreConfig.storeDataInDatabase(), CoreConfig.pauseIfDbQueueFilling());
+     }
 
+    /**
+     * For config that is already in memory instead of in the db. Nothing is stored to the db.
+     */
+    private Core(@NonNull DbConfig dbConfig, ModuleRegistry moduleRegistry) {
+        this.agencyId = dbConfig.getAgencyId();
+        this.moduleRegistry = moduleRegistry;
 
+        Agency agency = dbConfig.getFirstAgency();
+        if (agency != null) TimeZone.setDefault(agency.getTimeZone());
 
+        configData = dbConfig;
+        dataDbLogger = DataDbLogger.getDataDbLogger(agencyId, false, false);
+    }
+
+    /**
+     * Schedules the modules, including the AVL feed, and starts the services. Separate from creating
+     * the Core so that the historical caches, which need the config, can be populated before any AVL
+     * reports are processed.
+     */
+    @SneakyThrows
+    public void start() {
          TimeoutHandlerModule timeoutHandlerModule = moduleRegistry.createAndSchedule(TimeoutHandlerModule.class);
 
          // Start any optional modules.
@@ -117,6 +140,8 @@ public class Core {
      *
      * <p>Usually doesn't need to be called directly because can simply use Core.getInstance().
      *
+     * <p>The modules are not started until {@link #start()} is called.
+     *
      * <p>Synchronized to ensure that don't create more than a single Core.
      *
      * @return The Core singleton, or null if could not create it
@@ -134,6 +159,25 @@ public class Core {
         return SINGLETON;
     }
 
+    /**
+     * Creates the Core object for config that is already in memory, such as the synthetic network
+     * used by the benchmarks, so that the matching and prediction code can be run without a db.
+     * Generated data is not stored. The modules are not started.
+     *
+     * @param dbConfig The config, created from a ConfigSnapshot
+     * @param registry
+     * @return The Core singleton
+     */
+    public static synchronized Core createCore(@NonNull DbConfig dbConfig, @NonNull ModuleRegistry registry) {
+        if (SINGLETON != null) {
+            logger.error("Core singleton already created. Cannot create another one.");
+            return SINGLETON;
+        }
+
+        SINGLETON = new Core(dbConfig, registry);
+
+        return SINGLETON;
+    }
 
     public static synchronized Core getInstance() {
         if (SINGLETON == null) {
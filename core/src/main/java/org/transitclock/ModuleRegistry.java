@@ -2,9 +2,11 @@ package org.transitclock;
 
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
+import org.transitclock.config.data.CoreConfig;
 import org.transitclock.core.TimeoutHandlerModule;
 import org.transitclock.utils.threading.ExtendedScheduledThreadPoolExecutor;
 import org.transitclock.utils.threading.NamedThreadFactory;
+import org.transitclock.utils.threading.VirtualThreads;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -13,12 +15,18 @@ import java.util.concurrent.*;
 @Slf4j
 public class ModuleRegistry extends Registry<Module> {
     private final String agencyId;
-    private final ScheduledExecutorService executor;
+    private final ScheduledThreadPoolExecutor executor;
+    private final boolean virtualThreads;
+    private int numberModules = 0;
 
     public ModuleRegistry(@NonNull String agencyId) {
         this.agencyId = agencyId;
-        ThreadFactory threadFactory = new NamedThreadFactory("module-thread-pool");
-        executor = new ExtendedScheduledThreadPoolExecutor(3, threadFactory, new RejectedExecutionHandler() {
+        virtualThreads = CoreConfig.moduleVirtualThreads.getValue();
+        ThreadFactory threadFactory = virtualThreads
+                ? VirtualThreads.newThreadFactory("module-thread-pool")
+                : new NamedThreadFactory("module-thread-pool");
+        int poolSize = Math.max(1, CoreConfig.moduleThreadPoolSize.getValue());
+        executor = new ExtendedScheduledThreadPoolExecutor(poolSize, threadFactory, new RejectedExecutionHandler() {
             @Override
             public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
                 logger.error("Execution of {} was rejected by {}", r, executor);
@@ -31,7 +39,7 @@ public class ModuleRegistry extends Registry<Module> {
     }
 
     @NonNull
-    public <T extends Module> T createAndSchedule(Class<?> classname) throws NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
+    public synchronized <T extends Module> T createAndSchedule(Class<?> classname) throws NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException {
         // Create the module object using reflection by calling the constructor
         // and passing in agencyId
         Constructor<?> constructor = classname.getConstructor(String.class);
@@ -39,6 +47,13 @@ public class ModuleRegistry extends Registry<Module> {
 
         register(instance);
 
+        // Virtual threads are cheap so have a thread for every module. A module
+        // that is blocked on the db or on reading a feed then never holds up
+        // the others, which it would with a fixed size pool.
+        ++numberModules;
+        if (virtualThreads && executor.getCorePoolSize() < numberModules) {
+            executor.setCorePoolSize(numberModules);
+        }
 
         logger.info("Starting module {} with configuration [{} ms - delay, {} ms - period, {} execution type]",
                 instance.getClass().getSimpleName(),
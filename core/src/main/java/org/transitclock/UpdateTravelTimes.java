@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.function.Function;
 
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.Session;
@@ -37,6 +38,14 @@ import org.transitclock.utils.Time;
 @Slf4j
 public class UpdateTravelTimes {
 
+    /**
+     * The travel times that were stored as a new travel times rev.
+     *
+     * @param travelTimesRev The newly created travelTimesRev
+     * @param travelTimesByTripId The new travel times, keyed on tripId
+     */
+    public record StoredTravelTimes(int travelTimesRev, Map<String, TravelTimesForTrip> travelTimesByTripId) {}
+
     // Read in configuration files. This should be done statically before
     // the logback LoggerFactory.getLogger() is called so that logback can
     // also be configured using a transitime config file. The files are
@@ -288,12 +297,27 @@ public class UpdateTravelTimes {
 
         // Read in the current Trips. This is done after the historical data
         // is read in so that less memory is used at once.
+        return assignAndWriteTravelTimes(session, agencyId, processor::createTravelTimesFromMaps)
+                .travelTimesRev();
+    }
+
+    /**
+     * Reads in the current trips, creates the travel times for them, and stores the travel times
+     * for all of the trips as a new travel times rev.
+     *
+     * @param session
+     * @param agencyId
+     * @param createTravelTimes Creates the TravelTimeInfoMap for the map of trips keyed on tripId
+     * @return the newly created travelTimesRev and travel times
+     */
+    private static StoredTravelTimes assignAndWriteTravelTimes(
+            Session session, String agencyId, Function<Map<String, Trip>, TravelTimeInfoMap> createTravelTimes) {
         logger.info("reading trips...");
         Map<String, Trip> tripMap = readTripsFromDb(agencyId, session);
 
         logger.info("processing travel times...");
         // Process the historic data into a simple TravelTimeInfoMap
-        TravelTimeInfoMap travelTimeInfoMap = processor.createTravelTimesFromMaps(tripMap);
+        TravelTimeInfoMap travelTimeInfoMap = createTravelTimes.apply(tripMap);
 
         logger.info("assigning travel times...");
         // Update all the Trip objects with the new travel times
@@ -303,8 +327,11 @@ public class UpdateTravelTimes {
         // Write out the trip objects, which also writes out the travel times
         writeNewTripDataToDb(session, tripMap);
 
+        Map<String, TravelTimesForTrip> travelTimesByTripId = new HashMap<>();
+        for (Trip trip : tripMap.values()) travelTimesByTripId.put(trip.getId(), trip.getTravelTimes());
+
         logger.info("committing....");
-        return travelTimesRev;
+        return new StoredTravelTimes(travelTimesRev, travelTimesByTripId);
     }
 
     /**
@@ -348,6 +375,34 @@ public class UpdateTravelTimes {
         HibernateUtils.clearSessionFactory();
     }
 
+    /**
+     * Creates a session and stores travel times that have already been processed, such as by the
+     * RollingTravelTimesModule, for all of the trips as a new travel times rev. Unlike
+     * manageSessionAndProcessTravelTimes() the historic data is not read from the db and the
+     * session factory is left open since this is called from within the core.
+     *
+     * @param agencyId
+     * @param createTravelTimes Creates the TravelTimeInfoMap for the map of trips keyed on tripId
+     * @return the newly created travelTimesRev and travel times, so that the core can use them
+     */
+    public static StoredTravelTimes manageSessionAndStoreTravelTimes(
+            String agencyId, Function<Map<String, Trip>, TravelTimeInfoMap> createTravelTimes) {
+        Session session = HibernateUtils.getSession(agencyId);
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            StoredTravelTimes storedTravelTimes = assignAndWriteTravelTimes(session, agencyId, createTravelTimes);
+            tx.commit();
+            return storedTravelTimes;
+        } catch (Exception e) {
+            if (tx != null) tx.rollback();
+            logger.error("Unexpected exception occurred", e);
+            throw e;
+        } finally {
+            session.close();
+        }
+    }
+
     /**
      * arg[0] specifies both the start date and end date. If an addition argument is specified it is
      * used as the end date. Otherwise the data is processed for just a single day.
@@ -20,4 +20,28 @@ public class ApiConfig {
             "transitclock.api.includeTripUpdateDelay",
             false,
             "Whether or not to include delay in the TripUpdate message");
+
+    public static final IntegerConfigValue streamingPushIntervalMsec = new IntegerConfigValue(
+            "transitclock.api.streamingPushIntervalMsec",
+            1000,
+            "How often changed predictions and vehicles are pushed to the clients of the streaming "
+                    + "API. Changes within the interval are combined into a single update.");
+
+    public static final IntegerConfigValue streamingKeepAliveSecs = new IntegerConfigValue(
+            "transitclock.api.streamingKeepAliveSecs",
+            30,
+            "How often a comment is sent to the clients of the streaming API so that proxies don't "
+                    + "close idle connections and so that closed connections are detected.");
+
+    public static final IntegerConfigValue streamingMaxClients = new IntegerConfigValue(
+            "transitclock.api.streamingMaxClients",
+            1000,
+            "Maximum number of clients that can be connected to the streaming API at the same time. "
+                    + "Further clients are rejected until others disconnect.");
+
+    public static final IntegerConfigValue streamingMaxTopicsPerClient = new IntegerConfigValue(
+            "transitclock.api.streamingMaxTopicsPerClient",
+            100,
+            "Maximum number of route/stops, stops, vehicles and routes a client of the streaming API "
+                    + "can subscribe to with a single connection.");
 }
@@ -266,4 +266,61 @@ public class AvlConfig {
                     + "large systems with lots of vehicles then should use "
                     + "multiple threads, such as 3-15 so that more of the cores "
                     + "are used.");
+
+    public static final BooleanConfigValue shardedAvlExecutor = new BooleanConfigValue(
+            "transitclock.avl.shardedExecutor",
+            false,
+            "When true the AVL reports are processed by a sharded "
+                    + "executor where each vehicle is hashed to a fixed lane "
+                    + "with its own thread. Reports for a vehicle are then "
+                    + "always processed in order by the same thread and a "
+                    + "newer report for a vehicle replaces a superseded one "
+                    + "that is still waiting. The number of lanes is set by "
+                    + "transitclock.avl.numThreads and the capacity of each "
+                    + "lane is transitclock.avl.queueSize divided by the "
+                    + "number of lanes.");
+
+    public static final BooleanConfigValue virtualThreads = new BooleanConfigValue(
+            "transitclock.avl.virtualThreads",
+            false,
+            "When true the AVL reports are processed on virtual "
+                    + "threads instead of platform threads. Since much of "
+                    + "the processing is blocked on database and cache "
+                    + "reads this allows many more reports to be in flight. "
+                    + "Implies the sharded executor so that reports for a "
+                    + "vehicle are still processed in order and superseded "
+                    + "reports are still dropped. Requires Java 21 or later; "
+                    + "otherwise platform threads are used.");
+
+    public static final IntegerConfigValue numVirtualThreadLanes = new IntegerConfigValue(
+            "transitclock.avl.numVirtualThreadLanes",
+            256,
+            "When transitclock.avl.virtualThreads is true, how many "
+                    + "lanes, each with its own virtual thread, to shard the "
+                    + "vehicles across. Not limited like "
+                    + "transitclock.avl.numThreads since virtual threads are "
+                    + "cheap.");
+
+    public static final StringConfigValue replayFile = new StringConfigValue(
+            "transitclock.avl.replay.file",
+            null,
+            "File of AVL reports for AvlReplayModule to replay instead "
+                    + "of reading a live AVL feed. CSV, gzipped if the name "
+                    + "ends with .gz, as written by AvlReplayFile.");
+
+    public static final DoubleConfigValue replaySpeedMultiplier = new DoubleConfigValue(
+            "transitclock.avl.replay.speedMultiplier",
+            0.0,
+            "How much faster than real time AvlReplayModule replays the "
+                    + "AVL reports, such as 10.0 for ten times real time. "
+                    + "0.0 means as fast as possible.");
+
+    public static final IntegerConfigValue replayNumThreads = new IntegerConfigValue(
+            "transitclock.avl.replay.numThreads",
+            1,
+            "How many threads AvlReplayModule uses to process the AVL "
+                    + "reports. With 1 thread the replay is deterministic. "
+                    + "With more threads the vehicles are processed "
+                    + "concurrently but each vehicle is still always "
+                    + "processed in order by the same thread.");
 }
@@ -89,9 +89,10 @@ public class CoreConfig {
 
     /**
      * When in batch mode can flood db with lots of objects. If
-     * transitclock.core.pauseIfDbQueueFilling is set to true then when objects are put into the
-     * DataDbLogger queue the calling thread will be temporarily suspended so that the separate
-     * thread can run to write to the db and thereby empty out the queue.
+     * transitclock.core.pauseIfDbQueueFilling is set to true then when the DataDbLogger queue is
+     * filling up the thread feeding in the AVL reports will be temporarily suspended so that the
+     * separate thread can run to write to the db and thereby empty out the queue. The threads
+     * processing the AVL reports are never suspended.
      *
      * @return
      */
@@ -102,12 +103,13 @@ public class CoreConfig {
     private static final BooleanConfigValue pauseIfDbQueueFilling = new BooleanConfigValue(
             "transitclock.core.pauseIfDbQueueFilling",
             false,
-            "When in batch mode can flood db with lots of objects. If"
+            "When in batch mode can flood db with lots of objects. If "
                     + "transitclock.core.pauseIfDbQueueFilling is set to true "
-                    + "then when objects are put into the DataDbLogger queue "
-                    + "the calling thread will be temporarily suspended so "
-                    + "that the separate thread can run to write to the db and "
-                    + "thereby empty out the queue.");
+                    + "then when the DataDbLogger queue is filling up the "
+                    + "thread feeding in the AVL reports will be temporarily "
+                    + "suspended so that the separate thread can run to write "
+                    + "to the db and thereby empty out the queue. The threads "
+                    + "processing the AVL reports are never suspended.");
 
     /**
      * The semicolon separated list of names of all the modules that should be automatically
@@ -884,6 +886,38 @@ public class CoreConfig {
             false,
             "Set true to eagerly fetch all blocks into memory on startup");
 
+    public static final BooleanConfigValue materializeConfig = new BooleanConfigValue(
+            "transitclock.core.materializeConfig",
+            false,
+            "Set true to read the whole config revision, including the "
+                    + "trips, trip patterns, stop paths, schedule times and "
+                    + "travel times of every block, at startup using bulk "
+                    + "queries, with the other config data read in parallel. "
+                    + "Then nothing is lazy loaded while processing AVL "
+                    + "reports so AVL threads never wait on the db or on "
+                    + "each other for config data. Takes longer to start "
+                    + "and uses more memory.");
+
+    public static final StringConfigValue snapshotDirectory = new StringConfigValue(
+            "transitclock.core.snapshotDirectory",
+            null,
+            "Directory for binary snapshots of the config revision and "
+                    + "of the historical caches. If set then at startup "
+                    + "the config is read from the snapshot if it is for "
+                    + "the current configRev, which requires "
+                    + "transitclock.core.materializeConfig, and the caches "
+                    + "are restored from their snapshot so only the "
+                    + "arrivals and departures since the snapshot was "
+                    + "written need to be read from the db. Not used if "
+                    + "not set.");
+
+    public static final IntegerConfigValue cacheSnapshotIntervalMinutes = new IntegerConfigValue(
+            "transitclock.core.cacheSnapshotIntervalMinutes",
+            15,
+            "How often the CacheSnapshotModule writes a snapshot of the "
+                    + "historical caches to transitclock.core.snapshotDirectory, "
+                    + "in addition to at shutdown.");
+
 
 
     /// ExponentialBiasAdjuster
@@ -993,4 +1027,31 @@ public class CoreConfig {
             "transitclock.core.cacheReloadEndTimeStr",
             "",
             "Date and time of when to end reading arrivaldepartures to inform caches.");
+
+    public static final IntegerConfigValue cacheWarmupThreads = new IntegerConfigValue(
+            "transitclock.core.cacheWarmupThreads",
+            4,
+            "Number of threads used to read the arrivals and departures "
+                    + "for populating the historical caches at startup. Each "
+                    + "thread streams a day of data at a time from the db.");
+
+    public static final BooleanConfigValue moduleVirtualThreads = new BooleanConfigValue(
+            "transitclock.core.moduleVirtualThreads",
+            false,
+            "When true the modules are run on virtual threads instead "
+                    + "of on the small pool of platform threads, with a "
+                    + "thread for every module. Useful since many modules "
+                    + "spend most of their time blocked on the database or "
+                    + "on reading a feed, and a blocked module then no longer "
+                    + "holds up the others. Requires Java 21 or later; "
+                    + "otherwise platform threads are used, but still one "
+                    + "per module.");
+
+    public static final IntegerConfigValue moduleThreadPoolSize = new IntegerConfigValue(
+            "transitclock.core.moduleThreadPoolSize",
+            3,
+            "Number of threads used for running the modules. When "
+                    + "transitclock.core.moduleVirtualThreads is true then "
+                    + "the pool grows to a thread per module so this is just "
+                    + "the minimum.");
 }
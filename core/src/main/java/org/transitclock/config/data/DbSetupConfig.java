@@ -1,6 +1,7 @@
 /* (C)2023 */
 package org.transitclock.config.data;
 
+import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.StringConfigValue;
 
@@ -99,6 +100,48 @@ public class DbSetupConfig {
     private static final IntegerConfigValue batchSize = new IntegerConfigValue(
             "transitclock.db.batchSize", 100, "Specifies the database batch size, defaults to 100");
 
+    public static boolean isBulkConfigWrite() {
+        return bulkConfigWrite.getValue();
+    }
+
+    private static final BooleanConfigValue bulkConfigWrite = new BooleanConfigValue(
+            "transitclock.db.bulkConfigWrite",
+            false,
+            "When writing a new GTFS config revision, write the blocks, "
+                    + "trips, trip patterns, stop paths and travel times "
+                    + "directly as JDBC batches of transitclock.db.batchSize "
+                    + "rows instead of through Hibernate. Much faster for "
+                    + "large configs. For Postgres also set "
+                    + "reWriteBatchedInserts=true in the JDBC URL.");
+
+    public static Integer getQueueMaxMegabytes() {
+        return queueMaxMegabytes.getValue();
+    }
+
+    private static final IntegerConfigValue queueMaxMegabytes = new IntegerConfigValue(
+            "transitclock.db.queueMaxMegabytes",
+            128,
+            "Approximate max amount of memory in megabytes that each "
+                    + "of the queues of objects waiting to be written to the "
+                    + "database can use. The capacity of each queue is "
+                    + "determined from this and an estimate of the size of "
+                    + "the objects of the queue.");
+
+    public static String getQueueSpillDirectory() {
+        return queueSpillDirectory.getValue();
+    }
+
+    private static final StringConfigValue queueSpillDirectory = new StringConfigValue(
+            "transitclock.db.queueSpillDirectory",
+            "",
+            "Directory where objects waiting to be written to the "
+                    + "database are spilled to disk when the in memory queue "
+                    + "fills up, such as during database maintenance. The "
+                    + "spilled objects are written to the database in order "
+                    + "once it has caught up, including after a restart. If "
+                    + "empty then nothing is spilled and objects are lost "
+                    + "when the queue is full.");
+
 
 
 
@@ -1,5 +1,6 @@
 package org.transitclock.config.data;
 
+import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.DoubleConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.config.LongConfigValue;
@@ -53,6 +54,27 @@ public class GtfsConfig {
 
 
 
+    public static BooleanConfigValue columnarLoader = new BooleanConfigValue(
+            "transitclock.gtfs.columnarLoader",
+            false,
+            "If true then stop_times.txt and shapes.txt are parsed in "
+                    + "parallel into primitive columns with interned IDs, "
+                    + "instead of line by line into objects. Much faster and "
+                    + "uses much less memory for large feeds.");
+
+    public static IntegerConfigValue loaderThreads = new IntegerConfigValue(
+            "transitclock.gtfs.loaderThreads",
+            Runtime.getRuntime().availableProcessors(),
+            "Number of threads for parsing stop_times.txt and shapes.txt "
+                    + "when transitclock.gtfs.columnarLoader is true.");
+
+    public static IntegerConfigValue processingThreads = new IntegerConfigValue(
+            "transitclock.gtfs.processingThreads",
+            Runtime.getRuntime().availableProcessors(),
+            "Number of threads for processing the stop times, stop paths, "
+                    + "blocks and travel times of the trips in parallel. Set "
+                    + "to 1 to process them on a single thread.");
+
     public static IntegerConfigValue stopCodeBaseValue = new IntegerConfigValue(
             "transitclock.gtfs.stopCodeBaseValue",
             "If agency doesn't specify stop codes but simply wants to "
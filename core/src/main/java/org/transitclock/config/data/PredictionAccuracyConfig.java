@@ -1,5 +1,6 @@
 package org.transitclock.config.data;
 
+import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.IntegerConfigValue;
 import org.transitclock.utils.Time;
 
@@ -50,4 +51,26 @@ public class PredictionAccuracyConfig {
             "How early in msec a vehicle can arrive/departure a stop "
                     + "compared to the prediction and still have the prediction "
                     + "be considered a match.");
+
+    public static final BooleanConfigValue storeRawPredictionAccuracy = new BooleanConfigValue(
+            "transitclock.predAccuracy.storeRawPredictionAccuracy",
+            true,
+            "Whether a PredictionAccuracy row is stored in the db for "
+                    + "every prediction. Can be set to false once the reports "
+                    + "use the rollups, to greatly reduce the db writes.");
+
+    public static final BooleanConfigValue storeRollups = new BooleanConfigValue(
+            "transitclock.predAccuracy.storeRollups",
+            true,
+            "Whether the prediction accuracy is aggregated in memory per "
+                    + "route/hour/prediction length and stored in the db as "
+                    + "PredictionAccuracyRollup rows for the reports.");
+
+    public static final IntegerConfigValue rollupDelayMinutes = new IntegerConfigValue(
+            "transitclock.predAccuracy.rollupDelayMinutes",
+            15,
+            "How long in minutes after the end of an hour the prediction "
+                    + "accuracy rollups for the hour are stored, so that "
+                    + "arrivals/departures that are determined a bit late are "
+                    + "still included.");
 }
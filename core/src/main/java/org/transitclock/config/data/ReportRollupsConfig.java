@@ -0,0 +1,17 @@
+package org.transitclock.config.data;
+
+import org.transitclock.config.IntegerConfigValue;
+
+public class ReportRollupsConfig {
+    public static final IntegerConfigValue rollupDelayMinutes = new IntegerConfigValue(
+            "transitclock.reportRollups.rollupDelayMinutes",
+            15,
+            "How long after the end of an hour to wait before storing the schedule adherence "
+                    + "rollups for the hour, so that late arrivals/departures are included.");
+
+    public static final IntegerConfigValue maxDwellMinutes = new IntegerConfigValue(
+            "transitclock.reportRollups.maxDwellMinutes",
+            60,
+            "How long to wait for the departure that goes with an arrival before storing the "
+                    + "trip stop time rollup for the arrival without a departure.");
+}
@@ -2,6 +2,7 @@ package org.transitclock.config.data;
 
 import org.transitclock.config.BooleanConfigValue;
 import org.transitclock.config.DoubleConfigValue;
+import org.transitclock.config.IntegerConfigValue;
 
 public class TraveltimesConfig {
 
@@ -65,4 +66,28 @@ public class TraveltimesConfig {
                     + "time will be decreased to meet this limit. Purpose is "
                     + "to make sure that don't get invalid travel times due to "
                     + "bad data.");
+
+    public static IntegerConfigValue rollingWindowDays = new IntegerConfigValue(
+            "transitclock.traveltimes.rollingWindowDays",
+            7,
+            "Number of service days, including the current one, of "
+                    + "arrivals/departures that the RollingTravelTimesModule "
+                    + "uses when creating new travel times.");
+
+    public static IntegerConfigValue rollingMinServiceDays = new IntegerConfigValue(
+            "transitclock.traveltimes.rollingMinServiceDays",
+            5,
+            "Minimum number of service days with arrivals/departures "
+                    + "within transitclock.traveltimes.rollingWindowDays before "
+                    + "the RollingTravelTimesModule stores new travel times. "
+                    + "Prevents travel times being created from just a few "
+                    + "hours of data, such as when the data for the previous "
+                    + "service days can't be read from the db at startup.");
+
+    public static IntegerConfigValue rollingUpdateIntervalMinutes = new IntegerConfigValue(
+            "transitclock.traveltimes.rollingUpdateIntervalMinutes",
+            24 * 60,
+            "How often the RollingTravelTimesModule stores a new travel "
+                    + "times rev created from the arrivals/departures of the "
+                    + "last transitclock.traveltimes.rollingWindowDays service days.");
 }
@@ -21,4 +21,15 @@ public class UpdatesConfig {
     public static IntegerConfigValue pageSize =
             new IntegerConfigValue("transitclock.updates.pageSize", 50000, "Number of records to read in at a time");
 
+    public static Integer travelTimesThreads() {
+        return travelTimesThreads.getValue();
+    }
+
+    public static IntegerConfigValue travelTimesThreads = new IntegerConfigValue(
+            "transitclock.updates.travelTimesThreads",
+            4,
+            "Number of service days of historic data that are read and "
+                    + "processed in parallel when updating travel times. "
+                    + "Memory use is proportional to this.");
+
 }
@@ -13,6 +13,8 @@ import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverage
 import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
 import org.transitclock.core.holdingmethod.HoldingTimeGeneratorFactory;
 import org.transitclock.core.predAccuracy.PredictionAccuracyModule;
+import org.transitclock.core.reports.ReportRollups;
+import org.transitclock.core.travelTimes.RollingTravelTimes;
 import org.transitclock.domain.structs.*;
 import org.transitclock.service.dto.IpcArrivalDeparture;
 import org.transitclock.utils.Time;
@@ -266,6 +268,22 @@ public class ArrivalDepartureGeneratorDefaultImpl implements ArrivalDepartureGen
                 e.printStackTrace();
             }
 
+        if (RollingTravelTimes.getInstance() != null) {
+            try {
+                RollingTravelTimes.getInstance().putArrivalDeparture(vehicleState, arrivalDeparture);
+            } catch (Exception e) {
+                logger.error("Exception processing {} for rolling travel times", arrivalDeparture, e);
+            }
+        }
+
+        if (ReportRollups.getInstance() != null) {
+            try {
+                ReportRollups.getInstance().putArrivalDeparture(arrivalDeparture);
+            } catch (Exception e) {
+                logger.error("Exception processing {} for report rollups", arrivalDeparture, e);
+            }
+        }
+
         if (HoldingTimeGeneratorFactory.getInstance() != null) {
             HoldingTime holdingTime;
             try {
@@ -16,6 +16,8 @@ import org.transitclock.core.dataCache.VehicleStateManager;
 import org.transitclock.domain.hibernate.HibernateUtils;
 import org.transitclock.domain.structs.*;
 import org.transitclock.domain.structs.AvlReport.AssignmentType;
+import org.transitclock.monitoring.PipelineMetrics;
+import org.transitclock.monitoring.PipelineMetrics.Stage;
 import org.transitclock.utils.*;
 
 import java.util.*;
@@ -38,6 +40,9 @@ public class AvlProcessor {
     // can determine if AVL feed is up.
     private AvlReport lastRegularReportProcessed;
 
+    // For timing the stages of processing an AVL report
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
 
     /*
      * Singleton class so shouldn't use constructor so declared private
@@ -297,7 +302,9 @@ public class AvlProcessor {
                 vehicleState);
 
         // Find possible spatial matches
+        long spatialStartNanos = System.nanoTime();
         List<SpatialMatch> spatialMatches = SpatialMatcher.getSpatialMatches(vehicleState);
+        metrics.addSince(Stage.SPATIAL_MATCH, spatialStartNanos);
         logger.debug(
                 "For vehicleId={} found the following {} spatial " + "matches: {}",
                 vehicleState.getVehicleId(),
@@ -305,8 +312,10 @@ public class AvlProcessor {
                 spatialMatches);
 
         // Find the best temporal match of the spatial matches
+        long temporalStartNanos = System.nanoTime();
         TemporalMatch bestTemporalMatch =
                 TemporalMatcher.getInstance().getBestTemporalMatch(vehicleState, spatialMatches);
+        metrics.addSince(Stage.TEMPORAL_MATCH, temporalStartNanos);
 
         // Log this as info since matching is a significant milestone
         logger.info("For vehicleId={} the best match is {}", vehicleState.getVehicleId(), bestTemporalMatch);
@@ -566,8 +575,10 @@ public class AvlProcessor {
                     potentialTrips);
 
             // Get the potential spatial matches
+            long spatialStartNanos = System.nanoTime();
             List<SpatialMatch> spatialMatchesForBlock = SpatialMatcher.getSpatialMatches(
                     vehicleState.getAvlReport(), block, potentialTrips, MatchingType.AUTO_ASSIGNING_MATCHING);
+            metrics.addSince(Stage.SPATIAL_MATCH, spatialStartNanos);
 
             // Add appropriate spatial matches to list
             for (SpatialMatch spatialMatch : spatialMatchesForBlock) {
@@ -578,8 +589,10 @@ public class AvlProcessor {
         } // End of going through each block to determine spatial matches
 
         // For the spatial matches get the best temporal match
+        long temporalStartNanos = System.nanoTime();
         TemporalMatch bestMatch = TemporalMatcher.getInstance()
                 .getBestTemporalMatchComparedToSchedule(avlReport, allPotentialSpatialMatchesForRoute);
+        metrics.addSince(Stage.TEMPORAL_MATCH, temporalStartNanos);
         logger.debug("For vehicleId={} best temporal match is {}", avlReport.getVehicleId(), bestMatch);
 
         // Update the state of the vehicle
@@ -618,9 +631,11 @@ public class AvlProcessor {
         // MatchingType.AUTO_ASSIGNING_MATCHING, because the AVL feed is
         // specifying the block assignment so it should find a match even
         // if it pretty far off.
+        long spatialStartNanos = System.nanoTime();
         List<Trip> potentialTrips = block.getTripsCurrentlyActive(avlReport);
         List<SpatialMatch> spatialMatches = SpatialMatcher.getSpatialMatches(
                 vehicleState.getAvlReport(), block, potentialTrips, MatchingType.STANDARD_MATCHING);
+        metrics.addSince(Stage.SPATIAL_MATCH, spatialStartNanos);
         logger.debug(
                 "For vehicleId={} and blockId={} spatial matches={}",
                 avlReport.getVehicleId(),
@@ -628,8 +643,10 @@ public class AvlProcessor {
                 spatialMatches);
 
         // Determine the best temporal match
+        long temporalStartNanos = System.nanoTime();
         TemporalMatch bestMatch =
                 TemporalMatcher.getInstance().getBestTemporalMatchComparedToSchedule(avlReport, spatialMatches);
+        metrics.addSince(Stage.TEMPORAL_MATCH, temporalStartNanos);
         logger.debug("Best temporal match for vehicleId={} is {}", avlReport.getVehicleId(), bestMatch);
 
         // If best match is a non-layover but cannot confirm that the heading
@@ -1187,10 +1204,11 @@ public class AvlProcessor {
         String vehicleId = avlReport.getVehicleId();
         VehicleState vehicleState = VehicleStateManager.getInstance().getVehicleState(vehicleId);
 
-        // Since modifying the VehicleState should synchronize in case another
+        // Since modifying the VehicleState should lock it in case another
         // thread simultaneously processes data for the same vehicle. This
         // would be extremely rare but need to be safe.
-        synchronized (vehicleState) {
+        vehicleState.getLock().lock();
+        try {
             // Keep track of last AvlReport even if vehicle not predictable.
             vehicleState.setAvlReport(avlReport);
 
@@ -1287,12 +1305,19 @@ public class AvlProcessor {
             // Now that VehicleState has been updated need to update the
             // VehicleDataCache so that when data queried for API the proper
             // info is provided.
+            long cacheStartNanos = System.nanoTime();
             VehicleDataCache.getInstance().updateVehicle(vehicleState);
+            metrics.addSince(Stage.CACHE_UPDATE, cacheStartNanos);
 
             // Write out current vehicle state to db so can join it with AVL
-            // data from db and get historical context of AVL report.
+            // data from db and get historical context of AVL report. Only
+            // for history so it is shed if the db queues are filling up.
+            long dbStartNanos = System.nanoTime();
             var dbVehicleState = new org.transitclock.domain.structs.VehicleState(vehicleState);
-            Core.getInstance().getDbLogger().add(dbVehicleState);
+            Core.getInstance().getDbLogger().addOptional(dbVehicleState);
+            metrics.addSince(Stage.DB_ENQUEUE, dbStartNanos);
+        } finally {
+            vehicleState.getLock().unlock();
         }
     }
 
@@ -1349,10 +1374,11 @@ public class AvlProcessor {
     public void cacheAvlReportWithoutProcessing(AvlReport avlReport) {
         VehicleState vehicleState = VehicleStateManager.getInstance().getVehicleState(avlReport.getVehicleId());
 
-        // Since modifying the VehicleState should synchronize in case another
+        // Since modifying the VehicleState should lock it in case another
         // thread simultaneously processes data for the same vehicle. This
         // would be extremely rare but need to be safe.
-        synchronized (vehicleState) {
+        vehicleState.getLock().lock();
+        try {
             // Update AVL report for cached VehicleState
             vehicleState.setAvlReport(avlReport);
 
@@ -1360,6 +1386,8 @@ public class AvlProcessor {
             // so that new IPC vehicle data will be created and cached and
             // made available to the API.
             VehicleDataCache.getInstance().updateVehicle(vehicleState);
+        } finally {
+            vehicleState.getLock().unlock();
         }
     }
 
@@ -1373,6 +1401,8 @@ public class AvlProcessor {
      */
     public void processAvlReport(AvlReport avlReport) {
         IntervalTimer timer = new IntervalTimer();
+        long startNanos = System.nanoTime();
+        metrics.reportStarted();
 
         // Handle special case where want to not use assignment from AVL
         // report, most likely because want to test automatic assignment
@@ -1418,8 +1448,11 @@ public class AvlProcessor {
         VehicleDataCache.getInstance().cacheVehicleConfig(avlReport);
 
         // Store the AVL report into the database
-        if (!CoreConfig.onlyNeedArrivalDepartures() && !avlReport.isForSchedBasedPreds())
+        if (!CoreConfig.onlyNeedArrivalDepartures() && !avlReport.isForSchedBasedPreds()) {
+            long dbStartNanos = System.nanoTime();
             Core.getInstance().getDbLogger().add(avlReport);
+            metrics.addSince(Stage.DB_ENQUEUE, dbStartNanos);
+        }
 
         // If any vehicles have timed out then handle them. This is done
         // here instead of using a regular timer so that it will work
@@ -1429,8 +1462,14 @@ public class AvlProcessor {
                 .getTimeoutHandlerModule()
                 .storeAvlReport(avlReport);
 
-        // Do the low level work of matching vehicle and then generating results
-        lowLevelProcessAvlReport(avlReport, false);
+        // Do the low level work of matching vehicle and then generating results.
+        // The stages are recorded once for the report even if they were
+        // done several times, such as for several blocks.
+        try {
+            lowLevelProcessAvlReport(avlReport, false);
+        } finally {
+            metrics.reportProcessed(startNanos);
+        }
         logger.debug("Processing AVL report took {}msec", timer);
     }
 }
@@ -9,6 +9,8 @@ import org.transitclock.domain.hibernate.DataDbLogger;
 import org.transitclock.domain.structs.Headway;
 import org.transitclock.domain.structs.Match;
 import org.transitclock.domain.structs.Prediction;
+import org.transitclock.monitoring.PipelineMetrics;
+import org.transitclock.monitoring.PipelineMetrics.Stage;
 import org.transitclock.service.dto.IpcPrediction;
 import org.transitclock.utils.Time;
 
@@ -26,6 +28,7 @@ public class MatchProcessor {
     // Singleton class
     private static final MatchProcessor singleton = new MatchProcessor();
     private final DataDbLogger dbLogger;
+    private final PipelineMetrics metrics = PipelineMetrics.getInstance();
     /** Constructor declared private because singleton class */
     private MatchProcessor() {
         dbLogger = Core.getInstance().getDbLogger();
@@ -50,11 +53,14 @@ public class MatchProcessor {
         logger.debug("Processing predictions for vehicleId={}", vehicleState.getVehicleId());
 
         // Generate the new predictions for the vehicle
+        long generateStartNanos = System.nanoTime();
         List<IpcPrediction> newPredictions =
                 PredictionGeneratorFactory.getInstance().generate(vehicleState);
+        metrics.addSince(Stage.PREDICTION_GENERATION, generateStartNanos);
 
         // Store the predictions in database if so configured
         if (CoreConfig.getMaxPredictionsTimeForDbSecs() > 0) {
+            long dbStartNanos = System.nanoTime();
             for (IpcPrediction prediction : newPredictions) {
                 // If prediction not too far into the future then ...
                 if (prediction.getPredictionTime() - prediction.getAvlTime()
@@ -69,12 +75,15 @@ public class MatchProcessor {
                             CoreConfig.getMaxPredictionsTimeForDbSecs() * Time.MS_PER_SEC);
                 }
             }
+            metrics.addSince(Stage.DB_ENQUEUE, dbStartNanos);
         }
 
         // Update the predictions cache to use the new predictions for the
         // vehicle
+        long cacheStartNanos = System.nanoTime();
         List<IpcPrediction> oldPredictions = vehicleState.getPredictions();
         PredictionDataCache.getInstance().updatePredictions(oldPredictions, newPredictions);
+        metrics.addSince(Stage.CACHE_UPDATE, cacheStartNanos);
 
         // Update predictions for vehicle
         vehicleState.setPredictions(newPredictions);
@@ -105,7 +114,9 @@ public class MatchProcessor {
     private void processArrivalDepartures(VehicleState vehicleState) {
         logger.debug("Processing arrivals/departures for vehicleId={}", vehicleState.getVehicleId());
 
+        long startNanos = System.nanoTime();
         ArrivalDepartureGeneratorFactory.getInstance().generate(vehicleState);
+        metrics.addSince(Stage.ARRIVAL_DEPARTURE_GENERATION, startNanos);
     }
 
     /**
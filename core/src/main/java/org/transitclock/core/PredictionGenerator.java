@@ -227,7 +227,6 @@ public abstract class PredictionGenerator {
             int num_days_look_back,
             int num_days) {
 
-        List<IpcArrivalDeparture> results;
         List<TravelTimeDetails> times = new ArrayList<>();
         int num_found = 0;
         /*
@@ -240,29 +239,15 @@ public abstract class PredictionGenerator {
 
             TripKey tripKey = new TripKey(tripId, nearestDay, startTime);
 
-            results = cache.getTripHistory(tripKey);
+            // Only need the arrival at the stop path and the departure
+            // from the previous one, not the whole trip history
+            TravelTimeDetails travelTimeDetails = cache.getTravelTimeDetails(tripKey, stopPathIndex);
 
-            if (results != null) {
-
-                IpcArrivalDeparture arrival = getArrival(stopPathIndex, results);
-
-                if (arrival != null) {
-                    IpcArrivalDeparture departure =
-                            TripDataHistoryCacheFactory.getInstance().findPreviousDepartureEvent(results, arrival);
-
-                    if (arrival != null && departure != null) {
-
-                        TravelTimeDetails travelTimeDetails = new TravelTimeDetails(departure, arrival);
-
-                        if (travelTimeDetails.getTravelTime() != -1) {
-                            TravelTimeDataFilter travelTimefilter = TravelTimeFilterFactory.getInstance();
-                            if (!travelTimefilter.filter(
-                                    travelTimeDetails.getDeparture(), travelTimeDetails.getArrival())) {
-                                times.add(travelTimeDetails);
-                                num_found++;
-                            }
-                        }
-                    }
+            if (travelTimeDetails != null && travelTimeDetails.getTravelTime() != -1) {
+                TravelTimeDataFilter travelTimefilter = TravelTimeFilterFactory.getInstance();
+                if (!travelTimefilter.filter(travelTimeDetails.getDeparture(), travelTimeDetails.getArrival())) {
+                    times.add(travelTimeDetails);
+                    num_found++;
                 }
             }
         }
@@ -508,7 +508,7 @@ public class PredictionGeneratorDefaultImpl extends PredictionGenerator implemen
                     "TRANSITIME DEFAULT",
                     true,
                     null);
-            Core.getInstance().getDbLogger().add(predictionForStopPath);
+            Core.getInstance().getDbLogger().addOptional(predictionForStopPath);
             StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
         }
         return indices.getTravelTimeForPath();
@@ -2,6 +2,7 @@
 package org.transitclock.core;
 
 import lombok.extern.slf4j.Slf4j;
+import org.transitclock.Core;
 import org.transitclock.config.data.AvlConfig;
 import org.transitclock.config.data.CoreConfig;
 import org.transitclock.domain.structs.*;
@@ -220,6 +221,10 @@ public class SpatialMatcher {
         // So can reuse spatial matches if looking at same trip pattern
         Set<String> tripPatternIdsCovered = new HashSet<String>();
 
+        // For quickly ruling out trips that are nowhere near the AVL report
+        Core core = Core.getInstance();
+        TripPatternGridIndex tripPatternGridIndex = core != null ? core.getDbConfig().getTripPatternGridIndex() : null;
+
         for (Trip trip : tripsToInvestigate) {
             if (tripPatternIdsCovered.contains(trip.getTripPattern().getId())) {
                 // Already found spatial matches for this trip pattern
@@ -251,6 +256,11 @@ public class SpatialMatcher {
                         if (foundTripPattern) break;
                     }
                 }
+            } else if (cannotSpatiallyMatchTrip(avlReport, trip, tripPatternGridIndex)) {
+                // None of the segments are near the AVL report and neither
+                // are the layovers so walking the trip pattern would not
+                // find any matches. Treat the trip pattern as examined.
+                tripPatternIdsCovered.add(trip.getTripPattern().getId());
             } else {
                 // Haven't already examined this trip pattern for spatial
                 // matches so do so now.
@@ -299,6 +309,48 @@ public class SpatialMatcher {
         return spatialMatchesForAllTrips;
     }
 
+    /**
+     * Uses the trip pattern grid index to determine if walking through the trip would be pointless
+     * because no spatial match could be found. That is the case if none of the segments of the trip
+     * pattern are within the max allowable distance of the AVL report and the AVL report is not
+     * within the allowable distance of any of the layovers of the trip. The layovers need to be
+     * checked for the trip itself since whether a layover matches depends on the previous trip of
+     * the block.
+     *
+     * @param avlReport The AVL report to match
+     * @param trip The trip being investigated
+     * @param tripPatternGridIndex The spatial index. If null then the trip is never ruled out.
+     * @return true if the trip cannot possibly have a spatial match
+     */
+    private static boolean cannotSpatiallyMatchTrip(
+            AvlReport avlReport, Trip trip, TripPatternGridIndex tripPatternGridIndex) {
+        if (tripPatternGridIndex == null) return false;
+
+        TripPattern tripPattern = trip.getTripPattern();
+        if (tripPatternGridIndex.isTripPatternNear(avlReport.getLocation(), tripPattern.getId())) return false;
+
+        Block block = trip.getBlock();
+        int tripIndex = block.getTripIndex(trip);
+        SpatialMatcher spatialMatcher = new SpatialMatcher();
+        for (int stopPathIndex = 0; stopPathIndex < tripPattern.getNumberStopPaths(); ++stopPathIndex) {
+            StopPath stopPath = tripPattern.getStopPath(stopPathIndex);
+            if (!stopPath.isLayoverStop()) continue;
+
+            // Layover matches are at the end of the stop path
+            Indices layoverIndices = new Indices(block, tripIndex, stopPathIndex, stopPath.getNumberSegments() - 1);
+            if (spatialMatcher.withinAllowableDistanceOfLayover(
+                    avlReport.getVehicleId(), avlReport.getLocation(), layoverIndices)) return false;
+        }
+
+        logger.debug(
+                "For vehicleId={} tripId={} ruled out by the trip pattern grid index since no segment or "
+                        + "layover is near location={}",
+                avlReport.getVehicleId(),
+                trip.getId(),
+                avlReport.getLocation());
+        return true;
+    }
+
     /**
      * Goes through the Block assignment data and determines the closest spatial matches that are
      * not for layovers. For first matching a vehicle to a block assignment. Matches must be within
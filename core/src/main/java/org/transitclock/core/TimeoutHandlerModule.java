@@ -243,9 +243,10 @@ public class TimeoutHandlerModule extends Module {
                 // Get state of vehicle and handle based on it
                 VehicleState vehicleState = VehicleStateManager.getInstance().getVehicleState(avlReport.getVehicleId());
 
-                // Need to synchronize on vehicleState since it might be getting
+                // Need to lock vehicleState since it might be getting
                 // modified via a separate main AVL processing executor thread.
-                synchronized (vehicleState) {
+                vehicleState.getLock().lock();
+                try {
                     if (!vehicleState.isPredictable()) {
                         // Vehicle is not predictable
                         handleNotPredictablePossibleTimeout(vehicleState, now, mapIterator);
@@ -260,6 +261,8 @@ public class TimeoutHandlerModule extends Module {
                         // timed out
                         handlePredictablePossibleTimeout(vehicleState, now, mapIterator);
                     }
+                } finally {
+                    vehicleState.getLock().unlock();
                 }
             }
         }
@@ -0,0 +1,160 @@
+/* (C)2023 */
+package org.transitclock.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.config.data.CoreConfig;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.Route;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.domain.structs.VectorWithHeading;
+
+/**
+ * A uniform lat/lon grid that maps each cell to the trip patterns that have a stop path segment
+ * close enough to the cell that an AVL report in the cell could spatially match it. Built once per
+ * config revision so that a location can be resolved to the handful of nearby trip patterns
+ * instead of walking every segment of every trip.
+ *
+ * <p>Each segment is registered in all the cells covered by its bounding box expanded by the max
+ * allowable distance from the segment for its stop path, for both regular and auto assignment
+ * matching. The index is therefore conservative: if a trip pattern is not found for the cell of a
+ * location then none of its segments can be a spatial match for that location. Layovers are not
+ * covered since they can match far away from the path and are handled separately by the
+ * SpatialMatcher.
+ */
+@Slf4j
+public class TripPatternGridIndex {
+    // Size of a grid cell in degrees. About 550m in latitude.
+    private static final double CELL_SIZE_DEGREES = 0.005;
+
+    // Smallest length of a degree of latitude, and of a degree of longitude
+    // at the equator, in meters. Using the low values makes the expansion of
+    // the bounding boxes conservative.
+    private static final double METERS_PER_DEGREE_LAT = 110_500.0;
+    private static final double METERS_PER_DEGREE_LON_AT_EQUATOR = 111_300.0;
+
+    // A bit of slack so that the approximate distances used by the
+    // SpatialMatcher never end up just outside the expanded bounding box
+    private static final double DISTANCE_MARGIN = 1.1;
+
+    private final Map<Long, Set<String>> tripPatternIdsByCell;
+
+    /**
+     * Builds the index for the trip patterns.
+     *
+     * @param tripPatterns All the trip patterns for the config rev
+     * @param routesByRouteIdMap For determining the max allowable distance configured for a route
+     */
+    public TripPatternGridIndex(Collection<TripPattern> tripPatterns, Map<String, Route> routesByRouteIdMap) {
+        Map<Long, Set<String>> map = new HashMap<>();
+        for (TripPattern tripPattern : tripPatterns) {
+            Route route = routesByRouteIdMap.get(tripPattern.getRouteId());
+            for (StopPath stopPath : tripPattern.getStopPaths()) {
+                double maxDistance = maxAllowableDistance(route, stopPath) * DISTANCE_MARGIN;
+                for (VectorWithHeading segment : stopPath.getSegmentVectors()) {
+                    addSegment(map, tripPattern.getId(), segment.getL1(), segment.getL2(), maxDistance);
+                }
+            }
+        }
+
+        // Don't want the sets to be modified once index is built
+        map.replaceAll((cell, tripPatternIds) -> Collections.unmodifiableSet(tripPatternIds));
+        this.tripPatternIdsByCell = map;
+    }
+
+    /**
+     * The largest distance the SpatialMatcher could allow between an AVL report and a segment of
+     * the stop path, for any type of matching.
+     */
+    private static double maxAllowableDistance(Route route, StopPath stopPath) {
+        // Stop path setting overrides everything else
+        if (stopPath.getMaxDistance() != null) return stopPath.getMaxDistance();
+
+        double maxDistance = route != null ? route.getMaxAllowableDistanceFromSegment() : Double.NaN;
+        if (Double.isNaN(maxDistance)) maxDistance = CoreConfig.getMaxDistanceFromSegment();
+        return Math.max(maxDistance, CoreConfig.getMaxDistanceFromSegmentForAutoAssigning());
+    }
+
+    /** Adds the trip pattern to all cells covered by the expanded bounding box of the segment. */
+    private static void addSegment(
+            Map<Long, Set<String>> map, String tripPatternId, Location l1, Location l2, double maxDistance) {
+        double maxAbsLat = Math.min(89.0, Math.max(Math.abs(l1.getLat()), Math.abs(l2.getLat())));
+        double deltaLat = maxDistance / METERS_PER_DEGREE_LAT;
+        double deltaLon = maxDistance / (METERS_PER_DEGREE_LON_AT_EQUATOR * Math.cos(Math.toRadians(maxAbsLat + deltaLat)));
+
+        int minLatCell = cellIndex(Math.min(l1.getLat(), l2.getLat()) - deltaLat);
+        int maxLatCell = cellIndex(Math.max(l1.getLat(), l2.getLat()) + deltaLat);
+        int minLonCell = cellIndex(Math.min(l1.getLon(), l2.getLon()) - deltaLon);
+        int maxLonCell = cellIndex(Math.max(l1.getLon(), l2.getLon()) + deltaLon);
+
+        for (int latCell = minLatCell; latCell <= maxLatCell; ++latCell) {
+            for (int lonCell = minLonCell; lonCell <= maxLonCell; ++lonCell) {
+                map.computeIfAbsent(cellKey(latCell, lonCell), k -> new HashSet<>()).add(tripPatternId);
+            }
+        }
+    }
+
+    private static int cellIndex(double degrees) {
+        return (int) Math.floor(degrees / CELL_SIZE_DEGREES);
+    }
+
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns IDs of the trip patterns that have a segment that could possibly be a spatial match
+     * for the location.
+     *
+     * @param location The location, such as of an AVL report
+     * @return Set of trip pattern IDs. Empty if none. Not modifiable.
+     */
+    public Set<String> getTripPatternIdsNear(Location location) {
+        long key = cellKey(cellIndex(location.getLat()), cellIndex(location.getLon()));
+        return tripPatternIdsByCell.getOrDefault(key, Collections.emptySet());
+    }
+
+    /**
+     * Returns true if the trip pattern has a segment that could possibly be a spatial match for
+     * the location.
+     *
+     * @param location The location, such as of an AVL report
+     * @param tripPatternId The trip pattern to check
+     * @return true if could be a match
+     */
+    public boolean isTripPatternNear(Location location, String tripPatternId) {
+        return getTripPatternIdsNear(location).contains(tripPatternId);
+    }
+
+    /**
+     * @return number of grid cells that have at least one trip pattern
+     */
+    public int getNumberCells() {
+        return tripPatternIdsByCell.size();
+    }
+
+    /**
+     * Builds the index for all the trip patterns of a config rev.
+     *
+     * @param tripPatternsByRoute Trip patterns keyed by route ID
+     * @param routesByRouteIdMap Routes keyed by route ID
+     * @return the new index
+     */
+    public static TripPatternGridIndex build(
+            Map<String, List<TripPattern>> tripPatternsByRoute, Map<String, Route> routesByRouteIdMap) {
+        List<TripPattern> tripPatterns = tripPatternsByRoute.values().stream()
+                .flatMap(List::stream)
+                .toList();
+        TripPatternGridIndex index = new TripPatternGridIndex(tripPatterns, routesByRouteIdMap);
+        logger.info("Built spatial grid index for {} trip patterns with {} cells", tripPatterns.size(), index.getNumberCells());
+        return index;
+    }
+}
@@ -2,6 +2,7 @@
 package org.transitclock.core;
 
 import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.config.data.CoreConfig;
@@ -29,6 +30,11 @@ import org.transitclock.utils.Time;
  */
 public class VehicleState {
 
+    // For modifying the state while processing an AVL report. A ReentrantLock
+    // instead of synchronized so that a virtual thread blocked on the database
+    // while holding it doesn't pin its carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
+
     private final String vehicleId;
     private String vehicleName;
     private Block block;
@@ -679,6 +685,13 @@ public class VehicleState {
         return assignmentTime;
     }
 
+    /**
+     * @return the lock to hold while modifying the state, such as when processing an AVL report
+     */
+    public ReentrantLock getLock() {
+        return lock;
+    }
+
     public String getVehicleId() {
         return vehicleId;
     }
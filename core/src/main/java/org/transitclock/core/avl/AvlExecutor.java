@@ -6,7 +6,10 @@ import org.transitclock.config.data.AgencyConfig;
 import org.transitclock.config.data.AvlConfig;
 import org.transitclock.domain.structs.AvlReport;
 import org.transitclock.utils.threading.NamedThreadFactory;
+import org.transitclock.utils.threading.VirtualThreads;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.*;
 
 /**
@@ -19,6 +22,12 @@ import java.util.concurrent.*;
  * <p>Causes AvlClient.run() to be called on each AvlReport, unless using test executor, in which
  * case the AvlClientTester() is called.
  *
+ * <p>If transitclock.avl.shardedExecutor is set then instead of a shared thread pool the reports
+ * are routed to a fixed {@link AvlProcessingLane} based on the hash of the vehicle ID. Each lane
+ * has a single thread so reports for a vehicle are processed in order and never concurrently.
+ * With transitclock.avl.virtualThreads the lane threads are virtual threads, which allows for many
+ * more lanes since most of the processing time is spent blocked on the database.
+ *
  * @author SkiBu Smith
  */
 @Slf4j
@@ -29,6 +38,9 @@ public class AvlExecutor {
     private final Executor avlClientExecutor;
     private final AvlReportProcessorFactory avlReportProcessorFactory;
 
+    // Only set when using the sharded executor
+    private final List<AvlProcessingLane> lanes;
+
     public AvlExecutor(AvlReportProcessorFactory avlReportProcessorFactory) {
         this.avlReportProcessorFactory = avlReportProcessorFactory;
 
@@ -46,10 +58,38 @@ public class AvlExecutor {
             numberThreads = MAX_THREADS;
         }
 
+        if (AvlConfig.virtualThreads.getValue()) {
+            avlClientExecutor = null;
+            int numberLanes = Math.max(1, AvlConfig.numVirtualThreadLanes.getValue());
+            lanes = createLanes(numberLanes, maxAVLQueueSize, VirtualThreads.newThreadFactory("avlLane"));
+            return;
+        }
+
+        if (AvlConfig.shardedAvlExecutor.getValue()) {
+            avlClientExecutor = null;
+            lanes = createLanes(numberThreads, maxAVLQueueSize, new NamedThreadFactory("avlLane"));
+            return;
+        }
+        lanes = Collections.emptyList();
+
         logger.info("Starting AvlExecutor for directly handling AVL reports via a queue instead of JMS. maxAVLQueueSize={} and numberThreads={}", maxAVLQueueSize, numberThreads);
 
+        avlClientExecutor = createThreadPool(numberThreads, maxAVLQueueSize, new NamedThreadFactory("avlClient"));
+    }
+
+    /**
+     * Creates the thread pool used when the executor isn't sharded. The queue only keeps the latest
+     * report of each vehicle. Like any ThreadPoolExecutor the pool only grows beyond a single
+     * thread once the queue is full.
+     *
+     * @param numberThreads Maximum number of threads of the pool
+     * @param maxAVLQueueSize Size of the queue
+     * @param avlClientThreadFactory For creating the threads of the pool
+     * @return the thread pool
+     */
+    public static ThreadPoolExecutor createThreadPool(
+            int numberThreads, int maxAVLQueueSize, ThreadFactory avlClientThreadFactory) {
         AvlReportProcessorQueue workQueue = new AvlReportProcessorQueue(maxAVLQueueSize);
-        NamedThreadFactory avlClientThreadFactory = new NamedThreadFactory("avlClient");
 
         // Called when queue fills up
         RejectedExecutionHandler rejectedHandler = (arg0, arg1) -> {
@@ -59,7 +99,7 @@ public class AvlExecutor {
                     maxAVLQueueSize);
         };
 
-        avlClientExecutor = new ThreadPoolExecutor(1,
+        return new ThreadPoolExecutor(1,
                 numberThreads,
                 1,
                 TimeUnit.HOURS,
@@ -68,6 +108,27 @@ public class AvlExecutor {
                 rejectedHandler);
     }
 
+    /**
+     * Creates and starts the lanes for the sharded executor. The queue size is divided evenly
+     * between the lanes.
+     *
+     * @param numberLanes How many lanes, each with its own thread
+     * @param maxAVLQueueSize Total queue size across all lanes
+     * @param laneThreadFactory For creating the thread of each lane
+     * @return the started lanes
+     */
+    public static List<AvlProcessingLane> createLanes(int numberLanes, int maxAVLQueueSize, ThreadFactory laneThreadFactory) {
+        int laneCapacity = Math.max(1, maxAVLQueueSize / numberLanes);
+        logger.info("Starting sharded AvlExecutor with numberLanes={} and laneCapacity={}", numberLanes, laneCapacity);
+
+        AvlProcessingLane[] lanes = new AvlProcessingLane[numberLanes];
+        for (int i = 0; i < numberLanes; ++i) {
+            lanes[i] = new AvlProcessingLane(i, laneCapacity);
+            laneThreadFactory.newThread(lanes[i]).start();
+        }
+        return List.of(lanes);
+    }
+
     /**
      * Returns singleton instance. Not synchronized since it is OK if an executor is replaced by a
      * new one.
@@ -81,6 +142,16 @@ public class AvlExecutor {
         return singleton;
     }
 
+    /**
+     * Returns the lanes of the sharded executor, for metrics. Unlike getInstance() this doesn't
+     * create the executor if it hasn't been yet.
+     *
+     * @return the lanes, or an empty list if the executor isn't sharded or hasn't been created
+     */
+    public static synchronized List<AvlProcessingLane> getStartedLanes() {
+        return singleton == null ? Collections.emptyList() : singleton.lanes;
+    }
+
     /**
      * Instead of writing AVL report to JMS topic this method directly processes it. By doing this
      * one can bypass the need for a JMS server. Uses a thread executor so that can both use
@@ -100,6 +171,40 @@ public class AvlExecutor {
      */
     public void processAvlReport(AvlReport avlReport) {
         AvlReportProcessor client = avlReportProcessorFactory.createClient(avlReport);
-        avlClientExecutor.execute(client);
+        if (lanes.isEmpty()) {
+            avlClientExecutor.execute(client);
+            return;
+        }
+
+        AvlProcessingLane lane = laneFor(avlReport.getVehicleId());
+        if (!lane.offer(client)) {
+            logger.error("Rejected AVL report {} in AvlExecutor for agencyId={}. The lane {} with capacity {} must be full.",
+                    avlReport,
+                    AgencyConfig.getAgencyId(),
+                    lane.getLaneIndex(),
+                    lane.getCapacity());
+        }
+    }
+
+    /**
+     * Stops processing AVL reports. The lane threads, or the threads of the pool, exit once the
+     * reports currently being processed are done.
+     */
+    public void shutdown() {
+        if (lanes.isEmpty()) {
+            ((ExecutorService) avlClientExecutor).shutdown();
+            return;
+        }
+        lanes.forEach(AvlProcessingLane::shutdown);
+    }
+
+    /**
+     * Returns the lane that the vehicle is always processed by.
+     *
+     * @param vehicleId The vehicle
+     * @return the lane for the vehicle
+     */
+    private AvlProcessingLane laneFor(String vehicleId) {
+        return lanes.get(Math.floorMod(vehicleId.hashCode(), lanes.size()));
     }
 }
@@ -2,6 +2,7 @@
 package org.transitclock.core.avl;
 
 import java.util.Collection;
+import org.transitclock.Core;
 import org.transitclock.Module;
 import org.transitclock.domain.structs.AvlReport;
 
@@ -21,6 +22,10 @@ abstract class AvlModule extends Module {
      * use JMS or bypass it, depending on how configured.
      */
     protected void processAvlReport(AvlReport avlReport) {
+        // In batch mode slow down reading the feed if the db can't keep up,
+        // instead of blocking the threads processing the AVL reports
+        Core.getInstance().getDbLogger().pauseIfFilling();
+
         // Use AvlExecutor to actually process the data using a thread executor
         AvlExecutor.getInstance().processAvlReport(avlReport);
     }
@@ -0,0 +1,264 @@
+/* (C)2023 */
+package org.transitclock.core.avl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.monitoring.PipelineMetrics;
+import org.transitclock.utils.Time;
+
+/**
+ * A single lane of the sharded AVL executor. Every vehicle is hashed to exactly one lane so all of
+ * the reports for a vehicle are processed by the same thread, in order, and never concurrently.
+ * This means that the VehicleState for a vehicle is only ever written by its own lane and the
+ * threads no longer convoy on the vehicle state monitor.
+ *
+ * <p>Pending reports are kept in a LinkedHashMap keyed on vehicle ID. When a newer report comes in
+ * for a vehicle that still has a report waiting then the newer one simply replaces the superseded
+ * one in place. The vehicle keeps its position in the lane so it is not starved, and the obsolete
+ * report never costs a queue slot or a processing cycle. This is the same "only process the latest
+ * report" behavior as {@link AvlReportProcessorQueue} but without the side map and the repeated
+ * polling of obsolete entries.
+ *
+ * <p>Queue depth and latency statistics are kept per lane so that an unbalanced lane or a lane
+ * falling behind can be identified. The reports queued, rejected and made obsolete are also counted
+ * in PipelineMetrics, the same as for the AvlReportProcessorQueue.
+ *
+ * <p>The pending reports are guarded by a ReentrantLock instead of by synchronized so that a lane
+ * running on a virtual thread doesn't pin its carrier thread while waiting for reports.
+ */
+@Slf4j
+public class AvlProcessingLane implements Runnable {
+
+    /** A report waiting in the lane along with when its slot was first taken. */
+    private static class PendingReport {
+        private final AvlReportProcessor processor;
+        private final long enqueuedNanos;
+
+        private PendingReport(AvlReportProcessor processor, long enqueuedNanos) {
+            this.processor = processor;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private static final PipelineMetrics metrics = PipelineMetrics.getInstance();
+
+    @Getter
+    private final int laneIndex;
+
+    @Getter
+    private final int capacity;
+
+    // Pending reports keyed on vehicle ID, in arrival order. Guarded by lock.
+    private final LinkedHashMap<String, PendingReport> pending = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    // Set by shutdown() so that the lane thread exits. Guarded by lock.
+    private boolean shutdown = false;
+
+    // Statistics. Updated by the lane thread and by producers so atomic.
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param laneIndex Index of the lane, used for logging and statistics
+     * @param capacity Max number of distinct vehicles that can be waiting in the lane
+     */
+    public AvlProcessingLane(int laneIndex, int capacity) {
+        this.laneIndex = laneIndex;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds the AVL report processor to the lane. If a report for the same vehicle is already
+     * waiting then it is replaced in place by the newer one. If the report is older than the one
+     * waiting then it is simply dropped.
+     *
+     * @param processor The processor for the AVL report
+     * @return false if the lane is full and the report was rejected
+     */
+    public boolean offer(@NonNull AvlReportProcessor processor) {
+        AvlReport avlReport = processor.getAvlReport();
+        String vehicleId = avlReport.getVehicleId();
+
+        lock.lock();
+        try {
+            PendingReport existing = pending.get(vehicleId);
+            if (existing != null) {
+                // Either the waiting report or this one is obsolete
+                coalescedCount.incrementAndGet();
+                metrics.avlReportQueued();
+                metrics.avlReportObsolete();
+                if (avlReport.getTime() < existing.processor.getAvlReport().getTime()) {
+                    logger.debug("Lane {} dropping AVL report {} since newer report {} is already waiting.",
+                            laneIndex, avlReport, existing.processor.getAvlReport());
+                } else {
+                    // Replacing the value of an existing key keeps the
+                    // insertion order so the vehicle keeps its place.
+                    pending.put(vehicleId, new PendingReport(processor, existing.enqueuedNanos));
+                }
+                return true;
+            }
+
+            if (pending.size() >= capacity) {
+                rejectedCount.incrementAndGet();
+                metrics.avlReportRejected();
+                return false;
+            }
+
+            pending.put(vehicleId, new PendingReport(processor, System.nanoTime()));
+            metrics.avlReportQueued();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for and removes the oldest pending report.
+     *
+     * @return the pending report, or null if the lane has been shut down
+     * @throws InterruptedException if the lane thread is interrupted while waiting
+     */
+    private PendingReport take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (pending.isEmpty() && !shutdown) {
+                notEmpty.await();
+            }
+            if (shutdown) return null;
+
+            Iterator<PendingReport> iterator = pending.values().iterator();
+            PendingReport next = iterator.next();
+            iterator.remove();
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the lane. The report currently being processed is finished but the reports still
+     * waiting are dropped and the lane thread then exits.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Processes reports from the lane until it is shut down or the thread is interrupted. */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            PendingReport next;
+            try {
+                next = take();
+            } catch (InterruptedException e) {
+                logger.info("AVL processing lane {} interrupted so exiting.", laneIndex);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (next == null) {
+                logger.info("AVL processing lane {} shut down so exiting.", laneIndex);
+                return;
+            }
+
+            // AvlReportProcessor.run() already catches Exceptions so that
+            // the lane thread is not killed by a bad report
+            next.processor.run();
+
+            long latencyNanos = System.nanoTime() - next.enqueuedNanos;
+            processedCount.incrementAndGet();
+            totalLatencyNanos.addAndGet(latencyNanos);
+            maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+        }
+    }
+
+    /**
+     * @return number of vehicles currently waiting to be processed by this lane
+     */
+    public int queueDepth() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return fraction of the lane capacity that is currently in use
+     */
+    public double queueLevel() {
+        return (double) queueDepth() / capacity;
+    }
+
+    /**
+     * @return number of reports processed by the lane
+     */
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * @return number of reports that were superseded by a newer report for the same vehicle before
+     *     they could be processed
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * @return number of reports rejected because the lane was full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return average time in msec from a report being queued until it was fully processed
+     */
+    public double getAverageLatencyMsec() {
+        long processed = processedCount.get();
+        if (processed == 0) return 0.0;
+        return (double) totalLatencyNanos.get() / processed / Time.NSEC_PER_MSEC;
+    }
+
+    /**
+     * @return max time in msec from a report being queued until it was fully processed
+     */
+    public double getMaxLatencyMsec() {
+        return (double) maxLatencyNanos.get() / Time.NSEC_PER_MSEC;
+    }
+
+    @Override
+    public String toString() {
+        return "AvlProcessingLane{"
+                + "laneIndex=" + laneIndex
+                + ", queueDepth=" + queueDepth()
+                + ", capacity=" + capacity
+                + ", processed=" + getProcessedCount()
+                + ", coalesced=" + getCoalescedCount()
+                + ", rejected=" + getRejectedCount()
+                + ", avgLatencyMsec=" + String.format("%.1f", getAverageLatencyMsec())
+                + ", maxLatencyMsec=" + String.format("%.1f", getMaxLatencyMsec())
+                + "}";
+    }
+}
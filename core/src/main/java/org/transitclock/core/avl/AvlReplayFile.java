@@ -0,0 +1,166 @@
+/* (C)2023 */
+package org.transitclock.core.avl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.apache.commons.csv.CSVRecord;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.AvlReport.AssignmentType;
+import org.transitclock.utils.IntervalTimer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes AVL reports as a compact local file so that they can be replayed without a live
+ * AVL feed. The file is CSV, gzipped if the file name ends with .gz, with the columns
+ *
+ * <pre>vehicleId,time,latitude,longitude,speed,heading,assignmentId,assignmentType</pre>
+ *
+ * <p>The time can either be epoch msec or a timestamp such as "2015-08-16 09:51:25.000" in the
+ * default timezone. Speed, heading and the assignment are optional so files in the same format as
+ * the avltest.csv test resource can also be read. A day of AVL reports for a large agency is a few
+ * million rows, about 50MB gzipped.
+ */
+@Slf4j
+public class AvlReplayFile {
+    private static final String[] HEADER = {
+        "vehicleId", "time", "latitude", "longitude", "speed", "heading", "assignmentId", "assignmentType"
+    };
+
+    // Used as the source of the replayed AVL reports
+    private static final String SOURCE = "replay";
+
+    private AvlReplayFile() {}
+
+    /**
+     * Reads the AVL reports from the file, sorted by time.
+     *
+     * @param file The file to read
+     * @return the AVL reports in time order
+     * @throws IOException if the file can't be read or a record is invalid
+     */
+    public static List<AvlReport> read(Path file) throws IOException {
+        IntervalTimer timer = new IntervalTimer();
+        List<AvlReport> avlReports = new ArrayList<>();
+
+        CSVFormat format = CSVFormat.Builder.create().setHeader().build();
+        try (Reader reader = new BufferedReader(new InputStreamReader(open(file), StandardCharsets.UTF_8))) {
+            for (CSVRecord record : format.parse(reader)) {
+                try {
+                    avlReports.add(toAvlReport(record));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Invalid AVL record on line " + record.getRecordNumber() + " of " + file, e);
+                }
+            }
+        }
+
+        // The sort is stable so reports with the same time stay in file order
+        avlReports.sort(Comparator.comparingLong(AvlReport::getTime));
+        logger.info("Read {} AVL reports from {} in {} msec", avlReports.size(), file, timer.elapsedMsec());
+        return avlReports;
+    }
+
+    private static InputStream open(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        return file.toString().endsWith(".gz") ? new GZIPInputStream(in, 64 * 1024) : in;
+    }
+
+    private static AvlReport toAvlReport(CSVRecord record) {
+        AvlReport avlReport = new AvlReport(
+                record.get("vehicleId"),
+                parseTime(record.get("time")),
+                Double.parseDouble(record.get("latitude")),
+                Double.parseDouble(record.get("longitude")),
+                optionalFloat(record, "speed"),
+                optionalFloat(record, "heading"),
+                SOURCE);
+
+        String assignmentId = optional(record, "assignmentId");
+        String assignmentType = optional(record, "assignmentType");
+        if (assignmentId != null && assignmentType != null)
+            avlReport.setAssignment(assignmentId, AssignmentType.valueOf(assignmentType));
+        return avlReport;
+    }
+
+    private static long parseTime(String time) {
+        boolean epochMsec = !time.isEmpty() && time.chars().allMatch(Character::isDigit);
+        return epochMsec ? Long.parseLong(time) : Timestamp.valueOf(time).getTime();
+    }
+
+    private static String optional(CSVRecord record, String name) {
+        if (!record.isMapped(name) || !record.isSet(name)) return null;
+        String value = record.get(name);
+        return value.isEmpty() ? null : value;
+    }
+
+    private static float optionalFloat(CSVRecord record, String name) {
+        String value = optional(record, name);
+        return value != null ? Float.parseFloat(value) : Float.NaN;
+    }
+
+    /**
+     * Writes the AVL reports to the file, gzipped if the name ends with .gz.
+     *
+     * @param avlReports The AVL reports to write
+     * @param file Where to write them
+     * @throws IOException if the file can't be written
+     */
+    public static void write(List<AvlReport> avlReports, Path file) throws IOException {
+        OutputStream out = Files.newOutputStream(file);
+        if (file.toString().endsWith(".gz")) out = new GZIPOutputStream(out, 64 * 1024);
+
+        CSVFormat format = CSVFormat.Builder.create().setHeader(HEADER).build();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                CSVPrinter printer = new CSVPrinter(writer, format)) {
+            for (AvlReport avlReport : avlReports) {
+                printer.printRecord(
+                        avlReport.getVehicleId(),
+                        avlReport.getTime(),
+                        avlReport.getLat(),
+                        avlReport.getLon(),
+                        Float.isNaN(avlReport.getSpeed()) ? "" : avlReport.getSpeed(),
+                        Float.isNaN(avlReport.getHeading()) ? "" : avlReport.getHeading(),
+                        avlReport.getAssignmentId() != null ? avlReport.getAssignmentId() : "",
+                        avlReport.getAssignmentId() != null ? avlReport.getAssignmentType() : "");
+            }
+        }
+    }
+
+    /**
+     * Exports the AVL reports stored in the db for the time span to the file, for replaying them
+     * later such as for capacity testing with a recorded rush hour.
+     *
+     * @param beginTime Start of the time span
+     * @param endTime End of the time span
+     * @param file Where to write the AVL reports
+     * @return number of AVL reports exported
+     * @throws IOException if the reports can't be read from the db or the file can't be written
+     */
+    public static int exportFromDb(Date beginTime, Date endTime, Path file) throws IOException {
+        List<AvlReport> avlReports = AvlReport.getAvlReportsFromDb(beginTime, endTime, null, "ORDER BY time");
+        if (avlReports == null) throw new IOException("Could not read AVL reports from db");
+
+        write(avlReports, file);
+        logger.info("Exported {} AVL reports between {} and {} to {}", avlReports.size(), beginTime, endTime, file);
+        return avlReports.size();
+    }
+}
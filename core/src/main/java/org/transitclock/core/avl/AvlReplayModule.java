@@ -0,0 +1,52 @@
+/* (C)2023 */
+package org.transitclock.core.avl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.Module;
+import org.transitclock.config.data.AvlConfig;
+import org.transitclock.domain.structs.AvlReport;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * For replaying a file of recorded AVL reports, specified by transitclock.avl.replay.file, through
+ * the AVL processing pipeline instead of reading a live feed. Runs once. The throughput and latency
+ * percentiles are logged when the replay finishes. Use transitclock.avl.replay.speedMultiplier to
+ * replay at a multiple of real time instead of as fast as possible.
+ */
+@Slf4j
+public class AvlReplayModule extends Module {
+
+    public AvlReplayModule(String agencyId) {
+        super(agencyId);
+    }
+
+    @Override
+    public void run() {
+        String fileName = AvlConfig.replayFile.getValue();
+        if (fileName == null || fileName.isEmpty()) {
+            logger.error("AvlReplayModule is configured but {} is not set so there is nothing to replay.",
+                    AvlConfig.replayFile.getID());
+            return;
+        }
+
+        try {
+            List<AvlReport> avlReports = AvlReplayFile.read(Paths.get(fileName));
+            AvlReplayer replayer = new AvlReplayer(
+                    AvlConfig.replaySpeedMultiplier.getValue(), AvlConfig.replayNumThreads.getValue());
+            replayer.replay(avlReports);
+        } catch (IOException e) {
+            logger.error("Could not read AVL reports to replay from {}", fileName, e);
+        } catch (InterruptedException e) {
+            logger.warn("Replay of AVL reports from {} was interrupted", fileName);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public ExecutionType getExecutionType() {
+        return ExecutionType.ONCE;
+    }
+}
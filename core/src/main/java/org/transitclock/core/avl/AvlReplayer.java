@@ -0,0 +1,289 @@
+/* (C)2023 */
+package org.transitclock.core.avl;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.Core;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.monitoring.PipelineMetrics;
+import org.transitclock.monitoring.PipelineMetrics.Stage;
+import org.transitclock.utils.LatencyHistogram;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Replays recorded AVL reports through the full AVL processing pipeline, either as fast as
+ * possible or at a multiple of real time. Meant for capacity testing and for validating tuning
+ * changes against recorded data, such as a rush hour exported with {@link AvlReplayFile}, without
+ * needing a live AVL feed.
+ *
+ * <p>The clock returned by SystemTime is set to the time of the report being replayed so the rest
+ * of the system behaves as if the reports were arriving live. With a single thread the reports are
+ * processed one at a time in the replaying thread which makes a replay deterministic. With
+ * multiple threads each vehicle is always processed by the same thread, so reports for a vehicle
+ * are still processed in order, but the vehicles are processed concurrently as they are by the
+ * sharded AvlExecutor. Unlike with the AvlExecutor no reports are dropped when the threads fall
+ * behind. Instead the replay waits, since the point is to measure how long processing takes.
+ * Since the queues of the threads can get far ahead of the processing, with multiple threads the
+ * clock is the time of the earliest report that is queued or being processed. The clock therefore
+ * never runs ahead of a report being processed, though it can lag behind it a bit.
+ *
+ * <p>For each report the time waiting for a processing thread and the processing time are recorded
+ * in histograms so that throughput and latency percentiles can be reported. The latencies of the
+ * stages of the processing, as recorded by {@link PipelineMetrics} during the replay, are reported
+ * as well so that it is possible to see where the time goes.
+ */
+@Slf4j
+public class AvlReplayer {
+    // Queue capacity of each processing thread
+    private static final int THREAD_QUEUE_CAPACITY = 1000;
+
+    /** A report waiting for its processing thread. */
+    private static class QueuedReport {
+        private final AvlReport avlReport;
+        private final long enqueuedNanos;
+
+        private QueuedReport(AvlReport avlReport, long enqueuedNanos) {
+            this.avlReport = avlReport;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    // Put in the queues to tell the processing threads that the replay is done
+    private static final QueuedReport END_OF_REPLAY = new QueuedReport(null, 0);
+
+    private final double speedMultiplier;
+    private final int numberThreads;
+    private final Consumer<AvlReport> processor;
+
+    @Getter
+    private final LatencyHistogram queueWaitNanos = new LatencyHistogram();
+
+    @Getter
+    private final LatencyHistogram processingNanos = new LatencyHistogram();
+
+    // The PipelineMetrics recorded during the last replay, by stage
+    private final Map<Stage, LatencyHistogram> stageNanos = new EnumMap<>(Stage.class);
+
+    // Number of reports queued or being processed for each report time, so
+    // that the clock can be kept at the earliest one when using threads
+    private final TreeMap<Long, Integer> outstandingReportCounts = new TreeMap<>();
+
+    private long replayedCount;
+    private long elapsedNanos;
+    private long replayedSpanMsec;
+
+    /**
+     * @param speedMultiplier How much faster than real time to replay the reports, such as 10.0 for
+     *     ten times real time. 0.0 or less means as fast as possible.
+     * @param numberThreads Number of threads to process the reports. 1 for a deterministic replay.
+     */
+    public AvlReplayer(double speedMultiplier, int numberThreads) {
+        // AvlReportProcessor.run() catches exceptions so a bad report doesn't
+        // stop the replay
+        this(speedMultiplier, numberThreads, avlReport -> new AvlReportProcessor(avlReport).run());
+    }
+
+    /** For tests, which process the reports without needing the whole Core. */
+    AvlReplayer(double speedMultiplier, int numberThreads, Consumer<AvlReport> processor) {
+        this.speedMultiplier = speedMultiplier;
+        this.numberThreads = Math.max(1, numberThreads);
+        this.processor = processor;
+    }
+
+    /**
+     * Replays the reports, returning once all of them have been processed.
+     *
+     * @param avlReports The reports to replay, in time order
+     * @throws InterruptedException if interrupted while replaying
+     */
+    public void replay(List<AvlReport> avlReports) throws InterruptedException {
+        if (avlReports.isEmpty()) return;
+
+        // PipelineMetrics is shared with the metrics that are scraped so
+        // instead of being reset it is copied so that only the replay is reported
+        PipelineMetrics pipelineMetrics = PipelineMetrics.getInstance();
+        Map<Stage, LatencyHistogram> stageNanosAtStart = new EnumMap<>(Stage.class);
+        for (Stage stage : Stage.values()) stageNanosAtStart.put(stage, pipelineMetrics.getHistogram(stage).copy());
+
+        long firstReportTime = avlReports.get(0).getTime();
+        long startNanos = System.nanoTime();
+        logger.info("Replaying {} AVL reports using speedMultiplier={} and numberThreads={}",
+                avlReports.size(), speedMultiplier, numberThreads);
+
+        try {
+            if (numberThreads == 1) replayInThisThread(avlReports, firstReportTime, startNanos);
+            else replayUsingThreads(avlReports, firstReportTime, startNanos);
+        } finally {
+            SystemTime.useSystemClock();
+        }
+
+        elapsedNanos = System.nanoTime() - startNanos;
+        replayedSpanMsec = avlReports.get(avlReports.size() - 1).getTime() - firstReportTime;
+        for (Stage stage : Stage.values()) {
+            stageNanos.put(stage, pipelineMetrics.getHistogram(stage).since(stageNanosAtStart.get(stage)));
+        }
+        logger.info("Finished replay. {}", getSummary());
+    }
+
+    private void replayInThisThread(List<AvlReport> avlReports, long firstReportTime, long startNanos)
+            throws InterruptedException {
+        for (AvlReport avlReport : avlReports) {
+            waitUntilDue(avlReport, firstReportTime, startNanos);
+            pauseIfDbFilling();
+            SystemTime.setVirtualTime(avlReport.getTime());
+            process(new QueuedReport(avlReport, System.nanoTime()));
+        }
+    }
+
+    private void replayUsingThreads(List<AvlReport> avlReports, long firstReportTime, long startNanos)
+            throws InterruptedException {
+        List<BlockingQueue<QueuedReport>> queues = new ArrayList<>(numberThreads);
+        List<Thread> threads = new ArrayList<>(numberThreads);
+        NamedThreadFactory threadFactory = new NamedThreadFactory("avlReplay");
+        for (int i = 0; i < numberThreads; ++i) {
+            BlockingQueue<QueuedReport> queue = new ArrayBlockingQueue<>(THREAD_QUEUE_CAPACITY);
+            Thread thread = threadFactory.newThread(() -> processQueue(queue));
+            queues.add(queue);
+            threads.add(thread);
+            thread.start();
+        }
+
+        try {
+            for (AvlReport avlReport : avlReports) {
+                waitUntilDue(avlReport, firstReportTime, startNanos);
+                pauseIfDbFilling();
+                reportQueued(avlReport.getTime());
+                int threadIndex = Math.floorMod(avlReport.getVehicleId().hashCode(), numberThreads);
+                queues.get(threadIndex).put(new QueuedReport(avlReport, System.nanoTime()));
+            }
+            for (BlockingQueue<QueuedReport> queue : queues) queue.put(END_OF_REPLAY);
+            for (Thread thread : threads) thread.join();
+        } finally {
+            for (Thread thread : threads) thread.interrupt();
+        }
+    }
+
+    /**
+     * When replaying faster than the db can keep up, pauses feeding in reports until the db queues
+     * have been cleared out a bit, if transitclock.core.pauseIfDbQueueFilling is set. Done here
+     * instead of in the processing threads so that those never block on the queues.
+     */
+    private static void pauseIfDbFilling() {
+        if (Core.isCoreApplication()) Core.getInstance().getDbLogger().pauseIfFilling();
+    }
+
+    /**
+     * Called before a report is put in the queue of a processing thread. Since the reports are
+     * queued in time order this only moves the clock forward if no earlier report is outstanding.
+     */
+    private synchronized void reportQueued(long time) {
+        outstandingReportCounts.merge(time, 1, Integer::sum);
+        SystemTime.setVirtualTime(outstandingReportCounts.firstKey());
+    }
+
+    /** Called once a report has been processed. Moves the clock to the earliest outstanding report. */
+    private synchronized void reportProcessed(long time) {
+        int count = outstandingReportCounts.get(time);
+        if (count == 1) outstandingReportCounts.remove(time);
+        else outstandingReportCounts.put(time, count - 1);
+        if (!outstandingReportCounts.isEmpty()) SystemTime.setVirtualTime(outstandingReportCounts.firstKey());
+    }
+
+    /** Processes the reports from the queue until the end of the replay. */
+    private void processQueue(BlockingQueue<QueuedReport> queue) {
+        try {
+            for (QueuedReport queuedReport = queue.take(); queuedReport != END_OF_REPLAY; queuedReport = queue.take()) {
+                process(queuedReport);
+                reportProcessed(queuedReport.avlReport.getTime());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void process(QueuedReport queuedReport) {
+        long processingStartNanos = System.nanoTime();
+        queueWaitNanos.record(processingStartNanos - queuedReport.enqueuedNanos);
+        processor.accept(queuedReport.avlReport);
+
+        processingNanos.recordSince(processingStartNanos);
+        synchronized (this) {
+            ++replayedCount;
+        }
+    }
+
+    /** When replaying at a multiple of real time sleeps until the report is due. */
+    private void waitUntilDue(AvlReport avlReport, long firstReportTime, long startNanos) throws InterruptedException {
+        if (speedMultiplier <= 0.0) return;
+
+        long dueNanos = startNanos + (long) ((avlReport.getTime() - firstReportTime) * Time.NSEC_PER_MSEC / speedMultiplier);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+
+    /**
+     * @return number of reports replayed so far
+     */
+    public synchronized long getReplayedCount() {
+        return replayedCount;
+    }
+
+    /**
+     * @return reports processed per second of wall clock time for the last replay
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0.0 : getReplayedCount() * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @return how many times faster than real time the last replay was
+     */
+    public double getAchievedSpeedMultiplier() {
+        return elapsedNanos == 0 ? 0.0 : replayedSpanMsec * (double) Time.NSEC_PER_MSEC / elapsedNanos;
+    }
+
+    /**
+     * @param stage The stage of the processing
+     * @return latencies of the stage recorded by PipelineMetrics during the last replay, or null if
+     *     there hasn't been a replay
+     */
+    public LatencyHistogram getStageNanos(Stage stage) {
+        return stageNanos.get(stage);
+    }
+
+    /**
+     * @return throughput and latency percentiles of the last replay, including those of the stages
+     *     that were done, for logging
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Replayed ").append(getReplayedCount()).append(" AVL reports covering ")
+                .append(replayedSpanMsec / Time.MS_PER_SEC).append(" secs in ")
+                .append(elapsedNanos / Time.NSEC_PER_MSEC).append(" msec. ")
+                .append(String.format("Throughput %.1f reports/sec, %.1fx real time. ",
+                        getThroughput(), getAchievedSpeedMultiplier()))
+                .append("Queue wait: ").append(queueWaitNanos.toMsecString()).append(". ")
+                .append("Processing: ").append(processingNanos.toMsecString()).append(".");
+        // Stages that weren't done, such as predictions when no vehicle was
+        // matched, are left out
+        for (Map.Entry<Stage, LatencyHistogram> entry : stageNanos.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                sb.append(" ").append(entry.getKey()).append(": ")
+                        .append(entry.getValue().toMsecString()).append(".");
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -8,6 +8,7 @@ import java.util.concurrent.TimeUnit;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.monitoring.PipelineMetrics;
 
 /**
  * A queue of {@link AvlReportProcessor} runnables that can be used with a ThreadPoolExecutor. Implements by
@@ -68,6 +69,7 @@ public class AvlReportProcessorQueue extends ArrayBlockingQueue<AvlReportProcess
         AvlReport lastAvlReportForVehicle = avlDataPerVehicleMap.get(avlReportFromQueue.getVehicleId());
         boolean obsolete = lastAvlReportForVehicle != null && avlReportFromQueue.getTime() < lastAvlReportForVehicle.getTime();
         if (obsolete) {
+            PipelineMetrics.getInstance().avlReportObsolete();
             logger.debug(
                     "AVL report from queue is obsolete (there is a newer "
                             + "one for the vehicle). Therefore ignoring this report so "
@@ -81,6 +83,15 @@ public class AvlReportProcessorQueue extends ArrayBlockingQueue<AvlReportProcess
         return obsolete;
     }
 
+    /**
+     * Counts the AVL report as queued, or as rejected if the queue was full. Note that add() calls
+     * offer() so it doesn't need to count.
+     */
+    private void countOffer(boolean successful) {
+        if (successful) PipelineMetrics.getInstance().avlReportQueued();
+        else PipelineMetrics.getInstance().avlReportRejected();
+    }
+
     /**
      * Calls superclass add() method but also updates the AVL data per vehicle map. Doesn't seem to
      * be used by ThreadPoolExecutor but still included for completeness.
@@ -99,6 +110,7 @@ public class AvlReportProcessorQueue extends ArrayBlockingQueue<AvlReportProcess
     public void put(@NonNull AvlReportProcessor runnable) throws InterruptedException {
         super.put(runnable);
         addToAvlDataPerVehicleMap(runnable);
+        PipelineMetrics.getInstance().avlReportQueued();
     }
 
     /**
@@ -111,6 +123,7 @@ public class AvlReportProcessorQueue extends ArrayBlockingQueue<AvlReportProcess
         logger.debug("offer() remainingCapacity={} {}", remainingCapacity(), avlReport);
 
         boolean successful = super.offer(runnable);
+        countOffer(successful);
         if (successful) addToAvlDataPerVehicleMap(runnable);
 
         logger.debug("offer() returned {} for {}", successful, avlReport);
@@ -124,6 +137,7 @@ public class AvlReportProcessorQueue extends ArrayBlockingQueue<AvlReportProcess
     @Override
     public boolean offer(AvlReportProcessor runnable, long timeout, TimeUnit unit) throws InterruptedException {
         boolean successful = super.offer(runnable, timeout, unit);
+        countOffer(successful);
         if (successful) addToAvlDataPerVehicleMap(runnable);
 
         return successful;
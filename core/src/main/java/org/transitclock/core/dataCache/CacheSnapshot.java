@@ -0,0 +1,124 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.config.data.CoreConfig;
+import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
+import org.transitclock.core.dataCache.memory.TripDataHistoryCache;
+import org.transitclock.core.dataCache.scheduled.ScheduleBasedHistoricalAverageCache;
+import org.transitclock.utils.SnapshotFile;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * A snapshot of the historical caches that are populated from the arrivals and departures in the
+ * db at startup, so that a restart only needs to read the arrivals and departures since the
+ * snapshot was written instead of days of them.
+ *
+ * <p>The caches that are only held in memory, the in memory TripDataHistoryCache and the frequency
+ * and schedule based historical average caches, are written to the snapshot. The other Ehcache
+ * based caches are already persisted to disk by Ehcache, but only if the cache manager is closed
+ * cleanly. Therefore a snapshot records whether it was written at shutdown. If it wasn't, such as
+ * when the snapshot was written on a timer and the process then died, those caches are populated
+ * from the db as usual.
+ *
+ * <p>Arrivals and departures determined after the snapshot was written but for an earlier time
+ * might not be in the snapshot nor be read from the db. Since arrivals and departures are
+ * determined shortly after they happen this only affects a handful of events.
+ */
+@Slf4j
+@Getter
+public class CacheSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // When the snapshot was written. The arrivals and departures since
+    // then need to be read from the db.
+    private final Date createdTime;
+
+    // True if written at shutdown, just before the Ehcache caches were closed
+    private final boolean atShutdown;
+
+    // Null if the in memory TripDataHistoryCache is not being used
+    private final TripDataHistoryCache.Contents tripDataHistory;
+
+    private final Map<StopPathCacheKey, HistoricalAverage> frequencyBasedAverages;
+    private final Map<StopPathCacheKey, HistoricalAverage> scheduleBasedAverages;
+
+    private CacheSnapshot(boolean atShutdown) {
+        this.createdTime = new Date();
+        this.atShutdown = atShutdown;
+        this.tripDataHistory = TripDataHistoryCacheFactory.getInstance() instanceof TripDataHistoryCache cache
+                ? cache.getContents()
+                : null;
+        this.frequencyBasedAverages = FrequencyBasedHistoricalAverageCache.getInstance().getAverages();
+        this.scheduleBasedAverages = ScheduleBasedHistoricalAverageCache.getInstance().getAverages();
+    }
+
+    /** Returns the snapshot file for the agency, or null if snapshots are not configured. */
+    private static Path getSnapshotFile(String agencyId) {
+        String directory = CoreConfig.snapshotDirectory.getValue();
+        if (directory == null || directory.isEmpty()) return null;
+        return Paths.get(directory, agencyId + "-caches.snapshot");
+    }
+
+    /**
+     * Writes a snapshot of the caches, if snapshots are configured.
+     *
+     * @param agencyId
+     * @param configRev The config rev that the caches are for
+     * @param atShutdown True if being written at shutdown, before the Ehcache caches are closed
+     */
+    public static void write(String agencyId, int configRev, boolean atShutdown) {
+        Path snapshotFile = getSnapshotFile(agencyId);
+        if (snapshotFile == null) return;
+
+        try {
+            // The caches are made from the arrivals/departures and don't
+            // depend on the travel times
+            SnapshotFile.write(
+                    snapshotFile, configRev, SnapshotFile.NO_TRAVEL_TIMES_REV, new CacheSnapshot(atShutdown));
+        } catch (IOException | RuntimeException e) {
+            logger.error("Could not write cache snapshot to {}", snapshotFile, e);
+        }
+    }
+
+    /**
+     * Restores the in memory caches from the snapshot, if snapshots are configured and there is one
+     * for the config rev.
+     *
+     * @param agencyId
+     * @param configRev The current config rev
+     * @return the snapshot that was restored, or null if none
+     */
+    public static CacheSnapshot restore(String agencyId, int configRev) {
+        Path snapshotFile = getSnapshotFile(agencyId);
+        if (snapshotFile == null) return null;
+
+        CacheSnapshot snapshot =
+                SnapshotFile.read(snapshotFile, configRev, SnapshotFile.NO_TRAVEL_TIMES_REV, CacheSnapshot.class);
+        if (snapshot == null) return null;
+
+        if (snapshot.tripDataHistory != null
+                && TripDataHistoryCacheFactory.getInstance() instanceof TripDataHistoryCache cache) {
+            cache.restoreContents(snapshot.tripDataHistory);
+        }
+        FrequencyBasedHistoricalAverageCache.getInstance().putAverages(snapshot.frequencyBasedAverages);
+        ScheduleBasedHistoricalAverageCache.getInstance().putAverages(snapshot.scheduleBasedAverages);
+        logger.info("Restored caches from snapshot written at {}{}",
+                snapshot.createdTime, snapshot.atShutdown ? " at shutdown" : "");
+        return snapshot;
+    }
+
+    /**
+     * @return true if the TripDataHistoryCache was restored from this snapshot
+     */
+    public boolean hasTripDataHistory() {
+        return tripDataHistory != null && TripDataHistoryCacheFactory.getInstance() instanceof TripDataHistoryCache;
+    }
+}
@@ -0,0 +1,40 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache;
+
+import org.transitclock.Core;
+import org.transitclock.Module;
+import org.transitclock.config.data.CoreConfig;
+import org.transitclock.utils.Time;
+
+/**
+ * Periodically writes a CacheSnapshot so that if the core is restarted, or dies, the caches can be
+ * restored from a recent snapshot instead of being populated from days of arrivals and departures
+ * in the db. A snapshot is also written at shutdown so this module is only needed to limit how much
+ * has to be read from the db after the core dies.
+ */
+public class CacheSnapshotModule extends Module {
+
+    public CacheSnapshotModule(String agencyId) {
+        super(agencyId);
+    }
+
+    @Override
+    public void run() {
+        CacheSnapshot.write(agencyId, Core.getInstance().getDbConfig().getConfigRev(), false);
+    }
+
+    @Override
+    public int initialExecutionDelay() {
+        return executionPeriod();
+    }
+
+    @Override
+    public int executionPeriod() {
+        return CoreConfig.cacheSnapshotIntervalMinutes.getValue() * Time.MS_PER_MIN;
+    }
+
+    @Override
+    public ExecutionType getExecutionType() {
+        return ExecutionType.FIXED_RATE;
+    }
+}
@@ -0,0 +1,296 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.transitclock.config.data.DbSetupConfig;
+import org.transitclock.domain.hibernate.HibernateUtils;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Populates the historical caches from the arrivals and departures in the db at startup using a
+ * single pass over the data for each kind of cache, instead of each cache reading all of the data
+ * itself.
+ *
+ * <p>The time span is split into days that are read by a pool of threads, most recent day first.
+ * The days start at midnight in the default time zone, the same as the days the trip and stop
+ * histories key their entries on, so each entry is only filled from a single day and the days can
+ * be processed concurrently. Each day is streamed from the db in time order using a scrollable
+ * result, and the session is cleared every BATCH_SIZE rows, so memory use is bounded no matter how
+ * many days are read.
+ *
+ * <p>There are two passes. The first hands each row to the caches added with addCache(), such as
+ * the trip and stop histories. The second hands each row to the caches added with
+ * addDependentCache(), such as the historical averages that look up previous events in the trip
+ * history. The second pass for a day is only started once the first pass is done for that day and
+ * for the day before, so the events the averages look up are always there. Progress along with an
+ * estimate of the time remaining is logged periodically.
+ */
+@Slf4j
+public class CacheWarmer {
+    // Rows fetched from the db at a time. The session is cleared after
+    // each batch so that the rows don't accumulate in it.
+    private static final int BATCH_SIZE = 1000;
+
+    private static final long PROGRESS_INTERVAL_MSEC = 10 * Time.MS_PER_SEC;
+
+    /** Puts an arrival or departure into a cache. */
+    @FunctionalInterface
+    public interface ArrivalDepartureConsumer {
+        void accept(ArrivalDeparture arrivalDeparture) throws Exception;
+    }
+
+    /** Reads the arrivals and departures. Separate from the warming so that it can be tested. */
+    interface ArrivalDepartureReader {
+        /** For estimating the time remaining. */
+        long count(Date start, Date end);
+
+        /** Hands the arrivals and departures from start up to end to the consumer in time order. */
+        void read(Date start, Date end, Consumer<ArrivalDeparture> consumer);
+    }
+
+    private record CacheConsumer(String name, long startTime, ArrivalDepartureConsumer consumer) {}
+
+    private final int numberThreads;
+    private final ArrivalDepartureReader reader;
+    private final List<CacheConsumer> consumers = new ArrayList<>();
+    private final List<CacheConsumer> dependentConsumers = new ArrayList<>();
+
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicInteger daysDone = new AtomicInteger();
+
+    /**
+     * @param numberThreads Number of threads for reading the data. Each reads a day at a time.
+     */
+    public CacheWarmer(int numberThreads) {
+        this(numberThreads, new DbReader());
+    }
+
+    CacheWarmer(int numberThreads, ArrivalDepartureReader reader) {
+        this.numberThreads = Math.max(1, numberThreads);
+        this.reader = reader;
+    }
+
+    /**
+     * Adds a cache to be populated in the first pass. Each row is handed to the caches in the order
+     * they were added. The consumer needs to be thread safe since rows for different days are
+     * handed to it concurrently.
+     *
+     * @param name For logging
+     * @param startDate Only arrivals and departures from this time on are handed to the cache
+     * @param consumer Puts the arrival or departure into the cache
+     */
+    public void addCache(String name, Date startDate, ArrivalDepartureConsumer consumer) {
+        consumers.add(new CacheConsumer(name, startDate.getTime(), consumer));
+    }
+
+    /**
+     * Adds a cache that uses the caches added with addCache(), such as the historical averages that
+     * use the trip history. It is handed the rows for a day only once all the caches added with
+     * addCache() have the rows for that day and for the day before.
+     *
+     * @param name For logging
+     * @param startDate Only arrivals and departures from this time on are handed to the cache
+     * @param consumer Puts the arrival or departure into the cache
+     */
+    public void addDependentCache(String name, Date startDate, ArrivalDepartureConsumer consumer) {
+        dependentConsumers.add(new CacheConsumer(name, startDate.getTime(), consumer));
+    }
+
+    /**
+     * Populates the caches with the arrivals and departures from the earliest start date of the
+     * caches up to the end date. Returns once all the data has been processed.
+     *
+     * @param endDate End of the time span to read
+     * @throws InterruptedException if interrupted while waiting for the data to be processed
+     */
+    public void warm(Date endDate) throws InterruptedException {
+        List<CacheConsumer> allConsumers = new ArrayList<>(consumers);
+        allConsumers.addAll(dependentConsumers);
+        if (allConsumers.isEmpty()) return;
+
+        Date startDate = new Date(allConsumers.stream().mapToLong(CacheConsumer::startTime).min().getAsLong());
+        if (!startDate.before(endDate)) return;
+
+        // The data is read once for each pass
+        int passesPerDay = consumers.isEmpty() || dependentConsumers.isEmpty() ? 1 : 2;
+
+        IntervalTimer timer = new IntervalTimer();
+        long totalCount = reader.count(startDate, endDate) * passesPerDay;
+        logger.info("Populating caches {} with {} arrivals and departures from {} to {} using {} threads",
+                allConsumers.stream().map(CacheConsumer::name).toList(), totalCount, startDate, endDate, numberThreads);
+
+        List<Date[]> days = days(startDate, endDate);
+        int numberPasses = days.size() * passesPerDay;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numberThreads, new NamedThreadFactory("cacheWarmer"));
+        try {
+            // Most recent day first since that is the most useful data
+            List<CompletableFuture<Void>> firstPasses = new ArrayList<>(days.size());
+            for (Date[] day : days) {
+                firstPasses.add(CompletableFuture.runAsync(() -> warmDay(day[0], day[1], consumers), executor));
+            }
+
+            // The second pass for a day waits for the first pass of that
+            // day and of the day before, which is the next one in the list
+            List<CompletableFuture<Void>> allPasses = new ArrayList<>(firstPasses);
+            if (!dependentConsumers.isEmpty()) {
+                for (int i = 0; i < days.size(); ++i) {
+                    Date[] day = days.get(i);
+                    CompletableFuture<Void> ready = i + 1 < days.size()
+                            ? CompletableFuture.allOf(firstPasses.get(i), firstPasses.get(i + 1))
+                            : firstPasses.get(i);
+                    allPasses.add(ready.thenRunAsync(() -> warmDay(day[0], day[1], dependentConsumers), executor));
+                }
+            }
+
+            CompletableFuture<Void> done = CompletableFuture.allOf(allPasses.toArray(new CompletableFuture[0]));
+            while (true) {
+                try {
+                    done.get(PROGRESS_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    logProgress(timer, totalCount, numberPasses);
+                } catch (ExecutionException e) {
+                    // warmDay() catches and logs the exceptions of a day
+                    logger.error("Error populating caches", e.getCause());
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        logger.info("Populated caches with {} arrivals and departures in {} msec",
+                processedCount.get(), timer.elapsedMsec());
+    }
+
+    /**
+     * Splits the time span into days, most recent first. The days start at midnight in the default
+     * time zone, the same as the days the caches key their entries on. The first and last days are
+     * partial if the time span doesn't start or end at midnight.
+     */
+    static List<Date[]> days(Date startDate, Date endDate) {
+        List<Date[]> days = new ArrayList<>();
+        for (Date dayEnd = endDate; dayEnd.after(startDate); ) {
+            Date dayStart = DateUtils.truncate(new Date(dayEnd.getTime() - 1), Calendar.DAY_OF_MONTH);
+            if (dayStart.before(startDate)) dayStart = startDate;
+            days.add(new Date[] {dayStart, dayEnd});
+            dayEnd = dayStart;
+        }
+        return days;
+    }
+
+    private void logProgress(IntervalTimer timer, long totalCount, int numberPasses) {
+        long processed = processedCount.get();
+        long elapsedMsec = timer.elapsedMsec();
+        String eta = processed == 0 || totalCount <= processed
+                ? "unknown"
+                : (totalCount - processed) * elapsedMsec / processed / Time.MS_PER_SEC + " secs";
+        logger.info("Populating caches: {} of {} arrivals and departures, {} of {} passes over a day done, "
+                        + "{} per sec, estimated time remaining {}",
+                processed, totalCount, daysDone.get(), numberPasses,
+                elapsedMsec == 0 ? 0 : processed * Time.MS_PER_SEC / elapsedMsec, eta);
+    }
+
+    /** Reads the arrivals and departures for the day and hands them to the caches. */
+    private void warmDay(Date dayStart, Date dayEnd, List<CacheConsumer> cacheConsumers) {
+        if (cacheConsumers.isEmpty()) return;
+
+        // No need to read the day if it is before the start of all the caches
+        long startTime = cacheConsumers.stream().mapToLong(CacheConsumer::startTime).min().getAsLong();
+        if (startTime >= dayEnd.getTime()) {
+            daysDone.incrementAndGet();
+            return;
+        }
+
+        IntervalTimer timer = new IntervalTimer();
+        AtomicInteger count = new AtomicInteger();
+        try {
+            reader.read(dayStart, dayEnd, arrivalDeparture -> {
+                for (CacheConsumer consumer : cacheConsumers) {
+                    if (arrivalDeparture.getTime() < consumer.startTime) continue;
+                    try {
+                        consumer.consumer.accept(arrivalDeparture);
+                    } catch (Exception e) {
+                        logger.error("Error adding {} to {}", arrivalDeparture, consumer.name, e);
+                    }
+                }
+                processedCount.incrementAndGet();
+                count.incrementAndGet();
+            });
+        } catch (RuntimeException e) {
+            logger.error("Error populating caches {} for {} to {}. Caches will be missing data for this day.",
+                    cacheConsumers.stream().map(CacheConsumer::name).toList(), dayStart, dayEnd, e);
+        }
+
+        daysDone.incrementAndGet();
+        logger.debug("Populated caches {} with {} arrivals and departures from {} to {} in {} msec",
+                cacheConsumers.stream().map(CacheConsumer::name).toList(), count.get(), dayStart, dayEnd,
+                timer.elapsedMsec());
+    }
+
+    /** Streams the arrivals and departures from the db. */
+    private static class DbReader implements ArrivalDepartureReader {
+        @Override
+        public long count(Date start, Date end) {
+            try (Session session = HibernateUtils.getSession(DbSetupConfig.getDbName(), true)) {
+                return session.createQuery(
+                                "SELECT count(*) FROM ArrivalDeparture WHERE time >= :start AND time < :end",
+                                Long.class)
+                        .setParameter("start", start)
+                        .setParameter("end", end)
+                        .getSingleResult();
+            } catch (RuntimeException e) {
+                logger.error("Could not count the arrivals and departures from {} to {}", start, end, e);
+                return 0;
+            }
+        }
+
+        @Override
+        public void read(Date start, Date end, Consumer<ArrivalDeparture> consumer) {
+            try (Session session = HibernateUtils.getSession(DbSetupConfig.getDbName(), true)) {
+                session.setDefaultReadOnly(true);
+                // Some dbs, such as PostgreSQL, only use a cursor for the fetch
+                // size when in a transaction
+                Transaction transaction = session.beginTransaction();
+                try (ScrollableResults<ArrivalDeparture> results = session.createQuery(
+                                "FROM ArrivalDeparture WHERE time >= :start AND time < :end ORDER BY time",
+                                ArrivalDeparture.class)
+                        .setParameter("start", start)
+                        .setParameter("end", end)
+                        .setFetchSize(BATCH_SIZE)
+                        .scroll(ScrollMode.FORWARD_ONLY)) {
+                    int count = 0;
+                    while (results.next()) {
+                        consumer.accept(results.get());
+                        if (++count % BATCH_SIZE == 0) session.clear();
+                    }
+                } finally {
+                    transaction.rollback();
+                }
+            }
+        }
+    }
+}
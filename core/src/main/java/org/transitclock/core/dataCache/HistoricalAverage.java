@@ -46,4 +46,16 @@ public class HistoricalAverage implements Serializable {
         average = ((count * average) + element) / (count + 1);
         count = count + 1;
     }
+
+    /**
+     * Returns a copy updated with the element, leaving this instance unchanged, so that an instance
+     * that is in a cache can be read without locking.
+     */
+    public HistoricalAverage withUpdate(double element) {
+        HistoricalAverage copy = new HistoricalAverage();
+        copy.count = count;
+        copy.average = average;
+        copy.update(element);
+        return copy;
+    }
 }
@@ -29,6 +29,18 @@ public class KalmanError implements Serializable {
         }
     }
 
+    /**
+     * Returns a copy with the error set, leaving this instance unchanged, so that an instance that
+     * is in a cache can be read without locking.
+     */
+    public KalmanError withError(Double error) {
+        KalmanError copy = new KalmanError();
+        copy.error = this.error;
+        copy.updates = this.updates;
+        copy.setError(error);
+        return copy;
+    }
+
     public Integer getUpdates() {
         return updates;
     }
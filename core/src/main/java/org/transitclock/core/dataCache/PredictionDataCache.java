@@ -6,6 +6,8 @@ import org.transitclock.Core;
 import org.transitclock.config.data.CoreConfig;
 import org.transitclock.config.data.PredictionConfig;
 import org.transitclock.core.VehicleState;
+import org.transitclock.core.dataCache.memory.IdInterner;
+import org.transitclock.core.dataCache.memory.StringTable;
 import org.transitclock.domain.structs.Route;
 import org.transitclock.domain.structs.Stop;
 import org.transitclock.domain.structs.Trip;
@@ -13,12 +15,14 @@ import org.transitclock.gtfs.DbConfig;
 import org.transitclock.service.dto.IpcPrediction;
 import org.transitclock.service.dto.IpcPredictionsForRouteStopDest;
 import org.transitclock.service.contract.PredictionsInterface.RouteStop;
+import org.transitclock.utils.ConcurrentLongKeyMap;
 import org.transitclock.utils.MapKey;
 import org.transitclock.utils.SystemTime;
 import org.transitclock.utils.Time;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * For storing and retrieving predictions by stop.
@@ -29,11 +33,12 @@ import java.util.concurrent.ConcurrentHashMap;
  * adding an updated prediction. Otherwise might obtain predictions when the old one has been
  * removed but the new one has not yet been written, causing a prediction to be missed.
  *
- * <p>For concurrency and thread safety using ConcurrentHashMap instead of HashMap.
+ * <p>For concurrency and thread safety using ConcurrentLongKeyMap instead of HashMap.
  *
- * <p>getPredictions() returns a copy of the list of predictions for the route/stop. This way the
- * contents will always be coherent and the caller does not need to synchronize, which would be
- * difficult to enforce.
+ * <p>getPredictions() returns immutable snapshots of the predictions for the route/stop. This way
+ * the contents will always be coherent and the caller does not need to synchronize, which would be
+ * difficult to enforce. The snapshots are created when predictions are written, which happens far
+ * less often than they are read, so readers don't need to clone anything.
  *
  * @author SkiBu Smith
  */
@@ -54,15 +59,55 @@ public class PredictionDataCache {
     // vehicles actually going all the way where they want. Therefore
     // for each route/stop have a List of PredictionsForRouteStop, one
     // for each destination/trip head sign.
-    // Keyed by MapKey using routeId/stopId.
-    // ConcurrentHashMap is used so that can associate a route/stop with a
+    // Keyed by routeStopKey() using routeShortName/stopId so that looking up
+    // predictions doesn't allocate a key. Making the key still takes a
+    // StringTable lookup for each of the IDs.
+    // ConcurrentLongKeyMap is used so that can associate a route/stop with a
     // PredictionsForRouteStop in a threadsafe way. Will always use same
     // PredictionsForRouteStop for a route/stop and synchronize any changes and
     // access to it so if multiple threads are making changes on a route/stop
     // those changes will be coherent and information will not be lost.
-    private final ConcurrentHashMap<MapKey, List<IpcPredictionsForRouteStopDest>> predictionsMap =
-            new ConcurrentHashMap<>(1000);
+    private final ConcurrentLongKeyMap<List<IpcPredictionsForRouteStopDest>> predictionsMap =
+            new ConcurrentLongKeyMap<>(1000);
 
+    // Immutable snapshots of the predictions in predictionsMap, keyed the
+    // same way. Whenever predictions for a route/stop are changed a new
+    // immutable list of snapshots is created while synchronized on the
+    // route/stop and swapped in. Readers only ever access the snapshots so
+    // they don't need to synchronize or clone and always see coherent data.
+    private final ConcurrentLongKeyMap<List<IpcPredictionsForRouteStopDest>> snapshotsMap =
+            new ConcurrentLongKeyMap<>(1000);
+
+    // Incremented whenever any prediction changes so that clients can
+    // determine whether anything has changed since they last looked.
+    private final AtomicLong version = new AtomicLong();
+
+    // Notified whenever the predictions for a route/stop change
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * For being notified when the predictions for a route/stop change, such as for pushing them to
+     * clients instead of clients polling for them.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called by the thread that changed the predictions, so it needs to be quick. The new
+         * predictions can be obtained using getPredictions().
+         *
+         * @param routeShortName
+         * @param stopId
+         */
+        void predictionsChanged(String routeShortName, String stopId);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
 
     /**
      * Returns singleton object for this class. It will use the regular SystemCurrentTime class for
@@ -74,6 +119,18 @@ public class PredictionDataCache {
         return singleton;
     }
 
+    /**
+     * Returns the version of the predictions. It is incremented every time predictions are changed
+     * so a client can determine whether anything changed since it last got predictions simply by
+     * comparing versions. Note that predictions that are limited by how far in the future they are
+     * can of course still change as time passes.
+     *
+     * @return the current version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
     /**
      * Returns the current time. Can be based on the systems clock but when in playback mode will be
      * based on last AVL report.
@@ -85,11 +142,11 @@ public class PredictionDataCache {
     }
 
     /**
-     * Returns copy of the PredictionsForRouteStop object. This is the low-level method that
-     * actually gets the appropriate predictions. A clone is used so that it can be accessed as
-     * needed without worrying about another thread writing to it. The list of predictions should be
-     * relatively small so cloning is not very costly. And this way the caller of this method
-     * doesn't have to synchronize or such.
+     * Returns snapshots of the PredictionsForRouteStop objects. This is the low-level method that
+     * actually gets the appropriate predictions. Immutable snapshots are used so that they can be
+     * accessed as needed without worrying about another thread writing to them. They are only
+     * copied if they need to be limited by maxPredictionsPerStop or by the max prediction time. And
+     * this way the caller of this method doesn't have to synchronize or such.
      *
      * @param routeIdOrShortName route_id or route_short_name, or null to specify all routes for
      *     stop.
@@ -144,13 +201,22 @@ public class PredictionDataCache {
             }
         }
 
-        // Get the predictions from the map
-        List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = getPredictionsForRouteStop(routeShortName, stopId);
+        // Get the snapshots of the predictions from the map
+        List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = getSnapshotsForRouteStop(routeShortName, stopId);
 
         // Remove old predictions so that they are not provided through the
-        // API and such
-        for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
-            preds.removeExpiredPredictions(getSystemTime());
+        // API and such. Only need to touch the actual predictions, and
+        // therefore synchronize, if a snapshot contains an expired prediction.
+        long currentTime = getSystemTime();
+        if (hasExpiredPredictions(predictionsForRouteStop, currentTime)) {
+            Set<String> routeShortNames = new HashSet<>();
+            for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
+                routeShortNames.add(preds.getRouteShortName());
+            }
+            for (String shortName : routeShortNames) {
+                removeExpiredPredictions(shortName, stopId, currentTime);
+            }
+            predictionsForRouteStop = getSnapshotsForRouteStop(routeShortName, stopId);
         }
 
         // Want to limit predictions to max time in future since if using
@@ -176,10 +242,9 @@ public class PredictionDataCache {
         boolean shouldFilterOutEndOfTripPreds =
                 (endOfTripPredFound && nonEndOfTripPredFound && !PredictionConfig.returnArrivalPredictionForEndOfTrip.getValue());
 
-        // Make a copy of the prediction objects so that they cannot be
-        // modified by another thread while they are being accessed. This
-        // is important because when the predictions are modified they are
-        // temporarily not coherent.
+        // The snapshots cannot be modified by another thread so they can
+        // be returned as is. They only need to be copied if they need to be
+        // limited by maxPredictionsPerStop or maxPredictionEpochTime.
         List<IpcPredictionsForRouteStopDest> clonedPredictions = new ArrayList<>(predictionsForRouteStop.size());
         for (IpcPredictionsForRouteStopDest predictions : predictionsForRouteStop) {
             // If supposed to return only predictions for specific direction and
@@ -203,9 +268,9 @@ public class PredictionDataCache {
                 }
             }
 
-            // Direction ID is OK so clone prediction and add to list
+            // Direction ID is OK so limit prediction and add to list
             IpcPredictionsForRouteStopDest clone =
-                    predictions.getClone(maxPredictionsPerStop, maxPredictionEpochTime, distanceToStop);
+                    predictions.getLimitedSnapshot(maxPredictionsPerStop, maxPredictionEpochTime, distanceToStop);
             clonedPredictions.add(clone);
         }
 
@@ -364,14 +429,14 @@ public class PredictionDataCache {
      * @return List of IpcPredictionsForRouteStopDest. Can be empty but will not be null.
      */
     public List<IpcPredictionsForRouteStopDest> getAllPredictions(int maxPredictionsPerStop, long maxSystemTimeForPrediction) {
-        List<IpcPredictionsForRouteStopDest> allPredictions = new ArrayList<>(5000);
+        List<IpcPredictionsForRouteStopDest> allPredictions = new ArrayList<>(snapshotsMap.size());
 
-        // Go through all PredictionsForRouteStop objects
-        Collection<List<IpcPredictionsForRouteStopDest>> predictionsByRouteStop = predictionsMap.values();
-        for (List<IpcPredictionsForRouteStopDest> predictionsForRouteStop : predictionsByRouteStop) {
-            for (IpcPredictionsForRouteStopDest predictionForRouteStopDest : predictionsForRouteStop) {
+        // Go through all snapshots of the PredictionsForRouteStop objects
+        Collection<List<IpcPredictionsForRouteStopDest>> snapshotsByRouteStop = snapshotsMap.values();
+        for (List<IpcPredictionsForRouteStopDest> snapshotsForRouteStop : snapshotsByRouteStop) {
+            for (IpcPredictionsForRouteStopDest snapshot : snapshotsForRouteStop) {
                 IpcPredictionsForRouteStopDest clonedPrediction =
-                        predictionForRouteStopDest.getClone(maxPredictionsPerStop, maxSystemTimeForPrediction);
+                        snapshot.getLimitedSnapshot(maxPredictionsPerStop, maxSystemTimeForPrediction, Double.NaN);
                 // If there were valid predictions then include it in array to
                 // be returned
                 if (!clonedPrediction.getPredictionsForRouteStop().isEmpty()) {
@@ -464,6 +529,7 @@ public class PredictionDataCache {
         // Get the prediction list from the map
         IpcPredictionsForRouteStopDest predictions = getPredictionsForRouteStopDestination(oldPrediction);
         predictions.removePrediction(oldPrediction);
+        publishSnapshot(oldPrediction.getTrip().getRouteShortName(), oldPrediction.getStopId());
     }
 
     /**
@@ -490,51 +556,144 @@ public class PredictionDataCache {
 
         // Update the predictions for the route/stop/destination
         currentPredsForRouteStopDest.updatePredictionsForVehicle(newPredsForVehicleForRouteStopDest, getSystemTime());
+        publishSnapshot(pred.getTrip().getRouteShortName(), pred.getStopId());
     }
 
     /**
-     * Returns List of PredictionsForRouteStop objects associated with the specified route/stop.
-     * Returns a list because there is a separate PredictionsForRouteStop for each destination and
-     * some route directions have multiple destinations.
+     * Creates new immutable snapshots of the predictions for the route/stop and swaps them in so
+     * that readers see the changes. Done while synchronized on the predictions for the route/stop
+     * so that if multiple threads are publishing the last one to publish has the latest data.
      *
-     * @param routeShortName The route short name. Set to null to get predictions for all routes for
-     *     the stop.
+     * @param routeShortName
      * @param stopId
-     * @return list of predictions. Can be empty array but never null.
      */
-    private List<IpcPredictionsForRouteStopDest> getPredictionsForRouteStop(String routeShortName, String stopId) {
-        List<IpcPredictionsForRouteStopDest> predictionsForStop;
+    private void publishSnapshot(String routeShortName, String stopId) {
+        long key = routeStopKey(routeShortName, stopId);
+        List<IpcPredictionsForRouteStopDest> predictionsForRouteStop = predictionsMap.get(key);
+        if (predictionsForRouteStop == null) return;
 
-        // If routeShortName specified then get predictions for that route.
-        // If not then get predictions for all routes that serve the stop.
-        if (routeShortName != null) {
-            // Determine the predictions for all destinations for the route/stop
-            MapKey key = MapKey.create(routeShortName, stopId);
-            predictionsForStop = predictionsMap.get(key);
-
-            if (predictionsForStop == null) {
-                // No predictions so return empty array instead of null
-                predictionsForStop = new ArrayList<>(1);
-
-                // Need to update the predictions map with the
-                // predictionsForStop list for this route/stop so that
-                // when this list of predictions is updated it will be
-                // kept around.
-                predictionsMap.putIfAbsent(key, predictionsForStop);
+        synchronized (predictionsForRouteStop) {
+            List<IpcPredictionsForRouteStopDest> snapshots = new ArrayList<>(predictionsForRouteStop.size());
+            for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
+                snapshots.add(preds.getSnapshot());
             }
-        } else {
-            // No route specified so get predictions for all routes for the stop
-            predictionsForStop = new ArrayList<>();
-            Collection<Route> routes = Core.getInstance().getDbConfig().getRoutesForStop(stopId);
-            for (Route route : routes) {
-                MapKey key = MapKey.create(route.getShortName(), stopId);
-                List<IpcPredictionsForRouteStopDest> predsForRoute = predictionsMap.get(key);
-                if (predsForRoute != null)
-                    predictionsForStop.addAll(predsForRoute);
+            snapshotsMap.put(key, Collections.unmodifiableList(snapshots));
+            version.incrementAndGet();
+        }
+
+        // Notify outside of the lock
+        for (Listener listener : listeners) {
+            try {
+                listener.predictionsChanged(routeShortName, stopId);
+            } catch (RuntimeException e) {
+                logger.error("Exception in predictions listener {}", listener, e);
             }
         }
+    }
 
-        return predictionsForStop;
+    /**
+     * Removes expired predictions for the route/stop. If any were actually removed then new
+     * snapshots are published.
+     *
+     * @param routeShortName
+     * @param stopId
+     * @param currentTime
+     */
+    private void removeExpiredPredictions(String routeShortName, String stopId, long currentTime) {
+        List<IpcPredictionsForRouteStopDest> predictionsForRouteStop =
+                predictionsMap.get(routeStopKey(routeShortName, stopId));
+        if (predictionsForRouteStop == null) return;
+
+        boolean removed = false;
+        synchronized (predictionsForRouteStop) {
+            for (IpcPredictionsForRouteStopDest preds : predictionsForRouteStop) {
+                removed |= preds.removeExpiredPredictions(currentTime);
+            }
+        }
+        if (removed) publishSnapshot(routeShortName, stopId);
+    }
+
+    /**
+     * Returns true if any of the snapshots has a prediction that is before the current time.
+     * Predictions are ordered by time so only need to look at the first one.
+     */
+    private static boolean hasExpiredPredictions(List<IpcPredictionsForRouteStopDest> snapshots, long currentTime) {
+        for (IpcPredictionsForRouteStopDest snapshot : snapshots) {
+            List<IpcPrediction> preds = snapshot.getPredictionsForRouteStop();
+            if (!preds.isEmpty() && preds.get(0).getPredictionTime() < currentTime) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the key for predictionsMap and snapshotsMap. Interns the IDs so is only for the
+     * route/stops of predictions, not for ones from requests.
+     *
+     * @param routeShortName
+     * @param stopId
+     * @return the key
+     */
+    private static long routeStopKey(String routeShortName, String stopId) {
+        return ConcurrentLongKeyMap.packKey(IdInterner.route(routeShortName), IdInterner.stop(stopId));
+    }
+
+    /**
+     * Returns the snapshots for the route/stop without interning the IDs, since they can come from
+     * requests.
+     *
+     * @param routeShortName
+     * @param stopId
+     * @return the snapshots, or null if there are none
+     */
+    private List<IpcPredictionsForRouteStopDest> getSnapshots(String routeShortName, String stopId) {
+        int routeIndex = IdInterner.existingRoute(routeShortName);
+        int stopIndex = IdInterner.existingStop(stopId);
+        if (routeIndex == StringTable.NOT_FOUND || stopIndex == StringTable.NOT_FOUND) return null;
+        return snapshotsMap.get(ConcurrentLongKeyMap.packKey(routeIndex, stopIndex));
+    }
+
+    /**
+     * Returns the immutable snapshots of the predictions for the specified route/stop. There is a
+     * separate snapshot for each destination.
+     *
+     * @param routeShortName The route short name. Set to null to get predictions for all routes for
+     *     the stop.
+     * @param stopId
+     * @return list of snapshots. Can be empty but never null.
+     */
+    private List<IpcPredictionsForRouteStopDest> getSnapshotsForRouteStop(String routeShortName, String stopId) {
+        // If routeShortName specified then get snapshots for that route.
+        // If not then get snapshots for all routes that serve the stop.
+        if (routeShortName != null) {
+            List<IpcPredictionsForRouteStopDest> snapshots = getSnapshots(routeShortName, stopId);
+            return snapshots != null ? snapshots : Collections.emptyList();
+        }
+
+        List<IpcPredictionsForRouteStopDest> snapshotsForStop = new ArrayList<>();
+        Collection<Route> routes = Core.getInstance().getDbConfig().getRoutesForStop(stopId);
+        for (Route route : routes) {
+            List<IpcPredictionsForRouteStopDest> snapshotsForRoute =
+                    getSnapshots(route.getShortName(), stopId);
+            if (snapshotsForRoute != null) snapshotsForStop.addAll(snapshotsForRoute);
+        }
+        return snapshotsForStop;
+    }
+
+    /**
+     * Returns List of PredictionsForRouteStop objects associated with the specified route/stop.
+     * Returns a list because there is a separate PredictionsForRouteStop for each destination and
+     * some route directions have multiple destinations. These are the objects that are actually
+     * modified so should only be used by writers. Readers use the snapshots instead.
+     *
+     * @param routeShortName The route short name
+     * @param stopId
+     * @return list of predictions. Can be empty array but never null.
+     */
+    private List<IpcPredictionsForRouteStopDest> getPredictionsForRouteStop(String routeShortName, String stopId) {
+        // Need to update the predictions map with the list for this
+        // route/stop so that when this list of predictions is updated
+        // it will be kept around.
+        return predictionsMap.computeIfAbsent(routeStopKey(routeShortName, stopId), key -> new ArrayList<>(1));
     }
 
     /**
@@ -59,4 +59,14 @@ public class StopEvents implements Serializable {
         events.add(event);
         Collections.sort(this.events, new IpcArrivalDepartureComparator());
     }
+
+    /**
+     * Returns a copy with the event added, leaving this instance unchanged. Used by the caches so
+     * that an instance that is in a cache is never modified and can be read without locking.
+     */
+    public StopEvents withEvent(IpcArrivalDeparture event) {
+        List<IpcArrivalDeparture> copy = events == null ? new ArrayList<>() : new ArrayList<>(events);
+        copy.add(event);
+        return new StopEvents(copy);
+    }
 }
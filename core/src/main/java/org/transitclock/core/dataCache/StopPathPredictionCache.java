@@ -7,8 +7,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.transitclock.core.dataCache.ehcache.CacheManagerFactory;
 import org.transitclock.domain.structs.PredictionForStopPath;
+import org.transitclock.utils.threading.StripedLocks;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class StopPathPredictionCache {
@@ -17,6 +19,7 @@ public class StopPathPredictionCache {
     private static final Logger logger = LoggerFactory.getLogger(StopPathPredictionCache.class);
 
     private final Cache<StopPathCacheKey, StopPredictions> cache;
+    private final StripedLocks locks = new StripedLocks(64);
 
     public static StopPathPredictionCache getInstance() {
         return singleton;
@@ -32,7 +35,7 @@ public class StopPathPredictionCache {
     }
 
     @SuppressWarnings("unchecked")
-    public synchronized List<PredictionForStopPath> getPredictions(StopPathCacheKey key) {
+    public List<PredictionForStopPath> getPredictions(StopPathCacheKey key) {
 
         StopPredictions result = cache.get(key);
         logCache(logger);
@@ -46,21 +49,19 @@ public class StopPathPredictionCache {
     }
 
     @SuppressWarnings("unchecked")
-    public synchronized void putPrediction(StopPathCacheKey key, PredictionForStopPath prediction) {
+    public void putPrediction(StopPathCacheKey key, PredictionForStopPath prediction) {
+        // Copy on write under the lock for the key, so that puts for other
+        // stop paths don't wait and the list returned by getPredictions()
+        // is never modified
+        synchronized (locks.lockFor(key)) {
+            List<PredictionForStopPath> list = new ArrayList<>();
+            StopPredictions element = cache.get(key);
+            if (element != null && element.getPredictions() != null) {
+                list.addAll(element.getPredictions());
+            }
+            list.add(prediction);
 
-        List<PredictionForStopPath> list;
-        StopPredictions element = cache.get(key);
-
-        if (element != null && element.getPredictions() != null) {
-            list = element.getPredictions();
-            cache.remove(key);
-        } else {
-            list = new ArrayList<>();
+            cache.put(key, new StopPredictions(Collections.unmodifiableList(list)));
         }
-        list.add(prediction);
-
-        element.setPredictions(list);
-
-        cache.put(key, element);
     }
 }
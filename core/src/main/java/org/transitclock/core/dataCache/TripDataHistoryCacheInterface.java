@@ -4,6 +4,7 @@ package org.transitclock.core.dataCache;
 import java.util.Date;
 import java.util.List;
 import org.hibernate.Session;
+import org.transitclock.core.TravelTimeDetails;
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.service.dto.IpcArrivalDeparture;
 
@@ -22,4 +23,27 @@ public interface TripDataHistoryCacheInterface {
             List<IpcArrivalDeparture> arrivalDepartures, IpcArrivalDeparture current);
 
     List<TripKey> getKeys();
+
+    /**
+     * Returns the arrival at the stop path for the trip along with the departure from the previous
+     * stop path so that the travel time for the stop path can be determined. Implementations that
+     * don't store IpcArrivalDeparture objects can override this to avoid creating the whole trip
+     * history.
+     *
+     * @param tripKey The trip
+     * @param stopPathIndex The stop path
+     * @return the departure and arrival, or null if not both available
+     */
+    default TravelTimeDetails getTravelTimeDetails(TripKey tripKey, int stopPathIndex) {
+        List<IpcArrivalDeparture> results = getTripHistory(tripKey);
+        if (results == null) return null;
+
+        for (IpcArrivalDeparture arrival : results) {
+            if (arrival.isArrival() && arrival.getStopPathIndex() == stopPathIndex) {
+                IpcArrivalDeparture departure = findPreviousDepartureEvent(results, arrival);
+                return departure != null ? new TravelTimeDetails(departure, arrival) : null;
+            }
+        }
+        return null;
+    }
 }
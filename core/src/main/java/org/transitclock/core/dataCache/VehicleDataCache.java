@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.HibernateException;
@@ -76,6 +77,31 @@ public class VehicleDataCache {
     // obsolete and shouldn't be displayed.
     private static final int MAX_AGE_MSEC = 15 * Time.MS_PER_MIN;
 
+    // Notified whenever a vehicle is updated
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * For being notified when a vehicle changes, such as for pushing vehicle info to clients
+     * instead of clients polling for it.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called by the thread that updated the vehicle, so it needs to be quick.
+         *
+         * @param vehicle The new vehicle info
+         */
+        void vehicleChanged(IpcVehicleComplete vehicle);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
 
     /**
      * Gets the singleton instance of this class.
@@ -478,6 +504,14 @@ public class VehicleDataCache {
         updateVehiclesByRouteMap(originalVehicle, vehicle);
         updateVehicleIdsByBlockMap(originalVehicle, vehicle);
         updateVehiclesMap(vehicle);
+
+        for (Listener listener : listeners) {
+            try {
+                listener.vehicleChanged(vehicle);
+            } catch (RuntimeException e) {
+                logger.error("Exception in vehicle listener {}", listener, e);
+            }
+        }
     }
 
     /**
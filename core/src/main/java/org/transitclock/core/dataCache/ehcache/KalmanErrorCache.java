@@ -7,6 +7,7 @@ import org.transitclock.core.Indices;
 import org.transitclock.core.dataCache.ErrorCache;
 import org.transitclock.core.dataCache.KalmanError;
 import org.transitclock.core.dataCache.KalmanErrorCacheKey;
+import org.transitclock.utils.threading.StripedLocks;
 
 import java.util.List;
 
@@ -16,6 +17,7 @@ import java.util.List;
 public class KalmanErrorCache implements ErrorCache {
     private static final String cacheName = "KalmanErrorCache";
     private final Cache<KalmanErrorCacheKey, KalmanError> cache;
+    private final StripedLocks locks = new StripedLocks(64);
 
     /**
      * Gets the singleton instance of this class.
@@ -27,12 +29,17 @@ public class KalmanErrorCache implements ErrorCache {
         cache = cm.getCache(cacheName, KalmanErrorCacheKey.class, KalmanError.class);
     }
 
+    /** For tests, which use a heap only cache instead of the one configured in ehcache.xml. */
+    KalmanErrorCache(Cache<KalmanErrorCacheKey, KalmanError> cache) {
+        this.cache = cache;
+    }
+
     /* (non-Javadoc)
      * @see org.transitime.core.dataCache.ErrorCache#getErrorValue(org.transitime.core.Indices)
      */
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized KalmanError getErrorValue(Indices indices) {
+    public KalmanError getErrorValue(Indices indices) {
 
         KalmanErrorCacheKey key = new KalmanErrorCacheKey(indices);
 
@@ -46,7 +53,7 @@ public class KalmanErrorCache implements ErrorCache {
      */
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized KalmanError getErrorValue(KalmanErrorCacheKey key) {
+    public KalmanError getErrorValue(KalmanErrorCacheKey key) {
 
         KalmanError result = cache.get(key);
 
@@ -57,7 +64,7 @@ public class KalmanErrorCache implements ErrorCache {
      * @see org.transitime.core.dataCache.ErrorCache#putErrorValue(org.transitime.core.Indices, java.lang.Double)
      */
     @Override
-    public synchronized void putErrorValue(Indices indices, Double value) {
+    public void putErrorValue(Indices indices, Double value) {
 
         KalmanErrorCacheKey key = new KalmanErrorCacheKey(indices);
         putErrorValue(key, value);
@@ -65,16 +72,20 @@ public class KalmanErrorCache implements ErrorCache {
 
     @Override
     public void putErrorValue(KalmanErrorCacheKey key, Double value) {
-
-        KalmanError error = cache.get(key);
-
-        if (error == null) {
-            error = new KalmanError(value);
-        } else {
-            error.setError(value);
+        // Copy on write under the lock for the key so that the update count
+        // is not lost when the same stop path is updated concurrently, and
+        // so that readers don't need to lock
+        synchronized (locks.lockFor(key)) {
+            KalmanError error = cache.get(key);
+
+            if (error == null) {
+                error = new KalmanError(value);
+            } else {
+                error = error.withError(value);
+            }
+
+            cache.put(key, error);
         }
-
-        cache.put(key, error);
     }
 
     @Override
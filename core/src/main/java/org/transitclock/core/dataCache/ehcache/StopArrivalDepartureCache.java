@@ -10,7 +10,9 @@ import org.transitclock.core.dataCache.*;
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.domain.structs.QArrivalDeparture;
 import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.threading.StripedLocks;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
@@ -29,19 +31,25 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
     private static final String cacheByStop = "arrivalDeparturesByStop";
 
     private final Cache<StopArrivalDepartureCacheKey, StopEvents> cache;
+    private final StripedLocks locks = new StripedLocks(64);
 
     public StopArrivalDepartureCache() {
         CacheManager cm = CacheManagerFactory.getInstance();
         cache = cm.getCache(cacheByStop, StopArrivalDepartureCacheKey.class, StopEvents.class);
     }
 
+    /** For tests, which use a heap only cache instead of the one configured in ehcache.xml. */
+    StopArrivalDepartureCache(Cache<StopArrivalDepartureCacheKey, StopEvents> cache) {
+        this.cache = cache;
+    }
+
 
     /* (non-Javadoc)
      * @see org.transitime.core.dataCache.ehcache.StopArrivalDepartureCacheInterface#getStopHistory(org.transitime.core.dataCache.StopArrivalDepartureCacheKey)
      */
 
     @SuppressWarnings("unchecked")
-    public synchronized List<IpcArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
+    public List<IpcArrivalDeparture> getStopHistory(StopArrivalDepartureCacheKey key) {
         Calendar date = Calendar.getInstance();
         date.setTime(key.getDate());
 
@@ -52,15 +60,17 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
         key.setDate(date.getTime());
         StopEvents result = cache.get(key);
 
-        if (result != null) {
-            return result.getEvents();
+        if (result != null && result.getEvents() != null) {
+            // A copy since the caller might sort it, and the events in
+            // the cache are shared with other threads
+            return new ArrayList<>(result.getEvents());
         } else {
             return null;
         }
     }
 
 
-    public synchronized StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+    public StopArrivalDepartureCacheKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
 
         logger.debug("Putting :{} in StopArrivalDepartureCache cache.", arrivalDeparture.toString());
 
@@ -75,20 +85,23 @@ public class StopArrivalDepartureCache extends StopArrivalDepartureCacheInterfac
             StopArrivalDepartureCacheKey key =
                     new StopArrivalDepartureCacheKey(arrivalDeparture.getStop().getId(), date.getTime());
 
-            StopEvents element = cache.get(key);
-
-            if (element == null) {
-                element = new StopEvents();
-            }
-
-            try {
-                element.addEvent(new IpcArrivalDeparture(arrivalDeparture));
-            } catch (Exception e) {
-                logger.error("Error adding {} event to StopArrivalDepartureCache.", arrivalDeparture, e);
+            // Copy on write under the lock for the key, so that puts for
+            // other stops don't wait and readers never see a list that is
+            // being modified
+            synchronized (locks.lockFor(key)) {
+                StopEvents element = cache.get(key);
+
+                if (element == null) {
+                    element = new StopEvents();
+                }
+
+                try {
+                    cache.put(key, element.withEvent(new IpcArrivalDeparture(arrivalDeparture)));
+                } catch (Exception e) {
+                    logger.error("Error adding {} event to StopArrivalDepartureCache.", arrivalDeparture, e);
+                }
             }
 
-            cache.put(key, element);
-
             return key;
         } else {
             return null;
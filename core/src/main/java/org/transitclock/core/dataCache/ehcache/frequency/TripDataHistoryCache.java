@@ -19,6 +19,7 @@ import org.transitclock.domain.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
 import org.transitclock.gtfs.GtfsData;
 import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.threading.StripedLocks;
 
 import java.net.URL;
 import java.util.*;
@@ -37,6 +38,7 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
     private static final boolean debug = false;
     private static final String cacheByTrip = "arrivalDeparturesByTrip";
     private final Cache<TripKey, TripEvents> cache;
+    private final StripedLocks locks = new StripedLocks(64);
 
     public TripDataHistoryCache() {
         CacheManager cm = CacheManagerFactory.getInstance();
@@ -57,7 +59,9 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
 
         if (result != null) {
             logger.debug("Found TripDataHistoryCache cache element using key {}.", tripKey);
-            return result.getEvents();
+            // A copy since the caller might sort it, and the events in
+            // the cache are shared with other threads
+            return result.getEvents() != null ? new ArrayList<>(result.getEvents()) : null;
         } else {
             return null;
         }
@@ -67,7 +71,7 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
      * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#putArrivalDeparture(org.transitclock.db.structs.ArrivalDeparture)
      */
     @Override
-    public synchronized TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+    public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
 
         Block block = null;
         if (arrivalDeparture.getBlock() == null) {
@@ -104,26 +108,21 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
 
                     logger.debug("Putting :{} in TripDataHistoryCache cache using key {}.", arrivalDeparture, tripKey);
 
-                    List<IpcArrivalDeparture> list;
-
-                    TripEvents element = cache.get(tripKey);
-
-                    if (element != null && element.getEvents() != null) {
-                        list = element.getEvents();
-                        cache.remove(tripKey);
-                    } else {
-                        list = new ArrayList<>();
+                    // Copy on write under the lock for the key, so that puts for
+                    // other trips don't wait and readers never see a list that
+                    // is being modified
+                    synchronized (locks.lockFor(tripKey)) {
+                        TripEvents element = cache.get(tripKey);
+                        if (element == null) {
+                            element = new TripEvents();
+                        }
+
+                        try {
+                            cache.put(tripKey, element.withEvent(new IpcArrivalDeparture(arrivalDeparture)));
+                        } catch (Exception e) {
+                            logger.error("Error adding {} event to TripDataHistoryCache.", arrivalDeparture, e);
+                        }
                     }
-
-                    try {
-                        list.add(new IpcArrivalDeparture(arrivalDeparture));
-                    } catch (Exception e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                    element.setEvents(list);
-
-                    cache.put(tripKey, element);
                 }
             } else {
                 logger.error(
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Supplier;
 
 import lombok.extern.slf4j.Slf4j;
 import org.ehcache.Cache;
@@ -22,6 +23,7 @@ import org.transitclock.core.predictiongenerator.scheduled.dwell.DwellTimeModelF
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.domain.structs.Headway;
 import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.threading.StripedLocks;
 
 /**
  * @author scrudden This stores DwellModel instances in the cache. TODO We should abstract the
@@ -33,28 +35,38 @@ public class DwellTimeModelCache implements org.transitclock.core.dataCache.Dwel
     private static final String cacheName = "dwellTimeModelCache";
 
     private final Cache<StopPathCacheKey, DwellModel> cache;
+    private final Supplier<DwellModel> modelFactory;
+    private final StripedLocks locks = new StripedLocks(64);
 
     public DwellTimeModelCache() throws IOException {
         CacheManager cm = CacheManagerFactory.getInstance();
         cache = cm.getCache(cacheName, StopPathCacheKey.class, DwellModel.class);
+        modelFactory = DwellTimeModelFactory::getInstance;
+    }
+
+    /**
+     * For tests, which use a heap only cache instead of the one configured in ehcache.xml, and
+     * their own model.
+     */
+    DwellTimeModelCache(Cache<StopPathCacheKey, DwellModel> cache, Supplier<DwellModel> modelFactory) {
+        this.cache = cache;
+        this.modelFactory = modelFactory;
     }
 
     @Override
-    public synchronized void addSample(ArrivalDeparture event, Headway headway, long dwellTime) {
+    public void addSample(ArrivalDeparture event, Headway headway, long dwellTime) {
 
         StopPathCacheKey key = new StopPathCacheKey(headway.getTripId(), event.getStopPathIndex(), false);
 
-        DwellModel model = null;
-
-        if (cache.get(key) != null) {
-            model = cache.get(key);
-
+        // Only samples for the same stop path need to be serialized
+        synchronized (locks.lockFor(key)) {
+            DwellModel model = cache.get(key);
+            if (model == null) {
+                model = modelFactory.get();
+            }
             model.putSample((int) dwellTime, (int) headway.getHeadway(), null);
-        } else {
-            model = DwellTimeModelFactory.getInstance();
+            cache.put(key, model);
         }
-        model.putSample((int) dwellTime, (int) headway.getHeadway(), null);
-        cache.put(key, model);
     }
     private static final Integer minScheduleAdherence = PredictionConfig.minSceheduleAdherence.getValue();
     private static final Integer maxScheduleAdherence = PredictionConfig.maxSceheduleAdherence.getValue();
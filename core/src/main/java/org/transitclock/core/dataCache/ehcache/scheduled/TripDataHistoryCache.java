@@ -13,11 +13,12 @@ import org.transitclock.core.dataCache.ehcache.CacheManagerFactory;
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.domain.structs.QArrivalDeparture;
 import org.transitclock.domain.structs.Trip;
-import org.transitclock.gtfs.DbConfig;
 import org.transitclock.gtfs.GtfsData;
 import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.threading.StripedLocks;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
@@ -33,20 +34,33 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
     private static final boolean debug = false;
     private static final String cacheByTrip = "arrivalDeparturesByTrip";
     private final Cache<TripKey, TripEvents> cache;
+    private final StripedLocks locks = new StripedLocks(64);
 
     public TripDataHistoryCache() {
         CacheManager cm = CacheManagerFactory.getInstance();
         cache = cm.getCache(cacheByTrip, TripKey.class, TripEvents.class);
     }
 
+    /** For tests, which use a heap only cache instead of the one configured in ehcache.xml. */
+    TripDataHistoryCache(Cache<TripKey, TripEvents> cache) {
+        this.cache = cache;
+    }
+
+    /** Returns the trip from the current config. Overridden by tests since they have no Core. */
+    Trip getTrip(String tripId) {
+        return Core.getInstance().getDbConfig().getTrip(tripId);
+    }
+
     /* (non-Javadoc)
      * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#getTripHistory(org.transitclock.core.dataCache.TripKey)
      */
     @Override
     public List<IpcArrivalDeparture> getTripHistory(TripKey tripKey) {
         TripEvents result = cache.get(tripKey);
-        if (result != null) {
-            return result.getEvents();
+        if (result != null && result.getEvents() != null) {
+            // A copy since the caller might sort it, and the events in
+            // the cache are shared with other threads
+            return new ArrayList<>(result.getEvents());
         }
 
         return null;
@@ -56,7 +70,7 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
      * @see org.transitclock.core.dataCache.TripDataHistoryCacheInterface#putArrivalDeparture(org.transitclock.db.structs.ArrivalDeparture)
      */
     @Override
-    public synchronized TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+    public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
 
         logger.debug("Putting :{} in TripDataHistoryCache cache.", arrivalDeparture.toString());
         /* just put todays time in for last three days to aid development. This means it will kick in in 1 days rather than 3. Perhaps be a good way to start rather than using default transiTime method but I doubt it. */
@@ -69,27 +83,27 @@ public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
 
             nearestDay = DateUtils.addDays(nearestDay, i * -1);
 
-            DbConfig dbConfig = Core.getInstance().getDbConfig();
-
-            Trip trip = dbConfig.getTrip(arrivalDeparture.getTripId());
+            Trip trip = getTrip(arrivalDeparture.getTripId());
 
             if (trip != null) {
 
                 tripKey = new TripKey(arrivalDeparture.getTripId(), nearestDay, trip.getStartTime());
 
-                TripEvents result = cache.get(tripKey);
-                if (result == null) {
-                    result = new TripEvents();
+                // Copy on write under the lock for the key, so that puts for
+                // other trips don't wait and readers never see a list that is
+                // being modified
+                synchronized (locks.lockFor(tripKey)) {
+                    TripEvents result = cache.get(tripKey);
+                    if (result == null) {
+                        result = new TripEvents();
+                    }
+
+                    try {
+                        cache.put(tripKey, result.withEvent(new IpcArrivalDeparture(arrivalDeparture)));
+                    } catch (Exception e) {
+                        logger.error("Error adding {} event to TripDataHistoryCache.", arrivalDeparture, e);
+                    }
                 }
-
-                try {
-                    result.addEvent(new IpcArrivalDeparture(arrivalDeparture));
-
-                } catch (Exception e) {
-                    logger.error("Error adding {} event to TripDataHistoryCache.", arrivalDeparture, e);
-                }
-
-                cache.put(tripKey, result);
             }
         }
         return tripKey;
@@ -108,6 +108,33 @@ public class FrequencyBasedHistoricalAverageCache {
         m.get(new StopPathKey(key)).put(key.getStartTime(), average);
     }
 
+    /**
+     * Returns all the averages, for writing them to a snapshot.
+     *
+     * @return map of the averages keyed by stop path and start time
+     */
+    public synchronized Map<StopPathCacheKey, HistoricalAverage> getAverages() {
+        Map<StopPathCacheKey, HistoricalAverage> averages = new HashMap<>();
+        for (Map.Entry<StopPathKey, TreeMap<Long, HistoricalAverage>> entry : m.entrySet()) {
+            StopPathKey key = entry.getKey();
+            for (Map.Entry<Long, HistoricalAverage> average : entry.getValue().entrySet()) {
+                averages.put(
+                        new StopPathCacheKey(key.tripId, key.stopPathIndex, key.travelTime, average.getKey()),
+                        average.getValue());
+            }
+        }
+        return averages;
+    }
+
+    /**
+     * Puts the averages read from a snapshot into the cache.
+     *
+     * @param averages As returned by getAverages()
+     */
+    public synchronized void putAverages(Map<StopPathCacheKey, HistoricalAverage> averages) {
+        averages.forEach(this::putAverage);
+    }
+
     public synchronized void putArrivalDeparture(ArrivalDeparture arrivalDeparture) throws Exception {
         DbConfig dbConfig = Core.getInstance().getDbConfig();
 
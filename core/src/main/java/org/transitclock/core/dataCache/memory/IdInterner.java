@@ -0,0 +1,96 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache.memory;
+
+import java.util.Collection;
+import org.transitclock.domain.structs.Route;
+import org.transitclock.domain.structs.Stop;
+import org.transitclock.domain.structs.Trip;
+
+/**
+ * Interns route, stop, trip, and vehicle IDs as dense ints so that the caches that are accessed for
+ * every prediction can use primitive keys, such as two of the ints packed into a long for a
+ * ConcurrentLongKeyMap, instead of allocating a MapKey for every access.
+ *
+ * <p>The IDs from the configuration are interned when it is read so that on the hot path interning
+ * is just a lookup. IDs that aren't in the configuration, such as for vehicles, are added when first
+ * seen. The indices are only valid for the running process so they must not be persisted.
+ */
+public final class IdInterner {
+
+    // Route IDs and route short names share a table since both are used
+    // to identify routes
+    private static final StringTable routes = new StringTable();
+    private static final StringTable stops = new StringTable();
+    private static final StringTable trips = new StringTable();
+    private static final StringTable vehicles = new StringTable();
+
+    private IdInterner() {}
+
+    /**
+     * Interns the IDs of the configuration.
+     *
+     * @param routeList
+     * @param stopList
+     * @param tripList Can be null if the trips are not read in up front
+     */
+    public static void internConfig(Collection<Route> routeList, Collection<Stop> stopList, Collection<Trip> tripList) {
+        for (Route route : routeList) {
+            routes.intern(route.getId());
+            routes.intern(route.getShortName());
+        }
+        for (Stop stop : stopList) stops.intern(stop.getId());
+        if (tripList != null) for (Trip trip : tripList) trips.intern(trip.getId());
+    }
+
+    /**
+     * @param routeIdOrShortName
+     * @return index of the route ID or route short name, or StringTable.NULL_INDEX if null
+     */
+    public static int route(String routeIdOrShortName) {
+        return routes.intern(routeIdOrShortName);
+    }
+
+    /**
+     * Same as route() but doesn't add the route to the table, for IDs from requests.
+     *
+     * @param routeIdOrShortName
+     * @return index of the route, StringTable.NULL_INDEX if null, or StringTable.NOT_FOUND
+     */
+    public static int existingRoute(String routeIdOrShortName) {
+        return routes.indexOf(routeIdOrShortName);
+    }
+
+    /**
+     * @param stopId
+     * @return index of the stop ID, or StringTable.NULL_INDEX if null
+     */
+    public static int stop(String stopId) {
+        return stops.intern(stopId);
+    }
+
+    /**
+     * Same as stop() but doesn't add the stop to the table, for IDs from requests.
+     *
+     * @param stopId
+     * @return index of the stop, StringTable.NULL_INDEX if null, or StringTable.NOT_FOUND
+     */
+    public static int existingStop(String stopId) {
+        return stops.indexOf(stopId);
+    }
+
+    /**
+     * @param tripId
+     * @return index of the trip ID, or StringTable.NULL_INDEX if null
+     */
+    public static int trip(String tripId) {
+        return trips.intern(tripId);
+    }
+
+    /**
+     * @param vehicleId
+     * @return index of the vehicle ID, or StringTable.NULL_INDEX if null
+     */
+    public static int vehicle(String vehicleId) {
+        return vehicles.intern(vehicleId);
+    }
+}
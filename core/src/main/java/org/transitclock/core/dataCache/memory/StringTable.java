@@ -0,0 +1,89 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache.memory;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns strings such as vehicle and stop IDs as small ints so that they can be stored in
+ * primitive arrays. The number of distinct IDs is small, a few thousand for even a large agency, so
+ * the table simply grows and entries are never removed.
+ *
+ * <p>Lookups by string use a ConcurrentHashMap. Lookups by index read an array that is only ever
+ * replaced by a larger copy, so they don't need to synchronize.
+ */
+public class StringTable implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Index used for null strings
+    public static final int NULL_INDEX = -1;
+
+    // Returned by indexOf() for strings not in the table
+    public static final int NOT_FOUND = -2;
+
+    private final ConcurrentHashMap<String, Integer> indexByString = new ConcurrentHashMap<>();
+    private volatile String[] strings = new String[256];
+    private int size;
+
+    /**
+     * Returns the index for the string, adding it to the table if not already there.
+     *
+     * @param s The string. Can be null.
+     * @return index of the string, or NULL_INDEX if s is null
+     */
+    public int intern(String s) {
+        if (s == null) return NULL_INDEX;
+        Integer index = indexByString.get(s);
+        if (index != null) return index;
+        return add(s);
+    }
+
+    /**
+     * Returns the index for the string without adding it to the table. For strings that come from
+     * requests, which shouldn't make the table grow.
+     *
+     * @param s The string. Can be null.
+     * @return index of the string, NULL_INDEX if s is null, or NOT_FOUND if not in the table
+     */
+    public int indexOf(String s) {
+        if (s == null) return NULL_INDEX;
+        Integer index = indexByString.get(s);
+        return index != null ? index : NOT_FOUND;
+    }
+
+    private synchronized int add(String s) {
+        // Might have been added by another thread while waiting
+        Integer index = indexByString.get(s);
+        if (index != null) return index;
+
+        if (size == strings.length) strings = Arrays.copyOf(strings, size * 2);
+        strings[size] = s;
+        // Only make index available once the string is in the array
+        indexByString.put(s, size);
+        return size++;
+    }
+
+    /**
+     * @param index Index as returned by intern()
+     * @return the string for the index, or null if index is NULL_INDEX
+     */
+    public String get(int index) {
+        return index == NULL_INDEX ? null : strings[index];
+    }
+
+    // Synchronized so that the array and the map are consistent when the
+    // table is written to a snapshot while strings are being added
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /**
+     * @return number of strings in the table
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,216 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache.memory;
+
+import com.querydsl.jpa.impl.JPAQuery;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.Session;
+import org.transitclock.Core;
+import org.transitclock.config.data.CoreConfig;
+import org.transitclock.config.data.PredictionConfig;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.core.dataCache.IpcArrivalDepartureComparator;
+import org.transitclock.core.dataCache.TripDataHistoryCacheInterface;
+import org.transitclock.core.dataCache.TripKey;
+import org.transitclock.core.dataCache.frequency.FrequencyBasedHistoricalAverageCache;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.QArrivalDeparture;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.gtfs.GtfsData;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the historical arrival departure data for trips in memory, in a columnar form, instead of
+ * as lists of IpcArrivalDeparture objects in Ehcache. The data for each trip for each day is a
+ * TripHistory that stores the events in primitive arrays with the IDs interned. This takes a
+ * fraction of the memory and, more importantly, getTravelTimeDetails() used by the Kalman filter
+ * for every stop path prediction doesn't need to deserialize or even create the trip history.
+ *
+ * <p>The data is partitioned by service day so that whole days that are too old to be used by the
+ * Kalman filter, as specified by transitclock.prediction.data.kalman.maxdaystoseach, can simply be
+ * dropped. Since the data is in memory it is not persisted across restarts. Instead the cache is
+ * populated from the db at startup, as it is for the Ehcache based caches, or restored from a
+ * CacheSnapshot if transitclock.core.snapshotDirectory is set.
+ *
+ * <p>Frequency based trips are keyed by the start time of the frequency bucket, as for the
+ * frequency based Ehcache cache, and scheduled trips by the start time of the trip, as for the
+ * scheduled one. Therefore this cache can be used for either type of service.
+ */
+@Slf4j
+public class TripDataHistoryCache implements TripDataHistoryCacheInterface {
+    // Replaced when the cache is restored from a snapshot
+    private volatile StringTable strings = new StringTable();
+
+    // The trip histories, by service day
+    private final ConcurrentHashMap<Date, ConcurrentHashMap<TripKey, TripHistory>> historiesByDay =
+            new ConcurrentHashMap<>();
+
+    @Override
+    public List<IpcArrivalDeparture> getTripHistory(TripKey tripKey) {
+        TripHistory history = getHistory(tripKey);
+        return history != null ? history.getEvents() : null;
+    }
+
+    @Override
+    public TravelTimeDetails getTravelTimeDetails(TripKey tripKey, int stopPathIndex) {
+        TripHistory history = getHistory(tripKey);
+        return history != null ? history.getTravelTimeDetails(stopPathIndex) : null;
+    }
+
+    private TripHistory getHistory(TripKey tripKey) {
+        Map<TripKey, TripHistory> histories = historiesByDay.get(tripKey.getTripStartDate());
+        return histories != null ? histories.get(tripKey) : null;
+    }
+
+    @Override
+    public TripKey putArrivalDeparture(ArrivalDeparture arrivalDeparture) {
+        Trip trip = Core.getInstance().getDbConfig().getTrip(arrivalDeparture.getTripId());
+        if (trip == null) return null;
+
+        Date nearestDay = DateUtils.truncate(new Date(arrivalDeparture.getTime()), Calendar.DAY_OF_MONTH);
+
+        // Frequency based trips are keyed by the start of the frequency
+        // bucket and scheduled trips by the start time of the trip
+        Integer startTime = trip.getStartTime();
+        if (arrivalDeparture.getFreqStartTime() != null) {
+            int time = FrequencyBasedHistoricalAverageCache.secondsFromMidnight(arrivalDeparture.getFreqStartTime(), 2);
+            startTime = FrequencyBasedHistoricalAverageCache.round(time, CoreConfig.getCacheIncrementsForFrequencyService());
+        }
+        TripKey tripKey = new TripKey(arrivalDeparture.getTripId(), nearestDay, startTime);
+
+        logger.debug("Putting :{} in TripDataHistoryCache cache using key {}.", arrivalDeparture, tripKey);
+
+        // No lock needed. The maps are concurrent and each TripHistory
+        // synchronizes on itself, so only puts for the same trip contend.
+        ConcurrentHashMap<TripKey, TripHistory> histories = historiesByDay.get(nearestDay);
+        if (histories == null) {
+            ConcurrentHashMap<TripKey, TripHistory> created = new ConcurrentHashMap<>();
+            histories = historiesByDay.putIfAbsent(nearestDay, created);
+            if (histories == null) {
+                histories = created;
+                removeOldDays(nearestDay);
+            }
+        }
+
+        try {
+            histories
+                    .computeIfAbsent(tripKey, key -> new TripHistory(key.getTripId(), strings))
+                    .add(new IpcArrivalDeparture(arrivalDeparture));
+        } catch (Exception e) {
+            logger.error("Error adding {} event to TripDataHistoryCache.", arrivalDeparture, e);
+        }
+        return tripKey;
+    }
+
+    /** Drops the days that are too old to be used. */
+    private void removeOldDays(Date newestDay) {
+        Date oldestDay = DateUtils.addDays(newestDay, -PredictionConfig.maxKalmanDaysToSearch.getValue() - 1);
+        historiesByDay.keySet().removeIf(day -> {
+            if (day.before(oldestDay)) {
+                logger.info("Removing trip history for {} from TripDataHistoryCache", day);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    @Override
+    public void populateCacheFromDb(Session session, Date startDate, Date endDate) {
+        JPAQuery<ArrivalDeparture> query = new JPAQuery<>(session);
+        var qentity = QArrivalDeparture.arrivalDeparture;
+        List<ArrivalDeparture> results = query.from(qentity)
+                .where(qentity.time.between(startDate, endDate))
+                .fetch();
+
+        for (ArrivalDeparture result : results) {
+            // TODO this might be better done in the database.
+            if (GtfsData.routeNotFiltered(result.getRouteId())) {
+                putArrivalDeparture(result);
+            }
+        }
+        logger.info("TripDataHistoryCache has {} distinct IDs after populating {} events from db",
+                strings.size(), results.size());
+    }
+
+    @Override
+    public IpcArrivalDeparture findPreviousArrivalEvent(
+            List<IpcArrivalDeparture> arrivalDepartures, IpcArrivalDeparture current) {
+        if (arrivalDepartures == null) return null;
+        arrivalDepartures.sort(new IpcArrivalDepartureComparator());
+        for (IpcArrivalDeparture tocheck : arrivalDepartures) {
+            if (tocheck.getStopId().equals(current.getStopId()) && (current.isDeparture() && tocheck.isArrival())) {
+                return tocheck;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public IpcArrivalDeparture findPreviousDepartureEvent(
+            List<IpcArrivalDeparture> arrivalDepartures, IpcArrivalDeparture current) {
+        if (arrivalDepartures == null) return null;
+        arrivalDepartures.sort(new IpcArrivalDepartureComparator());
+        for (IpcArrivalDeparture tocheck : arrivalDepartures) {
+            if (tocheck.getStopPathIndex() == (current.getStopPathIndex() - 1)
+                    && (current.isArrival() && tocheck.isDeparture())
+                    && Objects.equals(current.getFreqStartTime(), tocheck.getFreqStartTime())) {
+                return tocheck;
+            }
+        }
+        return null;
+    }
+
+    /** The contents of the cache, as written to a snapshot. */
+    public static class Contents implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final StringTable strings;
+        private final Map<Date, ConcurrentHashMap<TripKey, TripHistory>> historiesByDay;
+
+        private Contents(StringTable strings, Map<Date, ConcurrentHashMap<TripKey, TripHistory>> historiesByDay) {
+            this.strings = strings;
+            this.historiesByDay = historiesByDay;
+        }
+    }
+
+    /**
+     * Returns the contents of the cache for writing them to a snapshot. The trip histories are
+     * not copied, but each one is written consistently even if events are added while the snapshot
+     * is being written.
+     *
+     * @return the contents
+     */
+    public Contents getContents() {
+        return new Contents(strings, new HashMap<>(historiesByDay));
+    }
+
+    /**
+     * Replaces the contents of the cache with those read from a snapshot.
+     *
+     * @param contents As returned by getContents()
+     */
+    public synchronized void restoreContents(Contents contents) {
+        strings = contents.strings;
+        historiesByDay.clear();
+        historiesByDay.putAll(contents.historiesByDay);
+        logger.info("Restored TripDataHistoryCache with {} days and {} distinct IDs from snapshot",
+                historiesByDay.size(), strings.size());
+    }
+
+    @Override
+    public List<TripKey> getKeys() {
+        List<TripKey> keys = new ArrayList<>();
+        for (Map<TripKey, TripHistory> histories : historiesByDay.values()) keys.addAll(histories.keySet());
+        return keys;
+    }
+}
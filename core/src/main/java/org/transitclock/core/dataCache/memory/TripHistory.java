@@ -0,0 +1,198 @@
+/* (C)2023 */
+package org.transitclock.core.dataCache.memory;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.transitclock.core.TemporalDifference;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+
+/**
+ * The arrivals and departures for a single trip on a single day, stored column by column in
+ * primitive arrays instead of as a list of IpcArrivalDeparture objects. IDs are interned into a
+ * shared StringTable. Events are kept in order of increasing time. Since events are nearly always
+ * added in time order adding one is usually just an append.
+ *
+ * <p>The point is that the travel time to a stop path, which is what the Kalman filter and the
+ * historical averages need, can be found by scanning a couple of int arrays instead of
+ * deserializing and searching a list of objects.
+ */
+public class TripHistory implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Used in the long columns for null
+    private static final long NULL_TIME = Long.MIN_VALUE;
+    // Used for schedule adherence for null
+    private static final int NULL_ADHERENCE = Integer.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final String tripId;
+    private final StringTable strings;
+
+    private int size;
+    private long[] times = new long[INITIAL_CAPACITY];
+    private long[] avlTimes = new long[INITIAL_CAPACITY];
+    private long[] freqStartTimes = new long[INITIAL_CAPACITY];
+    private int[] scheduleAdherences = new int[INITIAL_CAPACITY];
+    private int[] stopPathIndices = new int[INITIAL_CAPACITY];
+    private boolean[] isArrivals = new boolean[INITIAL_CAPACITY];
+    private int[] vehicleIds = new int[INITIAL_CAPACITY];
+    private int[] stopIds = new int[INITIAL_CAPACITY];
+    private int[] routeIds = new int[INITIAL_CAPACITY];
+    private int[] blockIds = new int[INITIAL_CAPACITY];
+    private int[] serviceIds = new int[INITIAL_CAPACITY];
+    private int[] directionIds = new int[INITIAL_CAPACITY];
+
+    /**
+     * @param tripId The trip that the events are for
+     * @param strings For interning the IDs
+     */
+    public TripHistory(String tripId, StringTable strings) {
+        this.tripId = tripId;
+        this.strings = strings;
+    }
+
+    /**
+     * Adds the event, keeping the events in time order.
+     *
+     * @param event The arrival or departure
+     */
+    public synchronized void add(IpcArrivalDeparture event) {
+        if (size == times.length) grow();
+
+        // Find where to insert. Nearly always at the end.
+        long time = event.getTime().getTime();
+        int position = size;
+        while (position > 0 && times[position - 1] > time) --position;
+        if (position < size) shift(position);
+
+        times[position] = time;
+        avlTimes[position] = event.getAvlTime() != null ? event.getAvlTime().getTime() : NULL_TIME;
+        freqStartTimes[position] = event.getFreqStartTime() != null ? event.getFreqStartTime().getTime() : NULL_TIME;
+        scheduleAdherences[position] = event.getScheduledAdherence() != null
+                ? event.getScheduledAdherence().getTemporalDifference()
+                : NULL_ADHERENCE;
+        stopPathIndices[position] = event.getStopPathIndex();
+        isArrivals[position] = event.isArrival();
+        vehicleIds[position] = strings.intern(event.getVehicleId());
+        stopIds[position] = strings.intern(event.getStopId());
+        routeIds[position] = strings.intern(event.getRouteId());
+        blockIds[position] = strings.intern(event.getBlockId());
+        serviceIds[position] = strings.intern(event.getServiceId());
+        directionIds[position] = strings.intern(event.getDirectionId());
+        ++size;
+    }
+
+    // Synchronized so that the columns are consistent when the history is
+    // written to a snapshot while events are being added
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    private void grow() {
+        int capacity = times.length * 2;
+        times = Arrays.copyOf(times, capacity);
+        avlTimes = Arrays.copyOf(avlTimes, capacity);
+        freqStartTimes = Arrays.copyOf(freqStartTimes, capacity);
+        scheduleAdherences = Arrays.copyOf(scheduleAdherences, capacity);
+        stopPathIndices = Arrays.copyOf(stopPathIndices, capacity);
+        isArrivals = Arrays.copyOf(isArrivals, capacity);
+        vehicleIds = Arrays.copyOf(vehicleIds, capacity);
+        stopIds = Arrays.copyOf(stopIds, capacity);
+        routeIds = Arrays.copyOf(routeIds, capacity);
+        blockIds = Arrays.copyOf(blockIds, capacity);
+        serviceIds = Arrays.copyOf(serviceIds, capacity);
+        directionIds = Arrays.copyOf(directionIds, capacity);
+    }
+
+    /** Moves the events from position on up by one to make room for a new one. */
+    private void shift(int position) {
+        int length = size - position;
+        System.arraycopy(times, position, times, position + 1, length);
+        System.arraycopy(avlTimes, position, avlTimes, position + 1, length);
+        System.arraycopy(freqStartTimes, position, freqStartTimes, position + 1, length);
+        System.arraycopy(scheduleAdherences, position, scheduleAdherences, position + 1, length);
+        System.arraycopy(stopPathIndices, position, stopPathIndices, position + 1, length);
+        System.arraycopy(isArrivals, position, isArrivals, position + 1, length);
+        System.arraycopy(vehicleIds, position, vehicleIds, position + 1, length);
+        System.arraycopy(stopIds, position, stopIds, position + 1, length);
+        System.arraycopy(routeIds, position, routeIds, position + 1, length);
+        System.arraycopy(blockIds, position, blockIds, position + 1, length);
+        System.arraycopy(serviceIds, position, serviceIds, position + 1, length);
+        System.arraycopy(directionIds, position, directionIds, position + 1, length);
+    }
+
+    /**
+     * @return number of events
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the events as IpcArrivalDeparture objects, newest first, which is the order that
+     * IpcArrivalDepartureComparator sorts them in. For the callers that need the whole history.
+     *
+     * @return new list of the events
+     */
+    public synchronized List<IpcArrivalDeparture> getEvents() {
+        List<IpcArrivalDeparture> events = new ArrayList<>(size);
+        for (int i = size - 1; i >= 0; --i) events.add(toEvent(i));
+        return events;
+    }
+
+    /**
+     * Finds the travel time for the stop path. Same as finding the newest arrival at the stop path
+     * and then the newest departure from the previous stop path with the same frequency start
+     * time, but without creating objects for any of the other events.
+     *
+     * @param stopPathIndex The stop path to get the travel time for
+     * @return the departure and arrival, or null if not both available
+     */
+    public synchronized TravelTimeDetails getTravelTimeDetails(int stopPathIndex) {
+        int arrival = -1;
+        for (int i = size - 1; i >= 0; --i) {
+            if (isArrivals[i] && stopPathIndices[i] == stopPathIndex) {
+                arrival = i;
+                break;
+            }
+        }
+        if (arrival < 0) return null;
+
+        for (int i = size - 1; i >= 0; --i) {
+            if (!isArrivals[i]
+                    && stopPathIndices[i] == stopPathIndex - 1
+                    && freqStartTimes[i] == freqStartTimes[arrival]) {
+                return new TravelTimeDetails(toEvent(i), toEvent(arrival));
+            }
+        }
+        return null;
+    }
+
+    /** Creates the IpcArrivalDeparture for the event at the index. */
+    private IpcArrivalDeparture toEvent(int i) {
+        IpcArrivalDeparture event = new IpcArrivalDeparture();
+        event.setTripId(tripId);
+        event.setTime(new Date(times[i]));
+        if (avlTimes[i] != NULL_TIME) event.setAvlTime(new Date(avlTimes[i]));
+        if (freqStartTimes[i] != NULL_TIME) event.setFreqStartTime(new Date(freqStartTimes[i]));
+        if (scheduleAdherences[i] != NULL_ADHERENCE)
+            event.setScheduledAdherence(new TemporalDifference(scheduleAdherences[i]));
+        event.setStopPathIndex(stopPathIndices[i]);
+        event.setArrival(isArrivals[i]);
+        event.setVehicleId(strings.get(vehicleIds[i]));
+        event.setStopId(strings.get(stopIds[i]));
+        event.setRouteId(strings.get(routeIds[i]));
+        event.setBlockId(strings.get(blockIds[i]));
+        event.setServiceId(strings.get(serviceIds[i]));
+        event.setDirectionId(strings.get(directionIds[i]));
+        return event;
+    }
+}
@@ -18,10 +18,13 @@ import org.transitclock.domain.structs.QArrivalDeparture;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.gtfs.DbConfig;
 import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.threading.StripedLocks;
 
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Sean Óg Crudden
@@ -31,6 +34,7 @@ public class ScheduleBasedHistoricalAverageCache {
     private static final String cacheName = "HistoricalAverageCache";
     private static final ScheduleBasedHistoricalAverageCache singleton = new ScheduleBasedHistoricalAverageCache();
     private Cache<StopPathCacheKey, HistoricalAverage> cache = null;
+    private final StripedLocks locks = new StripedLocks(64);
 
     /**
      * Gets the singleton instance of this class.
@@ -54,13 +58,13 @@ public class ScheduleBasedHistoricalAverageCache {
         logger.debug("Log cache size. Not implemented.");
     }
 
-    public synchronized HistoricalAverage getAverage(StopPathCacheKey key) {
+    public HistoricalAverage getAverage(StopPathCacheKey key) {
 
         HistoricalAverage result = cache.get(key);
         return result;
     }
 
-    public synchronized void putAverage(StopPathCacheKey key, HistoricalAverage average) {
+    public void putAverage(StopPathCacheKey key, HistoricalAverage average) {
 
         logger.debug("Putting: {} in cache with values : {}", key.toString(), average);
 
@@ -68,7 +72,42 @@ public class ScheduleBasedHistoricalAverageCache {
         // logCache(logger);
     }
 
-    public synchronized void putArrivalDeparture(ArrivalDeparture arrivalDeparture) throws Exception {
+    /**
+     * Returns all the averages, for writing them to a snapshot.
+     *
+     * @return map of the averages
+     */
+    public Map<StopPathCacheKey, HistoricalAverage> getAverages() {
+        Map<StopPathCacheKey, HistoricalAverage> averages = new HashMap<>();
+        for (Cache.Entry<StopPathCacheKey, HistoricalAverage> entry : cache) {
+            averages.put(entry.getKey(), entry.getValue());
+        }
+        return averages;
+    }
+
+    /**
+     * Puts the averages read from a snapshot into the cache.
+     *
+     * @param averages As returned by getAverages()
+     */
+    public void putAverages(Map<StopPathCacheKey, HistoricalAverage> averages) {
+        cache.putAll(averages);
+    }
+
+    /**
+     * Updates the average for the key with the value. Copy on write under the lock for the key, so
+     * that concurrent updates of the same stop path are not lost, updates of other stop paths don't
+     * wait, and getAverage() doesn't need to lock.
+     */
+    private void updateAverage(StopPathCacheKey key, double value) {
+        synchronized (locks.lockFor(key)) {
+            HistoricalAverage average = cache.get(key);
+            if (average == null) average = new HistoricalAverage();
+            cache.put(key, average.withUpdate(value));
+        }
+    }
+
+    public void putArrivalDeparture(ArrivalDeparture arrivalDeparture) throws Exception {
         DbConfig dbConfig = Core.getInstance().getDbConfig();
 
         Trip trip = dbConfig.getTrip(arrivalDeparture.getTripId());
@@ -84,17 +123,11 @@ public class ScheduleBasedHistoricalAverageCache {
                     StopPathCacheKey historicalAverageCacheKey =
                             new StopPathCacheKey(trip.getId(), arrivalDeparture.getStopPathIndex(), true);
 
-                    HistoricalAverage average =
-                            ScheduleBasedHistoricalAverageCache.getInstance().getAverage(historicalAverageCacheKey);
-
-                    if (average == null) average = new HistoricalAverage();
                     logger.debug(
                             "Updating historical averege for : {} with {}",
                             historicalAverageCacheKey,
                             travelTimeDetails);
-                    average.update(travelTimeDetails.getTravelTime());
-
-                    ScheduleBasedHistoricalAverageCache.getInstance().putAverage(historicalAverageCacheKey, average);
+                    updateAverage(historicalAverageCacheKey, travelTimeDetails.getTravelTime());
                 }
             }
 
@@ -104,16 +137,9 @@ public class ScheduleBasedHistoricalAverageCache {
                 StopPathCacheKey historicalAverageCacheKey =
                         new StopPathCacheKey(trip.getId(), arrivalDeparture.getStopPathIndex(), false);
 
-                HistoricalAverage average =
-                        ScheduleBasedHistoricalAverageCache.getInstance().getAverage(historicalAverageCacheKey);
-
-                if (average == null) average = new HistoricalAverage();
-
                 logger.debug(
                         "Updating historical averege for : {} with {}", historicalAverageCacheKey, dwellTimeDetails);
-                average.update(dwellTimeDetails.getDwellTime());
-
-                ScheduleBasedHistoricalAverageCache.getInstance().putAverage(historicalAverageCacheKey, average);
+                updateAverage(historicalAverageCacheKey, dwellTimeDetails.getDwellTime());
             }
         }
     }
@@ -2,7 +2,6 @@
 package org.transitclock.core.predAccuracy;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
@@ -10,17 +9,20 @@ import org.transitclock.Module;
 import org.transitclock.Core;
 import org.transitclock.config.data.PredictionAccuracyConfig;
 import org.transitclock.core.dataCache.PredictionDataCache;
+import org.transitclock.core.dataCache.memory.IdInterner;
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.domain.structs.PredictionAccuracy;
 import org.transitclock.domain.structs.Route;
 import org.transitclock.domain.structs.TripPattern;
 import org.transitclock.service.dto.IpcPrediction;
 import org.transitclock.service.dto.IpcPredictionsForRouteStopDest;
+import org.transitclock.utils.ConcurrentLongKeyMap;
 import org.transitclock.utils.IntervalTimer;
-import org.transitclock.utils.MapKey;
 import org.transitclock.utils.SystemTime;
 import org.transitclock.utils.Time;
 
+import static org.transitclock.utils.ApplicationShutdownSupport.addShutdownHook;
+
 /**
  * Reads internal predictions every transitclock.predAccuracy.pollingRateMsec and stores the
  * predictions into memory. Then when arrivals/departures occur the prediction accuracy can be
@@ -34,9 +36,18 @@ public class PredictionAccuracyModule extends Module {
     // The map that contains all of the predictions to be used for prediction
     // accuracy analysis. Each value is a list of predictions because can have
     // more than a single prediction stored in memory for a vehicle/stop.
+    // Keyed by predictionKey() so that handling an arrival/departure doesn't
+    // allocate a key. The direction isn't part of the key so it is checked
+    // when matching.
     // Declared static because want to be able to access it from another
     // class by using the static method handleArrivalDeparture().
-    private static final Map<PredictionKey, List<PredAccuracyPrediction>> predictionMap = new ConcurrentHashMap<>();
+    private static final ConcurrentLongKeyMap<List<PredAccuracyPrediction>> predictionMap =
+            new ConcurrentLongKeyMap<>(1000);
+
+    // The prediction accuracy aggregated per route/hour/prediction length
+    // until it is stored as rollups. Static for the same reason as
+    // predictionMap.
+    private static final PredictionAccuracyRollups rollups = new PredictionAccuracyRollups();
 
 
     @Data
@@ -46,19 +57,20 @@ public class PredictionAccuracyModule extends Module {
         private final Map<String, Collection<String>> stopIds = new HashMap<>();
     }
 
-    private static class PredictionKey extends MapKey {
-        PredictionKey(String vehicleId, String directionId, String stopId) {
-            super(vehicleId, directionId, stopId);
-        }
-
-        @Override
-        public String toString() {
-            return "PredictionKey [" + "vehicleId=" + o1 + ", directionId=" + o2 + ", stopId=" + o3 + "]";
-        }
+    private static long predictionKey(String vehicleId, String stopId) {
+        return ConcurrentLongKeyMap.packKey(IdInterner.vehicle(vehicleId), IdInterner.stop(stopId));
     }
 
     public PredictionAccuracyModule(String agencyId) {
         super(agencyId);
+
+        // Don't lose the accuracy aggregated for the hours not yet stored
+        if (PredictionAccuracyConfig.storeRollups.getValue()) {
+            addShutdownHook("store-prediction-accuracy-rollups", () -> {
+                int numRollups = rollups.storeAll(agencyId);
+                logger.info("Stored {} prediction accuracy rollups on shutdown.", numRollups);
+            });
+        }
     }
 
 
@@ -148,7 +160,7 @@ public class PredictionAccuracyModule extends Module {
             return;
         }
 
-        PredictionKey key = new PredictionKey(pred.getVehicleId(), pred.getDirectionId(), pred.getStopId());
+        long key = predictionKey(pred.getVehicleId(), pred.getStopId());
         logger.debug("Adding prediction to memory for prediction accuracy analysis. {}", pred);
         predictionMap
                 .computeIfAbsent(key, k -> new ArrayList<>(1))
@@ -196,6 +208,13 @@ public class PredictionAccuracyModule extends Module {
                 "There are now {} predictions in memory after removing {}.",
                 numPredictionsInMemory,
                 numPredictionsRemoved);
+
+        // Store the rollups for the hours that are now complete
+        if (PredictionAccuracyConfig.storeRollups.getValue()) {
+            int numRollups = rollups.storeCompletedHours(
+                    SystemTime.getMillis(), PredictionAccuracyConfig.rollupDelayMinutes.getValue() * Time.MS_PER_MIN);
+            logger.debug("Stored {} prediction accuracy rollups.", numRollups);
+        }
     }
 
     /**
@@ -265,10 +284,9 @@ public class PredictionAccuracyModule extends Module {
      * @param arrivalDeparture The arrival or departure that was generated
      */
     public static void handleArrivalDeparture(ArrivalDeparture arrivalDeparture) {
-        // Get the List of predictions for the vehicle/direction/stop
-        PredictionKey key = new PredictionKey(
-                arrivalDeparture.getVehicleId(), arrivalDeparture.getDirectionId(), arrivalDeparture.getStopId());
-        List<PredAccuracyPrediction> predsList = predictionMap.get(key);
+        // Get the List of predictions for the vehicle/stop
+        List<PredAccuracyPrediction> predsList =
+                predictionMap.get(predictionKey(arrivalDeparture.getVehicleId(), arrivalDeparture.getStopId()));
 
         if (predsList == null || predsList.isEmpty()) {
             logger.debug("No matching predictions for {}", arrivalDeparture);
@@ -282,8 +300,10 @@ public class PredictionAccuracyModule extends Module {
         while (predIterator.hasNext()) {
             PredAccuracyPrediction pred = predIterator.next();
 
-            // If not correct arrival/departure type continue to next prediction
-            if (pred.isArrival() != arrivalDeparture.isArrival()) {
+            // If not correct arrival/departure type or direction continue to
+            // next prediction
+            if (pred.isArrival() != arrivalDeparture.isArrival()
+                    || !Objects.equals(pred.getDirectionId(), arrivalDeparture.getDirectionId())) {
                 continue;
             }
 
@@ -321,7 +341,8 @@ public class PredictionAccuracyModule extends Module {
 
     /**
      * Combine the arrival/departure with the corresponding prediction and creates
-     * PredictionAccuracy object and stores it in database.
+     * PredictionAccuracy object and stores it in database. Also adds it to the rollups so that the
+     * reports can be created from them.
      *
      * @param pred
      * @param arrivalDeparture The corresponding arrival/departure information. Can be null to
@@ -347,10 +368,14 @@ public class PredictionAccuracyModule extends Module {
                 pred.getVehicleId(),
                 pred.isAffectedByWaitStop());
 
+        if (PredictionAccuracyConfig.storeRollups.getValue()) rollups.add(predAccuracy);
+
         // Add the prediction accuracy object to the db logger so that
         // it gets written to database
-        logger.debug("Storing prediction accuracy object to db. {}", predAccuracy);
-        Core.getInstance().getDbLogger().add(predAccuracy);
+        if (PredictionAccuracyConfig.storeRawPredictionAccuracy.getValue()) {
+            logger.debug("Storing prediction accuracy object to db. {}", predAccuracy);
+            Core.getInstance().getDbLogger().add(predAccuracy);
+        }
     }
 
     @Override
@@ -0,0 +1,182 @@
+/* (C)2023 */
+package org.transitclock.core.predAccuracy;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.transitclock.Core;
+import org.transitclock.domain.hibernate.HibernateUtils;
+import org.transitclock.domain.structs.PredictionAccuracy;
+import org.transitclock.domain.structs.PredictionAccuracyRollup;
+import org.transitclock.domain.structs.ReportRollupHour;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+
+/**
+ * Aggregates the prediction accuracy as it is determined into a PredictionAccuracySketch per
+ * route/hour/prediction length bucket. Once an hour is complete the sketches for it are stored as
+ * PredictionAccuracyRollup rows so that the prediction accuracy reports don't need to read every
+ * PredictionAccuracy row. The hours that all the rollups have been stored for are recorded as
+ * ReportRollupHours, so that the reports only use the rollups of complete hours and read the
+ * PredictionAccuracy rows for the rest, such as for the part of an hour before a crash.
+ *
+ * <p>Thread safe since accuracy is added when arrivals/departures are generated while the rollups
+ * are stored by the prediction accuracy module.
+ */
+@Slf4j
+public class PredictionAccuracyRollups {
+
+    // Same as the buckets used by the prediction accuracy reports.
+    // Predictions for longer than MAX_PRED_LENGTH_SECS are not shown by
+    // the reports so they are not aggregated.
+    public static final int PRED_LENGTH_BUCKET_SECS = 30;
+    public static final int MAX_PRED_LENGTH_SECS = 15 * Time.SEC_PER_MIN;
+
+    public static final String ROLLUPS_TABLE = "prediction_accuracy_rollups";
+
+    private record RollupKey(
+            long rollupHour,
+            String routeId,
+            String routeShortName,
+            String predictionSource,
+            Boolean affectedByWaitStop,
+            int predLengthBucket) {}
+
+    private final Map<RollupKey, PredictionAccuracySketch> sketches = new ConcurrentHashMap<>();
+
+    // Start of the next hour to record as complete. Only accessed by the
+    // prediction accuracy module when it stores the rollups.
+    private long nextCompleteHour;
+
+    public PredictionAccuracyRollups() {
+        // The current hour is missing whatever happened before now
+        nextCompleteHour = Time.getStartOfHour(SystemTime.getMillis()) + Time.MS_PER_HOUR;
+    }
+
+    /**
+     * Determines the prediction length bucket in the same way as the reports, such that the
+     * bucket for 1 minute is for predictions of 45 to 75 seconds.
+     *
+     * @param predLengthSecs
+     * @return Index of the prediction length bucket
+     */
+    public static int predLengthBucket(int predLengthSecs) {
+        return (predLengthSecs + PRED_LENGTH_BUCKET_SECS / 2) / PRED_LENGTH_BUCKET_SECS;
+    }
+
+    /**
+     * Adds the prediction accuracy to the sketch for its route/hour/prediction length. Predictions
+     * that weren't matched to an arrival/departure, or that are for further into the future than
+     * the reports show, are ignored.
+     *
+     * @param predAccuracy
+     */
+    public void add(PredictionAccuracy predAccuracy) {
+        if (predAccuracy.getArrivalDepartureTime() == null) return;
+
+        long predLengthMsec =
+                predAccuracy.getPredictedTime().getTime() - predAccuracy.getPredictionReadTime().getTime();
+        if (predLengthMsec < 0 || predLengthMsec >= MAX_PRED_LENGTH_SECS * Time.MS_PER_SEC) return;
+
+        RollupKey key = new RollupKey(
+                Time.getStartOfHour(predAccuracy.getArrivalDepartureTime().getTime()),
+                predAccuracy.getRouteId(),
+                predAccuracy.getRouteShortName(),
+                predAccuracy.getPredictionSource(),
+                predAccuracy.getAffectedByWaitStop(),
+                predLengthBucket((int) (predLengthMsec / Time.MS_PER_SEC)));
+        int accuracySecs = predAccuracy.getPredictionAccuracyMsecs() / Time.MS_PER_SEC;
+        sketches.compute(key, (k, sketch) -> {
+            if (sketch == null) sketch = new PredictionAccuracySketch();
+            sketch.add(accuracySecs);
+            return sketch;
+        });
+    }
+
+    /**
+     * Stores the rollups for the hours that ended at least delayMsec ago and removes them from
+     * memory. If more accuracy is added for such an hour later on it is stored as an additional
+     * rollup. The hours are then recorded as complete, including the ones without any rollups.
+     *
+     * @param now Current time
+     * @param delayMsec How long after the end of an hour to wait before storing its rollups
+     * @return Number of rollups stored
+     */
+    public int storeCompletedHours(long now, long delayMsec) {
+        List<PredictionAccuracyRollup> rollups =
+                removeRollups(key -> key.rollupHour() + Time.MS_PER_HOUR + delayMsec <= now);
+        for (PredictionAccuracyRollup rollup : rollups) {
+            logger.debug("Storing prediction accuracy rollup to db. {}", rollup);
+            Core.getInstance().getDbLogger().add(rollup);
+        }
+        for (; nextCompleteHour + Time.MS_PER_HOUR + delayMsec <= now; nextCompleteHour += Time.MS_PER_HOUR) {
+            ReportRollupHour rollupHour = new ReportRollupHour(ROLLUPS_TABLE, new Date(nextCompleteHour));
+            logger.debug("Storing prediction accuracy rollup hour to db. {}", rollupHour);
+            Core.getInstance().getDbLogger().add(rollupHour);
+        }
+        return rollups.size();
+    }
+
+    /**
+     * Stores the rollups for all hours, including the current one, and removes them from memory.
+     * For when shutting down so that the accuracy aggregated so far isn't lost. They are written
+     * directly instead of through the db logger since the JVM might exit before its queue is
+     * written. The hours are not recorded as complete, so the reports read the PredictionAccuracy
+     * rows for them instead.
+     *
+     * @param agencyId
+     * @return Number of rollups stored
+     */
+    public int storeAll(String agencyId) {
+        List<PredictionAccuracyRollup> rollups = removeRollups(key -> true);
+        if (rollups.isEmpty()) return 0;
+
+        try (Session session = HibernateUtils.getSession(agencyId)) {
+            Transaction tx = session.beginTransaction();
+            for (PredictionAccuracyRollup rollup : rollups) session.persist(rollup);
+            tx.commit();
+        } catch (HibernateException e) {
+            logger.error("Error storing {} prediction accuracy rollups to db", rollups.size(), e);
+            return 0;
+        }
+        return rollups.size();
+    }
+
+    /**
+     * Removes the sketches with keys that match from memory and returns them as rollups.
+     *
+     * @param shouldRemove
+     * @return the rollups for the removed sketches
+     */
+    private List<PredictionAccuracyRollup> removeRollups(Predicate<RollupKey> shouldRemove) {
+        List<PredictionAccuracyRollup> rollups = new ArrayList<>();
+        Iterator<RollupKey> iterator = sketches.keySet().iterator();
+        while (iterator.hasNext()) {
+            RollupKey key = iterator.next();
+            if (!shouldRemove.test(key)) continue;
+
+            // Removed atomically so that accuracy added concurrently either
+            // makes it into this rollup or into a new sketch
+            PredictionAccuracySketch sketch = sketches.remove(key);
+            if (sketch == null) continue;
+
+            rollups.add(new PredictionAccuracyRollup(
+                    new Date(key.rollupHour()),
+                    key.routeId(),
+                    key.routeShortName(),
+                    key.predictionSource(),
+                    key.affectedByWaitStop(),
+                    key.predLengthBucket(),
+                    sketch));
+        }
+        return rollups;
+    }
+}
@@ -0,0 +1,176 @@
+/* (C)2023 */
+package org.transitclock.core.predAccuracy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Distribution of prediction accuracy values, in seconds, kept as the count of each distinct value.
+ * Since accuracies are only of interest to the second and cluster around 0 this is much smaller
+ * than the list of values, yet the statistics for the prediction accuracy reports (counts within a
+ * range, percentiles, mean, and standard deviation) are exactly the same as for the list. Sketches
+ * can be merged so that they can be kept per route/hour/prediction length and then combined for
+ * any time span.
+ *
+ * <p>Not thread safe.
+ */
+public class PredictionAccuracySketch {
+
+    // Distinct accuracy values in increasing order, with the number of
+    // times each occurred. Only the first size elements are used.
+    private int[] values;
+    private int[] counts;
+    private int size;
+
+    // Total of the counts
+    private long count;
+
+    public PredictionAccuracySketch() {
+        values = new int[8];
+        counts = new int[8];
+    }
+
+    /**
+     * Creates a sketch from the values and counts as returned by getValues() and getCounts().
+     *
+     * @param values Distinct accuracy values in secs in increasing order
+     * @param counts Number of times each value occurred
+     * @throws IllegalArgumentException if the lists are of different size
+     */
+    public PredictionAccuracySketch(List<Integer> values, List<Integer> counts) {
+        if (values.size() != counts.size())
+            throw new IllegalArgumentException(
+                    "Sketch has " + values.size() + " values but " + counts.size() + " counts");
+        this.values = new int[Math.max(8, values.size())];
+        this.counts = new int[this.values.length];
+        for (int i = 0; i < values.size(); ++i) add(values.get(i), counts.get(i));
+    }
+
+    /**
+     * Adds a prediction accuracy value.
+     *
+     * @param accuracySecs
+     */
+    public void add(int accuracySecs) {
+        add(accuracySecs, 1);
+    }
+
+    /**
+     * Adds a prediction accuracy value that occurred multiple times.
+     *
+     * @param accuracySecs
+     * @param numberTimes
+     */
+    public void add(int accuracySecs, int numberTimes) {
+        int index = Arrays.binarySearch(values, 0, size, accuracySecs);
+        if (index < 0) {
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            System.arraycopy(counts, index, counts, index + 1, size - index);
+            values[index] = accuracySecs;
+            counts[index] = 0;
+            ++size;
+        }
+        counts[index] += numberTimes;
+        count += numberTimes;
+    }
+
+    /**
+     * Adds all the values of the other sketch to this one.
+     *
+     * @param other
+     */
+    public void merge(PredictionAccuracySketch other) {
+        for (int i = 0; i < other.size; ++i) add(other.values[i], other.counts[i]);
+    }
+
+    /**
+     * @return Number of values that have been added
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @param accuracySecs
+     * @return Number of values less than accuracySecs
+     */
+    public long countLessThan(int accuracySecs) {
+        long result = 0;
+        for (int i = 0; i < size && values[i] < accuracySecs; ++i) result += counts[i];
+        return result;
+    }
+
+    /**
+     * Returns the value that would be at the index of the sorted list of all the values.
+     *
+     * @param index
+     * @return value at the index
+     * @throws IndexOutOfBoundsException if index not less than getCount()
+     */
+    public int getValueAtIndex(long index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Index " + index + " for sketch with " + count + " values");
+        long remaining = index;
+        int i = 0;
+        while (remaining >= counts[i]) remaining -= counts[i++];
+        return values[i];
+    }
+
+    /**
+     * @return Mean of the values, or NaN if there are none
+     */
+    public double getMean() {
+        double sum = 0.0;
+        for (int i = 0; i < size; ++i) sum += (double) values[i] * counts[i];
+        return sum / count;
+    }
+
+    /**
+     * Same as Statistics.getSampleStandardDeviation() for the list of values.
+     *
+     * @param mean The mean of the values
+     * @return Sample standard deviation, or NaN if there are fewer than two values
+     */
+    public double getSampleStandardDeviation(double mean) {
+        double sumSquares = 0.0;
+        for (int i = 0; i < size; ++i) {
+            double diff = values[i] - mean;
+            sumSquares += diff * diff * counts[i];
+        }
+        return Math.sqrt(sumSquares / (count - 1));
+    }
+
+    /**
+     * @return The distinct values in increasing order, for storing the sketch
+     */
+    public List<Integer> getValues() {
+        List<Integer> list = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) list.add(values[i]);
+        return list;
+    }
+
+    /**
+     * @return The number of times each of the values occurred, for storing the sketch
+     */
+    public List<Integer> getCounts() {
+        List<Integer> list = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) list.add(counts[i]);
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PredictionAccuracySketch [count=").append(count).append(", values={");
+        for (int i = 0; i < size; ++i) {
+            if (i > 0) sb.append(", ");
+            sb.append(values[i]).append('x').append(counts[i]);
+        }
+        return sb.append("}]").toString();
+    }
+}
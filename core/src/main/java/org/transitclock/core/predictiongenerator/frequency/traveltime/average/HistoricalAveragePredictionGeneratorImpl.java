@@ -67,7 +67,7 @@ public class HistoricalAveragePredictionGeneratorImpl extends LastVehiclePredict
                             "HISTORICAL AVERAGE",
                             true,
                             time);
-                    Core.getInstance().getDbLogger().add(predictionForStopPath);
+                    Core.getInstance().getDbLogger().addOptional(predictionForStopPath);
                     StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
                 }
 
@@ -113,7 +113,7 @@ public class HistoricalAveragePredictionGeneratorImpl extends LastVehiclePredict
                         "PARTIAL HISTORICAL AVERAGE",
                         true,
                         time);
-                Core.getInstance().getDbLogger().add(predictionForStopPath);
+                Core.getInstance().getDbLogger().addOptional(predictionForStopPath);
                 StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
             }
             return (long) value;
@@ -149,7 +149,7 @@ public class HistoricalAveragePredictionGeneratorImpl extends LastVehiclePredict
                             "HISTORICAL AVERAGE",
                             false,
                             time);
-                    Core.getInstance().getDbLogger().add(predictionForStopPath);
+                    Core.getInstance().getDbLogger().addOptional(predictionForStopPath);
                     StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
                 }
 
@@ -172,7 +172,7 @@ public class KalmanPredictionGeneratorImpl extends HistoricalAveragePredictionGe
                                     "KALMAN",
                                     true,
                                     null);
-                            Core.getInstance().getDbLogger().add(predictionForStopPath);
+                            Core.getInstance().getDbLogger().addOptional(predictionForStopPath);
                             StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
                         }
                         return predictionTime;
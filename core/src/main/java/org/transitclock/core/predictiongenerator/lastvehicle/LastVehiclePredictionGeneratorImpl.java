@@ -97,7 +97,7 @@ public class LastVehiclePredictionGeneratorImpl extends PredictionGeneratorDefau
                             true,
                             null);
 
-                    Core.getInstance().getDbLogger().add(predictionForStopPath);
+                    Core.getInstance().getDbLogger().addOptional(predictionForStopPath);
                     StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
                 }
 
@@ -57,7 +57,7 @@ public class HistoricalAveragePredictionGeneratorImpl extends LastVehiclePredict
                         "HISTORICAL AVERAGE",
                         true,
                         null);
-                Core.getInstance().getDbLogger().add(predictionForStopPath);
+                Core.getInstance().getDbLogger().addOptional(predictionForStopPath);
                 StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
             }
 
@@ -155,7 +155,7 @@ public class KalmanPredictionGeneratorImpl extends PredictionGeneratorDefaultImp
                                     "KALMAN",
                                     true,
                                     null);
-                            Core.getInstance().getDbLogger().add(predictionForStopPath);
+                            Core.getInstance().getDbLogger().addOptional(predictionForStopPath);
                             StopPathPredictionCache.getInstance().putPrediction(predictionForStopPath);
                         }
                         return predictionTime;
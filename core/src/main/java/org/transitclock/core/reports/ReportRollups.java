@@ -0,0 +1,279 @@
+/* (C)2023 */
+package org.transitclock.core.reports;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.transitclock.Core;
+import org.transitclock.domain.hibernate.HibernateUtils;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.ReportRollupHour;
+import org.transitclock.domain.structs.ScheduleAdherenceRollup;
+import org.transitclock.domain.structs.TripStopTimeRollup;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+
+/**
+ * Maintains the rollups for the schedule adherence and trips with travel times reports as the
+ * arrivals/departures are generated, so that the reports don't need to query arrivals_departures.
+ * The schedule adherence is collected per route/stop/hour and stored as ScheduleAdherenceRollups
+ * once the hour is complete. Each arrival is paired with the following departure of the vehicle
+ * from the same stop and stored as a TripStopTimeRollup.
+ *
+ * <p>Once all the rollups of a table for an hour have been stored the hour is recorded as a
+ * ReportRollupHour, so that the reports can tell which hours the rollups are complete for. Only
+ * hours that started after the data began to be collected are recorded.
+ *
+ * <p>Data is only collected once the ReportRollupsModule has been created. Until then
+ * getInstance() returns null.
+ */
+@Slf4j
+public class ReportRollups {
+
+    public static final String SCHEDULE_ADH_ROLLUPS_TABLE = "schedule_adherence_rollups";
+    public static final String TRIP_STOP_TIME_ROLLUPS_TABLE = "trip_stop_time_rollups";
+
+    private static volatile ReportRollups singleton = null;
+
+    private record ScheduleAdhKey(
+            long rollupHour,
+            int configRev,
+            String routeId,
+            String routeShortName,
+            String directionId,
+            String stopId,
+            Integer stopOrder) {}
+
+    private static class ScheduleAdhData {
+        private final List<String> tripIds = new ArrayList<>();
+        private final List<Integer> adherenceMsecs = new ArrayList<>();
+    }
+
+    private final Map<ScheduleAdhKey, ScheduleAdhData> scheduleAdhByKey = new ConcurrentHashMap<>();
+
+    // The arrival for each vehicle that is waiting for the departure
+    // from the same stop. Keyed on vehicleId.
+    private final Map<String, ArrivalDeparture> pendingArrivalByVehicle = new ConcurrentHashMap<>();
+
+    // Start of the next hour to record as complete for each of the tables.
+    // Only accessed by the ReportRollupsModule when it runs.
+    private long nextScheduleAdhHour;
+    private long nextTripStopTimeHour;
+
+    private ReportRollups() {
+        // The current hour is missing whatever happened before now
+        long firstCompleteHour = Time.getStartOfHour(SystemTime.getMillis()) + Time.MS_PER_HOUR;
+        nextScheduleAdhHour = firstCompleteHour;
+        nextTripStopTimeHour = firstCompleteHour;
+    }
+
+    /**
+     * Returns the singleton, or null if the ReportRollupsModule hasn't been created so the data
+     * isn't being collected.
+     *
+     * @return the ReportRollups or null
+     */
+    public static ReportRollups getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Creates the singleton if it hasn't already been created so that data starts to be collected.
+     *
+     * @return the ReportRollups singleton
+     */
+    static synchronized ReportRollups createInstance() {
+        if (singleton == null) singleton = new ReportRollups();
+        return singleton;
+    }
+
+    /**
+     * Adds a newly generated arrival/departure to the rollups.
+     *
+     * @param arrDep
+     */
+    public void putArrivalDeparture(ArrivalDeparture arrDep) {
+        if (arrDep.getScheduledDate() != null) addScheduleAdherence(arrDep);
+
+        if (arrDep.isArrival()) {
+            // Previous arrival didn't get a departure from its stop
+            ArrivalDeparture previous = pendingArrivalByVehicle.put(arrDep.getVehicleId(), arrDep);
+            if (previous != null) storeTripStopTime(previous, null);
+        } else {
+            ArrivalDeparture arrival = pendingArrivalByVehicle.get(arrDep.getVehicleId());
+            if (arrival != null
+                    && isDepartureForArrival(arrival, arrDep)
+                    && pendingArrivalByVehicle.remove(arrDep.getVehicleId(), arrival)) {
+                storeTripStopTime(arrival, arrDep);
+            }
+        }
+    }
+
+    /**
+     * The departure is from the same stop of the same trip as the arrival, which is how the trips
+     * with travel times report determined the departure for an arrival.
+     */
+    private static boolean isDepartureForArrival(ArrivalDeparture arrival, ArrivalDeparture departure) {
+        return arrival.getTripIndex() == departure.getTripIndex()
+                && arrival.getStopPathIndex() == departure.getStopPathIndex()
+                && arrival.getTripId().equals(departure.getTripId())
+                && arrival.getTime() <= departure.getTime();
+    }
+
+    private void addScheduleAdherence(ArrivalDeparture arrDep) {
+        ScheduleAdhKey key = new ScheduleAdhKey(
+                Time.getStartOfHour(arrDep.getTime()),
+                arrDep.getConfigRev(),
+                arrDep.getRouteId(),
+                arrDep.getRouteShortName(),
+                arrDep.getDirectionId(),
+                arrDep.getStopId(),
+                arrDep.getStopOrder());
+        int adherenceMsecs = (int) (arrDep.getTime() - arrDep.getScheduledTime());
+        scheduleAdhByKey.compute(key, (k, data) -> {
+            if (data == null) data = new ScheduleAdhData();
+            data.tripIds.add(arrDep.getTripId());
+            data.adherenceMsecs.add(adherenceMsecs);
+            return data;
+        });
+    }
+
+    private static void storeTripStopTime(ArrivalDeparture arrival, ArrivalDeparture departure) {
+        TripStopTimeRollup rollup = new TripStopTimeRollup(arrival, departure);
+        logger.debug("Storing trip stop time rollup to db. {}", rollup);
+        Core.getInstance().getDbLogger().add(rollup);
+    }
+
+    /**
+     * Stores the schedule adherence rollups for the hours that ended at least delayMsec ago and
+     * removes them from memory. If more arrivals/departures are generated for such an hour later on
+     * they are stored as an additional rollup. The hours are then recorded as complete.
+     *
+     * @param now Current time
+     * @param delayMsec How long after the end of an hour to wait before storing its rollups
+     * @return Number of rollups stored
+     */
+    public int storeCompletedHours(long now, long delayMsec) {
+        List<ScheduleAdherenceRollup> rollups =
+                removeScheduleAdhRollups(key -> key.rollupHour() + Time.MS_PER_HOUR + delayMsec <= now);
+        for (ScheduleAdherenceRollup rollup : rollups) {
+            logger.debug("Storing schedule adherence rollup to db. {}", rollup);
+            Core.getInstance().getDbLogger().add(rollup);
+        }
+        nextScheduleAdhHour = storeCompleteHours(SCHEDULE_ADH_ROLLUPS_TABLE, nextScheduleAdhHour, now - delayMsec);
+        return rollups.size();
+    }
+
+    /**
+     * Records the hours from nextHour that ended by completeUntil as complete for the table. This
+     * includes hours without any rollups, so that the reports don't treat them as a gap.
+     *
+     * @param rollupsTable
+     * @param nextHour Start of the first hour not recorded yet
+     * @param completeUntil The rollups for all times before this have been stored
+     * @return Start of the first hour still not recorded
+     */
+    private static long storeCompleteHours(String rollupsTable, long nextHour, long completeUntil) {
+        for (; nextHour + Time.MS_PER_HOUR <= completeUntil; nextHour += Time.MS_PER_HOUR) {
+            ReportRollupHour rollupHour = new ReportRollupHour(rollupsTable, new Date(nextHour));
+            logger.debug("Storing report rollup hour to db. {}", rollupHour);
+            Core.getInstance().getDbLogger().add(rollupHour);
+        }
+        return nextHour;
+    }
+
+    /**
+     * Stores the schedule adherence rollups for all hours, including the current one, and the
+     * arrivals still waiting for their departure, and removes them from memory. For when shutting
+     * down so that the data collected so far isn't lost. They are written directly instead of
+     * through the db logger since the JVM might exit before its queue is written. The waiting
+     * arrivals are stored without a departure.
+     *
+     * @param agencyId
+     * @return Number of rows stored
+     */
+    public int storeAll(String agencyId) {
+        List<Object> rows = new ArrayList<>(removeScheduleAdhRollups(key -> true));
+        for (String vehicleId : pendingArrivalByVehicle.keySet()) {
+            ArrivalDeparture arrival = pendingArrivalByVehicle.remove(vehicleId);
+            if (arrival != null) rows.add(new TripStopTimeRollup(arrival, null));
+        }
+        if (rows.isEmpty()) return 0;
+
+        try (Session session = HibernateUtils.getSession(agencyId)) {
+            Transaction tx = session.beginTransaction();
+            for (Object row : rows) session.persist(row);
+            tx.commit();
+        } catch (HibernateException e) {
+            logger.error("Error storing {} report rollups to db", rows.size(), e);
+            return 0;
+        }
+        return rows.size();
+    }
+
+    /**
+     * Removes the schedule adherence data with keys that match from memory and returns it as
+     * rollups.
+     *
+     * @param shouldRemove
+     * @return the rollups for the removed data
+     */
+    private List<ScheduleAdherenceRollup> removeScheduleAdhRollups(Predicate<ScheduleAdhKey> shouldRemove) {
+        List<ScheduleAdherenceRollup> rollups = new ArrayList<>();
+        Iterator<ScheduleAdhKey> iterator = scheduleAdhByKey.keySet().iterator();
+        while (iterator.hasNext()) {
+            ScheduleAdhKey key = iterator.next();
+            if (!shouldRemove.test(key)) continue;
+
+            // Removed atomically so that an arrival/departure added
+            // concurrently either makes it into this rollup or a new one
+            ScheduleAdhData data = scheduleAdhByKey.remove(key);
+            if (data == null) continue;
+
+            rollups.add(new ScheduleAdherenceRollup(
+                    new Date(key.rollupHour()),
+                    key.configRev(),
+                    key.routeId(),
+                    key.routeShortName(),
+                    key.directionId(),
+                    key.stopId(),
+                    key.stopOrder(),
+                    data.tripIds,
+                    data.adherenceMsecs));
+        }
+        return rollups;
+    }
+
+    /**
+     * Stores the arrivals that have been waiting longer than maxDwellMsec for their departure
+     * without a departure, such as for the last stop of a block. The hours that all the arrivals
+     * have then been stored for are recorded as complete.
+     *
+     * @param now Current time
+     * @param maxDwellMsec How long to wait for the departure
+     * @return Number of arrivals stored
+     */
+    public int storeStaleArrivals(long now, long maxDwellMsec) {
+        int numberStored = 0;
+        for (Map.Entry<String, ArrivalDeparture> entry : pendingArrivalByVehicle.entrySet()) {
+            ArrivalDeparture arrival = entry.getValue();
+            if (arrival.getTime() + maxDwellMsec > now) continue;
+
+            if (pendingArrivalByVehicle.remove(entry.getKey(), arrival)) {
+                storeTripStopTime(arrival, null);
+                ++numberStored;
+            }
+        }
+        nextTripStopTimeHour =
+                storeCompleteHours(TRIP_STOP_TIME_ROLLUPS_TABLE, nextTripStopTimeHour, now - maxDwellMsec);
+        return numberStored;
+    }
+}
@@ -0,0 +1,62 @@
+/* (C)2023 */
+package org.transitclock.core.reports;
+
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.Module;
+import org.transitclock.config.data.ReportRollupsConfig;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+
+import static org.transitclock.utils.ApplicationShutdownSupport.addShutdownHook;
+
+/**
+ * Creating the module starts ReportRollups maintaining the schedule_adherence_rollups and
+ * trip_stop_time_rollups from the arrivals/departures as they are generated. Every minute the
+ * rollups that are complete are stored, together with the hours they are complete for, and on
+ * shutdown the rest of them. The reports use the rollups when
+ * transitclock.reports.reportsFromRollups is set and they are complete for the whole report.
+ */
+@Slf4j
+public class ReportRollupsModule extends Module {
+
+    private final ReportRollups reportRollups;
+
+    public ReportRollupsModule(String agencyId) {
+        super(agencyId);
+        reportRollups = ReportRollups.createInstance();
+
+        // Don't lose the data collected for the hours not yet stored
+        addShutdownHook("store-report-rollups", () -> {
+            int numberStored = reportRollups.storeAll(agencyId);
+            logger.info("Stored {} report rollups on shutdown", numberStored);
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            long now = SystemTime.getMillis();
+            int numberScheduleAdh = reportRollups.storeCompletedHours(
+                    now, ReportRollupsConfig.rollupDelayMinutes.getValue() * Time.MS_PER_MIN);
+            int numberArrivals = reportRollups.storeStaleArrivals(
+                    now, ReportRollupsConfig.maxDwellMinutes.getValue() * Time.MS_PER_MIN);
+            logger.debug(
+                    "Stored {} schedule adherence rollups and {} arrivals without departures",
+                    numberScheduleAdh,
+                    numberArrivals);
+        } catch (Exception e) {
+            // Don't let the exception stop the scheduled executions
+            logger.error("Exception when storing report rollups", e);
+        }
+    }
+
+    @Override
+    public int executionPeriod() {
+        return Time.MS_PER_MIN;
+    }
+
+    @Override
+    public ExecutionType getExecutionType() {
+        return ExecutionType.FIXED_RATE;
+    }
+}
@@ -1,18 +1,39 @@
 /* (C)2023 */
 package org.transitclock.core.reports;
 
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.time.LocalDateTime;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.transitclock.domain.hibernate.HibernateUtils;
 import org.transitclock.domain.webstructs.WebAgency;
 import org.transitclock.utils.Time;
 
+@Slf4j
 public class Reports {
 
     private static final int MAX_ROWS = 50000;
 
     private static final int MAX_NUM_DAYS = 7;
 
+    // First hour with complete rollups, keyed on agency and rollups table.
+    // Doesn't change once there is one so is only read from the db once.
+    private static final Map<String, Date> firstRollupHourByTable = new ConcurrentHashMap<>();
+
     /**
      * Queries agency for AVL data and returns result as a JSON string. Limited to returning
      * MAX_ROWS (50,000) data points.
@@ -214,6 +235,70 @@ public class Reports {
         return json;
     }
 
+    /**
+     * Same as getTripsWithTravelTimes() but reads the trip_stop_time_rollups maintained by the
+     * ReportRollupsModule, which already have the departure for each arrival, instead of joining
+     * arrivals_departures with itself.
+     *
+     * @param agencyId
+     * @param date
+     * @return the trips with travel times in JSON format
+     */
+    public static String getTripsWithTravelTimesFromRollups(String agencyId, String date) {
+        SqlUtils.throwOnSqlInjection(date);
+
+        // For dates that the rollups are not complete for use arrivals_departures.
+        // A bad date is left to the report query to deal with.
+        Date begin = parseDate(date, "yyyy-MM-dd");
+        if (begin != null
+                && !rollupsCover(agencyId, ReportRollups.TRIP_STOP_TIME_ROLLUPS_TABLE, begin, addDays(begin, 1)))
+            return getTripsWithTravelTimes(agencyId, date);
+
+        String sql = "SELECT"
+                + "	r.trip_id as tripId"
+                + "	,r.direction_id as directionId"
+                + "	,r.stop_id as stopId"
+                + "	,stops.code as stopCode"
+                + "	,stops.name as stopName"
+                + "	,stops.lat as lat"
+                + "	,stops.lon as lon"
+                + "	,r.stop_order as stopOrder"
+                + "	,r.vehicle_id as vehicleId"
+                + "	,vehicle_configs.name as vehicleName"
+                + "	,r.arrival_time as arrivalTime"
+                + "	,r.departure_time as departureTime"
+                + "	,CASE WHEN r.departure_scheduled_time ISNULL"
+                + "	 THEN DATE('"
+                + date
+                + "') + trip_scheduled_times_list.arrival_time * interval '1 second'"
+                + "	 ELSE r.departure_scheduled_time"
+                + "	 END AS scheduledTime"
+                + "	,CASE WHEN r.departure_scheduled_time ISNULL"
+                + "	 THEN regexp_replace(CAST(DATE_TRUNC('second', DATE('"
+                + date
+                + "') + trip_scheduled_times_list.arrival_time * interval '1 second') -"
+                + " DATE_TRUNC('second', r.arrival_time::timestamp) AS VARCHAR),"
+                + " '^00:', '')      ELSE regexp_replace(CAST(DATE_TRUNC('second',"
+                + " r.departure_scheduled_time::timestamp) - DATE_TRUNC('second',"
+                + " r.departure_time::timestamp) AS VARCHAR), '^00:', '') 	 END AS"
+                + " difference_in_seconds	FROM trip_stop_time_rollups r LEFT JOIN stops ON"
+                + " stops.id = r.stop_id 	and stops.config_rev = r.config_rev"
+                + " LEFT JOIN vehicle_configs on vehicle_configs.id = r.vehicle_id"
+                + " LEFT JOIN trip_scheduled_times_list ON"
+                + " trip_scheduled_times_list.trip_trip_id = r.trip_id 	AND"
+                + " trip_scheduled_times_list.trip_config_rev = r.config_rev "
+                + "	AND trip_scheduled_times_list.list_index = r.stop_order"
+                // Range instead of Date(arrival_time) so that the index is used
+                + " WHERE r.arrival_time >= DATE('"
+                + date
+                + "') AND r.arrival_time < DATE('"
+                + date
+                + "') + INTERVAL '1 day'"
+                + " ORDER BY r.trip_id asc, r.gtfs_stop_seq asc, r.arrival_time asc";
+
+        return GenericJsonQuery.getJsonString(agencyId, sql);
+    }
+
     /* Provides schedule adherence data in JSON format. Provides for
       the specified route the number arrivals/departures that
       are early, number late, number on time, and number total for each
@@ -435,6 +520,129 @@ public class Reports {
         return jsonString;
     }
 
+    /**
+     * Same as getScheduleAdhByStops() but reads the schedule_adherence_rollups maintained by the
+     * ReportRollupsModule instead of arrivals_departures. The rollups are per hour so the time of
+     * day range is widened to start at the beginning of the hour of beginTime.
+     */
+    public static String getScheduleAdhByStopsFromRollups(
+            String agencyId,
+            String route,
+            String beginDate,
+            String allowableEarly,
+            String allowableLate,
+            String beginTime,
+            String endTime,
+            int numDays) {
+        // For dates that the rollups are not complete for use arrivals_departures.
+        // The BETWEEN of the time range clause includes the hour starting at the
+        // end of the last day. A bad date is left to the report query to deal with.
+        Date begin = parseDate(beginDate, "MM-dd-yyyy");
+        if (begin != null) {
+            Date end = new Date(addDays(begin, Math.min(numDays, MAX_NUM_DAYS)).getTime() + Time.MS_PER_HOUR);
+            if (!rollupsCover(agencyId, ReportRollups.SCHEDULE_ADH_ROLLUPS_TABLE, begin, end))
+                return getScheduleAdhByStops(
+                        agencyId, route, beginDate, allowableEarly, allowableLate, beginTime, endTime, numDays);
+        }
+
+        if (allowableEarly == null || allowableEarly.isEmpty()) allowableEarly = "1.0";
+        if (allowableLate == null || allowableLate.isEmpty()) allowableLate = "4.0";
+
+        if (beginTime != null && beginTime.contains(":"))
+            beginTime = beginTime.substring(0, beginTime.indexOf(':')) + ":00";
+
+        String sql = "SELECT r.direction_id, s.name AS stop_name, r.stop_id, r.stop_order, r.trip_ids,"
+                + " r.adherence_msecs \n"
+                + "FROM schedule_adherence_rollups r INNER JOIN stops s \n"
+                + " ON s.id = r.stop_id AND s.config_rev = r.config_rev \n"
+                + "WHERE true \n"
+                + SqlUtils.routeClause(route, "r")
+                + "\n"
+                + SqlUtils.timeRangeClause(
+                        agencyId, "r.rollup_hour", MAX_NUM_DAYS, numDays, beginTime, endTime, beginDate);
+
+        return ScheduleAdhRollupsQuery.getJsonString(
+                agencyId,
+                sql,
+                SqlUtils.convertMinutesToSecs(allowableEarly),
+                SqlUtils.convertMinutesToSecs(allowableLate));
+    }
+
+    /**
+     * Returns the date in the format, or null if it can't be parsed.
+     */
+    private static Date parseDate(String date, String dateFormat) {
+        try {
+            return new SimpleDateFormat(dateFormat).parse(date);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+
+    private static Date addDays(Date date, int numDays) {
+        Calendar calendar = new GregorianCalendar();
+        calendar.setTime(date);
+        calendar.add(Calendar.DAY_OF_MONTH, numDays);
+        return calendar.getTime();
+    }
+
+    /**
+     * Returns true if the rollups in the table are complete for every hour from begin to end,
+     * meaning that a report for the range can be created from them. Rollups are only stored while
+     * the ReportRollupsModule is running so for older dates, and for hours when it wasn't running
+     * or that haven't been completed yet, the reports have to be created from arrivals_departures.
+     *
+     * @param agencyId
+     * @param table The rollups table
+     * @param begin Start of the first hour of the report
+     * @param end End of the last hour of the report
+     * @return true if the rollups cover the range
+     */
+    private static boolean rollupsCover(String agencyId, String table, Date begin, Date end) {
+        String key = agencyId + "/" + table;
+        Date cachedFirstHour = firstRollupHourByTable.get(key);
+        if (cachedFirstHour != null && begin.before(cachedFirstHour)) return false;
+
+        try (Session session = HibernateUtils.getSession(agencyId, true)) {
+            return session.doReturningWork(connection -> {
+                Date firstHour = cachedFirstHour;
+                if (firstHour == null) {
+                    try (PreparedStatement statement = connection.prepareStatement(
+                            "SELECT min(rollup_hour) FROM report_rollup_hours WHERE rollups_table = ?")) {
+                        statement.setString(1, table);
+                        try (ResultSet rs = statement.executeQuery()) {
+                            firstHour = rs.next() ? rs.getTimestamp(1) : null;
+                        }
+                    }
+                    if (firstHour == null) return false;
+                    firstRollupHourByTable.put(key, firstHour);
+                }
+                if (begin.before(firstHour)) return false;
+
+                // Hours are counted by local time, same as they are stored,
+                // so that the repeated hour when daylight saving time ends is
+                // only counted once
+                Set<LocalDateTime> hours = new HashSet<>();
+                for (long time = begin.getTime(); time < end.getTime(); time += Time.MS_PER_HOUR)
+                    hours.add(new Timestamp(time).toLocalDateTime());
+
+                try (PreparedStatement statement = connection.prepareStatement("SELECT count(DISTINCT rollup_hour)"
+                        + " FROM report_rollup_hours"
+                        + " WHERE rollups_table = ? AND rollup_hour >= ? AND rollup_hour < ?")) {
+                    statement.setString(1, table);
+                    statement.setTimestamp(2, new Timestamp(begin.getTime()));
+                    statement.setTimestamp(3, new Timestamp(end.getTime()));
+                    try (ResultSet rs = statement.executeQuery()) {
+                        return rs.next() && rs.getInt(1) == hours.size();
+                    }
+                }
+            });
+        } catch (HibernateException e) {
+            logger.error("Could not determine the hours covered by {}", table, e);
+            return false;
+        }
+    }
+
     /* Provides schedule adherence data in JSON format. Provides for
       the specified route the number arrivals/departures that
       are early, number late, number on time, and number total for each
@@ -0,0 +1,199 @@
+/* (C)2023 */
+package org.transitclock.core.reports;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.slf4j.Slf4j;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.transitclock.domain.GenericQuery;
+import org.transitclock.utils.Time;
+
+/**
+ * Reads schedule_adherence_rollups rows and determines, per stop, the number of early, on time, and
+ * late arrivals/departures and which trips were early or late, the same as the SQL of
+ * Reports.getScheduleAdhByStops() does from arrivals_departures. Returns the same JSON as that
+ * query.
+ */
+@Slf4j
+class ScheduleAdhRollupsQuery extends GenericQuery {
+
+    // Same grouping as the schedule adherence report
+    private record StopKey(String directionId, String stopName, String stopId, Integer stopOrder) {}
+
+    private record TripAdherence(String tripId, String difference) {}
+
+    /**
+     * The early, on time, and late counts and the early and late trips of a stop. Determined the
+     * same as the SQL of the schedule adherence report: whether early or late is from comparing the
+     * times without truncating them while the difference shown for a trip is of the times truncated
+     * to the second.
+     */
+    static class StopData {
+        private final int allowableEarlySecs;
+        private final int allowableLateSecs;
+        private long early;
+        private long ontime;
+        private long late;
+        private final List<TripAdherence> tripsEarly = new ArrayList<>();
+        private final List<TripAdherence> tripsLate = new ArrayList<>();
+
+        StopData(int allowableEarlySecs, int allowableLateSecs) {
+            this.allowableEarlySecs = allowableEarlySecs;
+            this.allowableLateSecs = allowableLateSecs;
+        }
+
+        /**
+         * Adds an arrival/departure. Scheduled times are whole seconds, so truncating the time to
+         * the second is the same as rounding the adherence up when early and down when late.
+         *
+         * @param tripId
+         * @param adherenceMsecs Time minus scheduled time
+         */
+        void add(String tripId, long adherenceMsecs) {
+            if (-adherenceMsecs > allowableEarlySecs * (long) Time.MS_PER_SEC) {
+                ++early;
+                int earlySecs = (int) -Math.floorDiv(adherenceMsecs, (long) Time.MS_PER_SEC);
+                tripsEarly.add(new TripAdherence(tripId, difference(earlySecs)));
+            } else if (adherenceMsecs > allowableLateSecs * (long) Time.MS_PER_SEC) {
+                ++late;
+                int lateSecs = (int) Math.floorDiv(adherenceMsecs, (long) Time.MS_PER_SEC);
+                tripsLate.add(new TripAdherence(tripId, difference(lateSecs)));
+            } else {
+                ++ontime;
+            }
+        }
+
+        long getEarly() {
+            return early;
+        }
+
+        long getOntime() {
+            return ontime;
+        }
+
+        long getLate() {
+            return late;
+        }
+
+        /**
+         * @return The early trips as "tripId (difference)" ordered by trip, or null if there are none
+         */
+        String getTripsEarly() {
+            return tripsString(tripsEarly);
+        }
+
+        /**
+         * @return The late trips as "tripId (difference)" ordered by trip, or null if there are none
+         */
+        String getTripsLate() {
+            return tripsString(tripsLate);
+        }
+    }
+
+    private static final Comparator<StopKey> STOP_ORDER = Comparator.comparing(
+                    StopKey::directionId, Comparator.nullsLast(Comparator.<String>naturalOrder()))
+            .thenComparing(StopKey::stopOrder, Comparator.nullsLast(Comparator.<Integer>naturalOrder()))
+            .thenComparing(StopKey::stopName, Comparator.nullsLast(Comparator.<String>naturalOrder()));
+
+    private final int allowableEarlySecs;
+    private final int allowableLateSecs;
+    private final Map<StopKey, StopData> dataByStop = new HashMap<>();
+
+    private ScheduleAdhRollupsQuery(String agencyId, int allowableEarlySecs, int allowableLateSecs)
+            throws SQLException {
+        super(agencyId);
+        this.allowableEarlySecs = allowableEarlySecs;
+        this.allowableLateSecs = allowableLateSecs;
+    }
+
+    /**
+     * Same format as the difference_in_seconds of the schedule adherence report, which is the
+     * interval with a leading "00:" hours removed.
+     */
+    private static String difference(int secs) {
+        String difference = Time.timeOfDayStr(secs);
+        return difference.startsWith("00:") ? difference.substring(3) : difference;
+    }
+
+    /**
+     * The values must be, in order, direction_id, stop_name, stop_id, stop_order, trip_ids, and
+     * adherence_msecs.
+     */
+    @Override
+    protected void addRow(List<Object> values) {
+        StopKey key = new StopKey(
+                (String) values.get(0),
+                (String) values.get(1),
+                (String) values.get(2),
+                values.get(3) != null ? ((Number) values.get(3)).intValue() : null);
+        StopData data = dataByStop.computeIfAbsent(key, k -> new StopData(allowableEarlySecs, allowableLateSecs));
+
+        JSONArray tripIds = new JSONArray(String.valueOf(values.get(4)));
+        JSONArray adherenceMsecs = new JSONArray(String.valueOf(values.get(5)));
+        for (int i = 0; i < tripIds.length(); ++i) {
+            data.add(tripIds.getString(i), adherenceMsecs.getLong(i));
+        }
+    }
+
+    /**
+     * @return The trips as "tripId (difference)" ordered by trip, or null if there are none
+     */
+    private static String tripsString(List<TripAdherence> trips) {
+        if (trips.isEmpty()) return null;
+
+        trips.sort(Comparator.comparing(TripAdherence::tripId));
+        List<String> tripStrings = new ArrayList<>(trips.size());
+        for (TripAdherence trip : trips) tripStrings.add(trip.tripId() + " (" + trip.difference() + ")");
+        return String.join("; ", tripStrings);
+    }
+
+    private String toJsonString() {
+        List<StopKey> stopKeys = new ArrayList<>(dataByStop.keySet());
+        stopKeys.sort(STOP_ORDER);
+
+        JSONArray rows = new JSONArray();
+        for (StopKey key : stopKeys) {
+            StopData data = dataByStop.get(key);
+            JSONObject row = new JSONObject();
+            row.put("early", data.getEarly());
+            row.put("ontime", data.getOntime());
+            row.put("late", data.getLate());
+            row.put("total", data.getEarly() + data.getOntime() + data.getLate());
+            row.put("stop_name", key.stopName());
+            row.put("direction_id", key.directionId());
+            row.put("trips_early", data.getTripsEarly());
+            row.put("trips_late", data.getTripsLate());
+            rows.put(row);
+        }
+        return new JSONObject().put("data", rows).toString();
+    }
+
+    /**
+     * Does the SQL query of the rollups and returns the JSON formatted schedule adherence.
+     *
+     * @param agencyId
+     * @param sql Query that returns direction_id, stop_name, stop_id, stop_order, trip_ids, and
+     *     adherence_msecs columns of schedule_adherence_rollups
+     * @param allowableEarlySecs
+     * @param allowableLateSecs
+     */
+    static String getJsonString(String agencyId, String sql, int allowableEarlySecs, int allowableLateSecs) {
+        try {
+            ScheduleAdhRollupsQuery query =
+                    new ScheduleAdhRollupsQuery(agencyId, allowableEarlySecs, allowableLateSecs);
+            query.doQuery(sql);
+            logger.debug(
+                    "Read {} schedule adherence rollups for {} stops",
+                    query.getNumberOfRows(),
+                    query.dataByStop.size());
+            return query.toJsonString();
+        } catch (SQLException e) {
+            return e.getMessage();
+        }
+    }
+}
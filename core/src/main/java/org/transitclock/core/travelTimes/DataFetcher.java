@@ -12,6 +12,8 @@ import org.transitclock.utils.MapKey;
 import org.transitclock.utils.Time;
 
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * For retrieving historic AVL based data from database so that travel times can be determined.
@@ -43,12 +45,29 @@ public class DataFetcher {
      *     values such as java.util.Calendar.MONDAY . Set to null if not going to use.
      */
     public DataFetcher(String dbName, List<Integer> newSpecialDaysOfWeek) {
-        // Create the member calendar using timezone specified in db for the
-        // agency. Use the currently active config rev.
+        this(getTimeZone(dbName));
+    }
+
+    /**
+     * For when already know the timezone of the agency, such as when creating a DataFetcher for
+     * each partition of the data.
+     *
+     * @param timezone
+     */
+    public DataFetcher(TimeZone timezone) {
+        calendar = new GregorianCalendar(timezone);
+    }
+
+    /**
+     * Returns the timezone specified in db for the agency. Uses the currently active config rev.
+     *
+     * @param dbName
+     * @return
+     */
+    public static TimeZone getTimeZone(String dbName) {
         int configRev = ActiveRevision.get(dbName).getConfigRev();
         List<Agency> agencies = Agency.getAgencies(dbName, configRev);
-        TimeZone timezone = agencies.get(0).getTimeZone();
-        calendar = new GregorianCalendar(timezone);
+        return agencies.get(0).getTimeZone();
     }
 
     /**
@@ -163,6 +182,68 @@ public class DataFetcher {
         return new DbDataMapKey(serviceId, dayOfYear(date), tripId, vehicleId);
     }
 
+    /** Reads a page of rows that come after the specified time and vehicleId. */
+    @FunctionalInterface
+    interface PageReader<T> {
+        List<T> read(Date afterTime, String afterVehicleId);
+    }
+
+    /**
+     * Reads all the rows a page at a time using keyset paging on time and vehicleId, which unlike
+     * an offset doesn't get slower for the later pages. Since a page starts at the time and
+     * vehicleId of the last row of the previous page, the rows at the end of a full page with that
+     * time and vehicleId are left for the next page so that they are not handled twice.
+     *
+     * @param pageReader For reading a page
+     * @param timeOf The time of a row
+     * @param vehicleIdOf The vehicleId of a row
+     * @param pageSize Number of rows per page
+     * @param consumer Handles each row
+     * @param description For logging
+     */
+    static <T> void readPages(
+            PageReader<T> pageReader,
+            Function<T, Date> timeOf,
+            Function<T, String> vehicleIdOf,
+            int pageSize,
+            Consumer<T> consumer,
+            String description) {
+        Date afterTime = null;
+        String afterVehicleId = null;
+        int runningCount = 0;
+        while (true) {
+            List<T> page = pageReader.read(afterTime, afterVehicleId);
+            if (page == null) throw new RuntimeException("Could not read page of " + description + " from db");
+
+            // If last page then done
+            if (page.size() < pageSize) {
+                page.forEach(consumer);
+                runningCount += page.size();
+                break;
+            }
+
+            // Leave the rows with the same time and vehicleId as the last
+            // row for the next page
+            T last = page.get(page.size() - 1);
+            int end = page.size();
+            while (end > 0
+                    && Objects.equals(timeOf.apply(page.get(end - 1)), timeOf.apply(last))
+                    && Objects.equals(vehicleIdOf.apply(page.get(end - 1)), vehicleIdOf.apply(last))) {
+                --end;
+            }
+            if (end == 0)
+                throw new RuntimeException("More than " + pageSize + " " + description
+                        + " with the same time and vehicleId. Need to increase transitclock.updates.pageSize.");
+
+            page.subList(0, end).forEach(consumer);
+            runningCount += end;
+            afterTime = timeOf.apply(last);
+            afterVehicleId = vehicleIdOf.apply(last);
+            logger.info("Read in total of {} {}", runningCount, description);
+        }
+        logger.info("Read in total of {} {}", runningCount, description);
+    }
+
     /**
      * Adds the arrival/departure to the map.
      *
@@ -194,8 +275,6 @@ public class DataFetcher {
         // For returning the results
         Map<DbDataMapKey, List<ArrivalDeparture>> resultsMap = new HashMap<DbDataMapKey, List<ArrivalDeparture>>();
 
-        // For keeping track of which rows should be returned by the batch.
-        int firstResult = 0;
         // Batch size of 50k found to be significantly faster than 10k,
         // by about a factor of 2. Since sometimes using really large
         // batches of data using 500k
@@ -238,33 +317,16 @@ public class DataFetcher {
 
             } while (pageEndTime.before(endTime));
         } else {
-            // Read in batch of 50k rows of data and process it
-            do {
-                arrDepBatchList = ArrivalDeparture.getArrivalsDeparturesFromDb(
-                        dbName,
-                        beginTime,
-                        endTime,
-                        // Order results by time so that process them in the same
-                        // way that a vehicle travels.
-                        "ORDER BY time", // SQL clause
-                        firstResult,
-                        batchSize,
-                        null); // arrivalOrDeparture. Null means read in both
-
-                // Add arrivals/departures to map
-                for (ArrivalDeparture arrDep : arrDepBatchList) {
-                    addArrivalDepartureToMap(resultsMap, arrDep);
-                }
-
-                logger.info(
-                        "Read in total of {} arrival/departures of {} {}%",
-                        firstResult + arrDepBatchList.size(),
-                        count,
-                        (0.0 + firstResult + arrDepBatchList.size()) / count * 100);
-
-                // Update firstResult for reading next batch of data
-                firstResult += batchSize;
-            } while (arrDepBatchList.size() == batchSize);
+            // Read in batch of 50k rows of data at a time. Ordered by time so
+            // that process them in the same way that a vehicle travels.
+            readPages(
+                    (afterTime, afterVehicleId) -> ArrivalDeparture.getArrivalsDeparturesPageFromDb(
+                            dbName, beginTime, endTime, afterTime, afterVehicleId, batchSize),
+                    ArrivalDeparture::getDate,
+                    ArrivalDeparture::getVehicleId,
+                    batchSize,
+                    arrDep -> addArrivalDepartureToMap(resultsMap, arrDep),
+                    "arrival/departures");
         }
         logger.info("Reading arrival/departures took {} msec", timer.elapsedMsec());
 
@@ -298,8 +360,6 @@ public class DataFetcher {
         // For returning the results
         Map<DbDataMapKey, List<Match>> resultsMap = new HashMap<DbDataMapKey, List<Match>>();
 
-        // For keeping track of which rows should be returned by the batch.
-        int firstResult = 0;
         // Batch size of 50k found to be significantly faster than 10k,
         // by about a factor of 2.  Since sometimes using really large
         // batches of data using 500k
@@ -334,34 +394,18 @@ public class DataFetcher {
 
             } while (pageEndTime.before(endTime));
         } else {
-            // Read in batch of 50k rows of data and process it
-            do {
-                matchBatchList = Match.getMatchesFromDb(
-                        projectId,
-                        beginTime,
-                        endTime,
-                        // Only want matches that are not at a stop since for that
-                        // situation instead using arrivals/departures.
-                        // Order results by time so that process them in the same
-                        // way that a vehicle travels.
-                        sqlClause, // SQL clause
-                        firstResult,
-                        batchSize);
-
-                // Add arrivals/departures to map
-                for (Match match : matchBatchList) {
-                    addMatchToMap(resultsMap, match);
-                }
-
-                logger.info(
-                        "Read in total of {} matches of {} {}%",
-                        firstResult + matchBatchList.size(),
-                        count,
-                        (0.0 + firstResult + matchBatchList.size()) / count * 100);
-
-                // Update firstResult for reading next batch of data
-                firstResult += batchSize;
-            } while (matchBatchList.size() == batchSize);
+            // Read in batch of 50k rows of data at a time. Only want matches
+            // that are not at a stop since for that situation instead using
+            // arrivals/departures. Ordered by time so that process them in
+            // the same way that a vehicle travels.
+            readPages(
+                    (afterTime, afterVehicleId) -> Match.getMatchesPageFromDb(
+                            projectId, beginTime, endTime, "AND atStop = false", afterTime, afterVehicleId, batchSize),
+                    Match::getDate,
+                    Match::getVehicleId,
+                    batchSize,
+                    match -> addMatchToMap(resultsMap, match),
+                    "matches");
         }
         logger.info("Reading matches took {} msec", timer.elapsedMsec());
 
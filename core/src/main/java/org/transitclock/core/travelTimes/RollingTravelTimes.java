@@ -0,0 +1,262 @@
+/* (C)2023 */
+package org.transitclock.core.travelTimes;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.core.TemporalMatch;
+import org.transitclock.core.VehicleState;
+import org.transitclock.core.travelTimes.TravelTimesProcessor.MatchPoint;
+import org.transitclock.core.travelTimes.TravelTimesProcessor.ProcessedData;
+import org.transitclock.core.travelTimes.TravelTimesProcessor.ProcessedDataMapKey;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+
+/**
+ * Determines the stop times and travel times from the arrivals/departures as they are generated,
+ * using the match history of the vehicle for the travel time segments, and keeps them a service
+ * day at a time. This way the RollingTravelTimesModule can periodically create travel times from
+ * the last few service days without reading the arrivals/departures and matches back from the db
+ * as UpdateTravelTimes does. The stop times and travel times are processed the same way as by
+ * TravelTimesProcessor.
+ *
+ * <p>Data is only collected once the RollingTravelTimesModule has been created. Until then
+ * getInstance() returns null. The service days of the window before then are read from the db by
+ * seedFromDb() so that the travel times are not just for the time since the core was started.
+ */
+@Slf4j
+public class RollingTravelTimes {
+
+    private static volatile RollingTravelTimes singleton = null;
+
+    private final TimeZone timezone;
+
+    // When data started being collected. Data from before this needs to be
+    // read from the db.
+    private final long collectingSince;
+
+    // The data for each service day, keyed on the start time of the
+    // service day
+    private final NavigableMap<Long, ProcessedData> dataByServiceDay = new ConcurrentSkipListMap<>();
+
+    // The last arrival/departure for each vehicle so that it can be paired
+    // with the next one. Keyed on vehicleId.
+    private final Map<String, ArrivalDeparture> lastArrDepByVehicle = new ConcurrentHashMap<>();
+
+    /**
+     * @param timezone Timezone of the agency, for determining the service days
+     */
+    RollingTravelTimes(TimeZone timezone) {
+        this.timezone = timezone;
+        this.collectingSince = SystemTime.getMillis();
+    }
+
+    /**
+     * Returns the singleton, or null if the RollingTravelTimesModule hasn't been created so the
+     * data isn't being collected.
+     *
+     * @return the RollingTravelTimes or null
+     */
+    public static RollingTravelTimes getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Creates the singleton if it hasn't already been created so that data starts to be collected.
+     * The core sets the default timezone to the timezone of the agency.
+     *
+     * @return the RollingTravelTimes singleton
+     */
+    static synchronized RollingTravelTimes createInstance() {
+        if (singleton == null) singleton = new RollingTravelTimes(TimeZone.getDefault());
+        return singleton;
+    }
+
+    /**
+     * Start time of the service day that the time is in. A service day starts at 3am, the same as
+     * for TravelTimesProcessor, so that a vehicle trip is within a single service day.
+     *
+     * @param time
+     * @return start of the service day in epoch msec
+     */
+    private long serviceDayStart(long time) {
+        Calendar calendar = new GregorianCalendar(timezone);
+        calendar.setTimeInMillis(time - 3 * Time.MS_PER_HOUR);
+        calendar.set(Calendar.HOUR_OF_DAY, 3);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * The two arrivals/departures are for the same trip of the vehicle, in order, so the stop and
+     * travel times between them can be determined. Same as the arrivals/departures being in the
+     * same list for a trip for TravelTimesProcessor.
+     */
+    static boolean sameTrip(ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
+        return arrDep1.getTripIndex() == arrDep2.getTripIndex()
+                && arrDep1.getTripId().equals(arrDep2.getTripId())
+                && arrDep1.getStopPathIndex() <= arrDep2.getStopPathIndex()
+                && arrDep1.getTime() <= arrDep2.getTime();
+    }
+
+    /**
+     * Gets the matches from the match history of the vehicle that are along the stop path of the
+     * arrival and are between the departure and the arrival.
+     *
+     * @param matches The match history of the vehicle, most recent match first
+     * @param departure The departure from the previous stop
+     * @param arrival The arrival that defines the stop path
+     * @return List of MatchPoints, in order of time. Never null.
+     */
+    static List<MatchPoint> getMatchPoints(
+            List<TemporalMatch> matches, ArrivalDeparture departure, ArrivalDeparture arrival) {
+        List<MatchPoint> matchPoints = new ArrayList<>();
+
+        // Match history has the most recent match first
+        for (TemporalMatch match : matches) {
+            if (match == null || match.getAvlTime() <= departure.getTime()) break;
+            if (match.getAvlTime() >= arrival.getTime()
+                    || match.getTripIndex() != arrival.getTripIndex()
+                    || match.getStopPathIndex() != arrival.getStopPathIndex()) continue;
+
+            matchPoints.add(new MatchPoint(
+                    new Date(match.getAvlTime()),
+                    (float) match.getDistanceAlongStopPath(),
+                    MatchPoint.MatchPointReason.MATCH));
+        }
+        Collections.reverse(matchPoints);
+        return matchPoints;
+    }
+
+    /**
+     * Processes a newly generated arrival/departure together with the previous one for the vehicle
+     * into the stop times and travel times for the service day.
+     *
+     * @param vehicleState For the match history of the vehicle
+     * @param arrDep The new arrival/departure
+     */
+    public void putArrivalDeparture(VehicleState vehicleState, ArrivalDeparture arrDep) {
+        ArrivalDeparture previous = lastArrDepByVehicle.put(arrDep.getVehicleId(), arrDep);
+
+        ProcessedData data = new ProcessedData();
+        if (arrDep.getStopPathIndex() == 0 && arrDep.isDeparture()) {
+            TravelTimesProcessor.processFirstStopOfTrip(arrDep, data);
+        }
+
+        // Don't care when vehicle arrives at layover at first stop of trip
+        if (previous != null
+                && sameTrip(previous, arrDep)
+                && !(previous.getStopPathIndex() == 0 && previous.isArrival())) {
+            TravelTimesProcessor.processDataBetweenTwoArrivalDepartures(
+                    arrival -> getMatchPoints(vehicleState.getMatches(), previous, arrival), previous, arrDep, data);
+        }
+
+        if (!data.isEmpty()) addData(arrDep.getTime(), data);
+    }
+
+    /**
+     * Adds the processed data to the data for the service day that the time is in.
+     *
+     * @param time
+     * @param data
+     */
+    private void addData(long time, ProcessedData data) {
+        ProcessedData dataForServiceDay =
+                dataByServiceDay.computeIfAbsent(serviceDayStart(time), k -> new ProcessedData());
+        synchronized (dataForServiceDay) {
+            dataForServiceDay.add(data);
+        }
+    }
+
+    /**
+     * Start of the oldest service day that is within the window of days.
+     *
+     * @param now Current time
+     * @param windowDays Number of service days, including the current one
+     * @return start of the service day in epoch msec
+     */
+    private long oldestServiceDayStart(long now, int windowDays) {
+        return serviceDayStart(now - (long) (windowDays - 1) * Time.MS_PER_DAY);
+    }
+
+    /**
+     * Reads the arrivals/departures and matches from the db for the part of the window of days from
+     * before the data started being collected, a service day at a time, and processes them the same
+     * way as TravelTimesProcessor does. This way the travel times are for the whole window of days
+     * right after the core is restarted instead of for just the time since then.
+     *
+     * @param agencyId
+     * @param now Current time
+     * @param windowDays Number of service days, including the current one, to keep
+     */
+    public void seedFromDb(String agencyId, long now, int windowDays) {
+        Date beginTime = new Date(oldestServiceDayStart(now, windowDays));
+        Date endTime = new Date(collectingSince);
+        for (Date[] serviceDay : TravelTimesProcessor.serviceDays(beginTime, endTime, timezone)) {
+            ProcessedData data =
+                    TravelTimesProcessor.readAndProcessServiceDay(agencyId, timezone, serviceDay[0], serviceDay[1]);
+            if (data != null && !data.isEmpty()) addData(serviceDay[0].getTime(), data);
+        }
+    }
+
+    /**
+     * Removes the data for the service days that are no longer within the window of days.
+     *
+     * @param now Current time
+     * @param windowDays Number of service days, including the current one, to keep
+     */
+    public void removeOldServiceDays(long now, int windowDays) {
+        dataByServiceDay.headMap(oldestServiceDayStart(now, windowDays)).clear();
+    }
+
+    /**
+     * @return Number of service days that there is data for
+     */
+    public int getNumberServiceDays() {
+        return dataByServiceDay.size();
+    }
+
+    /**
+     * Adds the stop times and travel times of all the service days that are kept to the maps.
+     *
+     * @param stopTimesMap
+     * @param travelTimesMap
+     */
+    void addDataTo(
+            Map<ProcessedDataMapKey, List<Integer>> stopTimesMap,
+            Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap) {
+        for (ProcessedData dataForServiceDay : dataByServiceDay.values()) {
+            synchronized (dataForServiceDay) {
+                dataForServiceDay.addTo(stopTimesMap, travelTimesMap);
+            }
+        }
+    }
+
+    /**
+     * Creates the travel times from the data for all the service days that are kept.
+     *
+     * @param tripMap contains all the trips that are configured and that need travel times for.
+     * @return TravelTimeInfoMap The generated travel times
+     */
+    public TravelTimeInfoMap createTravelTimes(Map<String, Trip> tripMap) {
+        Map<ProcessedDataMapKey, List<Integer>> stopTimesMap = new HashMap<>();
+        Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap = new HashMap<>();
+        addDataTo(stopTimesMap, travelTimesMap);
+        logger.info("Creating travel times from {} service days of rolling data", dataByServiceDay.size());
+        return TravelTimesProcessor.createTravelTimes(stopTimesMap, travelTimesMap, tripMap);
+    }
+}
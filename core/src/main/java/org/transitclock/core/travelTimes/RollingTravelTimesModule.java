@@ -0,0 +1,94 @@
+/* (C)2023 */
+package org.transitclock.core.travelTimes;
+
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.Core;
+import org.transitclock.Module;
+import org.transitclock.UpdateTravelTimes;
+import org.transitclock.UpdateTravelTimes.StoredTravelTimes;
+import org.transitclock.config.data.TraveltimesConfig;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.SystemTime;
+import org.transitclock.utils.Time;
+
+/**
+ * Maintains the travel times incrementally instead of by periodically running UpdateTravelTimes
+ * over weeks of arrivals/departures and matches read from the db. Creating the module starts
+ * RollingTravelTimes collecting the stop times and travel times as the arrivals/departures are
+ * generated. The first run reads the service days of the window from before then from the db.
+ * After that, every transitclock.traveltimes.rollingUpdateIntervalMinutes a new travel times rev
+ * is created from the last transitclock.traveltimes.rollingWindowDays service days of that data,
+ * stored in the db, and used by the trips of the running core. No travel times are created until
+ * there is data for transitclock.traveltimes.rollingMinServiceDays service days.
+ */
+@Slf4j
+public class RollingTravelTimesModule extends Module {
+
+    private final RollingTravelTimes rollingTravelTimes;
+
+    // Whether the service days from before the module was created have
+    // been read from the db yet
+    private boolean seeded = false;
+
+    public RollingTravelTimesModule(String agencyId) {
+        super(agencyId);
+        rollingTravelTimes = RollingTravelTimes.createInstance();
+    }
+
+    @Override
+    public void run() {
+        IntervalTimer timer = new IntervalTimer();
+        int windowDays = TraveltimesConfig.rollingWindowDays.getValue();
+        try {
+            if (!seeded) {
+                rollingTravelTimes.seedFromDb(agencyId, SystemTime.getMillis(), windowDays);
+                seeded = true;
+                logger.info(
+                        "Read {} service days of arrivals/departures from the db "
+                                + "for the rolling travel times in {} msec",
+                        rollingTravelTimes.getNumberServiceDays(),
+                        timer.elapsedMsec());
+                return;
+            }
+
+            rollingTravelTimes.removeOldServiceDays(SystemTime.getMillis(), windowDays);
+            int minServiceDays = Math.min(TraveltimesConfig.rollingMinServiceDays.getValue(), windowDays);
+            if (rollingTravelTimes.getNumberServiceDays() < minServiceDays) {
+                logger.info(
+                        "Only have data for {} service days but need {} so not storing new travel times",
+                        rollingTravelTimes.getNumberServiceDays(),
+                        minServiceDays);
+                return;
+            }
+
+            StoredTravelTimes storedTravelTimes =
+                    UpdateTravelTimes.manageSessionAndStoreTravelTimes(agencyId, rollingTravelTimes::createTravelTimes);
+            Core.getInstance()
+                    .getDbConfig()
+                    .useTravelTimes(storedTravelTimes.travelTimesRev(), storedTravelTimes.travelTimesByTripId());
+            logger.info(
+                    "Stored and switched to rolling travel times travelTimesRev={} in {} msec",
+                    storedTravelTimes.travelTimesRev(),
+                    timer.elapsedMsec());
+        } catch (Exception e) {
+            // Don't let the exception stop the scheduled executions
+            logger.error("Exception when storing rolling travel times", e);
+        }
+    }
+
+    @Override
+    public int initialExecutionDelay() {
+        // Read the previous service days from the db right away
+        return 0;
+    }
+
+    @Override
+    public int executionPeriod() {
+        return TraveltimesConfig.rollingUpdateIntervalMinutes.getValue() * Time.MS_PER_MIN;
+    }
+
+    @Override
+    public ExecutionType getExecutionType() {
+        return ExecutionType.FIXED_RATE;
+    }
+}
@@ -3,6 +3,7 @@ package org.transitclock.core.travelTimes;
 
 import lombok.extern.slf4j.Slf4j;
 import org.transitclock.config.data.TraveltimesConfig;
+import org.transitclock.config.data.UpdatesConfig;
 import org.transitclock.core.TemporalDifference;
 import org.transitclock.core.travelTimes.DataFetcher.DbDataMapKey;
 import org.transitclock.domain.structs.ArrivalDeparture;
@@ -11,8 +12,17 @@ import org.transitclock.domain.structs.StopPath;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.statistics.Statistics;
 import org.transitclock.utils.*;
+import org.transitclock.utils.threading.NamedThreadFactory;
 
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 /**
  * Takes arrival/departure times plus the matches (where vehicle is matched to a route between
@@ -66,6 +76,44 @@ public class TravelTimesProcessor {
     private static final Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap =
             new HashMap<ProcessedDataMapKey, List<List<Integer>>>();
 
+    /**
+     * The stop times and travel times processed from the historic data of a single service day.
+     * The service days are processed in parallel, each into its own ProcessedData, which are then
+     * merged into stopTimesMap and travelTimesMap.
+     */
+    static class ProcessedData {
+        private final Map<ProcessedDataMapKey, List<Integer>> stopTimes = new HashMap<>();
+        private final Map<ProcessedDataMapKey, List<List<Integer>>> travelTimes = new HashMap<>();
+
+        boolean isEmpty() {
+            return stopTimes.isEmpty() && travelTimes.isEmpty();
+        }
+
+        /**
+         * Adds the stop times and travel times of the other data to this data.
+         *
+         * @param other
+         */
+        void add(ProcessedData other) {
+            other.addTo(stopTimes, travelTimes);
+        }
+
+        /**
+         * Adds the stop times and travel times of this data to the specified maps.
+         *
+         * @param stopTimesMap
+         * @param travelTimesMap
+         */
+        void addTo(
+                Map<ProcessedDataMapKey, List<Integer>> stopTimesMap,
+                Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap) {
+            stopTimes.forEach((mapKey, times) ->
+                    stopTimesMap.computeIfAbsent(mapKey, k -> new ArrayList<>()).addAll(times));
+            travelTimes.forEach((mapKey, times) ->
+                    travelTimesMap.computeIfAbsent(mapKey, k -> new ArrayList<>()).addAll(times));
+        }
+    }
+
     private boolean isEmpty = true;
 
     public boolean isEmpty() {
@@ -110,34 +158,46 @@ public class TravelTimesProcessor {
     }
 
     /**
-     * Adds stop times for a stop path for a single trip to the stopTimesMap.
+     * Adds stop times for a stop path for a single trip to the stop times of the data.
      *
+     * @param data
      * @param mapKey
      * @param stopTimeMsec
      */
-    private static void addStopTimeToMap(ProcessedDataMapKey mapKey, int stopTimeMsec) {
-        List<Integer> stopTimesForStop = stopTimesMap.get(mapKey);
+    private static void addStopTimeToMap(ProcessedData data, ProcessedDataMapKey mapKey, int stopTimeMsec) {
+        List<Integer> stopTimesForStop = data.stopTimes.get(mapKey);
         if (stopTimesForStop == null) {
             stopTimesForStop = new ArrayList<Integer>();
-            stopTimesMap.put(mapKey, stopTimesForStop);
+            data.stopTimes.put(mapKey, stopTimesForStop);
         }
         stopTimesForStop.add(stopTimeMsec);
     }
 
     /**
-     * Adds travel times for stop path for a single trip to the travelTimesMap.
+     * Adds travel times for stop path for a single trip to the travel times of the data.
      *
+     * @param data
      * @param mapKey
      * @param travelTimesForStopPath
      */
-    private static void addTravelTimesToMap(ProcessedDataMapKey mapKey, List<Integer> travelTimesForStopPath) {
+    private static void addTravelTimesToMap(
+            ProcessedData data, ProcessedDataMapKey mapKey, List<Integer> travelTimesForStopPath) {
         // If there is no data then simply return
         if (travelTimesForStopPath == null || travelTimesForStopPath.isEmpty()) return;
 
-        List<List<Integer>> travelTimesForStop = travelTimesMap.computeIfAbsent(mapKey, k -> new ArrayList<>());
+        List<List<Integer>> travelTimesForStop = data.travelTimes.computeIfAbsent(mapKey, k -> new ArrayList<>());
         travelTimesForStop.add(travelTimesForStopPath);
     }
 
+    /**
+     * Adds the data processed for a service day to stopTimesMap and travelTimesMap.
+     *
+     * @param data
+     */
+    private static void mergeIntoMaps(ProcessedData data) {
+        data.addTo(stopTimesMap, travelTimesMap);
+    }
+
     /**
      * Just for debugging. Logs raw data for trip.
      *
@@ -155,8 +215,9 @@ public class TravelTimesProcessor {
      * bad adds the stop time to the stop wait map.
      *
      * @param arrDep
+     * @param data For the resulting stop time
      */
-    private static void processFirstStopOfTrip(ArrivalDeparture arrDep) {
+    static void processFirstStopOfTrip(ArrivalDeparture arrDep, ProcessedData data) {
         // Only need to handle departure for first stop in trip
         if (arrDep.getStopPathIndex() != 0) return;
 
@@ -183,7 +244,7 @@ public class TravelTimesProcessor {
                 getKey(arrDep.getTripId(), arrDep.getStopPathIndex(), arrDep.getStopId());
 
         // Add this stop time to map so it can be averaged
-        addStopTimeToMap(mapKeyForTravelTimes, lateTimeMsec);
+        addStopTimeToMap(data, mapKeyForTravelTimes, lateTimeMsec);
     }
 
     /**
@@ -227,7 +288,7 @@ public class TravelTimesProcessor {
      * Internal structure for keeping track of matches that are between an departure and an arrival.
      * Needed for when there are multiple travel time segments within a stop path.
      */
-    private static class MatchPoint {
+    static class MatchPoint {
         private final Date time;
         private final float distanceAlongStopPath;
         private final MatchPointReason reason;
@@ -238,16 +299,20 @@ public class TravelTimesProcessor {
             ARRIVAL
         }
 
-        private MatchPoint(Date time, float distance, MatchPointReason reason) {
+        MatchPoint(Date time, float distance, MatchPointReason reason) {
             this.time = time;
             this.distanceAlongStopPath = distance;
             this.reason = reason;
         }
 
-        private long getTime() {
+        long getTime() {
             return time.getTime();
         }
 
+        float getDistanceAlongStopPath() {
+            return distanceAlongStopPath;
+        }
+
         @Override
         public String toString() {
             return "MatchPoint ["
@@ -319,20 +384,39 @@ public class TravelTimesProcessor {
         return segLength;
     }
 
+    /**
+     * Gets the Matches from the DataFetcher that are associated with the stop path specified by
+     * arrDep (the path leading up to that stop) as MatchPoints.
+     *
+     * @param dataFetcher
+     * @param arrDep The arrival stop. Defines which stop path working with.
+     * @return List of MatchPoints for the matches along the stop path. Never returns null.
+     */
+    private static List<MatchPoint> getMatchPointsForStopPath(DataFetcher dataFetcher, ArrivalDeparture arrDep) {
+        List<MatchPoint> matchPoints = new ArrayList<MatchPoint>();
+        for (Match match : getMatchesForStopPath(dataFetcher, arrDep)) {
+            matchPoints.add(new MatchPoint(
+                    match.getDate(), match.getDistanceAlongStopPath(), MatchPoint.MatchPointReason.MATCH));
+        }
+        return matchPoints;
+    }
+
     /**
      * Gets the Matches that are associated with the stop path specified by arrDep2 (the path
      * leading up to that stop) for the same trip (makes sure it is for the same tripId for the same
      * day of the year). The returned matches will include the departure time from the first stop
      * (arrDep1), in between matches, and the arrival time as the second stop (arrDep2).
      *
-     * @param dataFetcher
+     * @param matchPointsForStopPath Provides the matches along the stop path of an arrival
      * @param arrDep1 The departure stop
      * @param arrDep2 The arrival stop. Also defines which stop path working with.
      * @return List of MatchPoints, which contain the basic Match info needed for determining travel
      *     times.
      */
     private static List<MatchPoint> getMatchPoints(
-            DataFetcher dataFetcher, ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
+            Function<ArrivalDeparture, List<MatchPoint>> matchPointsForStopPath,
+            ArrivalDeparture arrDep1,
+            ArrivalDeparture arrDep2) {
         // The array to be returned
         List<MatchPoint> matchPoints = new ArrayList<MatchPoint>();
 
@@ -340,14 +424,9 @@ public class TravelTimesProcessor {
         matchPoints.add(new MatchPoint(arrDep1.getDate(), 0.0f, MatchPoint.MatchPointReason.DEPARTURE));
 
         // Stop path is long enough such that have more than one travel
-        // time segment. Get the corresponding matches
-        List<Match> matchesForStopPath = getMatchesForStopPath(dataFetcher, arrDep2);
-
-        // Add the matches that are in between the arrival and the departure.
-        for (Match match : matchesForStopPath) {
-            matchPoints.add(new MatchPoint(
-                    match.getDate(), match.getDistanceAlongStopPath(), MatchPoint.MatchPointReason.MATCH));
-        }
+        // time segment. Add the matches that are in between the arrival
+        // and the departure.
+        matchPoints.addAll(matchPointsForStopPath.apply(arrDep2));
 
         // Add the arrival time to the list of data points
         matchPoints.add(
@@ -368,14 +447,16 @@ public class TravelTimesProcessor {
      * ends of the stop path, to determine the travel time for each travel time segment for this
      * particular trip.
      *
-     * @param dataFetcher
+     * @param matchPointsForStopPath Provides the matches along the stop path of an arrival
      * @param arrDep1 The departure stop
      * @param arrDep2 The arrival stop. Also defines which stop path working with.
      * @return List of travel times in msec. There is a separate travel time for each travel time
      *     segment. If the match points are garbled and go backwards in time then null is returned.
      */
-    private List<Integer> determineTravelTimesForStopPath(
-            DataFetcher dataFetcher, ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
+    private static List<Integer> determineTravelTimesForStopPath(
+            Function<ArrivalDeparture, List<MatchPoint>> matchPointsForStopPath,
+            ArrivalDeparture arrDep1,
+            ArrivalDeparture arrDep2) {
         // Determine departure time. If shouldn't use departures times
         // for terminal departure that are earlier then schedule time
         // then use the scheduled departure time. This prevents creating
@@ -410,7 +491,7 @@ public class TravelTimesProcessor {
         // segment.
         double travelTimeSegmentLength = getTravelTimeSegmentLength(arrDep2);
 
-        List<MatchPoint> matchPoints = getMatchPoints(dataFetcher, arrDep1, arrDep2);
+        List<MatchPoint> matchPoints = getMatchPoints(matchPointsForStopPath, arrDep1, arrDep2);
 
         // The times when a travel time segment vertex is crossed.
         // Will include the departure time, the middle vertices, and
@@ -526,14 +607,19 @@ public class TravelTimesProcessor {
      * departure for the same stop or a departure for one stop and then an arrival for the
      * subsequent stop. If the schedule adherence is off too much (by MAX_SCHED_ADH_SECS) then the
      * data is ignored. If schedule adherence is acceptable then the resulting travel and stop/dwell
-     * times are put into the stopTimesMap and travelTimesMap members for further processing.
+     * times are put into the data for further processing.
      *
-     * @param dataFetcher Contains the AVL based historic data in maps
+     * @param matchPointsForStopPath Provides the matches along the stop path of an arrival, from
+     *     the AVL based historic data or from the match history of a vehicle
      * @param arrDep1 The first arrival/departure
      * @param arrDep2 The second arrival/departure
+     * @param data For the resulting stop and travel times
      */
-    private void processDataBetweenTwoArrivalDepartures(
-            DataFetcher dataFetcher, ArrivalDeparture arrDep1, ArrivalDeparture arrDep2) {
+    static void processDataBetweenTwoArrivalDepartures(
+            Function<ArrivalDeparture, List<MatchPoint>> matchPointsForStopPath,
+            ArrivalDeparture arrDep1,
+            ArrivalDeparture arrDep2,
+            ProcessedData data) {
         // If schedule adherence is really far off then ignore the data
         // point because it would skew the results.
         TemporalDifference schedAdh = arrDep1.getScheduleAdherence();
@@ -554,7 +640,7 @@ public class TravelTimesProcessor {
             int dwellTimeMsec = (int) (arrDep2.getTime() - arrDep1.getTime());
 
             // Add this stop time to map so it can be averaged
-            if (dwellTimeMsec >= 0) addStopTimeToMap(mapKeyForTravelTimes, dwellTimeMsec);
+            if (dwellTimeMsec >= 0) addStopTimeToMap(data, mapKeyForTravelTimes, dwellTimeMsec);
             else
                 logger.error(
                         "Ignoring negative dwell time={} for stop path " + "at arrival/departures {} and {} (key = {})",
@@ -572,7 +658,7 @@ public class TravelTimesProcessor {
                 && arrDep1.isDeparture()
                 && arrDep2.isArrival()) {
             // Determine the travel times and add them to the map
-            List<Integer> travelTimesForStopPath = determineTravelTimesForStopPath(dataFetcher, arrDep1, arrDep2);
+            List<Integer> travelTimesForStopPath = determineTravelTimesForStopPath(matchPointsForStopPath, arrDep1, arrDep2);
 
             // Ignore a stop path if any segment travel time is negative. Nulls will
             // be ignored downstream anyway so can also ignore those.
@@ -590,19 +676,23 @@ public class TravelTimesProcessor {
                 }
             }
 
-            addTravelTimesToMap(mapKeyForTravelTimes, travelTimesForStopPath);
+            addTravelTimesToMap(data, mapKeyForTravelTimes, travelTimesForStopPath);
 
         }
     }
 
     /**
-     * Process historic data from database for single trip. Puts resulting data into stopTimesMap
-     * and travelTimesMap.
+     * Process historic data from database for single trip. Puts resulting data into the stop times
+     * and travel times of the data.
      *
      * @param dataFetcher Contains arrival/departures and matches fetched from database
      * @param arrDepList List of ArrivalDepartures for vehicle for a trip
+     * @param data For the resulting stop and travel times
      */
-    private void aggregateTripDataIntoMaps(DataFetcher dataFetcher, List<ArrivalDeparture> arrDepList) {
+    private static void aggregateTripDataIntoMaps(
+            DataFetcher dataFetcher, List<ArrivalDeparture> arrDepList, ProcessedData data) {
+        Function<ArrivalDeparture, List<MatchPoint>> matchPointsForStopPath =
+                arrDep -> getMatchPointsForStopPath(dataFetcher, arrDep);
 
         for (int i = 0; i < arrDepList.size() - 1; ++i) {
             ArrivalDeparture arrDep1 = arrDepList.get(i);
@@ -614,12 +704,12 @@ public class TravelTimesProcessor {
                 if (arrDep1.isArrival()) continue;
 
                 // Handle first stop
-                processFirstStopOfTrip(arrDep1);
+                processFirstStopOfTrip(arrDep1, data);
             }
 
             // Deal with normal travel times
             ArrivalDeparture arrDep2 = arrDepList.get(i + 1);
-            processDataBetweenTwoArrivalDepartures(dataFetcher, arrDep1, arrDep2);
+            processDataBetweenTwoArrivalDepartures(matchPointsForStopPath, arrDep1, arrDep2, data);
         }
     }
 
@@ -693,6 +783,23 @@ public class TravelTimesProcessor {
      * @return TravelTimeInfoMap The generated travel times
      */
     public TravelTimeInfoMap createTravelTimesFromMaps(Map<String, Trip> tripMap) {
+        return createTravelTimes(stopTimesMap, travelTimesMap, tripMap);
+    }
+
+    /**
+     * Takes the stop times and travel times and creates corresponding travel times. Puts those
+     * travel times into the TravelTimeInfoMap that is returned.
+     *
+     * @param stopTimesMap stop times of each trip/stop path, with one entry per data point
+     * @param travelTimesMap travel times of each trip/stop path, by single trip and then by travel
+     *     time segment
+     * @param tripMap contains all the trips that are configured and that need travel times for.
+     * @return TravelTimeInfoMap The generated travel times
+     */
+    static TravelTimeInfoMap createTravelTimes(
+            Map<ProcessedDataMapKey, List<Integer>> stopTimesMap,
+            Map<ProcessedDataMapKey, List<List<Integer>>> travelTimesMap,
+            Map<String, Trip> tripMap) {
         logger.info("Processing data into a TravelTimeInfoMap...");
         IntervalTimer intervalTimer = new IntervalTimer();
 
@@ -839,8 +946,76 @@ public class TravelTimesProcessor {
     }
 
     /**
-     * Reads in the Matches and the ArrivalDepartures from the database for the time specified. Puts
-     * the data into the stopTimesMap and the travelTimesMap for further processing.
+     * Splits the time span into service days. A service day starts 3 hours after midnight, the
+     * same as the day used for the keys of DataFetcher, so that the data for a vehicle trip is
+     * within a single service day. That is 3am except on the days that daylight savings time starts
+     * or ends, when it is 4am or 2am. Each day is determined from its date so that such a day
+     * doesn't shift the start of the following days.
+     *
+     * @param beginTime
+     * @param endTime
+     * @param timezone Timezone of the agency
+     * @return List of begin time (inclusive) and end time (exclusive) of each service day
+     */
+    static List<Date[]> serviceDays(Date beginTime, Date endTime, TimeZone timezone) {
+        List<Date[]> serviceDays = new ArrayList<>();
+
+        // The date of the service day that the begin time is in
+        ZoneId zone = timezone.toZoneId();
+        LocalDate date = Instant.ofEpochMilli(beginTime.getTime() - 3 * Time.MS_PER_HOUR)
+                .atZone(zone)
+                .toLocalDate();
+
+        Date dayBegin = beginTime;
+        while (dayBegin.before(endTime)) {
+            date = date.plusDays(1);
+            Date nextDayBegin = new Date(date.atStartOfDay(zone).toInstant().toEpochMilli() + 3 * Time.MS_PER_HOUR);
+            Date dayEnd = nextDayBegin.before(endTime) ? nextDayBegin : endTime;
+            serviceDays.add(new Date[] {dayBegin, dayEnd});
+            dayBegin = dayEnd;
+        }
+        return serviceDays;
+    }
+
+    /**
+     * Reads in the Matches and the ArrivalDepartures for a service day and processes them.
+     *
+     * @param projectId
+     * @param timezone
+     * @param beginTime
+     * @param endTime
+     * @return The processed data, or null if there were no matches for the service day
+     */
+    static ProcessedData readAndProcessServiceDay(String projectId, TimeZone timezone, Date beginTime, Date endTime) {
+        IntervalTimer intervalTimer = new IntervalTimer();
+
+        // Read the arrivals/departures and matches into a DataFetcher
+        DataFetcher dataFetcher = new DataFetcher(timezone);
+        dataFetcher.readData(projectId, beginTime, endTime);
+        if (dataFetcher.getMatchesMap().isEmpty()) return null;
+
+        ProcessedData data = new ProcessedData();
+        for (List<ArrivalDeparture> arrDepList : dataFetcher.getArrivalDepartureMap().values()) {
+            debugLogTrip(arrDepList);
+            aggregateTripDataIntoMaps(dataFetcher, arrDepList, data);
+        }
+
+        logger.info(
+                "Reading and processing data for service day starting {} took {} msec.",
+                beginTime,
+                intervalTimer.elapsedMsec());
+        return data;
+    }
+
+    /**
+     * Reads in the Matches and the ArrivalDepartures from the database for the time specified and
+     * puts the resulting data into the stopTimesMap and the travelTimesMap for further processing.
+     *
+     * <p>The data is read and processed a service day at a time, with several service days in
+     * parallel, so that only the arrivals/departures and matches for those service days are in
+     * memory at once instead of all of them. The results are merged in order of the service days.
+     * The merged stop times and travel times still grow with the number of days since every sample
+     * is needed for the filtered means, but they are much smaller than the db rows they come from.
      *
      * @param projectId
      * @param specialDaysOfWeek
@@ -849,33 +1024,60 @@ public class TravelTimesProcessor {
      */
     public void readAndProcessHistoricData(
             String projectId, List<Integer> specialDaysOfWeek, Date beginTime, Date endTime) {
-        // Read the arrivals/departures and matches into a DataFetcher
-        DataFetcher dataFetcher = new DataFetcher(projectId, specialDaysOfWeek);
-        dataFetcher.readData(projectId, beginTime, endTime);
+        IntervalTimer intervalTimer = new IntervalTimer();
+        TimeZone timezone = DataFetcher.getTimeZone(projectId);
+        List<Date[]> serviceDays = serviceDays(beginTime, endTime, timezone);
+        int numberThreads = Math.max(1, UpdatesConfig.travelTimesThreads());
+        logger.info(
+                "Processing historic data for {} service days using {} threads...",
+                serviceDays.size(),
+                numberThreads);
+
+        // Only have as many service days in progress as there are threads so
+        // that the rows read from the db are only for those days. Merged in
+        // order so that the results don't depend on which thread finishes first.
+        int serviceDaysWithData = 0;
+        ExecutorService executor =
+                Executors.newFixedThreadPool(numberThreads, new NamedThreadFactory("travelTimesProcessor"));
+        try {
+            Deque<Future<ProcessedData>> inProgress = new ArrayDeque<>();
+            Iterator<Date[]> serviceDaysIterator = serviceDays.iterator();
+            while (serviceDaysIterator.hasNext() || !inProgress.isEmpty()) {
+                while (serviceDaysIterator.hasNext() && inProgress.size() < numberThreads) {
+                    Date[] serviceDay = serviceDaysIterator.next();
+                    inProgress.add(executor.submit(
+                            () -> readAndProcessServiceDay(projectId, timezone, serviceDay[0], serviceDay[1])));
+                }
+
+                ProcessedData data = inProgress.remove().get();
+                if (data != null) {
+                    mergeIntoMaps(data);
+                    ++serviceDaysWithData;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while processing historic data", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Exception while processing historic data", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
 
         // exit here if no matches are present
         // no further work can be done!
-        if (dataFetcher.getMatchesMap() == null || dataFetcher.getMatchesMap().isEmpty()) {
+        if (serviceDaysWithData == 0) {
             logger.error("No Matches:  Nothing to do!");
             isEmpty = true;
             return;
         }
         isEmpty = false;
 
-        // Process all the historic data read from the database. Puts
-        // resulting data into stopTimesMap and travelTimesMap.
-        logger.info("Processing data into travel time maps...");
-        IntervalTimer intervalTimer = new IntervalTimer();
-        Collection<List<ArrivalDeparture>> arrivalDepartures =
-                dataFetcher.getArrivalDepartureMap().values();
-        for (List<ArrivalDeparture> arrDepList : arrivalDepartures) {
-            debugLogTrip(arrDepList);
-            aggregateTripDataIntoMaps(dataFetcher, arrDepList);
-        }
-
         // Nice to log how long things took so can see progress and bottle necks
         logger.info(
-                "Processing data from db into the travel times and stop " + "times map took {} msec.",
+                "Processing data from db into the travel times and stop "
+                        + "times map for {} service days with data took {} msec.",
+                serviceDaysWithData,
                 intervalTimer.elapsedMsec());
     }
 }
@@ -45,7 +45,10 @@ public class AnnotatedClassesList {
         MeasuredArrivalTime.class,
         MonitoringEvent.class,
         PredictionAccuracy.class,
+        PredictionAccuracyRollup.class,
+        ReportRollupHour.class,
         Route.class,
+        ScheduleAdherenceRollup.class,
         Stop.class,
         StopPath.class,
         Transfer.class,
@@ -54,6 +57,7 @@ public class AnnotatedClassesList {
         TravelTimesForTrip.class,
         Trip.class,
         TripPattern.class,
+        TripStopTimeRollup.class,
         VehicleEvent.class,
         PredictionEvent.class,
         VehicleConfig.class,
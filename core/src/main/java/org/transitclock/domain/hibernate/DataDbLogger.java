@@ -2,10 +2,12 @@
 package org.transitclock.domain.hibernate;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
 import lombok.extern.slf4j.Slf4j;
+import org.transitclock.config.data.DbSetupConfig;
 import org.transitclock.domain.structs.ArrivalDeparture;
 import org.transitclock.domain.structs.AvlReport;
 import org.transitclock.domain.structs.Match;
@@ -36,7 +38,12 @@ import org.transitclock.utils.threading.NamedThreadFactory;
  * <p>A goal with this class was to make the writing to the database is efficient as possible.
  * Therefore the objects are written in batches. This reduces network traffic as well as database
  * load. But this did make handling exceptions more complicated. If there is an exception with a
- * batch then each item is individually written so that don't lose any data.
+ * batch then each item is individually written so that don't lose any data. The high volume
+ * append-only data (arrivals/departures, AVL reports, matches and predictions) is written as
+ * batched inserts.
+ *
+ * <p>The capacity of each queue is bounded by an approximate amount of memory, set by
+ * transitclock.db.queueMaxMegabytes, instead of by a fixed number of objects.
  *
  * <p>When in playback mode then don't want to store the data because it would interfere with data
  * stored when the application was run in real time. Therefore when running in playback mode set
@@ -61,13 +68,21 @@ public class DataDbLogger {
     private final DbQueue<VehicleState> vehicleStateQueue;
     private final DbQueue<Object> genericQueue;
 
+    // Rough estimates of the heap used by an object of each type, including
+    // the strings it references. Used to determine queue capacities.
+    private static final int ARRIVAL_DEPARTURE_BYTES = 700;
+    private static final int AVL_REPORT_BYTES = 500;
+    private static final int PREDICTION_BYTES = 500;
+    private static final int MATCH_BYTES = 400;
+    private static final int DEFAULT_OBJECT_BYTES = 500;
+
     /**
      * Factory method. Returns the singleton db logger for the specified agencyId.
      *
      * @param agencyId Id of database to be written to
      * @param shouldStoreToDb Specifies whether data should actually be written to db. If in
      *     playback mode and shouldn't write data to db then set to false.
-     * @param shouldPauseToReduceQueue Specifies if should pause the thread calling add() if the
+     * @param shouldPauseToReduceQueue Specifies if should pause the thread calling pauseIfFilling() if the
      *     queue is filling up. Useful for when in batch mode and dumping a whole bunch of data to
      *     the db really quickly.
      * @return The DataDbLogger for the specified agencyId
@@ -85,7 +100,7 @@ public class DataDbLogger {
      * @param agencyId Id of database to be written to
      * @param shouldStoreToDb Specifies whether data should actually be written to db. If in
      *     playback mode and shouldn't write data to db then set to false.
-     * @param shouldPauseToReduceQueue Specifies if should pause the thread calling add() if the
+     * @param shouldPauseToReduceQueue Specifies if should pause the thread calling pauseIfFilling() if the
      *     queue is filling up. Useful for when in batch mode and dumping a whole bunch of data to
      *     the db really quickly.
      */
@@ -107,16 +122,38 @@ public class DataDbLogger {
         // Used by add(). If queue filling up to 25% and shouldPauseToReduceQueue is
         // true then will pause the calling thread for a few seconds so that more
         // objects can be written out and not have the queue fill up.
-        arrivalDepartureQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, ArrivalDeparture.class);
-        avlReportQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, AvlReport.class);
-        vehicleConfigQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleConfig.class);
-        predictionQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Prediction.class);
-        matchQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Match.class);
-        predictionAccuracyQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, PredictionAccuracy.class);
-        monitoringEventQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, MonitoringEvent.class);
-        vehicleEventQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleEvent.class);
-        vehicleStateQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleState.class);
-        genericQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Object.class);
+        arrivalDepartureQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, ArrivalDeparture.class,
+                capacityFor(ARRIVAL_DEPARTURE_BYTES), true);
+        avlReportQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, AvlReport.class,
+                capacityFor(AVL_REPORT_BYTES), true);
+        vehicleConfigQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleConfig.class,
+                capacityFor(DEFAULT_OBJECT_BYTES), false);
+        predictionQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Prediction.class,
+                capacityFor(PREDICTION_BYTES), true);
+        matchQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Match.class,
+                capacityFor(MATCH_BYTES), true);
+        predictionAccuracyQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, PredictionAccuracy.class,
+                capacityFor(DEFAULT_OBJECT_BYTES), false);
+        monitoringEventQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, MonitoringEvent.class,
+                capacityFor(DEFAULT_OBJECT_BYTES), false);
+        vehicleEventQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleEvent.class,
+                capacityFor(DEFAULT_OBJECT_BYTES), false);
+        vehicleStateQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, VehicleState.class,
+                capacityFor(DEFAULT_OBJECT_BYTES), false);
+        genericQueue = new DbQueue<>(executor, agencyId, shouldStoreToDb, shouldPauseToReduceQueue, Object.class,
+                capacityFor(DEFAULT_OBJECT_BYTES), false);
+    }
+
+    /**
+     * Determines queue capacity such that the queue uses no more than the configured amount of
+     * memory.
+     *
+     * @param bytesPerObject Estimated size of each object in the queue
+     * @return capacity for the queue
+     */
+    private static int capacityFor(int bytesPerObject) {
+        long maxBytes = (long) DbSetupConfig.getQueueMaxMegabytes() * 1024 * 1024;
+        return (int) Math.max(1000, Math.min(Integer.MAX_VALUE, maxBytes / bytesPerObject));
     }
 
     public boolean add(ArrivalDeparture ad) {
@@ -178,4 +215,52 @@ public class DataDbLogger {
     public int queueSize() {
         return predictionQueue.queueSize();
     }
+
+    /**
+     * Same as add() but the vehicle state is not stored if the queue is backpressured, so that
+     * the queues have room for the data that is needed.
+     *
+     * @param vs
+     * @return True if added to the queue
+     */
+    public boolean addOptional(VehicleState vs) {
+        return vehicleStateQueue.addOptional(vs);
+    }
+
+    /**
+     * Same as add() but the object is not stored if the queue is backpressured, so that the queues
+     * have room for the data that is needed.
+     *
+     * @param o The object that should be logged to the database if there is room
+     * @return True if added to the queue
+     */
+    public boolean addOptional(Object o) {
+        return genericQueue.addOptional(o);
+    }
+
+    /**
+     * If configured to pause when the queues fill up, as in batch mode, then suspends the calling
+     * thread until the queues have been cleared out a bit. To be called by the thread feeding in
+     * the AVL reports, not by the threads processing them.
+     */
+    public void pauseIfFilling() {
+        for (DbQueue<?> queue : getQueues()) queue.pauseIfFilling();
+    }
+
+    /**
+     * @return all the queues, for metrics
+     */
+    public List<DbQueue<?>> getQueues() {
+        return List.of(
+                arrivalDepartureQueue,
+                avlReportQueue,
+                vehicleConfigQueue,
+                predictionQueue,
+                matchQueue,
+                predictionAccuracyQueue,
+                monitoringEventQueue,
+                vehicleEventQueue,
+                vehicleStateQueue,
+                genericQueue);
+    }
 }
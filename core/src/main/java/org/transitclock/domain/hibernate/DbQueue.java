@@ -1,14 +1,17 @@
 /* (C)2023 */
 package org.transitclock.domain.hibernate;
 
+import java.io.IOException;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
-import lombok.Builder;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
@@ -27,16 +30,57 @@ import org.transitclock.utils.Time;
 /**
  * Encapsulate the queuing operations of the database. Make generic so db-side batching is more
  * effective.
+ *
+ * <p>For append-only data, such as arrivals/departures, AVL reports, matches and predictions, the
+ * queue can be created as insert-only. Then a batch is written with persist() instead of merge() so
+ * that Hibernate doesn't need to first select each row to determine whether it already exists and
+ * the inserts can be sent to the db as JDBC batches. If a row already exists the batch fails and,
+ * as before, the objects are then written individually with merge().
+ *
+ * <p>The capacity of the queue is determined from a memory budget and an estimate of the size of
+ * each object so that memory use is bounded by bytes instead of by a fixed number of entries.
+ * add() never puts the caller to sleep when the queue fills. Optional data is instead added with
+ * {@link #addOptional(Object)}, which sheds it while the queue is backpressured, and in batch mode
+ * the thread feeding in the data calls {@link #pauseIfFilling()}.
+ *
+ * <p>If transitclock.db.queueSpillDirectory is set then objects that don't fit into the queue are
+ * written to a {@link DbQueueSpillFile} instead of being lost, and are read back in order once the
+ * queue has room again.
  */
 @Slf4j
 public class DbQueue<T> {
     // For when cannot connect to data the length of time in msec between retries
     private static final long TIME_BETWEEN_RETRIES = 1000; // msec
 
-    private static final int QUEUE_CAPACITY = 500000;
+    // Default queue capacity if not determined from memory budget
+    static final int QUEUE_CAPACITY = 500000;
+
+    // Queue level at which callers are told to back off
+    private static final double BACKPRESSURE_LEVEL = 0.5;
+
+    // Queue level that a pausing caller waits for before continuing
+    private static final double PAUSE_LEVEL = 0.2;
+
+    // Max time that a pausing caller is suspended
+    private static final long MAX_PAUSE_MSEC = 10 * Time.MS_PER_SEC;
 
     // The queue that objects to be stored are placed in
-    private final BlockingQueue<T> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<T> queue;
+
+    // If true then objects are inserted with persist() instead of merge()
+    private final boolean insertOnly;
+
+    // For waking up pausing callers once the queue has been drained
+    private final Object drainedSignal = new Object();
+
+    // Queue level at which objects are spilled to disk
+    private static final double SPILL_LEVEL = 0.9;
+
+    // Queue level below which spilled objects are read back in
+    private static final double REPLAY_LEVEL = 0.5;
+
+    // For when queue fills up. Null if spilling is not configured.
+    private final DbQueueSpillFile<T> spillFile;
 
     // When running in playback mode where getting AVLReports from database
     // instead of from an AVL feed, then debugging and don't want to store
@@ -45,8 +89,8 @@ public class DbQueue<T> {
     // shouldStoreToDb should be set to false.
     private final boolean shouldStoreToDb;
 
-    // Used by add(). If queue filling up to 25% and shouldPauseToReduceQueue is
-    // true then will pause the calling thread for a few seconds so that more
+    // Used by pauseIfFilling(). If queue filling up and shouldPauseToReduceQueue
+    // is true then will pause the calling thread for a few seconds so that more
     // objects can be written out and not have the queue fill up.
     private final boolean shouldPauseToReduceQueue;
 
@@ -69,13 +113,47 @@ public class DbQueue<T> {
     // collect some statistics on how the db is performing
     private long throughputCount = 0;
     private long throughputTimestamp = System.currentTimeMillis();
+    @Getter
     private final Class<?> shortType;
 
+    // Totals since startup, for metrics
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong shedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong totalBatchLatencyMsec = new AtomicLong();
+    private final AtomicLong maxBatchLatencyMsec = new AtomicLong();
+
     public DbQueue(ScheduledExecutorService executor, String projectId, boolean shouldStoreToDb, boolean shouldPauseToReduceQueue, Class<?> shortType) {
+        this(executor, projectId, shouldStoreToDb, shouldPauseToReduceQueue, shortType, QUEUE_CAPACITY, false);
+    }
+
+    /**
+     * @param executor For running the thread that writes the data
+     * @param projectId For logging
+     * @param shouldStoreToDb If false then the data is not written
+     * @param shouldPauseToReduceQueue If true then callers of pauseIfFilling() are suspended while
+     *     the queue is filling up
+     * @param shortType The type of object being stored, for logging and metrics
+     * @param capacity Max number of objects in the queue
+     * @param insertOnly If true then the objects are new rows and are written with persist() so
+     *     that they can be batch inserted
+     */
+    public DbQueue(
+            ScheduledExecutorService executor,
+            String projectId,
+            boolean shouldStoreToDb,
+            boolean shouldPauseToReduceQueue,
+            Class<?> shortType,
+            int capacity,
+            boolean insertOnly) {
         this.projectId = projectId;
         this.shouldStoreToDb = shouldStoreToDb;
         this.shouldPauseToReduceQueue = shouldPauseToReduceQueue;
         this.shortType = shortType;
+        this.insertOnly = insertOnly;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.spillFile = createSpillFile(shortType);
 
         // Start up separate thread that reads from the queue and
         // actually stores the data
@@ -89,6 +167,10 @@ public class DbQueue<T> {
         // derived data already stored when was running in real time.
         if (!shouldStoreToDb) return true;
 
+        // If already spilling, or the queue is almost full, then write the
+        // object to disk so that it is not lost
+        if (spillFile != null && spillFile.appendIfSpilling(t, queueLevel() >= SPILL_LEVEL)) return true;
+
         // Add the object to the queue
         boolean success = queue.offer(t);
 
@@ -114,6 +196,7 @@ public class DbQueue<T> {
 
         // If losing data then log such
         if (!success) {
+            droppedCount.incrementAndGet();
             logger.error("DataDbLogger queue is now completely full for projectId={}and type {}. LOSING DATA!!! Failed to store object=[{}]", projectId, shortType, t);
         }
 
@@ -121,18 +204,102 @@ public class DbQueue<T> {
         // is decreasing again.
         if (level > maxQueueLevel) maxQueueLevel = level;
 
-        // If shouldPauseToReduceQueue (because in batch mode or such) and
-        // if queue is starting to get more full then pause the calling
-        // thread for 10 seconds so that separate thread can clear out
-        // queue a bit.
-        if (shouldPauseToReduceQueue && level > 0.2) {
-            logger.info("Pausing thread adding data to DataDbLogger queue so that queue can be cleared out. Level={}%, type={}",
+        // Return whether was successful in adding object to queue
+        return success;
+    }
+
+    /**
+     * Same as add() but for data that is nice to have but not needed. If the queue is
+     * backpressured the object is not stored, so that the queue has room for the data that is
+     * needed.
+     *
+     * @param t The object to be stored
+     * @return True if added to the queue. False if shed or the queue was full.
+     */
+    public boolean addOptional(T t) {
+        if (shouldStoreToDb && isBackpressured()) {
+            shedCount.incrementAndGet();
+            return false;
+        }
+        return add(t);
+    }
+
+    /**
+     * If shouldPauseToReduceQueue (because in batch mode or such) and the queue is starting to get
+     * more full then pauses the calling thread until the separate thread has cleared out the queue
+     * a bit. For the thread that feeds the data in, such as the thread reading AVL reports, so
+     * that add() never blocks the threads that process the data.
+     */
+    public void pauseIfFilling() {
+        double level = queueLevel();
+        if (shouldPauseToReduceQueue && level > PAUSE_LEVEL) {
+            logger.info("Pausing thread feeding data so that DataDbLogger queue can be cleared out. Level={}%, type={}",
                     level * 100.0, shortType);
-            Time.sleep(10 * Time.MS_PER_SEC);
+            waitForQueueToDrain();
         }
+    }
 
-        // Return whether was successful in adding object to queue
-        return success;
+    /**
+     * Creates the spill file for the queue if a spill directory is configured.
+     *
+     * @param shortType For naming the spill segments
+     * @return the spill file or null if not spilling
+     */
+    private DbQueueSpillFile<T> createSpillFile(Class<?> shortType) {
+        String directory = DbSetupConfig.getQueueSpillDirectory();
+        if (directory == null || directory.isEmpty()) return null;
+
+        try {
+            return new DbQueueSpillFile<>(Path.of(directory, projectId), shortType.getSimpleName());
+        } catch (IOException e) {
+            logger.error("Could not create spill file in {} for type {}. Data will be lost if the queue fills up.",
+                    directory, shortType, e);
+            return null;
+        }
+    }
+
+    /**
+     * If objects were spilled to disk and the queue has room again then reads the oldest spilled
+     * objects back into the queue.
+     */
+    private void replaySpilledObjects() {
+        if (spillFile == null || queueLevel() >= REPLAY_LEVEL) return;
+
+        int room = (int) ((REPLAY_LEVEL - queueLevel()) * (queue.size() + queue.remainingCapacity()));
+        int replayed = spillFile.replayInto(queue, room);
+        if (replayed > 0) {
+            logger.info("Replayed {} spilled {} objects into the queue", replayed, shortType.getSimpleName());
+        }
+    }
+
+    /**
+     * Suspends the calling thread until the queue level has dropped below PAUSE_LEVEL, but for no
+     * longer than MAX_PAUSE_MSEC. Woken up each time a batch is drained from the queue instead of
+     * always sleeping for the max time.
+     */
+    private void waitForQueueToDrain() {
+        long deadline = System.currentTimeMillis() + MAX_PAUSE_MSEC;
+        synchronized (drainedSignal) {
+            long remaining;
+            while (queueLevel() > PAUSE_LEVEL && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    drainedSignal.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the queue is filling up such that callers should back off, such as by not
+     * storing optional data, so that the more important data is not lost.
+     *
+     * @return true if queue level is above the backpressure level
+     */
+    public boolean isBackpressured() {
+        return queueLevel() > BACKPRESSURE_LEVEL;
     }
 
     private List<T> drain() {
@@ -145,6 +312,9 @@ public class DbQueue<T> {
 
         throughputCount += count;
         logger.debug("drained {} elements", count);
+        synchronized (drainedSignal) {
+            drainedSignal.notifyAll();
+        }
         // Log if went below a capacity level
         // See if queue dropped to 10% less than the previously logged level.
         // Use a margin of 10% so that don't get flood of messages if queue
@@ -189,19 +359,30 @@ public class DbQueue<T> {
         Session session = null;
 
         try {
-            session = HibernateUtils.getSession();
-            tx = session.beginTransaction();
+            // If the db has caught up then bring back spilled objects
+            replaySpilledObjects();
 
             // Get the objects to be stored from the queue
             List<T> objectsToBeStored = drain();
+            if (objectsToBeStored.isEmpty()) return;
+
+            session = HibernateUtils.getSession();
+            session.setJdbcBatchSize(DbSetupConfig.getBatchSize());
+            tx = session.beginTransaction();
 
             objectsForThisBatch.addAll(objectsToBeStored);
             for (Object objectToBeStored : objectsForThisBatch) {
                 // Write the data to the session. This doesn't yet
                 // actually write the data to the db though. That is only
-                // done when the session is flushed or committed.
+                // done when the session is flushed or committed. For new
+                // rows persist() is used so that don't first need to read
+                // the row and so that the inserts are batched.
                 logger.trace("DataDbLogger batch saving object={}", objectToBeStored);
-                session.merge(objectToBeStored);
+                if (insertOnly) {
+                    session.persist(objectToBeStored);
+                } else {
+                    session.merge(objectToBeStored);
+                }
             }
 
             // Sometimes useful for debugging via the console
@@ -212,7 +393,12 @@ public class DbQueue<T> {
             tx.commit();
 
             // Sometimes useful for debugging via the console
-            logger.debug("Done committing. Took {} msec", timer.elapsedMsec());
+            long batchLatencyMsec = timer.elapsedMsec();
+            logger.debug("Done committing. Took {} msec", batchLatencyMsec);
+            writtenCount.addAndGet(objectsForThisBatch.size());
+            batchCount.incrementAndGet();
+            totalBatchLatencyMsec.addAndGet(batchLatencyMsec);
+            maxBatchLatencyMsec.accumulateAndGet(batchLatencyMsec, Math::max);
 
             session.close();
         } catch (HibernateException e) {
@@ -271,6 +457,7 @@ public class DbQueue<T> {
                 do {
                     try {
                         processSingleObject(o);
+                        writtenCount.incrementAndGet();
                         shouldKeepTrying = false;
                     } catch (HibernateException e2) {
                         if (e instanceof ConstraintViolationException && e2 instanceof GenericJDBCException) {
@@ -296,9 +483,27 @@ public class DbQueue<T> {
                         // Output message on what is going on
                         Throwable cause2 = ExceptionUtils.getRootCause(e2);
                         logger.error("{} when individually writing object {}. {}msg={}", e2.getClass().getSimpleName(), o, shouldKeepTrying ? "Will keep trying. " : "", cause2.getMessage(), e2);
+                    } catch (RuntimeException e2) {
+                        // Not a db problem so writing the object again won't
+                        // help. Continue with the rest of the batch.
+                        shouldKeepTrying = false;
+                        logger.error("Exception when individually writing object {}", o, e2);
                     }
                 } while (shouldKeepTrying);
             }
+        } catch (RuntimeException e) {
+            // This method is run by scheduleAtFixedRate(), which stops running
+            // it for good if an exception gets out. So log any other problem,
+            // such as with replaying spilled objects, and continue with the
+            // next batch.
+            logger.error("Unexpected exception processing batch of {} objects of type {} for projectId={}",
+                    objectsForThisBatch.size(), shortType, projectId, e);
+            try {
+                if (tx != null && tx.isActive()) tx.rollback();
+                if (session != null && session.isOpen()) session.close();
+            } catch (HibernateException e2) {
+                logger.error("Error cleaning up session after unexpected exception.", e2);
+            }
         }
     }
 
@@ -322,6 +527,42 @@ public class DbQueue<T> {
         return queue.size();
     }
 
+    /**
+     * @return number of objects written to the db since startup
+     */
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * @return number of objects lost because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of optional objects not stored because the queue was backpressured
+     */
+    public long getShedCount() {
+        return shedCount.get();
+    }
+
+    /**
+     * @return average time in msec to commit a batch
+     */
+    public double getAverageBatchLatencyMsec() {
+        long batches = batchCount.get();
+        return batches == 0 ? 0.0 : (double) totalBatchLatencyMsec.get() / batches;
+    }
+
+    /**
+     * @return max time in msec to commit a batch
+     */
+    public long getMaxBatchLatencyMsec() {
+        return maxBatchLatencyMsec.get();
+    }
+
     /**
      * Returns the index into levels that the queue capacity is at. For determining if should send
      * e-mail warning message.
@@ -390,16 +631,27 @@ public class DbQueue<T> {
      * used when the batching encounters an exception. This way can still store all of the good data
      * from a batch.
      *
+     * <p>Returns only if the object was committed. Otherwise the exception is thrown so that the
+     * caller can determine whether to try again.
+     *
      * @param objectToBeStored
+     * @throws HibernateException if the object could not be written
      */
-    private void processSingleObject(Object objectToBeStored) {
+    private void processSingleObject(Object objectToBeStored) throws HibernateException {
         try (Session session = HibernateUtils.getSession()) {
             Transaction tx = session.beginTransaction();
-            logger.debug("Individually saving object {}", objectToBeStored);
-            session.merge(objectToBeStored);
-            tx.commit();
-        } catch (Exception e) {
-            logger.error("Something happened while processing {}", objectToBeStored, e);
+            try {
+                logger.debug("Individually saving object {}", objectToBeStored);
+                session.merge(objectToBeStored);
+                tx.commit();
+            } catch (RuntimeException e) {
+                try {
+                    if (tx.isActive()) tx.rollback();
+                } catch (RuntimeException e2) {
+                    e.addSuppressed(e2);
+                }
+                throw e;
+            }
         }
     }
 
@@ -414,6 +666,8 @@ public class DbQueue<T> {
         throughputCount = 0;
         throughputTimestamp = System.currentTimeMillis();
         double rate = (double) throughput / delta;
-        logger.info("wrote {} {} messages in {}s, ({}/s) ", throughput, shortType, delta / 1000, (long) rate);
+        logger.info("wrote {} {} messages in {}s, ({}/s), avgBatchLatency={} msec, maxBatchLatency={} msec, dropped={}",
+                throughput, shortType, delta, (long) rate,
+                String.format("%.1f", getAverageBatchLatencyMsec()), getMaxBatchLatencyMsec(), getDroppedCount());
     }
 }
@@ -0,0 +1,311 @@
+/* (C)2023 */
+package org.transitclock.domain.hibernate;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Disk backed overflow for a {@link DbQueue}. When the database is slow or down and the in memory
+ * queue fills up the objects are appended to a log of segment files instead of being lost. Once
+ * the database has caught up the objects are read back, in the order they were written, and put
+ * into the in memory queue so that they are written to the db.
+ *
+ * <p>Each record is an int length and an int CRC32 of the data followed by the Java serialization
+ * of the object. A segment is closed once it reaches MAX_SEGMENT_BYTES and a new one is started.
+ * If the process dies while appending then the last record of a segment can be incomplete. When
+ * replay gets to a record whose length or CRC doesn't check out the segment is truncated there,
+ * since nothing after it can be trusted, and replay continues with the next segment. Segments are memory-mapped
+ * for replay. The read position within the oldest segment is stored in a small position file after
+ * each replayed batch so that after a restart replay continues where it left off. If the process
+ * dies between replaying a batch and storing the position then some objects are replayed twice.
+ * That is OK since a duplicate row causes the batch to be written object by object using merge().
+ *
+ * <p>Once anything has been spilled all new objects are also spilled until the spill is fully
+ * replayed so that the order of the data is kept.
+ */
+@Slf4j
+public class DbQueueSpillFile<T> {
+    // Size at which to start a new segment
+    private static final long MAX_SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String POSITION_SUFFIX = ".pos";
+
+    // Length and CRC that precede the data of each record
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+
+    private final Path directory;
+    private final String prefix;
+
+    // Segments in order, oldest first. Includes the one being written.
+    private final Deque<Path> segments = new ArrayDeque<>();
+
+    // For the segment currently being appended to
+    private DataOutputStream writer;
+    private long writerBytes;
+    private long nextSegmentNumber;
+
+    // For the oldest segment, which is being replayed
+    private MappedByteBuffer reader;
+    private Path readerSegment;
+
+    // Number of objects spilled since startup, for logging
+    private long spilledCount;
+
+    /**
+     * Opens the spill file. Any segments left over from a previous run are found and will be
+     * replayed first.
+     *
+     * @param directory Directory for the segment files. Created if doesn't exist.
+     * @param name Name for the segments, such as the type of object stored
+     * @throws IOException if directory cannot be accessed
+     */
+    public DbQueueSpillFile(Path directory, String name) throws IOException {
+        this.directory = directory;
+        this.prefix = name + "-";
+        Files.createDirectories(directory);
+
+        // Find existing segments. Names are zero padded so sort in order.
+        File[] existing = directory.toFile().listFiles((dir, fileName) -> fileName.startsWith(prefix) && fileName.endsWith(SEGMENT_SUFFIX));
+        if (existing != null) {
+            Arrays.sort(existing);
+            for (File file : existing) {
+                segments.add(file.toPath());
+                nextSegmentNumber = Math.max(nextSegmentNumber, segmentNumber(file.toPath()) + 1);
+            }
+        }
+        if (!segments.isEmpty()) {
+            logger.warn("Found {} spill segments for {} from a previous run in {}. Will replay them.",
+                    segments.size(), name, directory);
+        }
+    }
+
+    private long segmentNumber(Path segment) {
+        String fileName = segment.getFileName().toString();
+        return Long.parseLong(fileName.substring(prefix.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * @return true if there are spilled objects that have not yet been replayed
+     */
+    public synchronized boolean hasData() {
+        if (segments.isEmpty()) return false;
+        if (segments.size() > 1) return true;
+
+        // Only one segment. Has data if it has more than was read.
+        Path oldest = segments.peekFirst();
+        try {
+            long position = oldest.equals(readerSegment) ? reader.position() : readPosition(oldest);
+            return Files.size(oldest) > position;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Appends the object to the spill if forceSpill is true or if objects have already been spilled
+     * and not yet replayed.
+     *
+     * @param t The object to append
+     * @param forceSpill True if the in memory queue is full
+     * @return true if the object was spilled, false if it should go into the in memory queue
+     */
+    public synchronized boolean appendIfSpilling(T t, boolean forceSpill) {
+        if (!forceSpill && !hasData()) return false;
+        if (!(t instanceof Serializable)) return false;
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(t);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+
+            if (writer == null || writerBytes >= MAX_SEGMENT_BYTES) startNewSegment();
+            writer.writeInt(bytes.size());
+            writer.writeInt((int) crc.getValue());
+            bytes.writeTo(writer);
+            // Flush so that the data is in the OS and survives the
+            // process going down
+            writer.flush();
+            writerBytes += RECORD_HEADER_BYTES + bytes.size();
+            if (++spilledCount % 10000 == 1) {
+                logger.warn("Spilled {} objects to {} since database queue is full", spilledCount, directory);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.error("Could not spill {} to {}", t, directory, e);
+            return false;
+        }
+    }
+
+    private void startNewSegment() throws IOException {
+        if (writer != null) writer.close();
+        Path segment = directory.resolve(String.format("%s%020d%s", prefix, nextSegmentNumber++, SEGMENT_SUFFIX));
+        writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment.toFile(), true)));
+        writerBytes = 0;
+        segments.add(segment);
+    }
+
+    /**
+     * Reads up to maxObjects of the oldest spilled objects and puts them into the queue. Done while
+     * synchronized so that add() cannot put newer objects into the queue in between.
+     *
+     * @param queue The in memory queue to replay into
+     * @param maxObjects Max number of objects to replay
+     * @return number of objects replayed
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized int replayInto(Queue<T> queue, int maxObjects) {
+        int count = 0;
+        try {
+            while (count < maxObjects && !segments.isEmpty()) {
+                Path segment = segments.peekFirst();
+                if (reader == null || !segment.equals(readerSegment)) openReader(segment);
+
+                if (!reader.hasRemaining()) {
+                    // If this is the segment being written then may get more
+                    // data later. If not all read in yet then remap.
+                    boolean beingWritten = writer != null && segments.size() == 1;
+                    if (beingWritten && Files.size(segment) > reader.limit()) {
+                        openReader(segment);
+                        continue;
+                    }
+                    finishSegment(segment, beingWritten);
+                    if (beingWritten) break;
+                    continue;
+                }
+
+                int recordStart = reader.position();
+                byte[] bytes = readRecord();
+                if (bytes == null) {
+                    // Incomplete or corrupted record, such as from the process
+                    // dying while appending. Drop it and whatever follows it.
+                    truncateSegment(segment, recordStart);
+                    continue;
+                }
+
+                T t;
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    t = (T) in.readObject();
+                } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                    // The record itself is intact, so only this object is lost
+                    logger.error("Could not deserialize spilled object at byte {} of {}. Skipping it.",
+                            recordStart, segment, e);
+                    continue;
+                }
+                if (!queue.offer(t)) {
+                    // Queue full again so put the record back
+                    reader.position(recordStart);
+                    break;
+                }
+                ++count;
+            }
+
+            if (reader != null && readerSegment != null && Files.exists(readerSegment)) {
+                writePosition(readerSegment, reader.position());
+            }
+        } catch (IOException e) {
+            logger.error("Error replaying spilled objects from {}", directory, e);
+        }
+        return count;
+    }
+
+    /**
+     * Reads the record at the current position of the reader.
+     *
+     * @return the data of the record, or null if the record is incomplete or its CRC doesn't match
+     */
+    private byte[] readRecord() {
+        if (reader.remaining() < RECORD_HEADER_BYTES) return null;
+        int length = reader.getInt();
+        int expectedCrc = reader.getInt();
+        if (length < 0 || length > reader.remaining()) return null;
+
+        byte[] bytes = new byte[length];
+        reader.get(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue() == expectedCrc ? bytes : null;
+    }
+
+    /**
+     * Cuts off the segment at the specified position, dropping a bad record and everything after it.
+     * The reader is remapped so that it ends at the new end of the segment.
+     */
+    private void truncateSegment(Path segment, int position) throws IOException {
+        logger.error("Spill segment {} has an incomplete or corrupted record at byte {} of {}. Truncating it there "
+                + "so the rest of the segment is lost.", segment, position, reader.limit());
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(position);
+        }
+        reader.position(position);
+        openReader(segment);
+    }
+
+    private void openReader(Path segment) throws IOException {
+        long position = segment.equals(readerSegment) && reader != null ? reader.position() : readPosition(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            reader = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        reader.position((int) Math.min(position, reader.limit()));
+        readerSegment = segment;
+    }
+
+    /** Deletes a fully replayed segment. */
+    private void finishSegment(Path segment, boolean beingWritten) throws IOException {
+        if (beingWritten) {
+            writer.close();
+            writer = null;
+            writerBytes = 0;
+        }
+        segments.pollFirst();
+        reader = null;
+        readerSegment = null;
+        Files.deleteIfExists(segment);
+        Files.deleteIfExists(positionFile(segment));
+        logger.info("Finished replaying spill segment {}", segment);
+    }
+
+    private Path positionFile(Path segment) {
+        return segment.resolveSibling(segment.getFileName().toString().replace(SEGMENT_SUFFIX, POSITION_SUFFIX));
+    }
+
+    private long readPosition(Path segment) {
+        try {
+            Path positionFile = positionFile(segment);
+            if (!Files.exists(positionFile)) return 0;
+            return Long.parseLong(Files.readString(positionFile, StandardCharsets.US_ASCII).trim());
+        } catch (IOException | NumberFormatException e) {
+            logger.error("Could not read replay position for {} so replaying it from the start", segment, e);
+            return 0;
+        }
+    }
+
+    private void writePosition(Path segment, long position) throws IOException {
+        Files.writeString(positionFile(segment), Long.toString(position), StandardCharsets.US_ASCII);
+    }
+}
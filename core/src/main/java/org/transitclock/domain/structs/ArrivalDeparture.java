@@ -193,8 +193,10 @@ public abstract class ArrivalDeparture implements Lifecycle, Serializable {
     private final float stopPathLength;
 
     // So can easily create copy constructor withUpdatedTime()
+    // Java transient as well so that the whole block isn't serialized
+    // when the object is spilled to disk by the DbQueue
     @Transient
-    private final Block block;
+    private final transient Block block;
 
     // Needed because some methods need to know if dealing with arrivals or
     // departures.
@@ -592,6 +594,58 @@ public abstract class ArrivalDeparture implements Lifecycle, Serializable {
         }
     }
 
+    /**
+     * Reads a page of arrivals/departures using keyset paging instead of an offset so that reading
+     * the later pages is as fast as reading the first one. The results are ordered by time and
+     * vehicleId. The next page starts at the time and vehicleId of the last arrival/departure of
+     * the page, inclusive, so the caller needs to handle the arrivals/departures with that time
+     * and vehicleId, such as by not using them from the page and reading them with the next page.
+     *
+     * @param dbName Name of the database to retrieve data from. If set to null then will use db
+     *     name configured by Java property transitclock.db.dbName
+     * @param beginTime Inclusive
+     * @param endTime Exclusive
+     * @param afterTime Time of the last arrival/departure of the previous page, or null for the
+     *     first page
+     * @param afterVehicleId VehicleId of the last arrival/departure of the previous page
+     * @param maxResults Size of the page
+     * @return List<ArrivalDeparture> or null if there is an exception
+     */
+    public static List<ArrivalDeparture> getArrivalsDeparturesPageFromDb(
+            String dbName, Date beginTime, Date endTime, Date afterTime, String afterVehicleId, int maxResults) {
+        IntervalTimer timer = new IntervalTimer();
+
+        // Get the database session. This is supposed to be pretty light weight
+        Session session = dbName != null ? HibernateUtils.getSession(dbName, false) : HibernateUtils.getSession(true);
+
+        String hql = "FROM ArrivalDeparture WHERE time >= :beginDate AND time < :endDate";
+        if (afterTime != null) {
+            hql += " AND (time > :afterTime OR (time = :afterTime AND vehicleId >= :afterVehicleId))";
+        }
+        hql += " ORDER BY time, vehicleId";
+        var query = session.createQuery(hql, ArrivalDeparture.class);
+
+        // Set the parameters for the query
+        query.setParameter("beginDate", beginTime);
+        query.setParameter("endDate", endTime);
+        if (afterTime != null) {
+            query.setParameter("afterTime", afterTime);
+            query.setParameter("afterVehicleId", afterVehicleId);
+        }
+        query.setMaxResults(maxResults);
+
+        try {
+            List<ArrivalDeparture> arrivalsDeparatures = query.list();
+            logger.debug("Getting page of arrival/departures from database took {} msec", timer.elapsedMsec());
+            return arrivalsDeparatures;
+        } catch (HibernateException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        } finally {
+            session.close();
+        }
+    }
+
     public static Long getArrivalsDeparturesCountFromDb(
             String dbName, Date beginTime, Date endTime, ArrivalsOrDepartures arrivalOrDeparture) {
         IntervalTimer timer = new IntervalTimer();
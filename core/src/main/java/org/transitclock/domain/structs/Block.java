@@ -678,6 +678,16 @@ public class Block implements Serializable {
         return endTime;
     }
 
+    /**
+     * Returns the trips for the block only if they have already been lazy loaded. For when need to
+     * update the trips that are in memory without causing the trips of every block to be read in.
+     *
+     * @return the trips as an unmodifiable collection, or an empty list if not yet loaded
+     */
+    public List<Trip> getTripsIfLoaded() {
+        return Hibernate.isInitialized(trips) ? Collections.unmodifiableList(trips) : Collections.emptyList();
+    }
+
     /**
      * Uses lazy initialization to determine the trips for the block.
      *
@@ -200,6 +200,65 @@ public class Match implements Lifecycle, Serializable {
         }
     }
 
+    /**
+     * Reads a page of matches using keyset paging instead of an offset so that reading the later
+     * pages is as fast as reading the first one. The results are ordered by avlTime and vehicleId.
+     * The next page starts at the avlTime and vehicleId of the last match of the page, inclusive,
+     * so the caller needs to handle the matches with that avlTime and vehicleId, such as by not
+     * using them from the page and reading them with the next page.
+     *
+     * @param projectId
+     * @param beginTime Inclusive
+     * @param endTime Exclusive
+     * @param sqlClause Additional conditions, starting with AND. Can be null.
+     * @param afterTime avlTime of the last match of the previous page, or null for the first page
+     * @param afterVehicleId vehicleId of the last match of the previous page
+     * @param maxResults Size of the page
+     * @return List of matches or null if there is an exception
+     */
+    public static List<Match> getMatchesPageFromDb(
+            String projectId,
+            Date beginTime,
+            Date endTime,
+            String sqlClause,
+            Date afterTime,
+            String afterVehicleId,
+            int maxResults) {
+        IntervalTimer timer = new IntervalTimer();
+
+        // Get the database session. This is supposed to be pretty light weight
+        Session session = HibernateUtils.getSession(projectId);
+
+        String hql = "FROM Match WHERE avlTime >= :beginDate AND avlTime < :endDate";
+        if (sqlClause != null)
+            hql += " " + sqlClause;
+        if (afterTime != null)
+            hql += " AND (avlTime > :afterTime OR (avlTime = :afterTime AND vehicleId >= :afterVehicleId))";
+        hql += " ORDER BY avlTime, vehicleId";
+        var query = session.createQuery(hql, Match.class);
+
+        // Set the parameters for the query
+        query.setParameter("beginDate", beginTime);
+        query.setParameter("endDate", endTime);
+        if (afterTime != null) {
+            query.setParameter("afterTime", afterTime);
+            query.setParameter("afterVehicleId", afterVehicleId);
+        }
+        query.setMaxResults(maxResults);
+
+        try {
+            List<Match> matches = query.list();
+            logger.debug("Getting page of matches from database took {} msec", timer.elapsedMsec());
+            return matches;
+        } catch (HibernateException e) {
+            // Log error to the Core logger
+            logger.error(e.getMessage(), e);
+            return null;
+        } finally {
+            session.close();
+        }
+    }
+
     public static Long getMatchesCountFromDb(String projectId, Date beginTime, Date endTime, String sqlClause) {
         IntervalTimer timer = new IntervalTimer();
 
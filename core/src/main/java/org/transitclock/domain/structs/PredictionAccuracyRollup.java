@@ -0,0 +1,110 @@
+/* (C)2023 */
+package org.transitclock.domain.structs;
+
+import io.hypersistence.utils.hibernate.type.json.JsonType;
+import jakarta.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+import lombok.Data;
+import org.hibernate.annotations.DynamicUpdate;
+import org.hibernate.annotations.Type;
+import org.transitclock.core.predAccuracy.PredictionAccuracySketch;
+
+/**
+ * A database object for persisting the prediction accuracy for a route for an hour for a
+ * prediction length bucket, as a PredictionAccuracySketch. The prediction accuracy reports can be
+ * created from these instead of from the much larger number of PredictionAccuracy rows.
+ *
+ * <p>There can be more than one row for the same route/hour/bucket, such as when an
+ * arrival/departure for the hour is determined after the rollup for the hour has already been
+ * stored. The sketches of such rows simply need to be merged.
+ */
+@Entity
+@DynamicUpdate
+@Data
+@Table(
+        name = "prediction_accuracy_rollups",
+        indexes = {@Index(name = "PredictionAccuracyRollupHourIndex", columnList = "rollup_hour")})
+public class PredictionAccuracyRollup implements Serializable {
+
+    @Id
+    @Column(name = "id")
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private long id;
+
+    // Start of the hour, in local time, of the arrival/departure times
+    @Column(name = "rollup_hour")
+    @Temporal(TemporalType.TIMESTAMP)
+    private final Date rollupHour;
+
+    @Column(name = "route_id", length = 60)
+    private final String routeId;
+
+    // routeShortName is included because for some agencies the
+    // route_id changes when there are schedule updates
+    @Column(name = "route_short_name", length = 60)
+    private final String routeShortName;
+
+    @Column(name = "prediction_source", length = 60)
+    private final String predictionSource;
+
+    @Column(name = "affected_by_wait_stop")
+    private final Boolean affectedByWaitStop;
+
+    // Index of the prediction length bucket, where bucket i is for
+    // prediction lengths of i * bucket size, rounded
+    @Column(name = "pred_length_bucket")
+    private final int predLengthBucket;
+
+    @Column(name = "num_predictions")
+    private final long numPredictions;
+
+    // The sketch, as the distinct accuracy values in secs and the
+    // number of times each occurred
+    @Column(name = "accuracy_secs")
+    @Type(JsonType.class)
+    private final List<Integer> accuracySecs;
+
+    @Column(name = "accuracy_counts")
+    @Type(JsonType.class)
+    private final List<Integer> accuracyCounts;
+
+    public PredictionAccuracyRollup(
+            Date rollupHour,
+            String routeId,
+            String routeShortName,
+            String predictionSource,
+            Boolean affectedByWaitStop,
+            int predLengthBucket,
+            PredictionAccuracySketch sketch) {
+        this.rollupHour = rollupHour;
+        this.routeId = routeId;
+        this.routeShortName = routeShortName;
+        this.predictionSource = predictionSource;
+        this.affectedByWaitStop = affectedByWaitStop;
+        this.predLengthBucket = predLengthBucket;
+        this.numPredictions = sketch.getCount();
+        this.accuracySecs = sketch.getValues();
+        this.accuracyCounts = sketch.getCounts();
+    }
+
+    protected PredictionAccuracyRollup() {
+        this.rollupHour = null;
+        this.routeId = null;
+        this.routeShortName = null;
+        this.predictionSource = null;
+        this.affectedByWaitStop = null;
+        this.predLengthBucket = 0;
+        this.numPredictions = 0;
+        this.accuracySecs = null;
+        this.accuracyCounts = null;
+    }
+
+    /**
+     * @return The prediction accuracies of the rollup
+     */
+    public PredictionAccuracySketch getSketch() {
+        return new PredictionAccuracySketch(accuracySecs, accuracyCounts);
+    }
+}
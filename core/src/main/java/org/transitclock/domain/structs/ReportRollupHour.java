@@ -0,0 +1,47 @@
+/* (C)2023 */
+package org.transitclock.domain.structs;
+
+import jakarta.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+import lombok.Data;
+import org.hibernate.annotations.DynamicUpdate;
+
+/**
+ * A database object for recording that the rollups of a table are complete for an hour, meaning
+ * that they were being collected for the whole hour and all of them have been stored. The reports
+ * only use the rollups of the hours that have been recorded, so that the hours missed while the
+ * rollups weren't being collected are read from the raw rows.
+ */
+@Entity
+@DynamicUpdate
+@Data
+@Table(
+        name = "report_rollup_hours",
+        indexes = {@Index(name = "ReportRollupHourIndex", columnList = "rollups_table, rollup_hour")})
+public class ReportRollupHour implements Serializable {
+
+    @Id
+    @Column(name = "id")
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private long id;
+
+    // Such as schedule_adherence_rollups or prediction_accuracy_rollups
+    @Column(name = "rollups_table", length = 60)
+    private final String rollupsTable;
+
+    // Start of the hour, in local time
+    @Column(name = "rollup_hour")
+    @Temporal(TemporalType.TIMESTAMP)
+    private final Date rollupHour;
+
+    public ReportRollupHour(String rollupsTable, Date rollupHour) {
+        this.rollupsTable = rollupsTable;
+        this.rollupHour = rollupHour;
+    }
+
+    protected ReportRollupHour() {
+        this.rollupsTable = null;
+        this.rollupHour = null;
+    }
+}
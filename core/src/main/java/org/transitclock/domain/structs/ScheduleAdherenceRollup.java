@@ -0,0 +1,103 @@
+/* (C)2023 */
+package org.transitclock.domain.structs;
+
+import io.hypersistence.utils.hibernate.type.json.JsonType;
+import jakarta.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.List;
+import lombok.Data;
+import org.hibernate.annotations.DynamicUpdate;
+import org.hibernate.annotations.Type;
+
+/**
+ * A database object for persisting the schedule adherence of the arrivals/departures of a route at
+ * a stop for an hour. Since the allowable early and late times are parameters of the schedule
+ * adherence report the adherence of each arrival/departure is kept, together with its trip, but in
+ * a single row so that the report reads far fewer rows than from arrivals_departures.
+ *
+ * <p>There can be more than one row for the same route/stop/hour, such as when an arrival/departure
+ * for the hour is generated after the rollup for the hour has already been stored.
+ */
+@Entity
+@DynamicUpdate
+@Data
+@Table(
+        name = "schedule_adherence_rollups",
+        indexes = {@Index(name = "ScheduleAdherenceRollupHourIndex", columnList = "rollup_hour")})
+public class ScheduleAdherenceRollup implements Serializable {
+
+    @Id
+    @Column(name = "id")
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private long id;
+
+    // Start of the hour, in local time, of the arrival/departure times
+    @Column(name = "rollup_hour")
+    @Temporal(TemporalType.TIMESTAMP)
+    private final Date rollupHour;
+
+    // So that can join with the stops table to get the stop name
+    @Column(name = "config_rev")
+    private final int configRev;
+
+    @Column(name = "route_id", length = 60)
+    private final String routeId;
+
+    @Column(name = "route_short_name", length = 60)
+    private final String routeShortName;
+
+    @Column(name = "direction_id", length = 60)
+    private final String directionId;
+
+    @Column(name = "stop_id", length = 60)
+    private final String stopId;
+
+    @Column(name = "stop_order")
+    private final Integer stopOrder;
+
+    // The trip of each arrival/departure and its schedule adherence in
+    // msec, positive meaning late. Kept in msec so that whether it is early
+    // or late is determined the same as the report, which compares the
+    // times without truncating them.
+    @Column(name = "trip_ids")
+    @Type(JsonType.class)
+    private final List<String> tripIds;
+
+    @Column(name = "adherence_msecs")
+    @Type(JsonType.class)
+    private final List<Integer> adherenceMsecs;
+
+    public ScheduleAdherenceRollup(
+            Date rollupHour,
+            int configRev,
+            String routeId,
+            String routeShortName,
+            String directionId,
+            String stopId,
+            Integer stopOrder,
+            List<String> tripIds,
+            List<Integer> adherenceMsecs) {
+        this.rollupHour = rollupHour;
+        this.configRev = configRev;
+        this.routeId = routeId;
+        this.routeShortName = routeShortName;
+        this.directionId = directionId;
+        this.stopId = stopId;
+        this.stopOrder = stopOrder;
+        this.tripIds = tripIds;
+        this.adherenceMsecs = adherenceMsecs;
+    }
+
+    protected ScheduleAdherenceRollup() {
+        this.rollupHour = null;
+        this.configRev = -1;
+        this.routeId = null;
+        this.routeShortName = null;
+        this.directionId = null;
+        this.stopId = null;
+        this.stopOrder = null;
+        this.tripIds = null;
+        this.adherenceMsecs = null;
+    }
+}
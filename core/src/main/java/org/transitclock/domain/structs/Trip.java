@@ -99,9 +99,12 @@ public class Trip implements Lifecycle, Serializable {
     // HibernateException.
     //
     // We are sharing travel times so need a ManyToOne mapping
+    //
+    // Volatile since DbConfig.useTravelTimes() switches it from the
+    // RollingTravelTimesModule thread while the AVL threads read it.
     @ManyToOne(fetch = FetchType.EAGER)
     @Cascade({CascadeType.SAVE_UPDATE})
-    private TravelTimesForTrip travelTimes;
+    private volatile TravelTimesForTrip travelTimes;
 
     // Contains schedule time for each stop as obtained from GTFS
     // stop_times.txt file. Useful for determining schedule adherence.
@@ -712,8 +715,10 @@ public class Trip implements Lifecycle, Serializable {
         if (scheduledTimesList instanceof PersistentList<?> persistentListTimes) {
             // TODO this is an anti-pattern
             // instead find a way to manage sessions more consistently
+            // A list that is already initialized, such as when the config was
+            // read from a snapshot, doesn't need a session
             var session = persistentListTimes.getSession();
-            if (session == null) {
+            if (session == null && !persistentListTimes.wasInitialized()) {
                 Session globalLazyLoadSession = Core.getInstance().getDbConfig().getGlobalSession();
                 globalLazyLoadSession.merge(this);
             }
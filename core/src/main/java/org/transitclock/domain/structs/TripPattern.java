@@ -165,6 +165,35 @@ public class TripPattern implements Serializable, Lifecycle {
         }
     }
 
+    /**
+     * Create a TripPattern from stop paths that already have their locations set, without needing
+     * the GTFS data. For when the config is created in memory, such as for tests and benchmarks.
+     *
+     * @param configRev
+     * @param id The trip pattern ID
+     * @param stopPaths The stop paths, with their locations set
+     * @param trip For supplying additional info. Must have a headsign.
+     */
+    public TripPattern(int configRev, String id, List<StopPath> stopPaths, Trip trip) {
+        this.configRev = configRev;
+        this.id = id;
+        this.shapeId = trip.getShapeId();
+        this.stopPaths = stopPaths;
+        this.headsign = trip.getHeadsign();
+        this.directionId = trip.getDirectionId();
+        this.routeId = trip.getRouteId();
+        this.routeShortName = trip.getRouteShortName();
+        this.trips.add(trip);
+
+        // The stop is at the end of each stop path so use that for the extent
+        this.extent = new Extent();
+        for (StopPath stopPath : stopPaths) {
+            stopPath.setTripPatternId(id);
+            this.extent.add(stopPath.getStopLocation());
+            this.stopPathsMap.put(stopPath.getStopId(), stopPath);
+        }
+    }
+
     /** Hibernate requires a not-arg constructor */
     @SuppressWarnings("unused")
     protected TripPattern() {
@@ -0,0 +1,91 @@
+/* (C)2023 */
+package org.transitclock.domain.structs;
+
+import jakarta.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+import lombok.Data;
+import org.hibernate.annotations.DynamicUpdate;
+
+/**
+ * A database object for persisting an arrival of a vehicle at a stop of a trip together with the
+ * departure from that stop, if there was one. This is what the trips with travel times report needs
+ * and otherwise it has to find the departure for each arrival in arrivals_departures.
+ */
+@Entity
+@DynamicUpdate
+@Data
+@Table(
+        name = "trip_stop_time_rollups",
+        indexes = {@Index(name = "TripStopTimeRollupArrivalTimeIndex", columnList = "arrival_time")})
+public class TripStopTimeRollup implements Serializable {
+
+    @Id
+    @Column(name = "id")
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    private long id;
+
+    @Column(name = "config_rev")
+    private final int configRev;
+
+    @Column(name = "vehicle_id", length = 60)
+    private final String vehicleId;
+
+    @Column(name = "trip_id", length = 60)
+    private final String tripId;
+
+    @Column(name = "direction_id", length = 60)
+    private final String directionId;
+
+    @Column(name = "stop_id", length = 60)
+    private final String stopId;
+
+    @Column(name = "stop_order")
+    private final Integer stopOrder;
+
+    @Column(name = "gtfs_stop_seq")
+    private final int gtfsStopSeq;
+
+    @Column(name = "arrival_time")
+    @Temporal(TemporalType.TIMESTAMP)
+    private final Date arrivalTime;
+
+    // Null if there was no departure for the arrival
+    @Column(name = "departure_time")
+    @Temporal(TemporalType.TIMESTAMP)
+    private final Date departureTime;
+
+    @Column(name = "departure_scheduled_time")
+    @Temporal(TemporalType.TIMESTAMP)
+    private final Date departureScheduledTime;
+
+    /**
+     * @param arrival
+     * @param departure The departure from the stop, or null if there wasn't one
+     */
+    public TripStopTimeRollup(ArrivalDeparture arrival, ArrivalDeparture departure) {
+        this.configRev = arrival.getConfigRev();
+        this.vehicleId = arrival.getVehicleId();
+        this.tripId = arrival.getTripId();
+        this.directionId = arrival.getDirectionId();
+        this.stopId = arrival.getStopId();
+        this.stopOrder = arrival.getStopOrder();
+        this.gtfsStopSeq = arrival.getGtfsStopSequence();
+        this.arrivalTime = arrival.getDate();
+        this.departureTime = departure != null ? departure.getDate() : null;
+        this.departureScheduledTime = departure != null ? departure.getScheduledDate() : null;
+    }
+
+    protected TripStopTimeRollup() {
+        this.configRev = -1;
+        this.vehicleId = null;
+        this.tripId = null;
+        this.directionId = null;
+        this.stopId = null;
+        this.stopOrder = null;
+        this.gtfsStopSeq = -1;
+        this.arrivalTime = null;
+        this.departureTime = null;
+        this.departureScheduledTime = null;
+    }
+}
@@ -6,7 +6,9 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import lombok.extern.slf4j.Slf4j;
 import org.transitclock.domain.structs.Block;
@@ -118,17 +120,57 @@ public class BlocksProcessor {
         }
     }
 
+    /** The trips for a block, for creating the Block. */
+    private record BlockTrips(String serviceId, String blockId, List<Trip> trips) {}
+
+    /**
+     * Creates the Block for the trips.
+     *
+     * @param configRev
+     * @param blockTrips
+     * @return the Block, or null if the first trip doesn't have a start time
+     */
+    private static Block createBlock(int configRev, BlockTrips blockTrips) {
+        // Determine list of trips for the current block
+        List<Trip> tripsListForBlock = blockTrips.trips();
+
+        // Sort the List of Trips chronologically since they might
+        // be listed in the stop_times.txt file in any order.
+        tripsListForBlock.sort((arg0, arg1) -> {
+            if (arg0 == arg1) return 0;
+            if (arg0 == null || arg0.getStartTime() == null) return -1;
+            if (arg1 == null || arg1.getStartTime() == null) return 1;
+            return arg0.getStartTime().compareTo(arg1.getStartTime());
+        });
+
+        // Determine start time for block from the first trip.
+        Trip firstTripForBlock = tripsListForBlock.get(0);
+        if (firstTripForBlock == null || firstTripForBlock.getStartTime() == null) return null;
+        int startTimeForBlock = firstTripForBlock.getStartTime();
+
+        // Determine end time for block from the last trip.
+        Trip lastTripForBlock = tripsListForBlock.get(tripsListForBlock.size() - 1);
+        int endTimeForBlock = lastTripForBlock.getEndTime();
+
+        // Create the Block
+        return new Block(
+                configRev,
+                blockTrips.blockId(),
+                blockTrips.serviceId(),
+                startTimeForBlock,
+                endTimeForBlock,
+                tripsListForBlock);
+    }
+
     /**
      * Actually processes the trips into block assignments. Includes "unscheduled" block assignments
      * for the routes that have been configured for such.
      *
      * @param configRev
+     * @param pool For creating the blocks in parallel
      * @return List of Block assignments.
      */
-    public List<Block> process(int configRev) {
-        // Create list for blocks
-        List<Block> blocks = new ArrayList<>();
-
+    public List<Block> process(int configRev, ForkJoinPool pool) {
         // Go through trips map, which was created using data from stop_times.txt
         // GTFS file. Then can go through each Trip and construct the
         // blocks. The trips are not necessarily grouped or ordered by block.
@@ -156,42 +198,26 @@ public class BlocksProcessor {
         }
 
         // Now have access to trip list for each block. For each service ID
-        // and block ID create the Block object.
+        // and block ID will create the Block object.
+        List<BlockTrips> blockTripsList = new ArrayList<>();
         for (String serviceId : tripListByBlocksByServiceMap.keySet()) {
             Map<String, List<Trip>> tripListForBlocksMap = tripListByBlocksByServiceMap.get(serviceId);
 
             // For each block ID for the service ID...
             for (String blockId : tripListForBlocksMap.keySet()) {
-                // Determine list of trips for the current block
-                List<Trip> tripsListForBlock = tripListForBlocksMap.get(blockId);
-
-                // Sort the List of Trips chronologically since they might
-                // be listed in the stop_times.txt file in any order.
-                tripsListForBlock.sort((arg0, arg1) -> {
-                    if (arg0 == arg1) return 0;
-                    if (arg0 == null || arg0.getStartTime() == null) return -1;
-                    if (arg1 == null || arg1.getStartTime() == null) return 1;
-                    return arg0.getStartTime().compareTo(arg1.getStartTime());
-                });
-
-                // Determine start time for block from the first trip.
-                Trip firstTripForBlock = tripsListForBlock.get(0);
-                if (firstTripForBlock == null || firstTripForBlock.getStartTime() == null) continue;
-                int startTimeForBlock = firstTripForBlock.getStartTime();
-
-                // Determine end time for block from the last trip.
-                Trip lastTripForBlock = tripsListForBlock.get(tripsListForBlock.size() - 1);
-                int endTimeForBlock = lastTripForBlock.getEndTime();
-
-                // Create the Block
-                Block block =
-                        new Block(configRev, blockId, serviceId, startTimeForBlock, endTimeForBlock, tripsListForBlock);
-
-                // Add the new block to the list of blocks
-                blocks.add(block);
+                blockTripsList.add(new BlockTrips(serviceId, blockId, tripListForBlocksMap.get(blockId)));
             }
         }
 
+        // Each block is independent so they are created in parallel. The
+        // stream keeps the order so the list of blocks is the same as when
+        // creating them one by one.
+        List<Block> blocks = new ArrayList<>(pool.submit(() -> blockTripsList.parallelStream()
+                        .map(blockTrips -> createBlock(configRev, blockTrips))
+                        .filter(Objects::nonNull)
+                        .toList())
+                .join());
+
         // Determine the service IDs that are used and then add
         // the unscheduled blocks for routes that have been configured
         // such that they should be generated.
@@ -0,0 +1,78 @@
+/* (C)2023 */
+package org.transitclock.gtfs;
+
+import lombok.Getter;
+import org.transitclock.domain.structs.Agency;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.domain.structs.Calendar;
+import org.transitclock.domain.structs.CalendarDate;
+import org.transitclock.domain.structs.FareAttribute;
+import org.transitclock.domain.structs.FareRule;
+import org.transitclock.domain.structs.Frequency;
+import org.transitclock.domain.structs.Route;
+import org.transitclock.domain.structs.Stop;
+import org.transitclock.domain.structs.Transfer;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.domain.structs.TripPattern;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The data of a whole config revision as read in by DbConfig when transitclock.core.materializeConfig
+ * is set, so that it can be written to a snapshot file and read back in at the next startup instead
+ * of reading it from the db. Only the lists of objects are stored. The maps used to look them up
+ * are created again when the snapshot is read.
+ *
+ * <p>The blocks, trips, trip patterns, stop paths, schedule times and travel times are all written
+ * as a single object graph so that objects shared between them, such as the trip pattern of many
+ * trips, are still shared when read back. This only works if the whole graph was read in, which is
+ * why snapshots are only used for materialized configs.
+ */
+@Getter
+public class ConfigSnapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Agency> agencies;
+    private final List<Calendar> calendars;
+    private final List<CalendarDate> calendarDates;
+    private final List<FareAttribute> fareAttributes;
+    private final List<FareRule> fareRules;
+    private final List<Frequency> frequencies;
+    private final List<Transfer> transfers;
+    private final List<Route> routes;
+    private final List<Stop> stops;
+    private final List<TripPattern> tripPatterns;
+    private final List<Trip> trips;
+    private final List<Block> blocks;
+
+    public ConfigSnapshot(
+            List<Agency> agencies,
+            List<Calendar> calendars,
+            List<CalendarDate> calendarDates,
+            List<FareAttribute> fareAttributes,
+            List<FareRule> fareRules,
+            List<Frequency> frequencies,
+            List<Transfer> transfers,
+            List<Route> routes,
+            List<Stop> stops,
+            List<TripPattern> tripPatterns,
+            List<Trip> trips,
+            List<Block> blocks) {
+        // Copied into ArrayLists since the lists returned by queries
+        // and the unmodifiable views are not necessarily serializable
+        this.agencies = new ArrayList<>(agencies);
+        this.calendars = new ArrayList<>(calendars);
+        this.calendarDates = new ArrayList<>(calendarDates);
+        this.fareAttributes = new ArrayList<>(fareAttributes);
+        this.fareRules = new ArrayList<>(fareRules);
+        this.frequencies = new ArrayList<>(frequencies);
+        this.transfers = new ArrayList<>(transfers);
+        this.routes = new ArrayList<>(routes);
+        this.stops = new ArrayList<>(stops);
+        this.tripPatterns = new ArrayList<>(tripPatterns);
+        this.trips = new ArrayList<>(trips);
+        this.blocks = new ArrayList<>(blocks);
+    }
+}
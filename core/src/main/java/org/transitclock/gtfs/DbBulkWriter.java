@@ -0,0 +1,419 @@
+/* (C)2023 */
+package org.transitclock.gtfs;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.generator.BeforeExecutionGenerator;
+import org.hibernate.generator.EventType;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.domain.structs.Extent;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.ScheduleTime;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.TravelTimesForStopPath;
+import org.transitclock.domain.structs.TravelTimesForTrip;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.utils.IntervalTimer;
+
+/**
+ * Writes the blocks of a config revision, along with their trips, trip patterns, stop paths and
+ * travel times, as JDBC batches instead of having Hibernate cascade through the object graph one
+ * object at a time. The rows are streamed from the objects into the batches, table by table in
+ * foreign key order. Uses the connection of the session so that the rows are part of the same
+ * transaction as the rest of the config revision.
+ *
+ * <p>The columns must be kept in sync with the mappings of the classes that are written.
+ */
+@Slf4j
+class DbBulkWriter {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final Session session;
+    private final int batchSize;
+
+    /** Sets the parameters of the insert statement for a row. */
+    @FunctionalInterface
+    private interface RowBinder<T> {
+        void bind(PreparedStatement statement, T row) throws SQLException;
+    }
+
+    /** An element of a list that is stored in a separate table, along with its owner. */
+    private record Element<O, E>(O owner, E element, int index) {}
+
+    DbBulkWriter(Session session, int batchSize) {
+        this.session = session;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Writes the blocks and everything they reference. Travel times that already have an ID were
+     * read from the database and are therefore not written again.
+     *
+     * @param blocks
+     * @throws HibernateException when problem with database
+     */
+    void write(Collection<Block> blocks) throws HibernateException {
+        IntervalTimer timer = new IntervalTimer();
+
+        List<Trip> trips = distinct(blocks.stream().flatMap(block -> block.getTrips().stream()));
+        List<TripPattern> tripPatterns = distinct(trips.stream().map(Trip::getTripPattern));
+        List<StopPath> stopPaths =
+                distinct(tripPatterns.stream().flatMap(tripPattern -> tripPattern.getStopPaths().stream()));
+        List<TravelTimesForTrip> travelTimesForTrips = distinct(trips.stream()
+                .map(Trip::getTravelTimes)
+                .filter(Objects::nonNull)
+                .filter(travelTimes -> travelTimes.getId() == null));
+        List<TravelTimesForStopPath> travelTimesForStopPaths = distinct(travelTimesForTrips.stream()
+                .flatMap(travelTimes -> travelTimes.getTravelTimesForStopPaths().stream())
+                .filter(Objects::nonNull)
+                .filter(travelTimes -> travelTimes.getId() == null));
+
+        // The IDs come from the same generator as Hibernate uses so that
+        // they don't conflict with IDs Hibernate hands out
+        assignIds(travelTimesForStopPaths, TravelTimesForStopPath::setId);
+        assignIds(travelTimesForTrips, TravelTimesForTrip::setId);
+
+        session.doWork(connection -> {
+            insert(
+                    connection,
+                    "trip_patterns",
+                    new String[] {
+                        "config_rev", "id", "shape_id", "headsign", "direction_id", "route_id", "route_short_name",
+                        "min_lat", "max_lat", "min_lon", "max_lon"
+                    },
+                    tripPatterns,
+                    (statement, tripPattern) -> {
+                        Extent extent = tripPattern.getExtent();
+                        statement.setInt(1, tripPattern.getConfigRev());
+                        statement.setString(2, tripPattern.getId());
+                        statement.setString(3, tripPattern.getShapeId());
+                        statement.setString(4, tripPattern.getHeadsign());
+                        statement.setString(5, tripPattern.getDirectionId());
+                        statement.setString(6, tripPattern.getRouteId());
+                        statement.setString(7, tripPattern.getRouteShortName());
+                        setDouble(statement, 8, extent == null ? null : extent.getMinLat());
+                        setDouble(statement, 9, extent == null ? null : extent.getMaxLat());
+                        setDouble(statement, 10, extent == null ? null : extent.getMinLon());
+                        setDouble(statement, 11, extent == null ? null : extent.getMaxLon());
+                    });
+
+            insert(
+                    connection,
+                    "stop_paths",
+                    new String[] {
+                        "config_rev", "stop_path_id", "trip_pattern_id", "stop_id", "gtfs_stop_seq",
+                        "last_stop_in_trip", "route_id", "layover_stop", "wait_stop", "schedule_adherence_stop",
+                        "break_time", "path_length", "max_distance", "max_speed"
+                    },
+                    stopPaths,
+                    (statement, stopPath) -> {
+                        statement.setInt(1, stopPath.getConfigRev());
+                        statement.setString(2, stopPath.getStopPathId());
+                        statement.setString(3, stopPath.getTripPatternId());
+                        statement.setString(4, stopPath.getStopId());
+                        statement.setInt(5, stopPath.getGtfsStopSeq());
+                        statement.setBoolean(6, stopPath.isLastStopInTrip());
+                        statement.setString(7, stopPath.getRouteId());
+                        statement.setBoolean(8, stopPath.isLayoverStop());
+                        statement.setBoolean(9, stopPath.isWaitStop());
+                        statement.setBoolean(10, stopPath.isScheduleAdherenceStop());
+                        setInteger(statement, 11, stopPath.getBreakTime());
+                        statement.setDouble(12, stopPath.getPathLength());
+                        setDouble(statement, 13, stopPath.getMaxDistance());
+                        setDouble(statement, 14, stopPath.getMaxSpeed());
+                    });
+
+            insert(
+                    connection,
+                    "stoppath_locations",
+                    new String[] {
+                        "stoppath_stop_path_id", "stoppath_trip_pattern_id", "stoppath_config_rev", "lat", "lon",
+                        "list_index"
+                    },
+                    elements(stopPaths, StopPath::getLocations),
+                    (statement, row) -> {
+                        Location location = row.element();
+                        statement.setString(1, row.owner().getStopPathId());
+                        statement.setString(2, row.owner().getTripPatternId());
+                        statement.setInt(3, row.owner().getConfigRev());
+                        statement.setDouble(4, location.getLat());
+                        statement.setDouble(5, location.getLon());
+                        statement.setInt(6, row.index());
+                    });
+
+            insert(
+                    connection,
+                    "trip_pattern_to_path",
+                    new String[] {
+                        "list_index", "trip_pattern_config_rev", "stop_path_config_rev", "stop_path_stop_path_id",
+                        "stop_path_trip_pattern_id", "trip_pattern_id"
+                    },
+                    elements(tripPatterns, TripPattern::getStopPaths),
+                    (statement, row) -> {
+                        StopPath stopPath = row.element();
+                        statement.setInt(1, row.index());
+                        statement.setInt(2, row.owner().getConfigRev());
+                        statement.setInt(3, stopPath.getConfigRev());
+                        statement.setString(4, stopPath.getStopPathId());
+                        statement.setString(5, stopPath.getTripPatternId());
+                        statement.setString(6, row.owner().getId());
+                    });
+
+            insert(
+                    connection,
+                    "travel_times_for_stop_paths",
+                    new String[] {
+                        "id", "config_rev", "travel_times_rev", "stop_path_id", "travel_time_segment_length",
+                        "travel_times_msec", "stop_time_msec", "days_of_week_override", "how_set"
+                    },
+                    travelTimesForStopPaths,
+                    (statement, travelTimes) -> {
+                        statement.setInt(1, travelTimes.getId());
+                        statement.setInt(2, travelTimes.getConfigRev());
+                        statement.setInt(3, travelTimes.getTravelTimesRev());
+                        statement.setString(4, travelTimes.getStopPathId());
+                        statement.setFloat(5, travelTimes.getTravelTimeSegmentLength());
+                        setJson(statement, 6, travelTimes.getTravelTimesMsec());
+                        statement.setInt(7, travelTimes.getStopTimeMsec());
+                        statement.setShort(8, travelTimes.getDaysOfWeekOverride());
+                        statement.setString(
+                                9,
+                                travelTimes.getHowSet() == null
+                                        ? null
+                                        : travelTimes.getHowSet().name());
+                    });
+
+            insert(
+                    connection,
+                    "travel_times_for_trips",
+                    new String[] {"id", "config_rev", "travel_times_rev", "trip_pattern_id", "trip_created_for_id"},
+                    travelTimesForTrips,
+                    (statement, travelTimes) -> {
+                        statement.setInt(1, travelTimes.getId());
+                        statement.setInt(2, travelTimes.getConfigRev());
+                        statement.setInt(3, travelTimes.getTravelTimesRev());
+                        statement.setString(4, travelTimes.getTripPatternId());
+                        statement.setString(5, travelTimes.getTripCreatedForId());
+                    });
+
+            // Named as in the mapping of TravelTimesForTrip, where for_path_id
+            // is the ID of the TravelTimesForTrip
+            insert(
+                    connection,
+                    "travel_times_for_trip_to_travel_times_for_path",
+                    new String[] {"for_path_id", "for_trip_id", "list_index"},
+                    elements(travelTimesForTrips, TravelTimesForTrip::getTravelTimesForStopPaths),
+                    (statement, row) -> {
+                        statement.setInt(1, row.owner().getId());
+                        statement.setInt(2, row.element().getId());
+                        statement.setInt(3, row.index());
+                    });
+
+            insert(
+                    connection,
+                    "trips",
+                    new String[] {
+                        "config_rev", "trip_id", "start_time", "trip_short_name", "end_time", "direction_id",
+                        "route_id", "route_short_name", "travelTimes_id", "no_schedule", "exact_times_headway",
+                        "service_id", "headsign", "block_id", "shape_id", "tripPattern_config_rev", "tripPattern_id"
+                    },
+                    trips,
+                    (statement, trip) -> {
+                        TripPattern tripPattern = trip.getTripPattern();
+                        statement.setInt(1, trip.getConfigRev());
+                        statement.setString(2, trip.getId());
+                        statement.setInt(3, trip.getStartTime());
+                        statement.setString(4, trip.getTripShortName());
+                        setInteger(statement, 5, trip.getEndTime());
+                        statement.setString(6, trip.getDirectionId());
+                        statement.setString(7, trip.getRouteId());
+                        statement.setString(8, trip.getRouteShortName());
+                        setInteger(
+                                statement,
+                                9,
+                                trip.getTravelTimes() == null
+                                        ? null
+                                        : trip.getTravelTimes().getId());
+                        statement.setBoolean(10, trip.isNoSchedule());
+                        statement.setBoolean(11, trip.isExactTimesHeadway());
+                        statement.setString(12, trip.getServiceId());
+                        statement.setString(13, trip.getHeadsign());
+                        statement.setString(14, trip.getBlockId());
+                        statement.setString(15, trip.getShapeId());
+                        setInteger(statement, 16, tripPattern == null ? null : tripPattern.getConfigRev());
+                        statement.setString(17, tripPattern == null ? null : tripPattern.getId());
+                    });
+
+            insert(
+                    connection,
+                    "trip_scheduled_times_list",
+                    new String[] {
+                        "trip_config_rev", "trip_trip_id", "trip_start_time", "arrival_time", "departure_time",
+                        "list_index"
+                    },
+                    elements(trips, Trip::getScheduleTimes),
+                    (statement, row) -> {
+                        ScheduleTime scheduleTime = row.element();
+                        statement.setInt(1, row.owner().getConfigRev());
+                        statement.setString(2, row.owner().getId());
+                        statement.setInt(3, row.owner().getStartTime());
+                        setInteger(statement, 4, scheduleTime.getArrivalTime());
+                        setInteger(statement, 5, scheduleTime.getDepartureTime());
+                        statement.setInt(6, row.index());
+                    });
+
+            insert(
+                    connection,
+                    "blocks",
+                    new String[] {"service_id", "config_rev", "block_id", "start_time", "end_time", "route_ids"},
+                    blocks,
+                    (statement, block) -> {
+                        statement.setString(1, block.getServiceId());
+                        statement.setInt(2, block.getConfigRev());
+                        statement.setString(3, block.getId());
+                        statement.setInt(4, block.getStartTime());
+                        statement.setInt(5, block.getEndTime());
+                        setJson(statement, 6, block.getRouteIds());
+                    });
+
+            insert(
+                    connection,
+                    "block_to_trip",
+                    new String[] {
+                        "block_block_id", "block_config_rev", "block_service_id", "trips_trip_id",
+                        "trips_config_rev", "trips_start_time", "list_index"
+                    },
+                    elements(blocks, Block::getTrips),
+                    (statement, row) -> {
+                        Trip trip = row.element();
+                        statement.setString(1, row.owner().getId());
+                        statement.setInt(2, row.owner().getConfigRev());
+                        statement.setString(3, row.owner().getServiceId());
+                        statement.setString(4, trip.getId());
+                        statement.setInt(5, trip.getConfigRev());
+                        statement.setInt(6, trip.getStartTime());
+                        statement.setInt(7, row.index());
+                    });
+        });
+
+        logger.info(
+                "Bulk wrote {} blocks, {} trips, {} trip patterns, {} stop paths and {} new travel times. Took {} msec.",
+                blocks.size(),
+                trips.size(),
+                tripPatterns.size(),
+                stopPaths.size(),
+                travelTimesForTrips.size(),
+                timer.elapsedMsec());
+    }
+
+    /**
+     * Inserts the rows into the table, executing the batch every batchSize rows.
+     *
+     * @return number of rows inserted
+     */
+    private <T> int insert(
+            Connection connection, String table, String[] columns, Iterable<T> rows, RowBinder<T> binder)
+            throws SQLException {
+        IntervalTimer timer = new IntervalTimer();
+        String sql = "INSERT INTO " + table + " (" + String.join(", ", columns) + ") VALUES ("
+                + "?, ".repeat(columns.length - 1) + "?)";
+
+        int count = 0;
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (T row : rows) {
+                binder.bind(statement, row);
+                statement.addBatch();
+                if (++count % batchSize == 0) statement.executeBatch();
+            }
+            if (count % batchSize != 0) statement.executeBatch();
+        }
+
+        logger.info("Wrote {} rows to {}. Took {} msec.", count, table, timer.elapsedMsec());
+        return count;
+    }
+
+    private <T> void assignIds(List<T> objects, BiConsumer<T, Integer> setId) {
+        if (objects.isEmpty()) return;
+
+        SharedSessionContractImplementor sessionImplementor = session.unwrap(SharedSessionContractImplementor.class);
+        BeforeExecutionGenerator generator = (BeforeExecutionGenerator) sessionImplementor
+                .getEntityPersister(null, objects.get(0))
+                .getGenerator();
+        for (T object : objects) {
+            setId.accept(object, (Integer) generator.generate(sessionImplementor, object, null, EventType.INSERT));
+        }
+    }
+
+    /**
+     * The objects without duplicates, in order. Compared by identity since the equals() of the
+     * structs compares all of the members, including the lists.
+     */
+    private static <T> List<T> distinct(Stream<T> objects) {
+        Set<T> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<T> distinct = new ArrayList<>();
+        objects.filter(Objects::nonNull).forEach(object -> {
+            if (seen.add(object)) distinct.add(object);
+        });
+        return distinct;
+    }
+
+    /**
+     * The elements of the lists of the owners, created as they are iterated over. Null elements
+     * are skipped, as Hibernate does, but still count for the list index.
+     */
+    private static <O, E> Iterable<Element<O, E>> elements(Collection<O> owners, Function<O, List<E>> listOf) {
+        return () -> owners.stream()
+                .flatMap(owner -> {
+                    List<E> list = listOf.apply(owner);
+                    if (list == null) return Stream.empty();
+                    return IntStream.range(0, list.size())
+                            .filter(index -> list.get(index) != null)
+                            .mapToObj(index -> new Element<>(owner, list.get(index), index));
+                })
+                .iterator();
+    }
+
+    private static void setInteger(PreparedStatement statement, int index, Integer value) throws SQLException {
+        if (value == null) statement.setNull(index, Types.INTEGER);
+        else statement.setInt(index, value);
+    }
+
+    private static void setDouble(PreparedStatement statement, int index, Double value) throws SQLException {
+        if (value == null) statement.setNull(index, Types.DOUBLE);
+        else statement.setDouble(index, value);
+    }
+
+    /** For json columns. Types.OTHER so that Postgres converts the string. */
+    private static void setJson(PreparedStatement statement, int index, Object value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.OTHER);
+            return;
+        }
+        try {
+            statement.setObject(index, objectMapper.writeValueAsString(value), Types.OTHER);
+        } catch (JsonProcessingException e) {
+            throw new SQLException("Could not convert " + value + " to json", e);
+        }
+    }
+}
@@ -1,21 +1,34 @@
 /* (C)2023 */
 package org.transitclock.gtfs;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.HibernateException;
 import org.hibernate.Session;
 import org.transitclock.Core;
+import org.transitclock.config.data.CoreConfig;
 import org.transitclock.core.ServiceUtils;
+import org.transitclock.core.TripPatternGridIndex;
+import org.transitclock.core.dataCache.memory.IdInterner;
 import org.transitclock.domain.hibernate.HibernateUtils;
 import org.transitclock.domain.structs.Agency;
 import org.transitclock.domain.structs.Block;
@@ -26,10 +39,13 @@ import org.transitclock.domain.structs.FareRule;
 import org.transitclock.domain.structs.Frequency;
 import org.transitclock.domain.structs.Route;
 import org.transitclock.domain.structs.Stop;
+import org.transitclock.domain.structs.StopPath;
 import org.transitclock.domain.structs.Transfer;
+import org.transitclock.domain.structs.TravelTimesForTrip;
 import org.transitclock.domain.structs.Trip;
 import org.transitclock.domain.structs.TripPattern;
 import org.transitclock.utils.*;
+import org.transitclock.utils.threading.NamedThreadFactory;
 
 /**
  * Reads all the configuration data from the database. The data is based on GTFS but is heavily
@@ -39,6 +55,15 @@ import org.transitclock.utils.*;
  * read in at system startup. This doesn't read in all the low-level data such as paths and travel
  * times. Those items are very voluminous and are therefore lazy loaded.
  *
+ * <p>If transitclock.core.materializeConfig is set then instead the whole config revision,
+ * including the trips of every block along with their trip patterns, stop paths, schedule times and
+ * travel times, is read in at startup using a bulk query per type of data. The other data is read
+ * in parallel using separate sessions. Nothing is then left to be lazy loaded so processing AVL
+ * reports never has to wait on the db or on the lazy loading lock, and a db failover doesn't affect
+ * the config data. If transitclock.core.snapshotDirectory is also set then the materialized data is
+ * written to a snapshot file, and read from it instead of from the db at the next startup as long
+ * as neither the configRev nor the travelTimesRev has changed.
+ *
  * @author SkiBu Smith
  */
 @Slf4j
@@ -50,6 +75,10 @@ public class DbConfig {
     // Keeps track of which revision of config data was read in
     private final int configRev;
 
+    // The travel times rev that the trips refer to. Initially the one that
+    // was active when the config was read in, but updated by useTravelTimes()
+    private volatile int travelTimesRev;
+
     // Following is for all the data read from the database
     private List<Block> blocks;
 
@@ -71,6 +100,10 @@ public class DbConfig {
 
     // Keyed on routeId
     private Map<String, List<TripPattern>> tripPatternsByRouteMap;
+    // For quickly finding the trip patterns near a location
+    private TripPatternGridIndex tripPatternGridIndex;
+    // For quickly finding the stops near a location
+    private StopGridIndex stopGridIndex;
     // For when reading in all trips from db. Keyed on tripId
     private Map<String, Trip> tripsMap;
     // For trips that have been read in individually. Keyed on tripId.
@@ -99,11 +132,16 @@ public class DbConfig {
     // and so that can read in TripPatterns later using the same session.
     private Session globalSession;
 
+    // True if the whole config revision was read in at startup so that
+    // nothing needs to be lazy loaded
+    private boolean materialized;
+
     private final ServiceUtils serviceUtils;
     private final Time time;
 
-    public DbConfig(String agencyId, int configRev) {
+    public DbConfig(String agencyId, int configRev, int travelTimesRev) {
         this.agencyId = agencyId;
+        this.travelTimesRev = travelTimesRev;
         // For logging how long things take
         IntervalTimer timer = new IntervalTimer();
 
@@ -115,7 +153,8 @@ public class DbConfig {
 
         // Do the low-level processing
         try {
-            actuallyReadData(configRev);
+            if (!CoreConfig.materializeConfig.getValue()) actuallyReadData(configRev);
+            else if (!readSnapshot(configRev)) readMaterializedData(configRev);
         } catch (HibernateException e) {
             logger.error(
                     "Error reading configuration data from db for "
@@ -129,6 +168,31 @@ public class DbConfig {
 
         // Let user know what is going on
         logger.info("Finished reading configuration data from database . " + "Took {} msec.", timer.elapsedMsec());
+
+        // So that interning the IDs on the prediction path is just a lookup.
+        // The trips are only available if they were read in up front.
+        IdInterner.internConfig(routes, stopsMap.values(), tripsMap != null ? tripsMap.values() : null);
+        this.serviceUtils = new ServiceUtils(this);
+        this.time = new Time(this);
+    }
+
+    /**
+     * Creates the config from a snapshot that is already in memory instead of reading it from the
+     * db, such as for the synthetic network used by the benchmarks. There is no global session so
+     * the snapshot needs to contain the whole config, as a materialized config does.
+     *
+     * @param agencyId
+     * @param configRev
+     * @param travelTimesRev
+     * @param snapshot The whole config
+     */
+    public DbConfig(String agencyId, int configRev, int travelTimesRev, ConfigSnapshot snapshot) {
+        this.agencyId = agencyId;
+        this.configRev = configRev;
+        this.travelTimesRev = travelTimesRev;
+        useSnapshot(snapshot);
+
+        IdInterner.internConfig(routes, stopsMap.values(), tripsMap.values());
         this.serviceUtils = new ServiceUtils(this);
         this.time = new Time(this);
     }
@@ -357,6 +421,24 @@ public class DbConfig {
         return theTripPatternsByRouteMap;
     }
 
+    /**
+     * Returns the spatial index of the trip patterns for this config rev.
+     *
+     * @return the trip pattern grid index
+     */
+    public TripPatternGridIndex getTripPatternGridIndex() {
+        return tripPatternGridIndex;
+    }
+
+    /**
+     * Returns the spatial index of the stops of the trip patterns for this config rev.
+     *
+     * @return the stop grid index
+     */
+    public StopGridIndex getStopGridIndex() {
+        return stopGridIndex;
+    }
+
     /**
      * Returns the list of trip patterns associated with the specified route. Reads the trip
      * patterns from the database and stores them in cache so that subsequent calls get them
@@ -416,6 +498,12 @@ public class DbConfig {
      * @return The trip, or null if no such trip
      */
     public Trip getTrip(String tripIdOrShortName) {
+        // If all trips were read in at startup then no need to go to the db
+        if (materialized) {
+            Trip trip = tripsMap.get(tripIdOrShortName);
+            return trip != null ? trip : getTripUsingTripShortName(tripIdOrShortName);
+        }
+
         Trip trip = individualTripsMap.get(tripIdOrShortName);
 
         // If trip not read in yet, do so now
@@ -504,6 +592,10 @@ public class DbConfig {
             }
         }
 
+        // If all trips were read in at startup then there are none with the
+        // tripShortName
+        if (materialized) return null;
+
         logger.info("FIXME tripShortName={} not yet read from db so reading it in now", tripShortName);
 
         // Trips for the short name not read in yet, do so now
@@ -606,6 +698,11 @@ public class DbConfig {
 
         tripPatternsByRouteMap = putTripPatternsInfoRouteMap();
 
+        timer = new IntervalTimer();
+        tripPatternGridIndex = TripPatternGridIndex.build(tripPatternsByRouteMap, routesByRouteIdMap);
+        stopGridIndex = StopGridIndex.build(tripPatternsByRouteMap);
+        logger.debug("Building trip pattern and stop grid indexes took {} msec", timer.elapsedMsec());
+
         timer = new IntervalTimer();
         List<Stop> stopsList = Stop.getStops(globalSession, configRev);
         stopsMap = putStopsIntoMap(stopsList);
@@ -633,6 +730,221 @@ public class DbConfig {
         logger.debug("Reading everything else took {} msec", timer.elapsedMsec());
     }
 
+    /**
+     * Reads in the whole config revision so that nothing needs to be lazy loaded later. The blocks
+     * and everything they refer to are read into the global session using a bulk query per type of
+     * data, in dependency order, so that each query finds the objects it refers to already loaded.
+     * Meanwhile the rest of the data, which isn't referred to by the blocks, is read in parallel
+     * using separate sessions.
+     *
+     * @param configRev
+     */
+    private void readMaterializedData(int configRev) {
+        IntervalTimer timer = new IntervalTimer();
+        globalSession = HibernateUtils.getSession(agencyId);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3, new NamedThreadFactory("dbConfigLoader"));
+        try {
+            CompletableFuture<List<Route>> routesFuture =
+                    readUsingOwnSession(executor, session -> Route.getRoutes(session, configRev));
+            CompletableFuture<List<Stop>> stopsFuture =
+                    readUsingOwnSession(executor, session -> Stop.getStops(session, configRev));
+            CompletableFuture<Void> otherDataFuture = readUsingOwnSession(executor, session -> {
+                agencies = Agency.getAgencies(session, configRev);
+                calendars = Calendar.getCalendars(session, configRev);
+                calendarDates = CalendarDate.getCalendarDates(session, configRev);
+                fareAttributes = FareAttribute.getFareAttributes(session, configRev);
+                fareRules = FareRule.getFareRules(session, configRev);
+                frequencies = Frequency.getFrequencies(session, configRev);
+                transfers = Transfer.getTransfers(session, configRev);
+                return null;
+            });
+
+            BlocksAndTrips blocksAndTrips = readBlocksAndTrips(configRev);
+
+            routes = routesFuture.join();
+            List<Stop> stopsList = stopsFuture.join();
+            otherDataFuture.join();
+
+            putMaterializedDataIntoMaps(blocksAndTrips.tripPatterns, blocksAndTrips.trips, stopsList);
+            writeSnapshot(new ConfigSnapshot(agencies, calendars, calendarDates, fareAttributes, fareRules,
+                    frequencies, transfers, routes, stopsList, blocksAndTrips.tripPatterns, blocksAndTrips.trips,
+                    blocks));
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof HibernateException hibernateException) throw hibernateException;
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+
+        materialized = true;
+        logger.info("Read in whole configRev={} with {} blocks, {} trips and {} trip patterns in {} msec",
+                configRev, blocks.size(), tripsMap.size(), tripPatternsByRouteMap.values().stream().mapToInt(List::size).sum(),
+                timer.elapsedMsec());
+    }
+
+    /**
+     * Creates the maps for looking up the materialized data, for when it was read from the db or
+     * from a snapshot. The blocks, routes and other data besides the trip patterns, trips and stops
+     * need to already be set.
+     */
+    private void putMaterializedDataIntoMaps(List<TripPattern> tripPatterns, List<Trip> trips, List<Stop> stopsList) {
+        blocksByServiceMap = putBlocksIntoMap(blocks);
+        blocksByRouteMap = putBlocksIntoMapByRoute(blocks);
+
+        Map<String, Trip> theTripsMap = new HashMap<>();
+        for (Trip trip : trips) {
+            theTripsMap.put(trip.getId(), trip);
+            if (trip.getShortName() != null) {
+                individualTripsByShortNameMap
+                        .computeIfAbsent(trip.getShortName(), k -> new ArrayList<>(1))
+                        .add(trip);
+            }
+        }
+        tripsMap = Collections.unmodifiableMap(theTripsMap);
+
+        routesByRouteIdMap = Collections.unmodifiableMap(putRoutesIntoMapByRouteId(routes));
+        routesByRouteShortNameMap = Collections.unmodifiableMap(putRoutesIntoMapByRouteShortName(routes));
+        tripPatternsByRouteMap = Collections.unmodifiableMap(putTripPatternsIntoMap(tripPatterns));
+        tripPatternGridIndex = TripPatternGridIndex.build(tripPatternsByRouteMap, routesByRouteIdMap);
+        stopGridIndex = StopGridIndex.build(tripPatternsByRouteMap);
+        stopsMap = Collections.unmodifiableMap(putStopsIntoMap(stopsList));
+        stopsByStopCode = Collections.unmodifiableMap(putStopsIntoMapByStopCode(stopsList));
+        routesListByStopIdMap = Collections.unmodifiableMap(putRoutesIntoMapByStopId(routes));
+
+        calendarDatesMap = new HashMap<>();
+        for (CalendarDate calendarDate : calendarDates) {
+            calendarDatesMap
+                    .computeIfAbsent(calendarDate.getTime(), k -> new ArrayList<>(1))
+                    .add(calendarDate);
+        }
+    }
+
+    /** Returns the snapshot file for the config, or null if snapshots are not configured. */
+    private Path getSnapshotFile() {
+        String directory = CoreConfig.snapshotDirectory.getValue();
+        if (directory == null || directory.isEmpty()) return null;
+        return Paths.get(directory, agencyId + "-config.snapshot");
+    }
+
+    /**
+     * Reads the materialized config from the snapshot file if there is one for the config rev and
+     * the travel times rev. The snapshot includes the travel times of the trips so it can't be used
+     * once new travel times have been made active.
+     *
+     * @param configRev
+     * @return true if the config was read from the snapshot
+     */
+    private boolean readSnapshot(int configRev) {
+        Path snapshotFile = getSnapshotFile();
+        if (snapshotFile == null) return false;
+
+        IntervalTimer timer = new IntervalTimer();
+        ConfigSnapshot snapshot = SnapshotFile.read(snapshotFile, configRev, travelTimesRev, ConfigSnapshot.class);
+        if (snapshot == null) return false;
+
+        // Still need a session for anything that is not part of the
+        // config, such as when a trip is read in individually
+        globalSession = HibernateUtils.getSession(agencyId);
+
+        useSnapshot(snapshot);
+        logger.info("Read in whole configRev={} with {} blocks, {} trips and {} trip patterns from snapshot "
+                        + "{} in {} msec",
+                configRev, blocks.size(), tripsMap.size(), snapshot.getTripPatterns().size(), snapshotFile,
+                timer.elapsedMsec());
+        return true;
+    }
+
+    /** Uses the whole config from the snapshot, whether it was read from a file or created in memory. */
+    private void useSnapshot(ConfigSnapshot snapshot) {
+        agencies = snapshot.getAgencies();
+        calendars = snapshot.getCalendars();
+        calendarDates = snapshot.getCalendarDates();
+        fareAttributes = snapshot.getFareAttributes();
+        fareRules = snapshot.getFareRules();
+        frequencies = snapshot.getFrequencies();
+        transfers = snapshot.getTransfers();
+        routes = snapshot.getRoutes();
+        blocks = Collections.unmodifiableList(snapshot.getBlocks());
+        putMaterializedDataIntoMaps(snapshot.getTripPatterns(), snapshot.getTrips(), snapshot.getStops());
+        materialized = true;
+    }
+
+    /** Writes the materialized config to the snapshot file, if snapshots are configured. */
+    private void writeSnapshot(ConfigSnapshot snapshot) {
+        Path snapshotFile = getSnapshotFile();
+        if (snapshotFile == null) return;
+
+        try {
+            SnapshotFile.write(snapshotFile, configRev, travelTimesRev, snapshot);
+        } catch (IOException | RuntimeException e) {
+            // Not being able to write the snapshot only means that the
+            // next startup reads the config from the db
+            logger.error("Could not write config snapshot to {}", snapshotFile, e);
+        }
+    }
+
+    /** Runs the reader in the executor with its own session, closing the session when done. */
+    private <T> CompletableFuture<T> readUsingOwnSession(ExecutorService executor, Function<Session, T> reader) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Session session = HibernateUtils.getSession(agencyId)) {
+                return reader.apply(session);
+            }
+        }, executor);
+    }
+
+    /**
+     * Reads the blocks along with all of their trips, trip patterns, stop paths, schedule times and
+     * travel times into the global session. Each query fetches the collections of the objects it
+     * reads and finds the objects they refer to in the session, since those were read by a
+     * previous query. So the whole graph is read with a handful of queries and is fully initialized
+     * afterwards.
+     *
+     * @param configRev
+     * @return the trip patterns and trips
+     */
+    private BlocksAndTrips readBlocksAndTrips(int configRev) {
+        IntervalTimer timer = new IntervalTimer();
+        List<StopPath> stopPaths = globalSession
+                .createQuery("FROM StopPath sp LEFT JOIN FETCH sp.locations WHERE sp.configRev = :configRev",
+                        StopPath.class)
+                .setParameter("configRev", configRev)
+                .list();
+        List<TripPattern> tripPatterns = globalSession
+                .createQuery("FROM TripPattern tp LEFT JOIN FETCH tp.stopPaths WHERE tp.configRev = :configRev",
+                        TripPattern.class)
+                .setParameter("configRev", configRev)
+                .list();
+        logger.debug("Reading {} stop paths and {} trip patterns took {} msec",
+                stopPaths.size(), tripPatterns.size(), timer.elapsedMsec());
+
+        timer = new IntervalTimer();
+        List<TravelTimesForTrip> travelTimes = globalSession
+                .createQuery("SELECT DISTINCT tt FROM Trip t JOIN t.travelTimes tt "
+                                + "LEFT JOIN FETCH tt.travelTimesForStopPaths WHERE t.configRev = :configRev",
+                        TravelTimesForTrip.class)
+                .setParameter("configRev", configRev)
+                .list();
+        List<Trip> trips = globalSession
+                .createQuery("FROM Trip t LEFT JOIN FETCH t.scheduledTimesList WHERE t.configRev = :configRev",
+                        Trip.class)
+                .setParameter("configRev", configRev)
+                .list();
+        logger.debug("Reading {} trips and {} travel times took {} msec",
+                trips.size(), travelTimes.size(), timer.elapsedMsec());
+
+        timer = new IntervalTimer();
+        blocks = Collections.unmodifiableList(globalSession
+                .createQuery("FROM Block b LEFT JOIN FETCH b.trips WHERE b.configRev = :configRev", Block.class)
+                .setParameter("configRev", configRev)
+                .list());
+        logger.debug("Reading {} blocks took {} msec", blocks.size(), timer.elapsedMsec());
+
+        return new BlocksAndTrips(tripPatterns, trips);
+    }
+
+    private record BlocksAndTrips(List<TripPattern> tripPatterns, List<Trip> trips) {}
+
     /**
      * Returns the block specified by the service and block ID parameters.
      *
@@ -671,6 +983,42 @@ public class DbConfig {
         }
     }
 
+    /**
+     * Switches the trips that are already in memory to newly created travel times, such as those
+     * stored by the RollingTravelTimesModule, so that they are used without restarting the core.
+     * Trips that are read in afterwards get the new travel times from the db since the stored trips
+     * refer to them.
+     *
+     * @param travelTimesRev The rev of the new travel times
+     * @param travelTimesByTripId The new travel times, keyed on tripId
+     * @return Number of trips in memory that were updated
+     */
+    public int useTravelTimes(int travelTimesRev, Map<String, TravelTimesForTrip> travelTimesByTripId) {
+        // Synchronize on the lazy loading object so that trips aren't
+        // being read in while they are being updated
+        synchronized (Block.getLazyLoadingSyncObject()) {
+            Set<Trip> trips = Collections.newSetFromMap(new IdentityHashMap<>());
+            if (tripsMap != null) trips.addAll(tripsMap.values());
+            trips.addAll(individualTripsMap.values());
+            individualTripsByShortNameMap.values().forEach(trips::addAll);
+            if (blocks != null) {
+                for (Block block : blocks) trips.addAll(block.getTripsIfLoaded());
+            }
+
+            int tripsUpdated = 0;
+            for (Trip trip : trips) {
+                TravelTimesForTrip travelTimes = travelTimesByTripId.get(trip.getId());
+                if (travelTimes != null) {
+                    trip.setTravelTimes(travelTimes);
+                    ++tripsUpdated;
+                }
+            }
+            this.travelTimesRev = travelTimesRev;
+            logger.info("Using travelTimesRev={} for the {} trips in memory", travelTimesRev, tripsUpdated);
+            return tripsUpdated;
+        }
+    }
+
     public int getBlockCount() {
         int blockCount = 0;
         for (String serviceId : blocksByServiceMap.keySet()) {
@@ -81,18 +81,24 @@ public class DbWriter {
         logger.info(
                 "Saving {} blocks (plus associated trips) to database...",
                 gtfsData.getBlocks().size());
-        int c = 0;
-        long startTime = System.currentTimeMillis();
-        for (Block block : gtfsData.getBlocks()) {
-            logger.info(
-                    "Saving block #{} with blockId={} serviceId={} blockId={}",
-                    ++c,
-                    block.getId(),
-                    block.getServiceId(),
-                    block.getId());
-            writeObject(session, block, false);
-            if (c % 1000 == 0) {
-                logger.info("wrote {} blocks in {}s", c, (System.currentTimeMillis() - startTime) / 1000);
+        if (DbSetupConfig.isBulkConfigWrite()) {
+            // Write them as JDBC batches instead, as part of the same
+            // transaction
+            new DbBulkWriter(session, DbSetupConfig.getBatchSize()).write(gtfsData.getBlocks());
+        } else {
+            int c = 0;
+            long startTime = System.currentTimeMillis();
+            for (Block block : gtfsData.getBlocks()) {
+                logger.info(
+                        "Saving block #{} with blockId={} serviceId={} blockId={}",
+                        ++c,
+                        block.getId(),
+                        block.getServiceId(),
+                        block.getId());
+                writeObject(session, block, false);
+                if (c % 1000 == 0) {
+                    logger.info("wrote {} blocks in {}s", c, (System.currentTimeMillis() - startTime) / 1000);
+                }
             }
         }
 
@@ -5,6 +5,7 @@ import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.Session;
 import org.transitclock.config.data.GtfsConfig;
+import org.transitclock.core.dataCache.memory.StringTable;
 import org.transitclock.domain.structs.*;
 import org.transitclock.domain.structs.Calendar;
 import org.transitclock.gtfs.model.*;
@@ -15,6 +16,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.regex.Pattern;
 
 /**
@@ -58,6 +60,14 @@ public class GtfsData {
     // So can make the titles more readable
     private final TitleFormatter titleFormatter;
 
+    // For interning the IDs read by the columnar readers so that the
+    // stop times and shapes share the strings
+    private final StringTable gtfsStrings = new StringTable();
+
+    // For processing the trips, trip patterns and blocks in parallel.
+    // Only set while processData() is running.
+    private ForkJoinPool processingPool;
+
     // Where the data is stored.
     // From main and supplement routes.txt files. Key is route_id.
     private Map<String, GtfsRoute> gtfsRoutesMap;
@@ -860,21 +870,36 @@ public class GtfsData {
         // Let user know what is going on
         logger.info("Processing stop_times.txt data...");
 
-        // Read in the stop_times.txt GTFS data from file. Use a large initial
-        // array size so when reading in data won't have to constantly increase
-        // array size and do array copying. SFMTA for example has 1,100,000
-        // stop times so starting with a value of 500,000 certainly should be
-        // reasonable.
-        GtfsStopTimesReader stopTimesReader = new GtfsStopTimesReader(gtfsDirectoryName);
-        Collection<GtfsStopTime> gtfsStopTimes = stopTimesReader.get(500000);
-
-        // Handle possible supplemental stop_times.txt file.
-        // Match the supplemental data to the main data using both
-        // trip_id and stop_id.
+        // Read in possible supplemental stop_times.txt file first since
+        // determines whether the columnar loader can group the stop times
+        // by trip directly
+        List<GtfsStopTime> stopTimesSupplement = new ArrayList<>();
         if (supplementDir != null) {
             GtfsStopTimesSupplementReader stopTimesSupplementReader = new GtfsStopTimesSupplementReader(supplementDir);
-            List<GtfsStopTime> stopTimesSupplement = stopTimesSupplementReader.get();
+            stopTimesSupplement = stopTimesSupplementReader.get();
+        }
 
+        if (GtfsConfig.columnarLoader.getValue() && stopTimesSupplement.isEmpty()) {
+            // Parse stop_times.txt into columns and create the stop times
+            // for each trip from them, without a list of all the stop times
+            GtfsStopTimesColumnarReader stopTimesReader = new GtfsStopTimesColumnarReader(
+                    gtfsDirectoryName, gtfsStrings, GtfsConfig.loaderThreads.getValue());
+            gtfsStopTimesForTripMap = stopTimesReader.getByTrip();
+        } else {
+            // Read in the stop_times.txt GTFS data from file. Use a large initial
+            // array size so when reading in data won't have to constantly increase
+            // array size and do array copying. SFMTA for example has 1,100,000
+            // stop times so starting with a value of 500,000 certainly should be
+            // reasonable.
+            Collection<GtfsStopTime> gtfsStopTimes = GtfsConfig.columnarLoader.getValue()
+                    ? new GtfsStopTimesColumnarReader(
+                                    gtfsDirectoryName, gtfsStrings, GtfsConfig.loaderThreads.getValue())
+                            .get()
+                    : new GtfsStopTimesReader(gtfsDirectoryName).get(500000);
+
+            // Handle possible supplemental stop_times.txt file.
+            // Match the supplemental data to the main data using both
+            // trip_id and stop_id.
             if (!stopTimesSupplement.isEmpty()) {
                 // Put original shapes into map for quick searching
                 Map<MapKey, GtfsStopTime> map = new HashMap<>();
@@ -916,31 +941,34 @@ public class GtfsData {
                 // Use the new combined shapes
                 gtfsStopTimes = map.values();
             }
-        }
 
-        // The GtfsStopTimes are put into this map and then can create Trips
-        // and TripPatterns. Keyed by tripId
-        gtfsStopTimesForTripMap = new HashMap<>();
+            // The GtfsStopTimes are put into this map and then can create Trips
+            // and TripPatterns. Keyed by tripId
+            gtfsStopTimesForTripMap = new HashMap<>();
 
-        // Put the GtfsStopTimes into the map
-        for (GtfsStopTime gtfsStopTime : gtfsStopTimes) {
-            String tripId = gtfsStopTime.getTripId();
-            gtfsStopTimesForTripMap
-                    .computeIfAbsent(tripId, k -> new ArrayList<>())
-                    .add(gtfsStopTime);
+            // Put the GtfsStopTimes into the map
+            for (GtfsStopTime gtfsStopTime : gtfsStopTimes) {
+                String tripId = gtfsStopTime.getTripId();
+                gtfsStopTimesForTripMap
+                        .computeIfAbsent(tripId, k -> new ArrayList<>())
+                        .add(gtfsStopTime);
+            }
         }
 
-        // Go through the stop times for each tripId. Sort them and look for
-        // any problems with the data.
-        Set<String> tripIds = gtfsStopTimesForTripMap.keySet();
-        for (String tripId : tripIds) {
-            List<GtfsStopTime> gtfsStopTimesForTrip = gtfsStopTimesForTripMap.get(tripId);
-            List<GtfsStopTime> processedGtfsStopTimesForTrip = processStopTimesForTrip(gtfsStopTimesForTrip);
+        // Go through the stop times for each tripId. Sort them, look for
+        // any problems with the data, and interpolate missing times. Each
+        // trip is independent so they are processed in parallel.
+        processingPool
+                .submit(() -> gtfsStopTimesForTripMap.entrySet().parallelStream().forEach(entry -> {
+                    List<GtfsStopTime> processedGtfsStopTimesForTrip = processStopTimesForTrip(entry.getValue());
+                    new StopTimeInterpolator(processedGtfsStopTimesForTrip).interpolate();
 
-            // Replace the stop times for the trip with the processed/cleaned
-            // up version
-            gtfsStopTimesForTripMap.put(tripId, processedGtfsStopTimesForTrip);
-        }
+                    // Replace the stop times for the trip with the
+                    // processed/cleaned up version. Not a structural
+                    // change to the map so is safe in parallel.
+                    entry.setValue(processedGtfsStopTimesForTrip);
+                }))
+                .join();
 
         // Log if a trip is defined in the trips.txt file but not in
         // stop_times.txt
@@ -999,8 +1027,8 @@ public class GtfsData {
         Set<String> pathIdsForTrip = new HashSet<>();
 
         // Determine the gtfs stop times for this trip
+        // Already interpolated in processStopTimesData().
         List<GtfsStopTime> gtfsStopTimesForTrip = gtfsStopTimesForTripMap.get(trip.getId());
-        new StopTimeInterpolator(gtfsStopTimesForTrip).interpolate();
 
         // For each stop time for the trip...
         List<ScheduleTime> newScheduleTimesList = new ArrayList<>();
@@ -1513,7 +1541,7 @@ public class GtfsData {
 
         // Actually process the block info and get back list of blocks
         blocks = new BlocksProcessor(this)
-                .process(revs.getConfigRev());
+                .process(revs.getConfigRev(), processingPool);
 
         // Let user know what is going on
         logger.info("Finished processing blocks. Took {} msec.", timer.elapsedMsec());
@@ -1585,8 +1613,10 @@ public class GtfsData {
         logger.info("Processing shapes.txt data...");
 
         // Read in the shapes.txt GTFS data from file
-        GtfsShapesReader shapesReader = new GtfsShapesReader(gtfsDirectoryName);
-        Collection<GtfsShape> gtfsShapes = shapesReader.get();
+        Collection<GtfsShape> gtfsShapes = GtfsConfig.columnarLoader.getValue()
+                ? new GtfsShapesColumnarReader(gtfsDirectoryName, gtfsStrings, GtfsConfig.loaderThreads.getValue())
+                        .get()
+                : new GtfsShapesReader(gtfsDirectoryName).get();
 
         // Handle possible supplemental shapes.txt file.
         // Match the supplemental data to the main data using both
@@ -1650,7 +1680,7 @@ public class GtfsData {
                 trimPathBeforeFirstStopOfTrip,
                 maxDistanceBetweenStops,
                 disableSpecialLoopBackToBeginningCase);
-        pathProcessor.processPathSegments();
+        pathProcessor.processPathSegments(processingPool);
 
         // Let user know what is going on
         logger.info("Finished processing shapes.txt data. Took {} msec.", timer.elapsedMsec());
@@ -2276,54 +2306,81 @@ public class GtfsData {
         return routeIdFilterRegExPattern.matcher(routeId.trim()).matches();
     }
 
+    /**
+     * Runs a stage of processData() and records how long it took.
+     *
+     * @param msecByStage For recording the time of the stage
+     * @param name Name of the stage, for logging
+     * @param stage The processing to do
+     */
+    private static void runStage(Map<String, Long> msecByStage, String name, Runnable stage) {
+        IntervalTimer timer = new IntervalTimer();
+        stage.run();
+        msecByStage.put(name, timer.elapsedMsec());
+    }
+
     /** Does all the work. Processes the data and store it in internal structures */
     public void processData() {
 
         // Let user know what is going on
         logger.info("Processing GTFS data from {} ...", gtfsDirectoryName);
 
-        // Note. The order of how these are processed in important because
-        // some data sets rely on others in order to be fully processed.
-        // If the order is wrong then the methods below will log an error and
-        // exit.
-        processRouteData();
-        processStopData();
-        processCalendarDates();
-        processCalendars();
-        processServiceIds();
-        processTripsData();
-        processFrequencies();
-        processStopTimesData();
-        processRouteMaps();
-        processBlocks();
-        processPaths();
-        processAgencyData();
-
-        // Following are simple objects that don't require combining tables
-        processFareAttributes();
-        processFareRules();
-        processTransfers();
-
-        // Sometimes will be using a partial configuration. For example, for
-        // MBTA commuter rail only want to use the trips defined for
-        // commuter rail even though the GTFS data can have trips for
-        // other modes defined. This can mean that the data includes many
-        // stops that are actually not used by the subset of trips.
-        // Therefore trim out the unused stops.
-        trimStops();
-
-        // Get rid of calendars and calendar dates that don't have any trips
-        // associated to try to pare down number of service IDs. Especially
-        // useful when processing just part of an agency config, like
-        // MBTA commuter rail.
-        trimCalendars();
-
-        // Optionally output routes for debug graphing
-        outputRoutesForGraphing();
-
-        // Now process travel times and update the Trip objects.
-        TravelTimesProcessorForGtfsUpdates travelTimesProcessor = new TravelTimesProcessorForGtfsUpdates(
-                revs, originalTravelTimesRev, maxTravelTimeSegmentLength, defaultWaitTimeAtStopMsec, maxSpeedKph);
-        travelTimesProcessor.process(session, this);
+        IntervalTimer timer = new IntervalTimer();
+        Map<String, Long> msecByStage = new LinkedHashMap<>();
+        processingPool = new ForkJoinPool(GtfsConfig.processingThreads.getValue());
+        try {
+            // Note. The order of how these are processed in important because
+            // some data sets rely on others in order to be fully processed.
+            // If the order is wrong then the methods below will log an error and
+            // exit.
+            runStage(msecByStage, "routes", this::processRouteData);
+            runStage(msecByStage, "stops", this::processStopData);
+            runStage(msecByStage, "calendarDates", this::processCalendarDates);
+            runStage(msecByStage, "calendars", this::processCalendars);
+            runStage(msecByStage, "serviceIds", this::processServiceIds);
+            runStage(msecByStage, "trips", this::processTripsData);
+            runStage(msecByStage, "frequencies", this::processFrequencies);
+            runStage(msecByStage, "stopTimes", this::processStopTimesData);
+            runStage(msecByStage, "routeMaps", this::processRouteMaps);
+            runStage(msecByStage, "blocks", this::processBlocks);
+            runStage(msecByStage, "paths", this::processPaths);
+            runStage(msecByStage, "agencies", this::processAgencyData);
+
+            // Following are simple objects that don't require combining tables
+            runStage(msecByStage, "fareAttributes", this::processFareAttributes);
+            runStage(msecByStage, "fareRules", this::processFareRules);
+            runStage(msecByStage, "transfers", this::processTransfers);
+
+            // Sometimes will be using a partial configuration. For example, for
+            // MBTA commuter rail only want to use the trips defined for
+            // commuter rail even though the GTFS data can have trips for
+            // other modes defined. This can mean that the data includes many
+            // stops that are actually not used by the subset of trips.
+            // Therefore trim out the unused stops.
+            runStage(msecByStage, "trimStops", this::trimStops);
+
+            // Get rid of calendars and calendar dates that don't have any trips
+            // associated to try to pare down number of service IDs. Especially
+            // useful when processing just part of an agency config, like
+            // MBTA commuter rail.
+            runStage(msecByStage, "trimCalendars", this::trimCalendars);
+
+            // Optionally output routes for debug graphing
+            runStage(msecByStage, "routesForGraphing", this::outputRoutesForGraphing);
+
+            // Now process travel times and update the Trip objects.
+            TravelTimesProcessorForGtfsUpdates travelTimesProcessor = new TravelTimesProcessorForGtfsUpdates(
+                    revs, originalTravelTimesRev, maxTravelTimeSegmentLength, defaultWaitTimeAtStopMsec, maxSpeedKph);
+            runStage(msecByStage, "travelTimes", () -> travelTimesProcessor.process(session, this, processingPool));
+        } finally {
+            processingPool.shutdown();
+            processingPool = null;
+        }
+
+        logger.info(
+                "Finished processing GTFS data using {} threads. Took {} msec. Msec by stage: {}",
+                GtfsConfig.processingThreads.getValue(),
+                timer.elapsedMsec(),
+                msecByStage);
     }
 }
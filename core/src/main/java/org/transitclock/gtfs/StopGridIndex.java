@@ -0,0 +1,130 @@
+/* (C)2023 */
+package org.transitclock.gtfs;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.extern.slf4j.Slf4j;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.TripPattern;
+
+/**
+ * A uniform lat/lon grid that maps each cell to the trip patterns that have a stop in the cell.
+ * Built once per config revision so that StopsByLocation only needs to look at the trip patterns
+ * that have a stop within the max distance of a location instead of at every stop of every trip
+ * pattern.
+ *
+ * <p>A query covers all the cells touched by the bounding box of the circle around the location,
+ * expanded a bit. The result is therefore conservative: if a trip pattern is not returned then
+ * none of its stops are within the max distance of the location.
+ */
+@Slf4j
+public class StopGridIndex {
+    // Size of a grid cell in degrees. About 220m in latitude, so that a
+    // typical nearby stops query only covers a few dozen cells.
+    private static final double CELL_SIZE_DEGREES = 0.002;
+
+    // Smallest length of a degree of latitude, and of a degree of longitude
+    // at the equator, in meters. Using the low values makes the bounding
+    // box of a query conservative.
+    private static final double METERS_PER_DEGREE_LAT = 110_500.0;
+    private static final double METERS_PER_DEGREE_LON_AT_EQUATOR = 111_300.0;
+
+    // A bit of slack so that the approximate distances used for stops
+    // never end up just outside the bounding box
+    private static final double DISTANCE_MARGIN = 1.1;
+
+    // If a query would cover more cells than this, such as for a huge max
+    // distance, it is cheaper to simply look at all the trip patterns
+    private static final int MAX_CELLS_PER_QUERY = 10_000;
+
+    private final Map<Long, Set<String>> tripPatternIdsByCell;
+
+    /**
+     * Builds the index for the trip patterns.
+     *
+     * @param tripPatterns All the trip patterns for the config rev
+     */
+    public StopGridIndex(Collection<TripPattern> tripPatterns) {
+        Map<Long, Set<String>> map = new HashMap<>();
+        for (TripPattern tripPattern : tripPatterns) {
+            for (StopPath stopPath : tripPattern.getStopPaths()) {
+                Location loc = stopPath.getStopLocation();
+                if (loc == null) continue;
+                map.computeIfAbsent(cellKey(cellIndex(loc.getLat()), cellIndex(loc.getLon())), k -> new HashSet<>())
+                        .add(tripPattern.getId());
+            }
+        }
+
+        // Don't want the sets to be modified once index is built
+        map.replaceAll((cell, tripPatternIds) -> Collections.unmodifiableSet(tripPatternIds));
+        this.tripPatternIdsByCell = map;
+    }
+
+    private static int cellIndex(double degrees) {
+        return (int) Math.floor(degrees / CELL_SIZE_DEGREES);
+    }
+
+    private static long cellKey(int latCell, int lonCell) {
+        return ((long) latCell << 32) | (lonCell & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns IDs of the trip patterns that could have a stop within maxDistance of the location.
+     *
+     * @param loc The location
+     * @param maxDistance In meters
+     * @return Set of trip pattern IDs, empty if none. Null if the area is so large that all the
+     *     trip patterns need to be looked at.
+     */
+    public Set<String> getTripPatternIdsNear(Location loc, double maxDistance) {
+        double distance = maxDistance * DISTANCE_MARGIN;
+        double deltaLat = distance / METERS_PER_DEGREE_LAT;
+        double maxAbsLat = Math.min(89.0, Math.abs(loc.getLat()) + deltaLat);
+        double deltaLon = distance / (METERS_PER_DEGREE_LON_AT_EQUATOR * Math.cos(Math.toRadians(maxAbsLat)));
+
+        int minLatCell = cellIndex(loc.getLat() - deltaLat);
+        int maxLatCell = cellIndex(loc.getLat() + deltaLat);
+        int minLonCell = cellIndex(loc.getLon() - deltaLon);
+        int maxLonCell = cellIndex(loc.getLon() + deltaLon);
+        long numberCells = (long) (maxLatCell - minLatCell + 1) * (maxLonCell - minLonCell + 1);
+        if (numberCells > MAX_CELLS_PER_QUERY) return null;
+
+        Set<String> tripPatternIds = new HashSet<>();
+        for (int latCell = minLatCell; latCell <= maxLatCell; ++latCell) {
+            for (int lonCell = minLonCell; lonCell <= maxLonCell; ++lonCell) {
+                Set<String> idsForCell = tripPatternIdsByCell.get(cellKey(latCell, lonCell));
+                if (idsForCell != null) tripPatternIds.addAll(idsForCell);
+            }
+        }
+        return tripPatternIds;
+    }
+
+    /**
+     * @return number of grid cells that have at least one stop
+     */
+    public int getNumberCells() {
+        return tripPatternIdsByCell.size();
+    }
+
+    /**
+     * Builds the index for all the trip patterns of a config rev.
+     *
+     * @param tripPatternsByRoute Trip patterns keyed by route ID
+     * @return the new index
+     */
+    public static StopGridIndex build(Map<String, List<TripPattern>> tripPatternsByRoute) {
+        List<TripPattern> tripPatterns = tripPatternsByRoute.values().stream()
+                .flatMap(List::stream)
+                .toList();
+        StopGridIndex index = new StopGridIndex(tripPatterns);
+        logger.info("Built stop grid index for {} trip patterns with {} cells", tripPatterns.size(), index.getNumberCells());
+        return index;
+    }
+}
@@ -7,6 +7,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import lombok.extern.slf4j.Slf4j;
 import org.transitclock.domain.structs.Location;
@@ -587,37 +588,49 @@ public class StopPathProcessor {
      * completely overlap on the map. Then the stops are matched to the shapes in order to create
      * the Paths. Each path is for a separate stop and the path ends at the stop. The path segments
      * are also filtered so that segments that are too short or too long are adjusted.
+     *
+     * @param pool For processing the trip patterns in parallel
      */
-    public void processPathSegments() {
+    public void processPathSegments(ForkJoinPool pool) {
         // For logging how long things take
         IntervalTimer timer = new IntervalTimer();
 
         // Let user know what is going on
         logger.info("Processing and filtering path segment data...");
 
-        // Need to process stopPaths for every trip pattern...
-        for (TripPattern tripPattern : tripPatterns) {
-            // Determine the GtfsShape associated with the TripPattern
-            String shapeId = tripPattern.getShapeId();
-            List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
-
-            // If no shape defined then simply connect the stops
-            if (gtfsShapesForTripPattern == null) {
-                // Create stopPaths by connecting the stops
-                connectStopsSinceNoShapes(tripPattern);
-            } else {
-                // Determine list of shapes associated with the trip pattern.
-                // The stopPaths are offset to the right by the offsetDistance
-                // if needed. This is useful if the shapes.txt data is street
-                // centerline data.
-                List<Location> offsetLocations = getOffsetLocations(gtfsShapesMap.get(shapeId));
-
-                // Create stopPaths by finding best match to shapes
-                determinePathSegmentsMatchingStopsToShapes(offsetLocations, tripPattern);
-            }
-        }
+        // Need to process stopPaths for every trip pattern. Each trip pattern
+        // has its own stopPaths and only reads the shapes and stops so they
+        // can be processed in parallel.
+        pool.submit(() -> tripPatterns.parallelStream().forEach(this::processPathSegments))
+                .join();
 
         // Let user know what is going on
         logger.info("Finished processing and filtering path segment data. " + "Took {} msec.", timer.elapsedMsec());
     }
+
+    /**
+     * Determines the stopPaths for the trip pattern.
+     *
+     * @param tripPattern
+     */
+    private void processPathSegments(TripPattern tripPattern) {
+        // Determine the GtfsShape associated with the TripPattern
+        String shapeId = tripPattern.getShapeId();
+        List<GtfsShape> gtfsShapesForTripPattern = gtfsShapesMap.get(shapeId);
+
+        // If no shape defined then simply connect the stops
+        if (gtfsShapesForTripPattern == null) {
+            // Create stopPaths by connecting the stops
+            connectStopsSinceNoShapes(tripPattern);
+        } else {
+            // Determine list of shapes associated with the trip pattern.
+            // The stopPaths are offset to the right by the offsetDistance
+            // if needed. This is useful if the shapes.txt data is street
+            // centerline data.
+            List<Location> offsetLocations = getOffsetLocations(gtfsShapesForTripPattern);
+
+            // Create stopPaths by finding best match to shapes
+            determinePathSegmentsMatchingStopsToShapes(offsetLocations, tripPattern);
+        }
+    }
 }
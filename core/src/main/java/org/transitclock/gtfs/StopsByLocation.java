@@ -2,14 +2,17 @@
 package org.transitclock.gtfs;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import org.transitclock.Core;
 import org.transitclock.core.dataCache.PredictionDataCache;
 import org.transitclock.domain.structs.Location;
 import org.transitclock.domain.structs.Route;
 import org.transitclock.domain.structs.StopPath;
 import org.transitclock.domain.structs.TripPattern;
-import org.transitclock.service.dto.IpcPredictionsForRouteStopDest;
 import org.transitclock.utils.Geo;
 
 /**
@@ -103,27 +106,31 @@ public class StopsByLocation {
      * predictions. This way won't return a stop for a trip pattern that is not currently in
      * service. Yet will still return closest viable stop.
      *
+     * <p>The matches are looked at nearest first so that the PredictionDataCache only needs to be
+     * queried until a stop with predictions is found. Since trip patterns often share stops the
+     * results of the queries are remembered in hasPredictionsByRouteStop for the whole request.
+     *
      * @param matchesForDirection
+     * @param hasPredictionsByRouteStop Whether a route/stop has predictions, for the request
      * @return
      */
-    private static StopInfo determineBestStopBasedOnPredictions(List<StopInfo> matchesForDirection) {
-        StopInfo nearestStopWithPrediction = null;
-
-        // There are multiple trip matches with a match so
-        // determine best one by looking at the predictions
-        for (StopInfo stopInfo : matchesForDirection) {
-            List<IpcPredictionsForRouteStopDest> predictionsForStop =
-                    PredictionDataCache.getInstance().getPredictions(stopInfo.routeShortName, stopInfo.stopId);
-
-            // Is this the nearest stop with a prediction?
-            if (!predictionsForStop.isEmpty()
-                    && (nearestStopWithPrediction == null
-                            || stopInfo.distanceToStop < nearestStopWithPrediction.distanceToStop)) {
-                nearestStopWithPrediction = stopInfo;
-            }
+    private static StopInfo determineBestStopBasedOnPredictions(
+            List<StopInfo> matchesForDirection, Map<String, Boolean> hasPredictionsByRouteStop) {
+        // There are multiple trip matches with a match so determine best one
+        // by looking at the predictions. Stable sort so that the first of
+        // equally distant stops is used.
+        List<StopInfo> nearestFirst = new ArrayList<>(matchesForDirection);
+        nearestFirst.sort(Comparator.comparingDouble(stopInfo -> stopInfo.distanceToStop));
+        for (StopInfo stopInfo : nearestFirst) {
+            boolean hasPredictions = hasPredictionsByRouteStop.computeIfAbsent(
+                    stopInfo.routeShortName + "|" + stopInfo.stopId,
+                    key -> !PredictionDataCache.getInstance()
+                            .getPredictions(stopInfo.routeShortName, stopInfo.stopId)
+                            .isEmpty());
+            if (hasPredictions) return stopInfo;
         }
 
-        return nearestStopWithPrediction;
+        return null;
     }
 
     /**
@@ -146,7 +153,8 @@ public class StopsByLocation {
     /**
      * Gets list of stops that are within maxDistance of the specified location. Looks at every trip
      * pattern so can deal with complicated cases such as routes with school service stops just for
-     * part of the day.
+     * part of the day. Uses the StopGridIndex of the DbConfig to skip the routes and trip patterns
+     * that don't have a stop near the location.
      *
      * @param loc
      * @param maxDistance
@@ -156,8 +164,18 @@ public class StopsByLocation {
         // For returning the results
         List<StopInfo> results = new ArrayList<StopInfo>();
 
-        // Find closest stops for every route...
+        // Determine the trip patterns that have a stop near the location.
+        // Null means all trip patterns need to be looked at.
         DbConfig dbConfig = Core.getInstance().getDbConfig();
+        StopGridIndex stopGridIndex = dbConfig.getStopGridIndex();
+        Set<String> nearbyTripPatternIds =
+                stopGridIndex != null ? stopGridIndex.getTripPatternIdsNear(loc, maxDistance) : null;
+        if (nearbyTripPatternIds != null && nearbyTripPatternIds.isEmpty()) return results;
+
+        // For not having to look up the predictions for a route/stop more than once
+        Map<String, Boolean> hasPredictionsByRouteStop = new HashMap<>();
+
+        // Find closest stops for every route...
         for (Route route : dbConfig.getRoutes()) {
             // If the specified location is not within the distance of the route
             // then can skip this route
@@ -177,6 +195,10 @@ public class StopsByLocation {
 
                 List<TripPattern> tripPatternsForDirection = route.getTripPatterns(directionId);
                 for (TripPattern tripPattern : tripPatternsForDirection) {
+                    // If none of the stops of the trip pattern are near the
+                    // location then it can't provide a stop
+                    if (nearbyTripPatternIds != null && !nearbyTripPatternIds.contains(tripPattern.getId())) continue;
+
                     // Determine the closest stop for the trip pattern
                     StopInfo stopInfo = determineClosestStop(tripPattern, loc, maxDistance);
 
@@ -196,7 +218,7 @@ public class StopsByLocation {
                 } else if (matchesForDirection.size() > 1) {
                     // Matches are for different stops so determine best stop
                     // based on predictions
-                    StopInfo stopInfo = determineBestStopBasedOnPredictions(matchesForDirection);
+                    StopInfo stopInfo = determineBestStopBasedOnPredictions(matchesForDirection, hasPredictionsByRouteStop);
 
                     if (stopInfo != null) results.add(stopInfo);
                 }
@@ -3,9 +3,13 @@ package org.transitclock.gtfs;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
 
 import lombok.extern.slf4j.Slf4j;
 import org.hibernate.HibernateException;
@@ -546,19 +550,49 @@ public class TravelTimesProcessorForGtfsUpdates {
 
     /**
      * Goes through every trip and and associates schedule based travel times with trip if don't
-     * have GPS data for it.
+     * have GPS data for it. The trips of a trip pattern only share travel times with each other so
+     * the trip patterns are processed in parallel. The trips of a trip pattern are processed in
+     * order, as before, so the same travel times are reused.
      *
      * @param gtfsData
-     * @param travelTimesFromDbMap Map keyed by tripPatternId of Lists of TripPatterns
+     * @param travelTimesFromDbMap Map keyed by tripPatternId of Lists of TripPatterns. Must be
+     *     thread safe since new schedule based travel times are added to it.
+     * @param pool For processing the trip patterns in parallel
      * @return the number of distinct traveltimes referenced for the travelTimesRev
      * @throws HibernateException
      */
-    private Integer processTrips(GtfsData gtfsData, Map<String, List<TravelTimesForTrip>> travelTimesFromDbMap) {
+    private Integer processTrips(
+            GtfsData gtfsData, Map<String, List<TravelTimesForTrip>> travelTimesFromDbMap, ForkJoinPool pool) {
+        // Group the trips by trip pattern, keeping the order of the trips
+        Map<String, List<Trip>> tripsByTripPattern = gtfsData.getTrips().stream()
+                .collect(Collectors.groupingBy(
+                        trip -> trip.getTripPattern().getId(), LinkedHashMap::new, Collectors.toList()));
+
+        List<Set<Integer>> travelTimesForTripIdsByTripPattern = pool.submit(
+                        () -> tripsByTripPattern.values().parallelStream()
+                                .map(trips -> processTrips(trips, gtfsData, travelTimesFromDbMap))
+                                .toList())
+                .join();
+
         // keep a set of travel times for trips for metrics
         Set<Integer> travelTimesForTripIds = new HashSet<Integer>();
+        travelTimesForTripIdsByTripPattern.forEach(travelTimesForTripIds::addAll);
+        return travelTimesForTripIds.size();
+    }
+
+    /**
+     * Associates travel times with the trips of a trip pattern.
+     *
+     * @param trips The trips of a single trip pattern
+     * @param gtfsData
+     * @param travelTimesFromDbMap Map keyed by tripPatternId of Lists of TripPatterns
+     * @return the IDs of the travel times referenced by the trips
+     */
+    private Set<Integer> processTrips(
+            List<Trip> trips, GtfsData gtfsData, Map<String, List<TravelTimesForTrip>> travelTimesFromDbMap) {
+        Set<Integer> travelTimesForTripIds = new HashSet<Integer>();
 
-        // For trip read from GTFS data..
-        for (Trip trip : gtfsData.getTrips()) {
+        for (Trip trip : trips) {
             TripPattern tripPattern = trip.getTripPattern();
 
             logger.debug(
@@ -609,7 +643,7 @@ public class TravelTimesProcessorForGtfsUpdates {
             // the database.
             trip.setTravelTimes(travelTimesToUse);
         }
-        return travelTimesForTripIds.size();
+        return travelTimesForTripIds;
     }
 
     /**
@@ -633,8 +667,9 @@ public class TravelTimesProcessorForGtfsUpdates {
      * created by looking at the schedule times and interpolating.
      *
      * @param gtfsData
+     * @param pool For processing the trip patterns in parallel
      */
-    public void process(Session session, GtfsData gtfsData) {
+    public void process(Session session, GtfsData gtfsData, ForkJoinPool pool) {
         if (!gtfsData.isTripsReadIn()) {
             logger.error("tripsMap not yet read in by GtfsData before "
                     + "ScheduleBasedTravelTimesProcessor.process() called. Software "
@@ -655,14 +690,15 @@ public class TravelTimesProcessorForGtfsUpdates {
         logger.info("Processing travel time data...");
 
         // Read existing data from db and put into travelTimesFromDbMap member.
-        // Map is keyed on trip pattern ID.
+        // Map is keyed on trip pattern ID. Concurrent since trip patterns
+        // are processed in parallel and add schedule based travel times.
         Map<String, List<TravelTimesForTrip>> travelTimesFromDbMap =
-                TravelTimesForTrip.getTravelTimesForTrips(session, originalTravelTimesRev);
+                new ConcurrentHashMap<>(TravelTimesForTrip.getTravelTimesForTrips(session, originalTravelTimesRev));
 
         setOriginalNumberOfTravelTimes(numberOfTravelTimes(travelTimesFromDbMap));
 
         // Do the low-level processing
-        setNumberOfTravelTimes(processTrips(gtfsData, travelTimesFromDbMap));
+        setNumberOfTravelTimes(processTrips(gtfsData, travelTimesFromDbMap, pool));
 
         // Let user know what is going on
         logger.info(
@@ -36,6 +36,36 @@ public class GtfsShape extends CsvBase implements Comparable<GtfsShape> {
         this.delete = false;
     }
 
+    /**
+     * Creates a GtfsShape object from values already parsed from shapes.txt, such as by the
+     * GtfsShapesColumnarReader.
+     *
+     * @param shapeId
+     * @param shapePtLat
+     * @param shapePtLon
+     * @param shapePtSequence
+     * @param shapeDistTraveled Can be null
+     * @param lineNumber Record number in the file
+     * @param fileName for logging errors
+     */
+    public GtfsShape(
+            String shapeId,
+            double shapePtLat,
+            double shapePtLon,
+            int shapePtSequence,
+            Double shapeDistTraveled,
+            int lineNumber,
+            String fileName) {
+        super(lineNumber, false, fileName);
+
+        this.shapeId = shapeId;
+        this.shapePtLat = shapePtLat;
+        this.shapePtLon = shapePtLon;
+        this.shapePtSequence = shapePtSequence;
+        this.shapeDistTraveled = shapeDistTraveled;
+        this.delete = null;
+    }
+
     /**
      * Creates a GtfsShape object by reading the data from the CSVRecord.
      *
@@ -134,6 +134,59 @@ public class GtfsStopTime extends CsvBase implements Comparable<GtfsStopTime> {
         maxSpeed = getOptionalDoubleValue(record, "max_speed");
     }
 
+    /**
+     * Creates a GtfsStopTime object from values already parsed from stop_times.txt, such as by the
+     * GtfsStopTimesColumnarReader.
+     *
+     * @param tripId
+     * @param arrivalTimeSecs Can be null
+     * @param departureTimeSecs Can be null
+     * @param stopId
+     * @param stopSequence
+     * @param stopHeadsign Can be null
+     * @param pickupType Can be null
+     * @param dropOffType Can be null
+     * @param timepointStop Can be null
+     * @param shapeDistTraveled Can be null
+     * @param maxDistance Can be null
+     * @param maxSpeed Can be null
+     * @param lineNumber Record number in the file
+     * @param fileName for logging errors
+     */
+    public GtfsStopTime(
+            String tripId,
+            Integer arrivalTimeSecs,
+            Integer departureTimeSecs,
+            String stopId,
+            Integer stopSequence,
+            String stopHeadsign,
+            String pickupType,
+            String dropOffType,
+            Boolean timepointStop,
+            Double shapeDistTraveled,
+            Double maxDistance,
+            Double maxSpeed,
+            int lineNumber,
+            String fileName) {
+        super(lineNumber, false, fileName);
+
+        this.tripId = tripId;
+        this.arrivalTimeSecs = arrivalTimeSecs;
+        this.departureTimeSecs = departureTimeSecs;
+        this.stopId = stopId;
+        this.stopSequence = stopSequence;
+        this.stopHeadsign = stopHeadsign;
+        this.pickupType = pickupType;
+        this.dropOffType = dropOffType;
+        this.timepointStop = timepointStop;
+        this.shapeDistTraveled = shapeDistTraveled;
+        this.maxDistance = maxDistance;
+        this.maxSpeed = maxSpeed;
+
+        this.delete = null;
+        this.isWaitStop = null;
+    }
+
     /**
      * For when need to convert a GtfsStopTime to a subclass. Copies the originalValues but uses
      * newArrivalTime and newDepartureTime if they are not null. If they are null then will use the
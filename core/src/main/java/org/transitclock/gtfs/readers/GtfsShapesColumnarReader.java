@@ -0,0 +1,117 @@
+/* (C)2023 */
+package org.transitclock.gtfs.readers;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.csv.CSVRecord;
+import org.transitclock.core.dataCache.memory.StringTable;
+import org.transitclock.gtfs.model.GtfsShape;
+import org.transitclock.utils.csv.CsvColumnarReader;
+
+/**
+ * GTFS reader for the shapes.txt file that parses the file in parallel into primitive columns,
+ * with the shape IDs interned in a StringTable, and then creates the GtfsShape objects from the
+ * columns.
+ */
+public class GtfsShapesColumnarReader extends CsvColumnarReader<GtfsShapesColumnarReader.ShapesBlock> {
+
+    private final StringTable strings;
+
+    /** The shape points parsed from a chunk of the file. */
+    public static class ShapesBlock extends CsvColumnarReader.Block {
+        int[] shapeIds;
+        double[] lats;
+        double[] lons;
+        int[] sequences;
+        // NaN if not set
+        double[] distsTraveled;
+
+        ShapesBlock(int capacity) {
+            super(capacity);
+            shapeIds = new int[capacity];
+            lats = new double[capacity];
+            lons = new double[capacity];
+            sequences = new int[capacity];
+            distsTraveled = new double[capacity];
+        }
+
+        @Override
+        protected void grow(int capacity) {
+            super.grow(capacity);
+            shapeIds = Arrays.copyOf(shapeIds, capacity);
+            lats = Arrays.copyOf(lats, capacity);
+            lons = Arrays.copyOf(lons, capacity);
+            sequences = Arrays.copyOf(sequences, capacity);
+            distsTraveled = Arrays.copyOf(distsTraveled, capacity);
+        }
+    }
+
+    /**
+     * @param dirName Directory of the GTFS files
+     * @param strings For interning the shape IDs
+     * @param numberThreads Number of threads for parsing the file
+     */
+    public GtfsShapesColumnarReader(String dirName, StringTable strings, int numberThreads) {
+        super(dirName, "shapes.txt", false, numberThreads);
+        this.strings = strings;
+    }
+
+    @Override
+    protected ShapesBlock createBlock(int capacity) {
+        return new ShapesBlock(capacity);
+    }
+
+    @Override
+    protected void handleRecord(ShapesBlock block, CSVRecord record) throws ParseException, NumberFormatException {
+        String shapeId = getRequiredValue(record, "shape_id");
+        if (shapeId == null) return;
+
+        // Parse everything before adding the row so that a bad value
+        // doesn't leave a partially filled in row
+        double lat = parseDouble(getRequiredValue(record, "shape_pt_lat"));
+        double lon = parseDouble(getRequiredValue(record, "shape_pt_lon"));
+        int sequence = Integer.parseInt(getRequiredValue(record, "shape_pt_sequence"));
+        double dist = parseDouble(getValue(record, "shape_dist_traveled"));
+
+        int row = block.addRow(record);
+        block.shapeIds[row] = strings.intern(shapeId);
+        block.lats[row] = lat;
+        block.lons[row] = lon;
+        block.sequences[row] = sequence;
+        block.distsTraveled[row] = dist;
+    }
+
+    private static double parseDouble(String value) {
+        return value == null ? Double.NaN : Double.parseDouble(value);
+    }
+
+    /**
+     * Reads the shape points.
+     *
+     * @return The shape points in file order. Can be empty but not null.
+     */
+    public List<GtfsShape> get() {
+        List<ShapesBlock> blocks = read();
+        int size = blocks.stream().mapToInt(ShapesBlock::size).sum();
+        List<GtfsShape> shapes = new ArrayList<>(size);
+        for (int i = 0; i < blocks.size(); ++i) {
+            ShapesBlock block = blocks.get(i);
+            for (int row = 0; row < block.size(); ++row) {
+                double dist = block.distsTraveled[row];
+                shapes.add(new GtfsShape(
+                        strings.get(block.shapeIds[row]),
+                        block.lats[row],
+                        block.lons[row],
+                        block.sequences[row],
+                        Double.isNaN(dist) ? null : dist,
+                        block.getRecordNumber(row),
+                        getFileName()));
+            }
+            // Columns no longer needed
+            blocks.set(i, null);
+        }
+        return shapes;
+    }
+}
@@ -0,0 +1,225 @@
+/* (C)2023 */
+package org.transitclock.gtfs.readers;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.csv.CSVRecord;
+import org.transitclock.core.dataCache.memory.StringTable;
+import org.transitclock.gtfs.GtfsData;
+import org.transitclock.gtfs.model.GtfsStopTime;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.csv.CsvColumnarReader;
+
+/**
+ * GTFS reader for the stop_times.txt file that parses the file in parallel into primitive columns,
+ * with the IDs and other repeated strings interned in a StringTable. The GtfsStopTime objects are
+ * then created from the columns, grouped by trip, without first creating a list of all of them.
+ * For large feeds this is much faster and uses much less memory than GtfsStopTimesReader.
+ */
+public class GtfsStopTimesColumnarReader extends CsvColumnarReader<GtfsStopTimesColumnarReader.StopTimesBlock> {
+
+    // For when an int column value is not set
+    private static final int NOT_SET = Integer.MIN_VALUE;
+
+    private final StringTable strings;
+
+    /** The stop times parsed from a chunk of the file. */
+    public static class StopTimesBlock extends CsvColumnarReader.Block {
+        int[] tripIds;
+        int[] stopIds;
+        int[] stopSequences;
+        int[] arrivalTimes;
+        int[] departureTimes;
+        int[] stopHeadsigns;
+        int[] pickupTypes;
+        int[] dropOffTypes;
+        // 0 if not set, 1 for false, 2 for true
+        byte[] timepoints;
+        // NaN if not set
+        double[] shapeDistsTraveled;
+        double[] maxDistances;
+        double[] maxSpeeds;
+
+        StopTimesBlock(int capacity) {
+            super(capacity);
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            tripIds = tripIds == null ? new int[capacity] : Arrays.copyOf(tripIds, capacity);
+            stopIds = stopIds == null ? new int[capacity] : Arrays.copyOf(stopIds, capacity);
+            stopSequences = stopSequences == null ? new int[capacity] : Arrays.copyOf(stopSequences, capacity);
+            arrivalTimes = arrivalTimes == null ? new int[capacity] : Arrays.copyOf(arrivalTimes, capacity);
+            departureTimes = departureTimes == null ? new int[capacity] : Arrays.copyOf(departureTimes, capacity);
+            stopHeadsigns = stopHeadsigns == null ? new int[capacity] : Arrays.copyOf(stopHeadsigns, capacity);
+            pickupTypes = pickupTypes == null ? new int[capacity] : Arrays.copyOf(pickupTypes, capacity);
+            dropOffTypes = dropOffTypes == null ? new int[capacity] : Arrays.copyOf(dropOffTypes, capacity);
+            timepoints = timepoints == null ? new byte[capacity] : Arrays.copyOf(timepoints, capacity);
+            shapeDistsTraveled =
+                    shapeDistsTraveled == null ? new double[capacity] : Arrays.copyOf(shapeDistsTraveled, capacity);
+            maxDistances = maxDistances == null ? new double[capacity] : Arrays.copyOf(maxDistances, capacity);
+            maxSpeeds = maxSpeeds == null ? new double[capacity] : Arrays.copyOf(maxSpeeds, capacity);
+        }
+
+        @Override
+        protected void grow(int capacity) {
+            super.grow(capacity);
+            allocate(capacity);
+        }
+    }
+
+    /**
+     * @param dirName Directory of the GTFS files
+     * @param strings For interning the IDs and other repeated strings
+     * @param numberThreads Number of threads for parsing the file
+     */
+    public GtfsStopTimesColumnarReader(String dirName, StringTable strings, int numberThreads) {
+        super(dirName, "stop_times.txt", true, numberThreads);
+        this.strings = strings;
+    }
+
+    /** For testing with small chunks */
+    GtfsStopTimesColumnarReader(String dirName, StringTable strings, int numberThreads, int chunkSize) {
+        super(dirName, "stop_times.txt", true, numberThreads, chunkSize);
+        this.strings = strings;
+    }
+
+    @Override
+    protected StopTimesBlock createBlock(int capacity) {
+        return new StopTimesBlock(capacity);
+    }
+
+    @Override
+    protected void handleRecord(StopTimesBlock block, CSVRecord record) throws ParseException, NumberFormatException {
+        String tripId = getRequiredValue(record, "trip_id");
+        if (tripId == null || !GtfsData.tripNotFiltered(tripId)) return;
+
+        String stopId = getRequiredValue(record, "stop_id");
+        String stopSequence = getRequiredValue(record, "stop_sequence");
+        String arrivalTime = getValue(record, "arrival_time");
+        String departureTime = getValue(record, "departure_time");
+        String timepoint = getValue(record, "timepoint");
+
+        // Parse everything before adding the row so that a bad value
+        // doesn't leave a partially filled in row
+        int stopSequenceValue = stopSequence == null ? NOT_SET : Integer.parseInt(stopSequence);
+        int arrivalTimeSecs = arrivalTime == null ? NOT_SET : Time.parseTimeOfDay(arrivalTime);
+        int departureTimeSecs = departureTime == null ? NOT_SET : Time.parseTimeOfDay(departureTime);
+        double shapeDistTraveled = parseDouble(getValue(record, "shape_dist_traveled"));
+        double maxDistance = parseDouble(getValue(record, "max_distance"));
+        double maxSpeed = parseDouble(getValue(record, "max_speed"));
+
+        int row = block.addRow(record);
+        block.tripIds[row] = strings.intern(tripId);
+        block.stopIds[row] = strings.intern(stopId);
+        block.stopSequences[row] = stopSequenceValue;
+        block.arrivalTimes[row] = arrivalTimeSecs;
+        block.departureTimes[row] = departureTimeSecs;
+        block.stopHeadsigns[row] = strings.intern(getValue(record, "stop_headsign"));
+        block.pickupTypes[row] = strings.intern(getValue(record, "pickup_type"));
+        block.dropOffTypes[row] = strings.intern(getValue(record, "drop_off_type"));
+        block.timepoints[row] = timepoint == null ? 0 : isTrue(timepoint) ? (byte) 2 : 1;
+        block.shapeDistsTraveled[row] = shapeDistTraveled;
+        block.maxDistances[row] = maxDistance;
+        block.maxSpeeds[row] = maxSpeed;
+    }
+
+    // Same as CsvBase.getOptionalBooleanValue()
+    private static boolean isTrue(String value) {
+        return value.equals("1") || value.equals("t") || value.equals("true");
+    }
+
+    private static double parseDouble(String value) {
+        return value == null ? Double.NaN : Double.parseDouble(value);
+    }
+
+    private static Integer intOrNull(int value) {
+        return value == NOT_SET ? null : value;
+    }
+
+    private static Double doubleOrNull(double value) {
+        return Double.isNaN(value) ? null : value;
+    }
+
+    private GtfsStopTime createStopTime(StopTimesBlock block, int row) {
+        byte timepoint = block.timepoints[row];
+        return new GtfsStopTime(
+                strings.get(block.tripIds[row]),
+                intOrNull(block.arrivalTimes[row]),
+                intOrNull(block.departureTimes[row]),
+                strings.get(block.stopIds[row]),
+                intOrNull(block.stopSequences[row]),
+                strings.get(block.stopHeadsigns[row]),
+                strings.get(block.pickupTypes[row]),
+                strings.get(block.dropOffTypes[row]),
+                timepoint == 0 ? null : timepoint == 2,
+                doubleOrNull(block.shapeDistsTraveled[row]),
+                doubleOrNull(block.maxDistances[row]),
+                doubleOrNull(block.maxSpeeds[row]),
+                block.getRecordNumber(row),
+                getFileName());
+    }
+
+    /**
+     * Reads the stop times.
+     *
+     * @return The stop times in file order. Can be empty but not null.
+     */
+    public List<GtfsStopTime> get() {
+        List<StopTimesBlock> blocks = read();
+        int size = blocks.stream().mapToInt(StopTimesBlock::size).sum();
+        List<GtfsStopTime> stopTimes = new ArrayList<>(size);
+        for (int i = 0; i < blocks.size(); ++i) {
+            StopTimesBlock block = blocks.get(i);
+            for (int row = 0; row < block.size(); ++row) stopTimes.add(createStopTime(block, row));
+            // Columns no longer needed
+            blocks.set(i, null);
+        }
+        return stopTimes;
+    }
+
+    /**
+     * Reads the stop times and groups them by trip. The lists are sized exactly and the stop times
+     * of a trip are in file order, as when grouping the result of get().
+     *
+     * @return Map of stop times keyed by trip ID. Can be empty but not null.
+     */
+    public Map<String, List<GtfsStopTime>> getByTrip() {
+        List<StopTimesBlock> blocks = read();
+
+        // Count the stop times of each trip so the lists can be sized exactly
+        int[] counts = new int[strings.size()];
+        for (StopTimesBlock block : blocks) {
+            for (int row = 0; row < block.size(); ++row) ++counts[block.tripIds[row]];
+        }
+
+        // Trips are added to the map in order of their first stop time
+        Map<String, List<GtfsStopTime>> stopTimesByTrip = new HashMap<>();
+        List<GtfsStopTime>[] listsByTrip = newListArray(counts.length);
+        for (int i = 0; i < blocks.size(); ++i) {
+            StopTimesBlock block = blocks.get(i);
+            for (int row = 0; row < block.size(); ++row) {
+                int trip = block.tripIds[row];
+                List<GtfsStopTime> list = listsByTrip[trip];
+                if (list == null) {
+                    list = new ArrayList<>(counts[trip]);
+                    listsByTrip[trip] = list;
+                    stopTimesByTrip.put(strings.get(trip), list);
+                }
+                list.add(createStopTime(block, row));
+            }
+            // Columns no longer needed
+            blocks.set(i, null);
+        }
+        return stopTimesByTrip;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<GtfsStopTime>[] newListArray(int size) {
+        return new List[size];
+    }
+}
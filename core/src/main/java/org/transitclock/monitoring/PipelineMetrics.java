@@ -0,0 +1,143 @@
+/* (C)2023 */
+package org.transitclock.monitoring;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.transitclock.utils.LatencyHistogram;
+
+/**
+ * Latency histograms for the stages of processing an AVL report into predictions, plus counters for
+ * the AVL report queue. Unlike the monitors in this package, which only determine whether an alert
+ * should be sent, these are meant to be scraped periodically so that it is possible to see where
+ * the time goes when processing an AVL report and to spot regressions.
+ *
+ * <p>A stage can be done several times for a single AVL report, such as matching to several blocks
+ * or processing the report again when the end of a block is reached. The times of a stage are
+ * therefore added up while the report is processed and each stage is recorded once per report,
+ * when processing is done. Recording is lock free so it can be done for every AVL report by every
+ * AVL processing thread. The latencies are in nanoseconds.
+ */
+public class PipelineMetrics {
+
+    /** The stages of AvlProcessor.processAvlReport() that are timed. */
+    public enum Stage {
+        // Finding the spatial matches for the AVL report
+        SPATIAL_MATCH,
+        // Determining the best temporal match of the spatial matches
+        TEMPORAL_MATCH,
+        // Generating the arrivals and departures, including putting them
+        // into the historical caches
+        ARRIVAL_DEPARTURE_GENERATION,
+        // Generating the predictions for the vehicle
+        PREDICTION_GENERATION,
+        // Updating the prediction and vehicle data caches
+        CACHE_UPDATE,
+        // Handing the AVL report, predictions and vehicle state to the
+        // DataDbLogger queue
+        DB_ENQUEUE,
+        // The whole of processAvlReport()
+        TOTAL
+    }
+
+    private static final PipelineMetrics singleton = new PipelineMetrics();
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+
+    // Nanoseconds spent in each stage for the AVL report the thread is
+    // processing, by Stage.ordinal(). -1 for stages not done for the report.
+    private final ThreadLocal<long[]> reportStageNanos = ThreadLocal.withInitial(() -> {
+        long[] nanos = new long[STAGES.length];
+        Arrays.fill(nanos, -1);
+        return nanos;
+    });
+
+    // For the AvlReportProcessorQueue
+    private final AtomicLong avlReportsQueued = new AtomicLong();
+    private final AtomicLong avlReportsRejected = new AtomicLong();
+    private final AtomicLong avlReportsObsolete = new AtomicLong();
+
+    PipelineMetrics() {
+        for (Stage stage : STAGES) histograms.put(stage, new LatencyHistogram());
+    }
+
+    public static PipelineMetrics getInstance() {
+        return singleton;
+    }
+
+    /**
+     * Called by the thread when it starts processing an AVL report. Discards the times of stages
+     * that were done by the thread outside of processing a report.
+     */
+    public void reportStarted() {
+        Arrays.fill(reportStageNanos.get(), -1);
+    }
+
+    /**
+     * Adds the time since startNanos to the time of the stage for the AVL report that the thread is
+     * processing. Recorded by reportProcessed().
+     *
+     * @param stage The stage, other than TOTAL
+     * @param startNanos When the stage started, as obtained from System.nanoTime()
+     */
+    public void addSince(Stage stage, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        long[] nanos = reportStageNanos.get();
+        nanos[stage.ordinal()] = Math.max(nanos[stage.ordinal()], 0) + elapsed;
+    }
+
+    /**
+     * Called by the thread when it is done processing an AVL report. Records the time of each stage
+     * that was done for the report, and the total time.
+     *
+     * @param startNanos When processing the report started, as obtained from System.nanoTime()
+     */
+    public void reportProcessed(long startNanos) {
+        long[] nanos = reportStageNanos.get();
+        for (Stage stage : STAGES) {
+            if (stage != Stage.TOTAL && nanos[stage.ordinal()] >= 0) {
+                histograms.get(stage).record(nanos[stage.ordinal()]);
+            }
+        }
+        Arrays.fill(nanos, -1);
+        histograms.get(Stage.TOTAL).recordSince(startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms.get(stage);
+    }
+
+    /** Called when an AVL report is added to the AVL report queue. */
+    public void avlReportQueued() {
+        avlReportsQueued.incrementAndGet();
+    }
+
+    /** Called when an AVL report couldn't be added to the AVL report queue because it was full. */
+    public void avlReportRejected() {
+        avlReportsRejected.incrementAndGet();
+    }
+
+    /**
+     * Called when an AVL report taken from the AVL report queue is dropped because a newer one for
+     * the vehicle was queued.
+     */
+    public void avlReportObsolete() {
+        avlReportsObsolete.incrementAndGet();
+    }
+
+    public long getAvlReportsQueued() {
+        return avlReportsQueued.get();
+    }
+
+    public long getAvlReportsRejected() {
+        return avlReportsRejected.get();
+    }
+
+    public long getAvlReportsObsolete() {
+        return avlReportsObsolete.get();
+    }
+}
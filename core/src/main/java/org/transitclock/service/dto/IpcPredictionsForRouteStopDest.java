@@ -388,6 +388,48 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
         return getClone(maxPredictionsPerStop, maxSystemTimeForPrediction, Double.NaN);
     }
 
+    /**
+     * Gets an immutable copy of this object containing all of the predictions. Since the copy can
+     * never change it can be handed out to any number of readers without any further copying or
+     * synchronization.
+     *
+     * @return Immutable copy of this object
+     */
+    public synchronized IpcPredictionsForRouteStopDest getSnapshot() {
+        return new IpcPredictionsForRouteStopDest(
+                routeId,
+                routeShortName,
+                routeName,
+                routeOrder,
+                stopId,
+                stopName,
+                stopCode,
+                headsign,
+                directionId,
+                distanceToStop,
+                List.copyOf(predictionsForRouteStopDest));
+    }
+
+    /**
+     * Returns this object if it already satisfies the limits, otherwise a limited copy. Only to be
+     * used on an object obtained from getSnapshot() since only then is it safe to share it.
+     *
+     * @param maxPredictionsPerStop Won't copy more then this number of predictions
+     * @param maxSystemTimeForPrediction Max point in future want predictions for
+     * @param distanceToStop For when getting predictions by location
+     * @return This object or a limited copy of it
+     */
+    public IpcPredictionsForRouteStopDest getLimitedSnapshot(
+            int maxPredictionsPerStop, long maxSystemTimeForPrediction, double distanceToStop) {
+        int size = predictionsForRouteStopDest.size();
+        boolean withinLimits = size <= maxPredictionsPerStop
+                && (size == 0
+                        || predictionsForRouteStopDest.get(size - 1).getPredictionTime() <= maxSystemTimeForPrediction)
+                && Double.compare(distanceToStop, this.distanceToStop) == 0;
+        if (withinLimits) return this;
+        return getClone(maxPredictionsPerStop, maxSystemTimeForPrediction, distanceToStop);
+    }
+
     /**
      * Removes a prediction.
      *
@@ -407,8 +449,10 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
      *
      * @param currentTime Should use PredictionDataCache.systemTime.get() so that works even when in
      *     playback mode.
+     * @return true if any predictions were removed
      */
-    public synchronized void removeExpiredPredictions(long currentTime) {
+    public synchronized boolean removeExpiredPredictions(long currentTime) {
+        boolean removed = false;
         Iterator<IpcPrediction> iterator = predictionsForRouteStopDest.iterator();
         while (iterator.hasNext()) {
             IpcPrediction currentPrediction = iterator.next();
@@ -428,6 +472,7 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
                         // do nothing
                     } else {
                         iterator.remove();
+                        removed = true;
                     }
                 }
 
@@ -435,9 +480,10 @@ public class IpcPredictionsForRouteStopDest implements Serializable {
                 // The subsequent predictions are later so if this one is
                 // into the future then the remaining ones are too.
                 // Therefore done.
-                return;
+                return removed;
             }
         }
+        return removed;
     }
 
     /**
@@ -0,0 +1,223 @@
+/* (C)2023 */
+package org.transitclock.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongFunction;
+
+/**
+ * A thread safe map keyed on a primitive long, such as two interned IDs packed together using
+ * packKey(). For maps that are accessed for every prediction, where using a MapKey would mean
+ * allocating a key for every access. Note that making the key from IDs still means looking up
+ * each ID in its StringTable, which hashes the ID string.
+ *
+ * <p>Uses open addressing with linear probing. Reads don't lock. Changing the value of an existing
+ * key doesn't lock either, while adding a key and resizing synchronize on the map. When the table is
+ * resized the old one is marked as moved before it is copied, so that a concurrent reader or writer
+ * of the old table can tell that it needs to use the new one.
+ *
+ * <p>Keys cannot be removed and values cannot be null. Intended for keys made up of IDs from the
+ * configuration, of which there is a limited number.
+ *
+ * @param <V> type of the values
+ */
+public class ConcurrentLongKeyMap<V> {
+
+    private static final class Table<V> {
+        private final AtomicLongArray keys;
+        // A null value means the slot is empty
+        private final AtomicReferenceArray<V> values;
+        private final int mask;
+        private volatile boolean moved;
+
+        private Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+
+        /**
+         * @return the slot containing the key, or the empty slot where it would be added
+         */
+        private int slot(long key) {
+            // Fibonacci hashing so that packed keys that only differ in
+            // their high or their low bits are spread out
+            int i = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (values.get(i) != null && keys.get(i) != key) i = (i + 1) & mask;
+            return i;
+        }
+    }
+
+    private volatile Table<V> table;
+
+    // Number of keys. Guarded by this.
+    private int size;
+
+    public ConcurrentLongKeyMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize Number of keys expected, so that resizing can be avoided
+     */
+    public ConcurrentLongKeyMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) capacity *= 2;
+        table = new Table<>(capacity);
+    }
+
+    /**
+     * Packs two ints, such as the indices of interned IDs, into a key.
+     *
+     * @param high
+     * @param low
+     * @return the key
+     */
+    public static long packKey(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key
+     * @return the value for the key, or null if there is none
+     */
+    public V get(long key) {
+        while (true) {
+            Table<V> t = table;
+            V value = t.values.get(t.slot(key));
+            // If the table was resized the value might since have been
+            // changed in the new table
+            if (!t.moved) return value;
+            waitForResize();
+        }
+    }
+
+    /**
+     * @param key
+     * @param defaultValue
+     * @return the value for the key, or defaultValue if there is none
+     */
+    public V getOrDefault(long key, V defaultValue) {
+        V value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    /**
+     * Sets the value for the key.
+     *
+     * @param key
+     * @param value Cannot be null
+     */
+    public void put(long key, V value) {
+        Objects.requireNonNull(value);
+        while (true) {
+            Table<V> t = table;
+            int i = t.slot(key);
+            if (t.values.get(i) == null) {
+                // Adding a key so need to synchronize
+                synchronized (this) {
+                    if (t == table) {
+                        add(key, value);
+                        return;
+                    }
+                }
+            } else {
+                t.values.set(i, value);
+                // If the table was resized then the copy might not have
+                // the new value so set it again in the new table
+                if (!t.moved) return;
+                waitForResize();
+            }
+        }
+    }
+
+    /**
+     * Returns the value for the key, first adding one created by mappingFunction if there isn't
+     * one. Same as for ConcurrentHashMap the mappingFunction is called at most once per key.
+     *
+     * @param key
+     * @param mappingFunction Creates the value. Must not return null.
+     * @return the value for the key
+     */
+    public V computeIfAbsent(long key, LongFunction<V> mappingFunction) {
+        V value = get(key);
+        if (value != null) return value;
+
+        synchronized (this) {
+            Table<V> t = table;
+            value = t.values.get(t.slot(key));
+            if (value == null) {
+                value = Objects.requireNonNull(mappingFunction.apply(key));
+                add(key, value);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Adds or sets the value for the key, resizing the table if it is getting full. Must be
+     * synchronized on this.
+     */
+    private void add(long key, V value) {
+        Table<V> t = table;
+        int i = t.slot(key);
+        if (t.values.get(i) == null) {
+            if ((size + 1) * 2 > t.mask + 1) {
+                t = resize(t);
+                i = t.slot(key);
+            }
+            ++size;
+            // Set key first so that it is valid once the value is visible
+            t.keys.set(i, key);
+        }
+        t.values.set(i, value);
+    }
+
+    /**
+     * Copies the table into one twice the size. Must be synchronized on this.
+     */
+    private Table<V> resize(Table<V> oldTable) {
+        oldTable.moved = true;
+        Table<V> newTable = new Table<>((oldTable.mask + 1) * 2);
+        for (int i = 0; i <= oldTable.mask; ++i) {
+            V value = oldTable.values.get(i);
+            if (value == null) continue;
+            long key = oldTable.keys.get(i);
+            int j = newTable.slot(key);
+            newTable.keys.set(j, key);
+            newTable.values.set(j, value);
+        }
+        table = newTable;
+        return newTable;
+    }
+
+    /** Waits for a resize in progress, which holds the lock, to finish. */
+    private void waitForResize() {
+        synchronized (this) {
+            // Nothing to do. Once have the lock the new table is in place.
+        }
+    }
+
+    /**
+     * @return the values, as a copy so that iterating over them isn't affected by changes
+     */
+    public List<V> values() {
+        Table<V> t = table;
+        List<V> values = new ArrayList<>(size());
+        for (int i = 0; i <= t.mask; ++i) {
+            V value = t.values.get(i);
+            if (value != null) values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * @return number of keys
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
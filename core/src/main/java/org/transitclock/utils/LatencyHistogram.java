@@ -0,0 +1,184 @@
+/* (C)2023 */
+package org.transitclock.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A low overhead histogram of latencies, in the spirit of HdrHistogram. Values are counted in
+ * buckets whose width grows with the value so that any value is stored with a precision of about
+ * 6% while the whole range from 1 nanosecond to several hours only takes a few hundred buckets.
+ * Recording a value is just a couple of atomic increments so it can be done on every AVL report
+ * from many threads without locking.
+ *
+ * <p>Percentiles are computed from the bucket counts so they are approximate, the upper end of the
+ * bucket that the percentile falls into.
+ */
+public class LatencyHistogram {
+    // Each power of 2 is split into this many sub-buckets. 16 sub-buckets
+    // means a precision of 1/16, about 6%.
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Larger values are counted as this. Over 4 hours when in nanoseconds.
+    private static final long MAX_VALUE = (1L << 44) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Returns the bucket that the value is counted in. Values less than SUB_BUCKETS each have their
+     * own bucket. Above that each power of 2 is split into SUB_BUCKETS buckets.
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Returns the largest value that is counted in the bucket. */
+    private static long bucketUpperValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Records a value, such as a latency in nanoseconds.
+     *
+     * @param value The value. Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        long clamped = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts.incrementAndGet(bucketIndex(clamped));
+        count.incrementAndGet();
+        total.addAndGet(clamped);
+        max.accumulateAndGet(clamped, Math::max);
+    }
+
+    /**
+     * Records the time elapsed since startNanos, as obtained from System.nanoTime().
+     *
+     * @param startNanos When the timed operation started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return sum of all the values recorded
+     */
+    public long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * @return largest value recorded, or 0 if none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return average of the values recorded, or 0 if none
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) total.get() / n;
+    }
+
+    /**
+     * Returns the approximate value at the percentile. Since counts are updated while this is
+     * running the result might be slightly off when values are being recorded concurrently.
+     *
+     * @param percentile The percentile, between 0.0 and 100.0
+     * @return the value, or 0 if no values recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); ++i) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) return Math.min(bucketUpperValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns a copy of the values recorded so far, so that since() can later return the values
+     * recorded after the copy was made.
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        for (int i = 0; i < counts.length(); ++i) copy.counts.set(i, counts.get(i));
+        copy.count.set(count.get());
+        copy.total.set(total.get());
+        copy.max.set(max.get());
+        return copy;
+    }
+
+    /**
+     * Returns the values recorded since the copy was made. Used instead of reset() when others are
+     * still reading the histogram, such as the metrics that are scraped. Since the values themselves
+     * aren't kept the max is the upper end of the largest bucket recorded into since the copy.
+     *
+     * @param earlier A copy of this histogram, from copy()
+     * @return the values recorded since
+     */
+    public LatencyHistogram since(LatencyHistogram earlier) {
+        LatencyHistogram since = new LatencyHistogram();
+        for (int i = 0; i < counts.length(); ++i) {
+            long bucketCount = counts.get(i) - earlier.counts.get(i);
+            if (bucketCount > 0) {
+                since.counts.set(i, bucketCount);
+                since.max.set(Math.min(bucketUpperValue(i), max.get()));
+            }
+        }
+        since.count.set(count.get() - earlier.count.get());
+        since.total.set(total.get() - earlier.total.get());
+        return since;
+    }
+
+    /** Clears all the recorded values. */
+    public void reset() {
+        for (int i = 0; i < counts.length(); ++i) counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * For logging latencies recorded in nanoseconds.
+     *
+     * @return summary of the count and the main percentiles in msec
+     */
+    public String toMsecString() {
+        return "count=" + getCount()
+                + ", mean=" + msec((long) getMean())
+                + ", p50=" + msec(getValueAtPercentile(50))
+                + ", p90=" + msec(getValueAtPercentile(90))
+                + ", p99=" + msec(getValueAtPercentile(99))
+                + ", p99.9=" + msec(getValueAtPercentile(99.9))
+                + ", max=" + msec(getMax())
+                + " msec";
+    }
+
+    private static String msec(long nanos) {
+        return String.format("%.2f", (double) nanos / Time.NSEC_PER_MSEC);
+    }
+}
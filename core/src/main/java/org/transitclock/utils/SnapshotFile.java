@@ -0,0 +1,255 @@
+/* (C)2023 */
+package org.transitclock.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes a binary snapshot of in memory data, such as the config revision or the
+ * contents of the caches, so that a restart can load it from a local file instead of reading and
+ * processing it from the db again.
+ *
+ * <p>The file is a fixed size header followed by the Java serialization of the snapshot. The header
+ * contains a magic number, the format version, the config rev and travel times rev the snapshot was
+ * made for, when it was written, and the length and CRC32 of the payload. A snapshot is only loaded
+ * if both revs match and the checksum is correct, so a stale, truncated or corrupt file is simply
+ * ignored and the data is read from the db as usual. The travel times rev matters because it can
+ * change without the config rev changing, such as when UpdateTravelTimes is run. Snapshots of data
+ * that doesn't depend on the travel times are written with NO_TRAVEL_TIMES_REV. The file is mapped into memory for reading and is written
+ * to a temporary file that is then renamed so that a crash while writing never leaves a partial
+ * snapshot behind.
+ *
+ * <p>The checksum only catches corruption, so reading is also limited by an ObjectInputFilter. Only
+ * the classes that snapshots are made of can be deserialized, and the depth, array lengths, number
+ * of objects and number of bytes are limited. A file that was tampered with therefore can't make
+ * the core instantiate arbitrary classes at startup. Classes added to a snapshot that are not in
+ * org.transitclock need to be added to the filter.
+ *
+ * <p>FORMAT_VERSION needs to be incremented whenever the serialized form of the snapshot classes
+ * changes so that snapshots written by an older version are ignored.
+ */
+@Slf4j
+public class SnapshotFile {
+    private static final int MAGIC = 0x54435350; // "TCSP"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8 + 8 + 8;
+
+    /** For snapshots of data that is the same whatever the travel times rev is */
+    public static final int NO_TRAVEL_TIMES_REV = -1;
+
+    // Large snapshots are mapped a region at a time since a single
+    // MappedByteBuffer is limited to 2GB
+    private static final long MAX_REGION_BYTES = 256 * 1024 * 1024;
+
+    // Limits for deserializing a snapshot. Generous compared to the largest
+    // configs and caches but they stop a file that was tampered with from
+    // exhausting the stack or memory.
+    private static final long MAX_PAYLOAD_BYTES = 8L * 1024 * 1024 * 1024;
+    private static final int MAX_DEPTH = 200;
+    private static final int MAX_ARRAY_LENGTH = 100_000_000;
+    private static final long MAX_REFERENCES = 500_000_000;
+
+    // The classes that snapshots are made of. The ConcurrentHashMaps of
+    // the caches need the concurrent and locks packages, the time zone of
+    // Agency needs ZoneInfo and the lazy collections of the config read by
+    // Hibernate are its persistent collection wrappers.
+    private static final ObjectInputFilter FILTER = ObjectInputFilter.Config.createFilter("maxbytes="
+            + MAX_PAYLOAD_BYTES + ";maxdepth=" + MAX_DEPTH + ";maxarray=" + MAX_ARRAY_LENGTH + ";maxrefs="
+            + MAX_REFERENCES + ";org.transitclock.**;java.lang.*;java.util.*;java.util.concurrent.*;"
+            + "java.util.concurrent.locks.*;sun.util.calendar.ZoneInfo;org.hibernate.collection.spi.*;!*");
+
+    private SnapshotFile() {}
+
+    /**
+     * Writes the snapshot to the file, replacing any existing one.
+     *
+     * @param file The file to write
+     * @param configRev The config rev that the snapshot is for
+     * @param travelTimesRev The travel times rev that the snapshot is for, or NO_TRAVEL_TIMES_REV
+     * @param snapshot The data to write
+     * @throws IOException if the file can't be written
+     */
+    public static void write(Path file, int configRev, int travelTimesRev, Serializable snapshot)
+            throws IOException {
+        IntervalTimer timer = new IntervalTimer();
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+        try {
+            long payloadBytes;
+            CRC32 crc = new CRC32();
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                channel.position(HEADER_BYTES);
+                // Not closing the streams since that would close the channel
+                // before the header is written
+                OutputStream out = new CheckedOutputStream(Channels.newOutputStream(channel), crc);
+                ObjectOutputStream objectOut = new ObjectOutputStream(new BufferedOutputStream(out, 64 * 1024));
+                objectOut.writeObject(snapshot);
+                objectOut.flush();
+                payloadBytes = channel.position() - HEADER_BYTES;
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                        .putInt(MAGIC)
+                        .putInt(FORMAT_VERSION)
+                        .putInt(configRev)
+                        .putInt(travelTimesRev)
+                        .putLong(System.currentTimeMillis())
+                        .putLong(payloadBytes)
+                        .putLong(crc.getValue())
+                        .flip();
+                channel.write(header, 0);
+                channel.force(true);
+            }
+
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Wrote {} byte snapshot for configRev={} travelTimesRev={} to {} in {} msec",
+                    HEADER_BYTES + payloadBytes, configRev, travelTimesRev, file, timer.elapsedMsec());
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Reads the snapshot from the file if it exists and was written for the config rev and travel
+     * times rev.
+     *
+     * @param file The file to read
+     * @param configRev The config rev that the snapshot needs to be for
+     * @param travelTimesRev The travel times rev that the snapshot needs to be for, or
+     *     NO_TRAVEL_TIMES_REV
+     * @param type The class of the snapshot
+     * @return the snapshot, or null if there is no usable snapshot for the revs
+     */
+    public static <T extends Serializable> T read(Path file, int configRev, int travelTimesRev, Class<T> type) {
+        if (!Files.isRegularFile(file)) {
+            logger.info("No snapshot {} so data will be read from the db", file);
+            return null;
+        }
+
+        IntervalTimer timer = new IntervalTimer();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                logger.warn("Snapshot {} is truncated so ignoring it", file);
+                return null;
+            }
+
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            int magic = header.getInt();
+            int formatVersion = header.getInt();
+            int snapshotConfigRev = header.getInt();
+            int snapshotTravelTimesRev = header.getInt();
+            long createdTime = header.getLong();
+            long payloadBytes = header.getLong();
+            long expectedCrc = header.getLong();
+
+            if (magic != MAGIC || formatVersion != FORMAT_VERSION) {
+                logger.warn("Snapshot {} has format version {} instead of {} so ignoring it",
+                        file, formatVersion, FORMAT_VERSION);
+                return null;
+            }
+            if (snapshotConfigRev != configRev) {
+                logger.info("Snapshot {} is for configRev={} instead of configRev={} so ignoring it",
+                        file, snapshotConfigRev, configRev);
+                return null;
+            }
+            if (snapshotTravelTimesRev != travelTimesRev) {
+                logger.info("Snapshot {} is for travelTimesRev={} instead of travelTimesRev={} so ignoring it",
+                        file, snapshotTravelTimesRev, travelTimesRev);
+                return null;
+            }
+            if (payloadBytes > MAX_PAYLOAD_BYTES) {
+                logger.warn("Snapshot {} has a {} byte payload, more than the limit of {} so ignoring it",
+                        file, payloadBytes, MAX_PAYLOAD_BYTES);
+                return null;
+            }
+            if (channel.size() != HEADER_BYTES + payloadBytes) {
+                logger.warn("Snapshot {} is {} bytes but header says {} so ignoring it",
+                        file, channel.size(), HEADER_BYTES + payloadBytes);
+                return null;
+            }
+
+            // Check the whole payload before deserializing any of it
+            CRC32 crc = new CRC32();
+            for (long position = HEADER_BYTES; position < channel.size(); position += MAX_REGION_BYTES) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAX_REGION_BYTES, channel.size() - position)));
+            }
+            if (crc.getValue() != expectedCrc) {
+                logger.warn("Snapshot {} has an incorrect checksum so ignoring it", file);
+                return null;
+            }
+
+            InputStream in = new BufferedInputStream(new MappedInputStream(channel, HEADER_BYTES), 64 * 1024);
+            ObjectInputStream objectIn = new ObjectInputStream(in);
+            objectIn.setObjectInputFilter(FILTER);
+            T snapshot = type.cast(objectIn.readObject());
+            logger.info("Read {} byte snapshot for configRev={} written at {} from {} in {} msec",
+                    channel.size(), configRev, Time.dateTimeStrMsec(createdTime), file, timer.elapsedMsec());
+            return snapshot;
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            logger.error("Could not read snapshot {} so ignoring it", file, e);
+            return null;
+        }
+    }
+
+    /** Reads a file by mapping it into memory a region at a time. */
+    private static class MappedInputStream extends InputStream {
+        private final FileChannel channel;
+        private long regionEnd;
+        private MappedByteBuffer region;
+
+        private MappedInputStream(FileChannel channel, long position) throws IOException {
+            this.channel = channel;
+            this.regionEnd = position;
+            this.region = mapNextRegion();
+        }
+
+        private MappedByteBuffer mapNextRegion() throws IOException {
+            long size = Math.min(MAX_REGION_BYTES, channel.size() - regionEnd);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, regionEnd, size);
+            regionEnd += size;
+            return buffer;
+        }
+
+        private boolean ensureData() throws IOException {
+            if (region.hasRemaining()) return true;
+            if (regionEnd >= channel.size()) return false;
+            region = mapNextRegion();
+            return region.hasRemaining();
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureData() ? region.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!ensureData()) return -1;
+            int count = Math.min(length, region.remaining());
+            region.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
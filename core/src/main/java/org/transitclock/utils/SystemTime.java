@@ -13,13 +13,32 @@ import java.util.Date;
  */
 @UtilityClass
 public class SystemTime {
+    // When not 0 this is the time to use instead of the system clock, such
+    // as the time of the AVL report being replayed
+    private volatile long virtualTime;
 
     /**
      * @return Returns current system epoch time in milliseconds. If in playback mode or such this
      *     might not actually be the clock time for the computer.
      */
     public long getMillis() {
-        return System.currentTimeMillis();
+        long time = virtualTime;
+        return time != 0 ? time : System.currentTimeMillis();
+    }
+
+    /**
+     * Makes getMillis() return the specified time instead of the system clock. For when replaying
+     * AVL data so that the rest of the system sees the time of the data being replayed.
+     *
+     * @param time Epoch time in msec
+     */
+    public void setVirtualTime(long time) {
+        virtualTime = time;
+    }
+
+    /** Goes back to using the system clock after setVirtualTime() was used. */
+    public void useSystemClock() {
+        virtualTime = 0;
     }
 
     public Date getDate() {
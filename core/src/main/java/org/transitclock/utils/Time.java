@@ -207,6 +207,25 @@ public class Time {
         return calendar.getTimeInMillis();
     }
 
+    /**
+     * Returns the epoch time of the start of the hour that the time is in, for the default
+     * timezone.
+     *
+     * @param time the epoch time that the start of the hour is needed for
+     * @return start of the hour
+     */
+    public static long getStartOfHour(long time) {
+        Calendar calendar = new GregorianCalendar();
+        calendar.setTimeInMillis(time);
+
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MINUTE, 0);
+
+        // Get the epoch time
+        return calendar.getTimeInMillis();
+    }
+
     /**
      * Returns the epoch time of the start of the current day for the default timezone. The default
      * timezone should be set by the application at startup using
@@ -45,6 +45,20 @@ public class CsvBase {
         this.fileName = original.getFileName();
     }
 
+    /**
+     * For when creating a CSV object from values that were already read from a CSV file, such as
+     * by a CsvColumnarReader.
+     *
+     * @param lineNumber The record number in the CSV file
+     * @param supplementalFile
+     * @param fileName for logging errors
+     */
+    protected CsvBase(int lineNumber, boolean supplementalFile, String fileName) {
+        this.lineNumber = lineNumber;
+        this.supplementalFileSoSomeRequiredItemsCanBeMissing = supplementalFile;
+        this.fileName = fileName;
+    }
+
     /** Only for when creating a supplemental file. Sets the members to special values. */
     protected CsvBase() {
         this.lineNumber = -1;
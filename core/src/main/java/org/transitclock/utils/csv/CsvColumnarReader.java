@@ -0,0 +1,385 @@
+/* (C)2023 */
+package org.transitclock.utils.csv;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.transitclock.utils.IntervalTimer;
+import org.transitclock.utils.threading.NamedThreadFactory;
+
+/**
+ * For parsing very large CSV files, such as stop_times.txt and shapes.txt, into columns of
+ * primitive values instead of into one object per line. The file is split into chunks at line
+ * boundaries and the chunks are parsed in parallel. Each chunk is parsed into a Block, which the
+ * subclass defines, and the blocks are returned in file order so the result is the same no matter
+ * how many threads are used.
+ *
+ * <p>Only a limited number of chunks are read ahead of the parsing so the raw file data held in
+ * memory is bounded. The records are parsed using the same CSV format as CsvBaseReader: a header
+ * line, an optional BOM, and comment lines that start with "-".
+ *
+ * @param <B> The type of block the chunks are parsed into
+ */
+@Getter
+@Slf4j
+public abstract class CsvColumnarReader<B extends CsvColumnarReader.Block> {
+
+    // Default size of the chunks that the file is split into for parsing
+    private static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // For sizing the columns of a block so that they rarely need to grow
+    private static final int ESTIMATED_BYTES_PER_ROW = 40;
+
+    private static final byte COMMENT_MARKER = '-';
+
+    private static final CSVFormat FORMAT =
+            CSVFormat.Builder.create().setCommentMarker((char) COMMENT_MARKER).build();
+
+    // Full file name of CSV file to be read
+    private final String fileName;
+
+    // Keeps track whether this file is required or not as per the CSV spec
+    private final boolean required;
+
+    private final int numberThreads;
+
+    private final int chunkSize;
+
+    // Index of each column by name, from the header line
+    private Map<String, Integer> columnIndexes = Collections.emptyMap();
+
+    /**
+     * The rows parsed from one chunk of the file. The subclass adds the columns, growing them in
+     * grow(), and sets the values of a row after calling addRow().
+     */
+    public abstract static class Block {
+        // Record number within the chunk of each row
+        private int[] recordNumbers;
+
+        // Number of records of the chunks before this one, so that the
+        // record numbers are the same as when reading the file sequentially
+        private int recordNumberOffset;
+
+        // Number of records in the chunk, including ones that were
+        // filtered out or could not be parsed
+        private int numberRecords;
+
+        private int size;
+
+        protected Block(int capacity) {
+            recordNumbers = new int[capacity];
+        }
+
+        /**
+         * Grows the columns of the subclass to the new capacity. Subclasses must call super.
+         *
+         * @param capacity
+         */
+        protected void grow(int capacity) {
+            recordNumbers = Arrays.copyOf(recordNumbers, capacity);
+        }
+
+        /**
+         * Adds a row for the record, growing the columns if needed. Should only be called once all
+         * the values of the record have been parsed successfully.
+         *
+         * @param record
+         * @return index of the new row
+         */
+        protected int addRow(CSVRecord record) {
+            if (size == recordNumbers.length) grow(size * 2);
+            recordNumbers[size] = (int) record.getRecordNumber();
+            return size++;
+        }
+
+        /**
+         * @return number of rows
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param row
+         * @return record number of the row in the file, not counting the header and comments
+         */
+        public int getRecordNumber(int row) {
+            return recordNumbers[row] + recordNumberOffset;
+        }
+    }
+
+    /**
+     * @param dirName
+     * @param fileName
+     * @param required Whether the file is required as per the CSV spec
+     * @param numberThreads Number of threads for parsing the chunks
+     */
+    protected CsvColumnarReader(String dirName, String fileName, boolean required, int numberThreads) {
+        this(dirName, fileName, required, numberThreads, DEFAULT_CHUNK_SIZE);
+    }
+
+    protected CsvColumnarReader(String dirName, String fileName, boolean required, int numberThreads, int chunkSize) {
+        this.fileName = dirName + "/" + fileName;
+        this.required = required;
+        this.numberThreads = Math.max(1, numberThreads);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Creates an empty block for a chunk.
+     *
+     * @param capacity Initial capacity of the columns
+     */
+    protected abstract B createBlock(int capacity);
+
+    /**
+     * Called for every record of a chunk. Parses the values and, unless the record is filtered
+     * out, adds a row to the block using Block.addRow().
+     *
+     * @param block
+     * @param record
+     */
+    protected abstract void handleRecord(B block, CSVRecord record) throws ParseException, NumberFormatException;
+
+    /**
+     * Returns the trimmed value of the column for the record. Empty values are returned as null,
+     * as for CsvBase.
+     *
+     * @param record
+     * @param name Name of the column
+     * @return the value, or null if the column is not in the file or the value is empty
+     */
+    protected String getValue(CSVRecord record, String name) {
+        Integer index = columnIndexes.get(name);
+        if (index == null || index >= record.size()) return null;
+        String value = record.get(index).trim();
+        return value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Like getValue() but logs an error if the value is not set.
+     *
+     * @param record
+     * @param name Name of the column
+     * @return the value, or null if it was not set
+     */
+    protected String getRequiredValue(CSVRecord record, String name) {
+        String value = getValue(record, name);
+        if (value == null) {
+            if (!columnIndexes.containsKey(name)) {
+                logger.error("Column {} not defined in file \"{}\" yet it is required", name, fileName);
+            } else {
+                logger.error(
+                        "For file \"{}\" record number {} of chunk for column {} value was not set yet it is required",
+                        fileName,
+                        record.getRecordNumber(),
+                        name);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Reads the file, parsing the chunks in parallel.
+     *
+     * @return The blocks, in file order. Empty if the file doesn't exist or couldn't be read.
+     */
+    public List<B> read() {
+        IntervalTimer timer = new IntervalTimer();
+        long heapUsedBefore = heapUsed();
+
+        logger.info("Parsing CSV file {} using {} threads...", fileName, numberThreads);
+
+        List<Future<B>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(numberThreads, new NamedThreadFactory("csvColumnarReader"));
+        // Bounds the number of chunks read but not yet parsed
+        Semaphore chunksInProgress = new Semaphore(2 * numberThreads);
+        try (InputStream in = new FileInputStream(fileName)) {
+            byte[] buffer = new byte[chunkSize];
+            int length = 0;
+            boolean headerRead = false;
+            while (true) {
+                int numberRead = in.read(buffer, length, buffer.length - length);
+                if (numberRead > 0) {
+                    length += numberRead;
+                    if (length < buffer.length) continue;
+                }
+                boolean endOfFile = numberRead < 0;
+
+                if (!headerRead) {
+                    int headerEnd = endOfFile ? length : lineEnd(buffer, length, true);
+                    if (headerEnd < 0) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                        continue;
+                    }
+                    readHeader(buffer, headerEnd);
+                    headerRead = true;
+                    System.arraycopy(buffer, headerEnd, buffer, 0, length - headerEnd);
+                    length -= headerEnd;
+                    if (!endOfFile) continue;
+                }
+
+                // Submit the data up to the last complete line. At the end of
+                // the file the rest of the data is submitted.
+                int chunkEnd = endOfFile ? length : lineEnd(buffer, length, false);
+                if (chunkEnd < 0) {
+                    // A line longer than the buffer. Unlikely but possible
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    continue;
+                }
+                if (chunkEnd > 0) {
+                    byte[] chunk = Arrays.copyOf(buffer, chunkEnd);
+                    chunksInProgress.acquire();
+                    futures.add(executor.submit(() -> {
+                        try {
+                            return parseChunk(chunk);
+                        } finally {
+                            chunksInProgress.release();
+                        }
+                    }));
+                    System.arraycopy(buffer, chunkEnd, buffer, 0, length - chunkEnd);
+                    length -= chunkEnd;
+                }
+                if (endOfFile) break;
+            }
+
+            // Collect the blocks in file order and determine the record
+            // number offset for each
+            List<B> blocks = new ArrayList<>(futures.size());
+            int recordNumberOffset = 0;
+            for (Future<B> future : futures) {
+                B block = future.get();
+                Block b = block;
+                b.recordNumberOffset = recordNumberOffset;
+                recordNumberOffset += b.numberRecords;
+                blocks.add(block);
+            }
+
+            long rows = blocks.stream().mapToLong(Block::size).sum();
+            long msec = Math.max(1, timer.elapsedMsec());
+            logger.info(
+                    "Finished parsing {} records into {} rows from file {} . Took {} msec, {} rows/sec. "
+                            + "Heap in use went from {} MB to {} MB.",
+                    recordNumberOffset,
+                    rows,
+                    fileName,
+                    msec,
+                    rows * 1000 / msec,
+                    heapUsedBefore / (1024 * 1024),
+                    heapUsed() / (1024 * 1024));
+            return blocks;
+        } catch (FileNotFoundException e) {
+            if (required) logger.error("Required CSV file {} not found.", fileName);
+            else logger.info("CSV file {} not found but OK because this file not required.", fileName);
+        } catch (IOException e) {
+            logger.error("IOException occurred when reading in filename {}.", fileName, e);
+        } catch (ExecutionException e) {
+            logger.error("Exception occurred when parsing filename {}.", fileName, e.getCause());
+        } catch (InterruptedException e) {
+            logger.error("Interrupted when reading in filename {}.", fileName);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+        return new ArrayList<>();
+    }
+
+    private static long heapUsed() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Finds the end of the first or the last line in the buffer. Newlines within quotes are part of
+     * a value and don't end a line. Quotes in comment lines are ignored.
+     *
+     * @param buffer Starts at the beginning of a line
+     * @param length Amount of data in the buffer
+     * @param first Whether to find the end of the first line instead of the last
+     * @return index just after the newline, or -1 if there is no complete line
+     */
+    static int lineEnd(byte[] buffer, int length, boolean first) {
+        int end = -1;
+        boolean inQuotes = false;
+        boolean inComment = false;
+        boolean lineStart = true;
+        for (int i = 0; i < length; ++i) {
+            byte b = buffer[i];
+            if (lineStart) {
+                inComment = b == COMMENT_MARKER;
+                lineStart = false;
+            }
+            if (b == '"' && !inComment) {
+                inQuotes = !inQuotes;
+            } else if (b == '\n' && !inQuotes) {
+                end = i + 1;
+                if (first) return end;
+                lineStart = true;
+            }
+        }
+        return end;
+    }
+
+    private void readHeader(byte[] buffer, int length) throws IOException {
+        String header = new String(buffer, 0, length, StandardCharsets.UTF_8);
+
+        // Deal with the possible BOM character at the beginning of the file
+        final char BOM_CHARACTER = 0xFEFF;
+        if (!header.isEmpty() && header.charAt(0) == BOM_CHARACTER) header = header.substring(1);
+
+        Map<String, Integer> indexes = new HashMap<>();
+        try (CSVParser parser = CSVFormat.DEFAULT.parse(new StringReader(header))) {
+            for (CSVRecord record : parser) {
+                for (int i = 0; i < record.size(); ++i) indexes.put(record.get(i), i);
+            }
+        }
+        columnIndexes = indexes;
+    }
+
+    private B parseChunk(byte[] chunk) throws IOException {
+        B block = createBlock(Math.max(16, chunk.length / ESTIMATED_BYTES_PER_ROW));
+        Block b = block;
+        try (CSVParser parser = FORMAT.parse(new StringReader(new String(chunk, StandardCharsets.UTF_8)))) {
+            for (CSVRecord record : parser) {
+                b.numberRecords = (int) record.getRecordNumber();
+
+                // If blank line then skip it
+                if (record.size() == 0) continue;
+
+                try {
+                    handleRecord(block, record);
+                } catch (ParseException | NumberFormatException e) {
+                    // Continue even though there was an error so that all
+                    // errors logged at once
+                    logger.error(
+                            "{} occurred for record {} of a chunk of filename {} . {}",
+                            e.getClass().getSimpleName(),
+                            record.getRecordNumber(),
+                            fileName,
+                            e.getMessage());
+                }
+            }
+        }
+        return block;
+    }
+}
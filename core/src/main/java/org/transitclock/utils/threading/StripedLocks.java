@@ -0,0 +1,32 @@
+/* (C)2023 */
+package org.transitclock.utils.threading;
+
+/**
+ * A fixed set of lock objects that keys are hashed onto. Used to make a read-modify-write of a
+ * cache entry atomic for the key without serializing the updates of all the other keys behind a
+ * single lock. Two keys can share a stripe, which only means that their updates are serialized.
+ *
+ * <p>Usage: {@code synchronized (locks.lockFor(key)) { ... }}
+ */
+public class StripedLocks {
+    private final Object[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes Number of locks. Rounded up to a power of two.
+     */
+    public StripedLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        locks = new Object[size];
+        for (int i = 0; i < size; ++i) locks[i] = new Object();
+        mask = size - 1;
+    }
+
+    /** Returns the lock object to synchronize on for the key. */
+    public Object lockFor(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        // Spread the high bits down since the mask only uses the low bits
+        h ^= (h >>> 16);
+        return locks[h & mask];
+    }
+}
@@ -0,0 +1,70 @@
+/* (C)2023 */
+package org.transitclock.utils.threading;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Access to virtual threads for when the application is run on a JVM that has them (Java 21+).
+ * The project is still compiled for Java 17 so the Thread.ofVirtual() builder API is looked up
+ * reflectively. If virtual threads are not available then a regular {@link NamedThreadFactory} is
+ * used instead so that enabling virtual threads in the config is always safe.
+ *
+ * <p>Virtual threads are useful for work that spends most of its time blocked on database or disk
+ * reads since many more of them can be in flight than platform threads.
+ */
+@Slf4j
+public class VirtualThreads {
+    // Thread.ofVirtual(), or null if not available
+    private static final Method ofVirtualMethod = lookupOfVirtual();
+
+    private VirtualThreads() {}
+
+    private static Method lookupOfVirtual() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            // On Java 19/20 virtual threads are a preview feature and
+            // ofVirtual() throws unless preview features are enabled
+            ofVirtual.invoke(null);
+            return ofVirtual;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads
+     */
+    public static boolean isSupported() {
+        return ofVirtualMethod != null;
+    }
+
+    /**
+     * Returns a thread factory that creates virtual threads named "name-1", "name-2", etc. If
+     * virtual threads are not supported by the JVM then a warning is logged and a
+     * {@link NamedThreadFactory} for platform threads is returned instead.
+     *
+     * @param name The base name of the threads
+     * @return the thread factory
+     */
+    public static ThreadFactory newThreadFactory(String name) {
+        if (!isSupported()) {
+            logger.warn("Virtual threads requested for {} but not supported by Java {}. Using platform threads instead.",
+                    name,
+                    System.getProperty("java.version"));
+            return new NamedThreadFactory(name);
+        }
+
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtualMethod.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            logger.error("Could not create virtual thread factory for {}. Using platform threads instead.", name, e);
+            return new NamedThreadFactory(name);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+CREATE SEQUENCE IF NOT EXISTS prediction_accuracy_rollups_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS prediction_accuracy_rollups
+(
+    id                    BIGINT  NOT NULL,
+    rollup_hour           TIMESTAMP WITHOUT TIME ZONE,
+    route_id              VARCHAR(60),
+    route_short_name      VARCHAR(60),
+    prediction_source     VARCHAR(60),
+    affected_by_wait_stop BOOLEAN,
+    pred_length_bucket    INTEGER NOT NULL,
+    num_predictions       BIGINT  NOT NULL,
+    accuracy_secs         JSON,
+    accuracy_counts       JSON,
+    CONSTRAINT pk_prediction_accuracy_rollups PRIMARY KEY (id)
+);
+
+CREATE INDEX PredictionAccuracyRollupHourIndex ON prediction_accuracy_rollups (rollup_hour);
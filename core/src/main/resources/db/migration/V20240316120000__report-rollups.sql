@@ -0,0 +1,50 @@
+CREATE SEQUENCE IF NOT EXISTS schedule_adherence_rollups_seq START WITH 1 INCREMENT BY 50;
+
+CREATE SEQUENCE IF NOT EXISTS trip_stop_time_rollups_seq START WITH 1 INCREMENT BY 50;
+
+CREATE SEQUENCE IF NOT EXISTS report_rollup_hours_seq START WITH 1 INCREMENT BY 50;
+
+CREATE TABLE IF NOT EXISTS schedule_adherence_rollups
+(
+    id               BIGINT  NOT NULL,
+    rollup_hour      TIMESTAMP WITHOUT TIME ZONE,
+    config_rev       INTEGER NOT NULL,
+    route_id         VARCHAR(60),
+    route_short_name VARCHAR(60),
+    direction_id     VARCHAR(60),
+    stop_id          VARCHAR(60),
+    stop_order       INTEGER,
+    trip_ids         JSON,
+    adherence_msecs  JSON,
+    CONSTRAINT pk_schedule_adherence_rollups PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS trip_stop_time_rollups
+(
+    id                       BIGINT  NOT NULL,
+    config_rev               INTEGER NOT NULL,
+    vehicle_id               VARCHAR(60),
+    trip_id                  VARCHAR(60),
+    direction_id             VARCHAR(60),
+    stop_id                  VARCHAR(60),
+    stop_order               INTEGER,
+    gtfs_stop_seq            INTEGER NOT NULL,
+    arrival_time             TIMESTAMP WITHOUT TIME ZONE,
+    departure_time           TIMESTAMP WITHOUT TIME ZONE,
+    departure_scheduled_time TIMESTAMP WITHOUT TIME ZONE,
+    CONSTRAINT pk_trip_stop_time_rollups PRIMARY KEY (id)
+);
+
+CREATE TABLE IF NOT EXISTS report_rollup_hours
+(
+    id            BIGINT NOT NULL,
+    rollups_table VARCHAR(60),
+    rollup_hour   TIMESTAMP WITHOUT TIME ZONE,
+    CONSTRAINT pk_report_rollup_hours PRIMARY KEY (id)
+);
+
+CREATE INDEX ScheduleAdherenceRollupHourIndex ON schedule_adherence_rollups (rollup_hour);
+
+CREATE INDEX TripStopTimeRollupArrivalTimeIndex ON trip_stop_time_rollups (arrival_time);
+
+CREATE INDEX ReportRollupHourIndex ON report_rollup_hours (rollups_table, rollup_hour);
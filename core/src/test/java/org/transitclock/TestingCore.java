@@ -0,0 +1,80 @@
+package org.transitclock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.transitclock.domain.structs.Block;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.Route;
+import org.transitclock.domain.structs.ScheduleTime;
+import org.transitclock.domain.structs.Stop;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.gtfs.ConfigSnapshot;
+import org.transitclock.gtfs.DbConfig;
+import org.transitclock.utils.Time;
+
+import static org.transitclock.domain.structs.TestingConfigFactory.CONFIG_REV;
+import static org.transitclock.domain.structs.TestingConfigFactory.block;
+import static org.transitclock.domain.structs.TestingConfigFactory.route;
+import static org.transitclock.domain.structs.TestingConfigFactory.stop;
+import static org.transitclock.domain.structs.TestingConfigFactory.stopPath;
+import static org.transitclock.domain.structs.TestingConfigFactory.trip;
+import static org.transitclock.domain.structs.TestingConfigFactory.tripPattern;
+
+/**
+ * Creates the Core, with a config created in memory, for tests of code that gets the config from
+ * the Core. The config is a single route with a single trip. Since Core is a singleton it is
+ * created once and then shared by all the tests run in the JVM.
+ */
+public class TestingCore {
+    public static final String AGENCY_ID = "testing";
+    public static final String ROUTE_ID = "testingRoute";
+    public static final String TRIP_ID = "testingTrip";
+    public static final List<String> STOP_IDS = List.of("testingStop0", "testingStop1", "testingStop2");
+
+    /** Returns the Core, creating it the first time. */
+    public static synchronized Core getCore() {
+        if (Core.isCoreApplication()) return Core.getInstance();
+
+        List<Stop> stops = new ArrayList<>();
+        List<StopPath> stopPaths = new ArrayList<>();
+        List<ScheduleTime> scheduleTimes = new ArrayList<>();
+        Location previousLocation = null;
+        for (int i = 0; i < STOP_IDS.size(); ++i) {
+            String stopId = STOP_IDS.get(i);
+            Location location = new Location(44.43 + i * 0.005, 26.10);
+            stops.add(stop(stopId, location));
+            // As for the GTFS loader the first stop path is just the location of the first stop
+            stopPaths.add(stopPath(
+                    ROUTE_ID, stopId, null, previousLocation != null ? previousLocation : location, location));
+            // A stop every five minutes starting at 8am
+            int time = 8 * Time.SEC_PER_HOUR + i * 5 * Time.SEC_PER_MIN;
+            scheduleTimes.add(new ScheduleTime(i > 0 ? time : null, i < STOP_IDS.size() - 1 ? time : null));
+            previousLocation = location;
+        }
+
+        Trip trip = trip(TRIP_ID, ROUTE_ID);
+        TripPattern tripPattern = tripPattern("testingTripPattern", trip, stopPaths.toArray(StopPath[]::new));
+        trip.addScheduleTimes(scheduleTimes);
+        Route route = route(ROUTE_ID, tripPattern);
+        Block block = block("testingBlock", trip);
+
+        ConfigSnapshot snapshot = new ConfigSnapshot(
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(route),
+                stops,
+                List.of(tripPattern),
+                List.of(trip),
+                List.of(block));
+        DbConfig dbConfig = new DbConfig(AGENCY_ID, CONFIG_REV, 0, snapshot);
+        return Core.createCore(dbConfig, new ModuleRegistry(AGENCY_ID));
+    }
+}
@@ -0,0 +1,159 @@
+package org.transitclock.core;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.Route;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.domain.structs.VectorWithHeading;
+import org.transitclock.gtfs.TitleFormatter;
+import org.transitclock.gtfs.model.GtfsRoute;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.domain.structs.LocationSamples.NUMBER_RANDOM_SAMPLES;
+import static org.transitclock.domain.structs.LocationSamples.offset;
+import static org.transitclock.domain.structs.LocationSamples.sample;
+import static org.transitclock.domain.structs.TestingConfigFactory.CONFIG_REV;
+import static org.transitclock.domain.structs.TestingConfigFactory.stopPath;
+import static org.transitclock.domain.structs.TestingConfigFactory.trip;
+import static org.transitclock.domain.structs.TestingConfigFactory.tripPattern;
+
+class TripPatternGridIndexTest {
+    // Default of both transitclock.core.maxDistanceFromSegment and
+    // transitclock.core.maxDistanceFromSegmentForAutoAssigning
+    private static final double DEFAULT_MAX_DISTANCE = 60.0;
+
+    /**
+     * Samples locations around every segment of the trip pattern, both randomly and at just under
+     * the max distance from the ends of the segment, and checks that the index includes the trip
+     * pattern for each one that is within the max distance of the segment as measured by the
+     * SpatialMatcher.
+     */
+    private static void assertNeverRulesOut(TripPatternGridIndex index, TripPattern tripPattern, double maxDistance) {
+        int withinRange = 0;
+        for (StopPath stopPath : tripPattern.getStopPaths()) {
+            for (VectorWithHeading segment : stopPath.getSegmentVectors()) {
+                Location l1 = segment.getL1();
+                Location l2 = segment.getL2();
+                // Random points along the segment
+                List<Location> locations = sample(
+                        random -> {
+                            double fraction = random.nextDouble();
+                            return new Location(
+                                    l1.getLat() + fraction * (l2.getLat() - l1.getLat()),
+                                    l1.getLon() + fraction * (l2.getLon() - l1.getLon()));
+                        },
+                        List.of(l1, l2),
+                        maxDistance);
+                for (Location location : locations) {
+                    if (segment.distance(location) <= maxDistance) {
+                        ++withinRange;
+                        assertThat(index.isTripPatternNear(location, tripPattern.getId()))
+                                .as("%s is %.1fm from segment %s", location, segment.distance(location), segment)
+                                .isTrue();
+                    }
+                }
+            }
+        }
+
+        // So that the test isn't passing because there was nothing to check
+        assertThat(withinRange).isGreaterThan(NUMBER_RANDOM_SAMPLES / 2);
+    }
+
+    private static Route route(String routeId, TripPattern tripPattern, double maxDistance) throws IOException {
+        String csv = "route_id,route_short_name,route_type,max_distance\n" + routeId + ",1,3," + maxDistance + "\n";
+        try (CSVParser parser = CSVParser.parse(csv, CSVFormat.Builder.create().setHeader().build())) {
+            GtfsRoute gtfsRoute = new GtfsRoute(parser.getRecords().get(0), false, "routes.txt");
+            return new Route(CONFIG_REV, gtfsRoute, List.of(tripPattern), new TitleFormatter(null, false));
+        }
+    }
+
+    @Test
+    void segmentsAlongAndAcrossCellEdges() {
+        // Cells are 0.005 degrees so the first segment runs exactly along the
+        // edge at latitude 44.430 and crosses the edges at longitudes 26.105
+        // and 26.110. The second runs exactly along the edge at longitude
+        // 26.110 and the third ends exactly on a corner.
+        Location start = new Location(44.430, 26.100);
+        Location corner = new Location(44.430, 26.110);
+        StopPath stopPath1 = stopPath("r1", "s1", null, start, new Location(44.430, 26.1049999), corner);
+        StopPath stopPath2 = stopPath("r1", "s2", null, corner, new Location(44.440, 26.110));
+        StopPath stopPath3 = stopPath("r1", "s3", null, new Location(44.440, 26.110), new Location(44.435, 26.115));
+        TripPattern tripPattern = tripPattern("tp1", trip("t1", "r1"), stopPath1, stopPath2, stopPath3);
+
+        TripPatternGridIndex index = new TripPatternGridIndex(List.of(tripPattern), Map.of());
+
+        assertNeverRulesOut(index, tripPattern, DEFAULT_MAX_DISTANCE);
+        assertThat(index.isTripPatternNear(offset(start, -1_000, 0), "tp1")).isFalse();
+        assertThat(index.getTripPatternIdsNear(offset(corner, 0, 1_000))).isEmpty();
+    }
+
+    @Test
+    void segmentsAtHighLatitude() {
+        // Near Longyearbyen, where a degree of longitude is only about 23km
+        // so the bounding boxes are expanded by several times more degrees
+        // of longitude than of latitude
+        Location start = new Location(78.2230, 15.6000);
+        StopPath stopPath1 = stopPath("r1", "s1", null, start, new Location(78.2230, 15.6400));
+        StopPath stopPath2 = stopPath("r1", "s2", null, new Location(78.2230, 15.6400), new Location(78.2350, 15.6450));
+        StopPath stopPath3 = stopPath("r1", "s3", null, new Location(78.2350, 15.6450), new Location(78.2290, 15.5800));
+        TripPattern tripPattern = tripPattern("tp1", trip("t1", "r1"), stopPath1, stopPath2, stopPath3);
+
+        TripPatternGridIndex index = new TripPatternGridIndex(List.of(tripPattern), Map.of());
+
+        assertNeverRulesOut(index, tripPattern, DEFAULT_MAX_DISTANCE);
+        assertThat(index.isTripPatternNear(offset(start, -1_000, 0), "tp1")).isFalse();
+    }
+
+    @Test
+    void maxDistanceConfiguredForRoute() throws IOException {
+        Location start = new Location(44.4321, 26.1013);
+        Location middle = new Location(44.4366, 26.1120);
+        StopPath stopPath1 = stopPath("r1", "s1", null, start, middle);
+        StopPath stopPath2 = stopPath("r1", "s2", null, middle, new Location(44.4402, 26.1131));
+        TripPattern tripPattern = tripPattern("tp1", trip("t1", "r1"), stopPath1, stopPath2);
+        Route route = route("r1", tripPattern, 400.0);
+
+        TripPatternGridIndex index = new TripPatternGridIndex(List.of(tripPattern), Map.of("r1", route));
+
+        assertNeverRulesOut(index, tripPattern, 400.0);
+        assertThat(index.isTripPatternNear(offset(start, -2_000, 0), "tp1")).isFalse();
+    }
+
+    @Test
+    void maxDistanceConfiguredForStopPathOverridesRoute() throws IOException {
+        // The stop path max distance is used even though it is larger than
+        // the one for the route and the defaults
+        Location start = new Location(44.4321, 26.1013);
+        Location middle = new Location(44.4366, 26.1120);
+        StopPath stopPath1 = stopPath("r1", "s1", 250.0, start, middle);
+        StopPath stopPath2 = stopPath("r1", "s2", 250.0, middle, new Location(44.4402, 26.1131));
+        TripPattern tripPattern = tripPattern("tp1", trip("t1", "r1"), stopPath1, stopPath2);
+        Route route = route("r1", tripPattern, 100.0);
+
+        TripPatternGridIndex index = new TripPatternGridIndex(List.of(tripPattern), Map.of("r1", route));
+
+        assertNeverRulesOut(index, tripPattern, 250.0);
+    }
+
+    @Test
+    void onlyNearbyTripPatterns() {
+        StopPath stopPath1 = stopPath("r1", "s1", null, new Location(44.430, 26.100), new Location(44.430, 26.110));
+        StopPath stopPath2 = stopPath("r2", "s2", null, new Location(44.450, 26.100), new Location(44.450, 26.110));
+        TripPattern tripPattern1 = tripPattern("tp1", trip("t1", "r1"), stopPath1);
+        TripPattern tripPattern2 = tripPattern("tp2", trip("t2", "r2"), stopPath2);
+
+        TripPatternGridIndex index = new TripPatternGridIndex(List.of(tripPattern1, tripPattern2), Map.of());
+
+        assertNeverRulesOut(index, tripPattern1, DEFAULT_MAX_DISTANCE);
+        assertNeverRulesOut(index, tripPattern2, DEFAULT_MAX_DISTANCE);
+        assertThat(index.getTripPatternIdsNear(new Location(44.4301, 26.105))).containsExactly("tp1");
+        assertThat(index.getTripPatternIdsNear(new Location(44.4499, 26.105))).containsExactly("tp2");
+    }
+}
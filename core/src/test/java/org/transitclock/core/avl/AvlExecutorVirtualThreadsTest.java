@@ -0,0 +1,129 @@
+package org.transitclock.core.avl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.utils.Time;
+import org.transitclock.utils.threading.VirtualThreads;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The sharded executor with lanes on virtual threads, as with transitclock.avl.virtualThreads. On
+ * a JVM without virtual threads VirtualThreads falls back to platform threads so the same is
+ * checked for those. The load comparison of virtual versus platform lanes is AvlLanesBenchmark in
+ * the benchmarks module.
+ */
+class AvlExecutorVirtualThreadsTest {
+    private static final int NUM_VEHICLES = 50;
+    private static final int REPORTS_PER_VEHICLE = 20;
+
+    // The threads created for the lanes so that can check they exit
+    private final List<Thread> laneThreads = new CopyOnWriteArrayList<>();
+    private List<AvlProcessingLane> lanes = List.of();
+
+    // The AVL times processed for each vehicle, in order of processing
+    private final Map<String, List<Long>> processedTimes = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> inProgress = new ConcurrentHashMap<>();
+    private final AtomicBoolean concurrentForVehicle = new AtomicBoolean();
+
+    /** Records the processing of the report and blocks a bit, as when waiting on the database. */
+    private class RecordingAvlReportProcessor extends AvlReportProcessor {
+        private RecordingAvlReportProcessor(AvlReport avlReport) {
+            super(avlReport);
+        }
+
+        @Override
+        public void run() {
+            String vehicleId = getAvlReport().getVehicleId();
+            AtomicInteger count = inProgress.computeIfAbsent(vehicleId, k -> new AtomicInteger());
+            if (count.incrementAndGet() > 1) concurrentForVehicle.set(true);
+            Time.sleep(1);
+            processedTimes
+                    .computeIfAbsent(vehicleId, k -> new CopyOnWriteArrayList<>())
+                    .add(getAvlReport().getTime());
+            count.decrementAndGet();
+        }
+    }
+
+    private ThreadFactory recordingThreadFactory() {
+        ThreadFactory threadFactory = VirtualThreads.newThreadFactory("testLane");
+        return runnable -> {
+            Thread thread = threadFactory.newThread(runnable);
+            laneThreads.add(thread);
+            return thread;
+        };
+    }
+
+    @AfterEach
+    void shutdownLanes() throws InterruptedException {
+        lanes.forEach(AvlProcessingLane::shutdown);
+        for (Thread thread : laneThreads) thread.join(5_000);
+    }
+
+    @Test
+    void processesLatestReportOfEachVehicleInOrder() throws InterruptedException {
+        lanes = AvlExecutor.createLanes(8, 1_000, recordingThreadFactory());
+        assertEquals(8, laneThreads.size());
+
+        for (int i = 1; i <= REPORTS_PER_VEHICLE; ++i) {
+            for (int v = 0; v < NUM_VEHICLES; ++v) {
+                AvlReport avlReport = new AvlReport("v" + v, i * 1000L, 12.34, 43.21, null);
+                AvlProcessingLane lane = lanes.get(Math.floorMod(avlReport.getVehicleId().hashCode(), lanes.size()));
+                assertTrue(lane.offer(new RecordingAvlReportProcessor(avlReport)));
+            }
+        }
+
+        // Wait until the last report of every vehicle has been processed.
+        // Every report is either processed or superseded by a newer one.
+        long lastTime = REPORTS_PER_VEHICLE * 1000L;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!allProcessed(lastTime) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(allProcessed(lastTime), "Not all vehicles processed: " + processedTimes);
+
+        assertFalse(concurrentForVehicle.get(), "Reports for a vehicle were processed concurrently");
+        for (List<Long> times : processedTimes.values()) {
+            for (int i = 1; i < times.size(); ++i) {
+                assertTrue(times.get(i - 1) < times.get(i), "Reports processed out of order: " + times);
+            }
+        }
+        assertEquals(0, lanes.stream().mapToLong(AvlProcessingLane::getRejectedCount).sum());
+    }
+
+    private boolean allProcessed(long lastTime) {
+        long processed = lanes.stream().mapToLong(AvlProcessingLane::getProcessedCount).sum();
+        long coalesced = lanes.stream().mapToLong(AvlProcessingLane::getCoalescedCount).sum();
+        if (processed + coalesced != (long) NUM_VEHICLES * REPORTS_PER_VEHICLE) return false;
+        if (processedTimes.size() < NUM_VEHICLES) return false;
+        for (List<Long> times : processedTimes.values()) {
+            if (times.get(times.size() - 1) != lastTime) return false;
+        }
+        return true;
+    }
+
+    @Test
+    void lanesExitWhenShutDown() throws InterruptedException {
+        lanes = AvlExecutor.createLanes(4, 100, recordingThreadFactory());
+        AvlReport avlReport = new AvlReport("v1", 1000, 12.34, 43.21, null);
+        lanes.get(Math.floorMod(avlReport.getVehicleId().hashCode(), lanes.size()))
+                .offer(new RecordingAvlReportProcessor(avlReport));
+
+        lanes.forEach(AvlProcessingLane::shutdown);
+        for (Thread thread : laneThreads) {
+            thread.join(5_000);
+            assertFalse(thread.isAlive(), "Lane thread " + thread + " still running after shutdown");
+        }
+    }
+}
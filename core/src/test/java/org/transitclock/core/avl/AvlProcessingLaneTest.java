@@ -0,0 +1,59 @@
+package org.transitclock.core.avl;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.monitoring.PipelineMetrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AvlProcessingLaneTest {
+    private final TestingAvlReportProcessorFactory factory = new TestingAvlReportProcessorFactory();
+
+    @Test
+    public void coalescesReportsForSameVehicle() {
+        AvlProcessingLane lane = new AvlProcessingLane(0, 10);
+
+        assertTrue(lane.offer(factory.createClient(new AvlReport("v1", 1000, 12.34, 43.21, null))));
+        assertTrue(lane.offer(factory.createClient(new AvlReport("v2", 1000, 12.34, 43.21, null))));
+        assertTrue(lane.offer(factory.createClient(new AvlReport("v1", 2000, 12.34, 43.21, null))));
+        // Older than the one waiting so dropped
+        assertTrue(lane.offer(factory.createClient(new AvlReport("v1", 500, 12.34, 43.21, null))));
+
+        assertEquals(2, lane.queueDepth());
+        assertEquals(2, lane.getCoalescedCount());
+        assertEquals(0, lane.getRejectedCount());
+    }
+
+    @Test
+    public void rejectsWhenFull() {
+        AvlProcessingLane lane = new AvlProcessingLane(0, 2);
+
+        assertTrue(lane.offer(factory.createClient(new AvlReport("v1", 1000, 12.34, 43.21, null))));
+        assertTrue(lane.offer(factory.createClient(new AvlReport("v2", 1000, 12.34, 43.21, null))));
+        assertFalse(lane.offer(factory.createClient(new AvlReport("v3", 1000, 12.34, 43.21, null))));
+        // Replacing a waiting report doesn't need a new slot
+        assertTrue(lane.offer(factory.createClient(new AvlReport("v2", 2000, 12.34, 43.21, null))));
+
+        assertEquals(2, lane.queueDepth());
+        assertEquals(1, lane.getRejectedCount());
+    }
+
+    @Test
+    public void countsReportsInPipelineMetrics() {
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        long queued = metrics.getAvlReportsQueued();
+        long rejected = metrics.getAvlReportsRejected();
+        long obsolete = metrics.getAvlReportsObsolete();
+        AvlProcessingLane lane = new AvlProcessingLane(0, 1);
+
+        assertTrue(lane.offer(factory.createClient(new AvlReport("v1", 1000, 12.34, 43.21, null))));
+        assertTrue(lane.offer(factory.createClient(new AvlReport("v1", 2000, 12.34, 43.21, null))));
+        assertFalse(lane.offer(factory.createClient(new AvlReport("v2", 1000, 12.34, 43.21, null))));
+
+        assertEquals(queued + 2, metrics.getAvlReportsQueued());
+        assertEquals(rejected + 1, metrics.getAvlReportsRejected());
+        assertEquals(obsolete + 1, metrics.getAvlReportsObsolete());
+    }
+}
@@ -0,0 +1,57 @@
+package org.transitclock.core.avl;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.AvlReport.AssignmentType;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AvlReplayFileTest {
+
+    @Test
+    public void readsAvlTestFormat() throws Exception {
+        Path file = Paths.get(getClass().getResource("/avltest.csv").toURI());
+        List<AvlReport> avlReports = AvlReplayFile.read(file);
+
+        assertEquals(2077, avlReports.size());
+        for (int i = 1; i < avlReports.size(); ++i)
+            assertTrue(avlReports.get(i - 1).getTime() <= avlReports.get(i).getTime());
+        assertEquals(AssignmentType.ROUTE_ID, avlReports.get(0).getAssignmentType());
+        assertTrue(Float.isNaN(avlReports.get(0).getSpeed()));
+    }
+
+    @Test
+    public void roundTrip(@TempDir Path directory) throws Exception {
+        AvlReport withAssignment = new AvlReport("v1", 2000, 38.93965, -77.07503, 5.5f, 90.0f, "test");
+        withAssignment.setAssignment("block1", AssignmentType.BLOCK_ID);
+        AvlReport withoutAssignment = new AvlReport("v2", 1000, 38.94225, -77.07642, "test");
+
+        Path file = directory.resolve("avl.csv.gz");
+        AvlReplayFile.write(List.of(withAssignment, withoutAssignment), file);
+        List<AvlReport> avlReports = AvlReplayFile.read(file);
+
+        assertEquals(2, avlReports.size());
+        // Sorted by time
+        AvlReport second = avlReports.get(0);
+        assertEquals("v2", second.getVehicleId());
+        assertEquals(1000, second.getTime());
+        assertNull(second.getAssignmentId());
+        assertTrue(Float.isNaN(second.getSpeed()));
+
+        AvlReport first = avlReports.get(1);
+        assertEquals("v1", first.getVehicleId());
+        assertEquals(38.93965, first.getLat(), 1e-9);
+        assertEquals(-77.07503, first.getLon(), 1e-9);
+        assertEquals(5.5f, first.getSpeed());
+        assertEquals(90.0f, first.getHeading());
+        assertEquals("block1", first.getAssignmentId());
+        assertEquals(AssignmentType.BLOCK_ID, first.getAssignmentType());
+    }
+}
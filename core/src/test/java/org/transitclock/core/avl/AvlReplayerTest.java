@@ -0,0 +1,93 @@
+package org.transitclock.core.avl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.monitoring.PipelineMetrics;
+import org.transitclock.monitoring.PipelineMetrics.Stage;
+import org.transitclock.utils.SystemTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AvlReplayerTest {
+    private static final long START_TIME = 1_684_569_600_000L;
+
+    /** What the processor saw when processing a report. */
+    private record Processed(String vehicleId, long reportTime, long clockTime, Thread thread) {}
+
+    /** Reports of several vehicles, interleaved and with some at the same time, in time order. */
+    private static List<AvlReport> avlReports() {
+        List<AvlReport> avlReports = new ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            for (int vehicle = 0; vehicle < 4; ++vehicle) {
+                long time = START_TIME + i * 15_000L + (vehicle % 2) * 5_000L;
+                avlReports.add(new AvlReport("v" + vehicle, time, 44.43 + i * 0.001, 26.10, "test"));
+            }
+        }
+        return avlReports;
+    }
+
+    private final List<Processed> processed = new ArrayList<>();
+
+    /**
+     * A replayer with a single thread that replays as fast as possible. Its processor records what
+     * it saw and records the SPATIAL_MATCH and TOTAL stages of PipelineMetrics.
+     */
+    private AvlReplayer replayer() {
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        return new AvlReplayer(0.0, 1, avlReport -> {
+            long startNanos = System.nanoTime();
+            metrics.reportStarted();
+            processed.add(new Processed(
+                    avlReport.getVehicleId(), avlReport.getTime(), SystemTime.getMillis(), Thread.currentThread()));
+            metrics.addSince(Stage.SPATIAL_MATCH, startNanos);
+            metrics.reportProcessed(startNanos);
+        });
+    }
+
+    @Test
+    void singleThreadReplayIsDeterministic() throws InterruptedException {
+        List<AvlReport> avlReports = avlReports();
+
+        AvlReplayer replayer = replayer();
+        replayer.replay(avlReports);
+        List<Processed> first = new ArrayList<>(processed);
+        processed.clear();
+        replayer().replay(avlReports);
+
+        assertThat(processed).isEqualTo(first);
+        // In the order of the reports, in the replaying thread, with the
+        // clock at the time of the report being processed
+        assertThat(first).extracting(Processed::vehicleId)
+                .containsExactlyElementsOf(avlReports.stream().map(AvlReport::getVehicleId).toList());
+        assertThat(first).allMatch(report -> report.thread() == Thread.currentThread()
+                && report.clockTime() == report.reportTime());
+        // Back to the system clock once done
+        assertThat(SystemTime.getMillis()).isNotEqualTo(avlReports.get(avlReports.size() - 1).getTime());
+        assertThat(replayer.getReplayedCount()).isEqualTo(avlReports.size());
+    }
+
+    @Test
+    void summaryHasStagesRecordedDuringReplay() throws InterruptedException {
+        List<AvlReport> avlReports = avlReports();
+        // Recorded before the replay so not part of it
+        PipelineMetrics metrics = PipelineMetrics.getInstance();
+        metrics.reportStarted();
+        metrics.addSince(Stage.TEMPORAL_MATCH, System.nanoTime());
+        metrics.reportProcessed(System.nanoTime());
+
+        AvlReplayer replayer = replayer();
+        replayer.replay(avlReports);
+
+        assertThat(replayer.getStageNanos(Stage.SPATIAL_MATCH).getCount()).isEqualTo(avlReports.size());
+        assertThat(replayer.getStageNanos(Stage.TOTAL).getCount()).isEqualTo(avlReports.size());
+        assertThat(replayer.getStageNanos(Stage.TEMPORAL_MATCH).getCount()).isZero();
+        assertThat(replayer.getSummary())
+                .contains("Replayed " + avlReports.size() + " AVL reports")
+                .contains("SPATIAL_MATCH: count=" + avlReports.size())
+                .contains("TOTAL: count=" + avlReports.size())
+                .doesNotContain("TEMPORAL_MATCH");
+    }
+}
@@ -0,0 +1,160 @@
+package org.transitclock.core.dataCache;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.Departure;
+import org.transitclock.utils.Time;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CacheWarmerTest {
+    private static final int NUMBER_DAYS = 6;
+
+    // The caches key their entries on the day in the default time zone
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+    private static final LocalDate LAST_DAY = LocalDate.of(2023, 5, 20);
+
+    // Not at midnight, same as the current time used by Application
+    private static final Date END_DATE = at(LAST_DAY, 10 * 60);
+    private static final Date START_DATE = at(LAST_DAY.minusDays(NUMBER_DAYS), 10 * 60);
+
+    private final List<ArrivalDeparture> rows = new ArrayList<>();
+
+    private static Date at(LocalDate day, int minutesIntoDay) {
+        long midnight = day.atStartOfDay(ZONE).toInstant().toEpochMilli();
+        return new Date(midnight + minutesIntoDay * Time.MS_PER_MIN);
+    }
+
+    /** A trip of the vehicle with a departure every five minutes starting at the time. */
+    private void trip(String vehicleId, Date startTime, int numberStops) {
+        for (int stop = 0; stop < numberStops; ++stop) {
+            Date time = new Date(startTime.getTime() + stop * 5 * Time.MS_PER_MIN);
+            rows.add(new Departure(0, vehicleId, time, time, null, 0, stop, null));
+        }
+    }
+
+    /**
+     * Reads the rows in time order. The older the day the longer it waits before reading, so that
+     * the more recent days are read first, which is when an older day not having been read yet
+     * matters.
+     */
+    private class ListReader implements CacheWarmer.ArrivalDepartureReader {
+        @Override
+        public long count(Date start, Date end) {
+            return rows.stream().filter(row -> inSpan(row, start, end)).count();
+        }
+
+        @Override
+        public void read(Date start, Date end, Consumer<ArrivalDeparture> consumer) {
+            try {
+                Thread.sleep((END_DATE.getTime() - end.getTime()) / Time.MS_PER_HOUR);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            rows.stream()
+                    .filter(row -> inSpan(row, start, end))
+                    .sorted((row1, row2) -> Long.compare(row1.getTime(), row2.getTime()))
+                    .forEach(consumer);
+        }
+
+        private boolean inSpan(ArrivalDeparture row, Date start, Date end) {
+            return row.getTime() >= start.getTime() && row.getTime() < end.getTime();
+        }
+    }
+
+    @Test
+    void dependentCacheAlwaysFindsPreviousEventOfTrip() throws InterruptedException {
+        for (int day = 0; day < NUMBER_DAYS; ++day) {
+            LocalDate date = LAST_DAY.minusDays(day);
+            // Crosses midnight
+            trip("midnight" + day, at(date.minusDays(1), 23 * 60 + 45), 7);
+            // Crosses the time of day of END_DATE, where the 24 hour slices
+            // counted back from it used to start
+            trip("endTime" + day, at(date, 9 * 60 + 45), 7);
+            // Within a day
+            trip("midday" + day, at(date, 13 * 60), 7);
+        }
+        rows.removeIf(row -> row.getTime() < START_DATE.getTime() || row.getTime() >= END_DATE.getTime());
+
+        // The previous event of each row, for the same vehicle
+        Map<ArrivalDeparture, Long> previousTimes = new IdentityHashMap<>();
+        Map<String, Long> lastTimes = new HashMap<>();
+        rows.stream()
+                .sorted((row1, row2) -> Long.compare(row1.getTime(), row2.getTime()))
+                .forEach(row -> {
+                    Long lastTime = lastTimes.put(row.getVehicleId(), row.getTime());
+                    if (lastTime != null) previousTimes.put(row, lastTime);
+                });
+
+        // Stands in for the trip history
+        Map<String, Set<Long>> history = new ConcurrentHashMap<>();
+        AtomicInteger historyCount = new AtomicInteger();
+        // Stands in for the historical averages, which look up the previous
+        // event of the trip in the trip history
+        List<ArrivalDeparture> missingPrevious = new CopyOnWriteArrayList<>();
+        AtomicInteger dependentCount = new AtomicInteger();
+
+        CacheWarmer warmer = new CacheWarmer(4, new ListReader());
+        warmer.addCache("history", START_DATE, row -> {
+            history.computeIfAbsent(row.getVehicleId(), vehicleId -> ConcurrentHashMap.newKeySet())
+                    .add(row.getTime());
+            historyCount.incrementAndGet();
+        });
+        warmer.addDependentCache("averages", START_DATE, row -> {
+            Long previousTime = previousTimes.get(row);
+            Set<Long> times = history.get(row.getVehicleId());
+            if (previousTime != null && (times == null || !times.contains(previousTime))) missingPrevious.add(row);
+            dependentCount.incrementAndGet();
+        });
+        warmer.warm(END_DATE);
+
+        assertThat(missingPrevious).isEmpty();
+        assertThat(historyCount.get()).isEqualTo(rows.size());
+        assertThat(dependentCount.get()).isEqualTo(rows.size());
+        // So that the test isn't passing because there was nothing to check
+        assertThat(previousTimes).hasSizeGreaterThan(NUMBER_DAYS * 3 * 4);
+    }
+
+    @Test
+    void cacheStartDateIsHonored() throws InterruptedException {
+        trip("v1", at(LAST_DAY, 6 * 60), 12);
+        Date cacheStartDate = at(LAST_DAY, 6 * 60 + 20);
+
+        List<ArrivalDeparture> consumed = new CopyOnWriteArrayList<>();
+        CacheWarmer warmer = new CacheWarmer(2, new ListReader());
+        warmer.addCache("all", START_DATE, row -> {});
+        warmer.addDependentCache("recent", cacheStartDate, consumed::add);
+        warmer.warm(END_DATE);
+
+        assertThat(consumed).hasSize(8).allMatch(row -> row.getTime() >= cacheStartDate.getTime());
+    }
+
+    @Test
+    void daysStartAtMidnight() {
+        List<Date[]> days = CacheWarmer.days(START_DATE, END_DATE);
+
+        assertThat(days).hasSize(NUMBER_DAYS + 1);
+        // Most recent day first, partial since END_DATE isn't at midnight
+        assertThat(days.get(0)).containsExactly(at(LAST_DAY, 0), END_DATE);
+        for (int i = 1; i < NUMBER_DAYS; ++i) {
+            LocalDate date = LAST_DAY.minusDays(i);
+            assertThat(days.get(i)).containsExactly(at(date, 0), at(date.plusDays(1), 0));
+        }
+        assertThat(days.get(NUMBER_DAYS)).containsExactly(START_DATE, at(LAST_DAY.minusDays(NUMBER_DAYS - 1), 0));
+    }
+}
@@ -1,8 +1,148 @@
 package org.transitclock.core.dataCache;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
 import org.junit.jupiter.api.Test;
+import org.transitclock.Core;
+import org.transitclock.TestingCore;
+import org.transitclock.domain.structs.AvlReport;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.service.dto.IpcPrediction;
+import org.transitclock.service.dto.IpcPrediction.ArrivalOrDeparture;
+import org.transitclock.service.dto.IpcPredictionsForRouteStopDest;
+import org.transitclock.utils.Time;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toSet;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.transitclock.TestingCore.STOP_IDS;
 
 class PredictionDataCacheTest {
+    // Far enough in the future that none of the predictions expire during a test
+    private static final long BASE_TIME = System.currentTimeMillis() + Time.MS_PER_HOUR;
+
+    private final Core core = TestingCore.getCore();
+    private final PredictionDataCache cache = new PredictionDataCache();
+
+    private IpcPrediction prediction(String vehicleId, String stopId, long predictionTime) {
+        AvlReport avlReport = new AvlReport(vehicleId, System.currentTimeMillis(), 44.43, 26.10, "test");
+        avlReport.setTimeProcessed();
+        Trip trip = core.getDbConfig().getTrip(TestingCore.TRIP_ID);
+        return new IpcPrediction(avlReport, stopId, 1, trip, predictionTime, predictionTime,
+                false, false, false, false, ArrivalOrDeparture.DEPARTURE, null, 0, 0, false);
+    }
+
+    /** The published snapshots of the predictions, keyed on the stop. */
+    private Map<String, IpcPredictionsForRouteStopDest> snapshots() {
+        return cache.getAllPredictions(Integer.MAX_VALUE, Long.MAX_VALUE).stream()
+                .collect(toMap(IpcPredictionsForRouteStopDest::getStopId, Function.identity()));
+    }
+
+    @Test
+    void updatePredictionsPublishesNewSnapshot() {
+        String stopId = STOP_IDS.get(1);
+        IpcPrediction prediction1 = prediction("v1", stopId, BASE_TIME);
+        cache.updatePredictions(null, List.of(prediction1));
+        IpcPredictionsForRouteStopDest first = snapshots().get(stopId);
+        assertThat(first.getPredictionsForRouteStop()).containsExactly(prediction1);
+
+        IpcPrediction prediction2 = prediction("v2", stopId, BASE_TIME - Time.MS_PER_MIN);
+        cache.updatePredictions(null, List.of(prediction2));
+        IpcPredictionsForRouteStopDest second = snapshots().get(stopId);
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(second.getPredictionsForRouteStop()).containsExactly(prediction2, prediction1);
+        // A published snapshot never changes
+        assertThat(first.getPredictionsForRouteStop()).containsExactly(prediction1);
+        assertThatThrownBy(() -> second.getPredictionsForRouteStop().add(prediction1))
+                .isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    void versionIsIncrementedForEachPublishedChange() {
+        long version = cache.getVersion();
+        IpcPrediction first = prediction("v1", STOP_IDS.get(1), BASE_TIME);
+        cache.updatePredictions(null, List.of(first));
+        assertThat(cache.getVersion()).isEqualTo(version + 1);
+
+        // The predictions for each stop are published separately
+        List<IpcPrediction> moved = List.of(
+                prediction("v1", STOP_IDS.get(1), BASE_TIME + Time.MS_PER_MIN),
+                prediction("v1", STOP_IDS.get(2), BASE_TIME + 6 * Time.MS_PER_MIN));
+        cache.updatePredictions(List.of(first), moved);
+        assertThat(cache.getVersion()).isEqualTo(version + 3);
+
+        cache.updatePredictions(moved, null);
+        assertThat(cache.getVersion()).isEqualTo(version + 5);
+        assertThat(snapshots()).isEmpty();
+    }
+
+    @Test
+    void readersNeverSeePartiallyUpdatedList() throws Exception {
+        String stopId = STOP_IDS.get(1);
+        List<String> vehicleIds = List.of("v1", "v2");
+        // Each update has several predictions of a vehicle for the stop, as
+        // for a short loop. The prediction times tell which update they are from.
+        int predictionsPerUpdate = 5;
+        int numberUpdates = 2_000;
+        Function<IpcPrediction, Long> update = prediction -> (prediction.getPredictionTime() - BASE_TIME) / 1000;
+
+        AtomicBoolean writersDone = new AtomicBoolean();
+        List<List<IpcPrediction>> partialLists = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(vehicleIds.size() + 1);
+        try {
+            Future<?> reader = executor.submit(() -> {
+                while (!writersDone.get()) {
+                    IpcPredictionsForRouteStopDest snapshot = snapshots().get(stopId);
+                    if (snapshot == null) continue;
+                    Map<String, List<IpcPrediction>> predictionsByVehicle = snapshot.getPredictionsForRouteStop()
+                            .stream()
+                            .collect(groupingBy(IpcPrediction::getVehicleId));
+                    for (List<IpcPrediction> predictions : predictionsByVehicle.values()) {
+                        Set<Long> updates = predictions.stream().map(update).collect(toSet());
+                        if (predictions.size() != predictionsPerUpdate || updates.size() != 1)
+                            partialLists.add(predictions);
+                    }
+                }
+            });
+
+            List<Future<?>> writers = new ArrayList<>();
+            for (String vehicleId : vehicleIds) {
+                writers.add(executor.submit(() -> {
+                    List<IpcPrediction> previous = null;
+                    for (int updateNumber = 0; updateNumber < numberUpdates; ++updateNumber) {
+                        List<IpcPrediction> predictions = new ArrayList<>(predictionsPerUpdate);
+                        for (int i = 0; i < predictionsPerUpdate; ++i)
+                            predictions.add(prediction(vehicleId, stopId, BASE_TIME + updateNumber * 1000L + i));
+                        cache.updatePredictions(previous, predictions);
+                        previous = predictions;
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) writer.get();
+            writersDone.set(true);
+            reader.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(partialLists).isEmpty();
+        assertThat(snapshots().get(stopId).getPredictionsForRouteStop())
+                .hasSize(vehicleIds.size() * predictionsPerUpdate)
+                .allMatch(prediction -> update.apply(prediction) == numberUpdates - 1);
+    }
+
     @Test
     void test() {
 //        String projectId = args.length > 0 ? args[0] : "testProjectId";
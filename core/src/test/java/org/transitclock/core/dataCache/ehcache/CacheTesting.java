@@ -0,0 +1,66 @@
+package org.transitclock.core.dataCache.ehcache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+
+/**
+ * For tests that add samples to a cache from many threads at once and check that none of them is
+ * lost or doubled.
+ */
+public class CacheTesting {
+    public static final int NUMBER_THREADS = 8;
+    public static final int SAMPLES_PER_THREAD = 250;
+    public static final int NUMBER_SAMPLES = NUMBER_THREADS * SAMPLES_PER_THREAD;
+
+    // Few keys, so that the same key is updated by all the threads at once
+    public static final int NUMBER_KEYS = 4;
+
+    /**
+     * Returns a cache manager with a heap only cache, so that the tests don't use the disk tiers of
+     * ehcache.xml. The caller closes it.
+     */
+    public static <K, V> CacheManager heapCacheManager(String cacheName, Class<K> keyType, Class<V> valueType) {
+        return CacheManagerBuilder.newCacheManagerBuilder()
+                .withCache(
+                        cacheName,
+                        CacheConfigurationBuilder.newCacheConfigurationBuilder(
+                                keyType, valueType, ResourcePoolsBuilder.heap(100)))
+                .build(true);
+    }
+
+    /**
+     * Calls addSample with each sample number from 0 to NUMBER_SAMPLES, split between
+     * NUMBER_THREADS threads that all start at once. Returns when all the samples are added.
+     */
+    public static void addConcurrently(IntConsumer addSample) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(NUMBER_THREADS);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < NUMBER_THREADS; ++thread) {
+                int firstSample = thread * SAMPLES_PER_THREAD;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int sample = firstSample; sample < firstSample + SAMPLES_PER_THREAD; ++sample)
+                        addSample.accept(sample);
+                    return null;
+                }));
+            }
+            start.countDown();
+            // Rethrows what a thread threw
+            for (Future<?> future : futures) future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.transitclock.core.dataCache.ehcache;
+
+import org.ehcache.CacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.dataCache.KalmanError;
+import org.transitclock.core.dataCache.KalmanErrorCacheKey;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.NUMBER_KEYS;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.NUMBER_SAMPLES;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.addConcurrently;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.heapCacheManager;
+
+class KalmanErrorCacheTest {
+    private final CacheManager cacheManager =
+            heapCacheManager("errors", KalmanErrorCacheKey.class, KalmanError.class);
+    private final KalmanErrorCache errorCache =
+            new KalmanErrorCache(cacheManager.getCache("errors", KalmanErrorCacheKey.class, KalmanError.class));
+
+    @AfterEach
+    void closeCacheManager() {
+        cacheManager.close();
+    }
+
+    private static KalmanErrorCacheKey key(int sample) {
+        return new KalmanErrorCacheKey("trip" + sample % NUMBER_KEYS, 1);
+    }
+
+    @Test
+    void noUpdateIsLostWhenPutConcurrently() throws Exception {
+        // Every value is different so that every put counts as an update
+        addConcurrently(sample -> errorCache.putErrorValue(key(sample), (double) sample));
+
+        for (int keyNumber = 0; keyNumber < NUMBER_KEYS; ++keyNumber) {
+            KalmanError error = errorCache.getErrorValue(key(keyNumber));
+            // The first put creates the error with no updates counted
+            assertThat(error.getUpdates()).isEqualTo(NUMBER_SAMPLES / NUMBER_KEYS - 1);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.transitclock.core.dataCache.ehcache;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.ehcache.CacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.dataCache.StopArrivalDepartureCacheKey;
+import org.transitclock.core.dataCache.StopEvents;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.Departure;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.Stop;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.NUMBER_KEYS;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.NUMBER_SAMPLES;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.addConcurrently;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.heapCacheManager;
+import static org.transitclock.domain.structs.TestingConfigFactory.stop;
+
+class StopArrivalDepartureCacheTest {
+    // All the samples are within the hour, so on the same day
+    private static final Date START =
+            Date.from(LocalDateTime.of(2023, 5, 20, 10, 0).atZone(ZoneId.systemDefault()).toInstant());
+
+    private final CacheManager cacheManager =
+            heapCacheManager("stops", StopArrivalDepartureCacheKey.class, StopEvents.class);
+    private final StopArrivalDepartureCache stopCache = new StopArrivalDepartureCache(
+            cacheManager.getCache("stops", StopArrivalDepartureCacheKey.class, StopEvents.class));
+
+    @AfterEach
+    void closeCacheManager() {
+        cacheManager.close();
+    }
+
+    /** A departure at the stop with a vehicle ID that is different for each sample. */
+    private static ArrivalDeparture departure(Stop stop, int sample) {
+        Date time = new Date(START.getTime() + sample * Time.MS_PER_SEC);
+        // Without a Core the stop can't be looked up in the config
+        return new Departure(0, "vehicle" + sample, time, time, null, 0, 0, null) {
+            @Override
+            public Stop getStop() {
+                return stop;
+            }
+        };
+    }
+
+    @Test
+    void noEventIsLostOrDoubledWhenPutConcurrently() throws Exception {
+        Stop[] stops = IntStream.range(0, NUMBER_KEYS)
+                .mapToObj(keyNumber -> stop("stop" + keyNumber, new Location(44.43, 26.10)))
+                .toArray(Stop[]::new);
+
+        addConcurrently(sample -> stopCache.putArrivalDeparture(departure(stops[sample % NUMBER_KEYS], sample)));
+
+        for (int keyNumber = 0; keyNumber < NUMBER_KEYS; ++keyNumber) {
+            int stopNumber = keyNumber;
+            List<String> expected = IntStream.range(0, NUMBER_SAMPLES)
+                    .filter(sample -> sample % NUMBER_KEYS == stopNumber)
+                    .mapToObj(sample -> "vehicle" + sample)
+                    .toList();
+            List<IpcArrivalDeparture> history =
+                    stopCache.getStopHistory(new StopArrivalDepartureCacheKey("stop" + keyNumber, START));
+            assertThat(history)
+                    .extracting(IpcArrivalDeparture::getVehicleId)
+                    .containsExactlyInAnyOrderElementsOf(expected);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package org.transitclock.core.dataCache.ehcache.scheduled;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.dataCache.StopPathCacheKey;
+import org.transitclock.core.predictiongenerator.scheduled.dwell.DwellModel;
+import org.transitclock.domain.structs.Departure;
+import org.transitclock.domain.structs.Headway;
+import org.transitclock.utils.Time;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.NUMBER_KEYS;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.NUMBER_SAMPLES;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.addConcurrently;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.heapCacheManager;
+
+class DwellTimeModelCacheTest {
+    /** Keeps every sample. Not thread safe, so samples are lost if the cache doesn't serialize them. */
+    private static class SampleList implements DwellModel {
+        private final List<Integer> dwellTimes = new ArrayList<>();
+
+        @Override
+        public Integer predict(Integer headway, Integer demand) {
+            return null;
+        }
+
+        @Override
+        public void putSample(Integer dwellTime, Integer headway, Integer demand) {
+            dwellTimes.add(dwellTime);
+        }
+    }
+
+    private final CacheManager cacheManager = heapCacheManager("dwell", StopPathCacheKey.class, DwellModel.class);
+    private final Cache<StopPathCacheKey, DwellModel> cache =
+            cacheManager.getCache("dwell", StopPathCacheKey.class, DwellModel.class);
+    private final DwellTimeModelCache dwellCache = new DwellTimeModelCache(cache, SampleList::new);
+
+    @AfterEach
+    void closeCacheManager() {
+        cacheManager.close();
+    }
+
+    private void addSample(int sample) {
+        Date time = new Date(sample * Time.MS_PER_SEC);
+        Headway headway = new Headway();
+        headway.setTripId("trip" + sample % NUMBER_KEYS);
+        headway.setHeadway(10 * Time.MS_PER_MIN);
+        // The sample number as the dwell time, so that each sample can be told apart
+        dwellCache.addSample(new Departure(0, "vehicle", time, time, null, 0, 0, null), headway, sample);
+    }
+
+    @Test
+    void noSampleIsLostOrDoubledWhenAddedConcurrently() throws Exception {
+        addConcurrently(this::addSample);
+
+        for (int keyNumber = 0; keyNumber < NUMBER_KEYS; ++keyNumber) {
+            int tripNumber = keyNumber;
+            List<Integer> expected = IntStream.range(0, NUMBER_SAMPLES)
+                    .filter(sample -> sample % NUMBER_KEYS == tripNumber)
+                    .boxed()
+                    .toList();
+            SampleList model = (SampleList) cache.get(new StopPathCacheKey("trip" + keyNumber, 0, false));
+            assertThat(model.dwellTimes).containsExactlyInAnyOrderElementsOf(expected);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.transitclock.core.dataCache.ehcache.scheduled;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.ehcache.CacheManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.dataCache.TripEvents;
+import org.transitclock.core.dataCache.TripKey;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.Departure;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+import org.transitclock.utils.Time;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.NUMBER_KEYS;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.NUMBER_SAMPLES;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.addConcurrently;
+import static org.transitclock.core.dataCache.ehcache.CacheTesting.heapCacheManager;
+import static org.transitclock.domain.structs.TestingConfigFactory.trip;
+
+class TripDataHistoryCacheTest {
+    private static final Date DAY =
+            Date.from(LocalDate.of(2023, 5, 20).atStartOfDay(ZoneId.systemDefault()).toInstant());
+
+    private final Map<String, Trip> trips = IntStream.range(0, NUMBER_KEYS)
+            .mapToObj(keyNumber -> trip("trip" + keyNumber, "route"))
+            .collect(Collectors.toMap(Trip::getId, Function.identity()));
+
+    private final CacheManager cacheManager = heapCacheManager("trips", TripKey.class, TripEvents.class);
+    // Without a Core the trips can't be looked up in the config
+    private final TripDataHistoryCache tripCache =
+            new TripDataHistoryCache(cacheManager.getCache("trips", TripKey.class, TripEvents.class)) {
+                @Override
+                Trip getTrip(String tripId) {
+                    return trips.get(tripId);
+                }
+            };
+
+    @AfterEach
+    void closeCacheManager() {
+        cacheManager.close();
+    }
+
+    /** A departure for the trip with a vehicle ID that is different for each sample. */
+    private static ArrivalDeparture departure(String tripId, int sample) {
+        // Within the day
+        Date time = new Date(DAY.getTime() + 10 * Time.MS_PER_HOUR + sample * Time.MS_PER_SEC);
+        return new Departure(0, "vehicle" + sample, time, time, null, 0, 0, null) {
+            @Override
+            public String getTripId() {
+                return tripId;
+            }
+        };
+    }
+
+    @Test
+    void noEventIsLostOrDoubledWhenPutConcurrently() throws Exception {
+        addConcurrently(sample -> tripCache.putArrivalDeparture(departure("trip" + sample % NUMBER_KEYS, sample)));
+
+        for (int keyNumber = 0; keyNumber < NUMBER_KEYS; ++keyNumber) {
+            int tripNumber = keyNumber;
+            List<String> expected = IntStream.range(0, NUMBER_SAMPLES)
+                    .filter(sample -> sample % NUMBER_KEYS == tripNumber)
+                    .mapToObj(sample -> "vehicle" + sample)
+                    .toList();
+            Trip trip = trips.get("trip" + keyNumber);
+            List<IpcArrivalDeparture> history =
+                    tripCache.getTripHistory(new TripKey(trip.getId(), DAY, trip.getStartTime()));
+            assertThat(history)
+                    .extracting(IpcArrivalDeparture::getVehicleId)
+                    .containsExactlyInAnyOrderElementsOf(expected);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.transitclock.core.dataCache.memory;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.TemporalDifference;
+import org.transitclock.core.TravelTimeDetails;
+import org.transitclock.service.dto.IpcArrivalDeparture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TripHistoryTest {
+    private static IpcArrivalDeparture event(long time, int stopPathIndex, boolean isArrival, String vehicleId) {
+        IpcArrivalDeparture event = new IpcArrivalDeparture();
+        event.setTime(new Date(time));
+        event.setStopPathIndex(stopPathIndex);
+        event.setArrival(isArrival);
+        event.setVehicleId(vehicleId);
+        event.setStopId("stop" + stopPathIndex);
+        event.setScheduledAdherence(new TemporalDifference(-30000));
+        return event;
+    }
+
+    @Test
+    public void eventsAreNewestFirst() {
+        TripHistory history = new TripHistory("trip1", new StringTable());
+        history.add(event(1000, 0, false, "v1"));
+        history.add(event(3000, 1, false, "v1"));
+        // Out of order
+        history.add(event(2000, 1, true, "v1"));
+
+        List<IpcArrivalDeparture> events = history.getEvents();
+        assertEquals(3, events.size());
+        assertEquals(3000, events.get(0).getTime().getTime());
+        assertEquals(2000, events.get(1).getTime().getTime());
+        assertEquals(1000, events.get(2).getTime().getTime());
+        assertEquals("trip1", events.get(1).getTripId());
+        assertEquals("stop1", events.get(1).getStopId());
+        assertEquals(-30000, events.get(1).getScheduledAdherence().getTemporalDifference());
+        assertNull(events.get(1).getFreqStartTime());
+    }
+
+    @Test
+    public void travelTimeDetails() {
+        StringTable strings = new StringTable();
+        TripHistory history = new TripHistory("trip1", strings);
+        for (int i = 0; i < 40; ++i) {
+            history.add(event(i * 60_000L, i, true, "v1"));
+            history.add(event(i * 60_000L + 20_000, i, false, "v1"));
+        }
+
+        TravelTimeDetails details = history.getTravelTimeDetails(10);
+        assertEquals(9 * 60_000L + 20_000, details.getDeparture().getTime().getTime());
+        assertEquals(10 * 60_000L, details.getArrival().getTime().getTime());
+        assertEquals("v1", details.getArrival().getVehicleId());
+
+        // No departure before the first stop path
+        assertNull(history.getTravelTimeDetails(0));
+        // Stop path not reached
+        assertNull(history.getTravelTimeDetails(50));
+
+        // IDs are only stored once
+        assertEquals(41, strings.size());
+    }
+}
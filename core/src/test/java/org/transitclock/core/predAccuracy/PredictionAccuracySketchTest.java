@@ -0,0 +1,59 @@
+package org.transitclock.core.predAccuracy;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.statistics.Statistics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class PredictionAccuracySketchTest {
+
+    @Test
+    void sameStatisticsAsList() {
+        Random random = new Random(42);
+        List<Integer> list = new ArrayList<>();
+        PredictionAccuracySketch sketch = new PredictionAccuracySketch();
+        for (int i = 0; i < 5_000; ++i) {
+            int accuracy = (int) Math.round(random.nextGaussian() * 60);
+            list.add(accuracy);
+            sketch.add(accuracy);
+        }
+        Collections.sort(list);
+
+        double[] data = Statistics.toDoubleArray(list);
+        double mean = Statistics.mean(data);
+        assertThat(sketch.getCount()).isEqualTo(list.size());
+        assertThat(sketch.getMean()).isCloseTo(mean, within(1e-9));
+        assertThat(sketch.getSampleStandardDeviation(mean))
+                .isCloseTo(Statistics.getSampleStandardDeviation(data, mean), within(1e-9));
+        for (int index : new int[] {0, 750, 2_500, 4_250, 4_999})
+            assertThat(sketch.getValueAtIndex(index)).isEqualTo(list.get(index));
+        assertThat(sketch.countLessThan(-30)).isEqualTo(list.stream().filter(a -> a < -30).count());
+    }
+
+    @Test
+    void mergeAndRoundTrip() {
+        PredictionAccuracySketch first = new PredictionAccuracySketch();
+        first.add(5);
+        first.add(-2);
+        first.add(5);
+        PredictionAccuracySketch second = new PredictionAccuracySketch();
+        second.add(-2, 3);
+        second.add(10);
+
+        first.merge(second);
+        assertThat(first.getValues()).containsExactly(-2, 5, 10);
+        assertThat(first.getCounts()).containsExactly(4, 2, 1);
+        assertThat(first.getCount()).isEqualTo(7);
+
+        PredictionAccuracySketch copy = new PredictionAccuracySketch(first.getValues(), first.getCounts());
+        assertThat(copy.getCount()).isEqualTo(7);
+        assertThat(copy.getValueAtIndex(4)).isEqualTo(5);
+        assertThat(copy.countLessThan(10)).isEqualTo(6);
+    }
+}
@@ -0,0 +1,119 @@
+package org.transitclock.core.reports;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.reports.ScheduleAdhRollupsQuery.StopData;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The schedule adherence from the rollups must be the same as from the SQL of
+ * Reports.getScheduleAdhByStops(), which is reproduced here for the arrivals/departures of a stop.
+ */
+class ScheduleAdhRollupsQueryTest {
+    private static final int ALLOWABLE_EARLY_SECS = 60;
+    private static final int ALLOWABLE_LATE_SECS = 240;
+
+    // Scheduled times are whole seconds since they come from the schedule
+    private static final long SCHEDULED_TIME = 1_683_709_200_000L;
+
+    private record ArrDep(String tripId, long scheduledTime, long time) {}
+
+    /** Same as the SQL: the times are compared as they are. */
+    private static boolean sqlEarly(ArrDep arrDep) {
+        return arrDep.scheduledTime() - arrDep.time() > ALLOWABLE_EARLY_SECS * 1000L;
+    }
+
+    private static boolean sqlLate(ArrDep arrDep) {
+        return arrDep.time() - arrDep.scheduledTime() > ALLOWABLE_LATE_SECS * 1000L;
+    }
+
+    /**
+     * Same as the SQL: regexp_replace(CAST(DATE_TRUNC('second', a) - DATE_TRUNC('second', b) AS
+     * VARCHAR), '^00:', '')
+     */
+    private static String sqlDifference(long a, long b) {
+        long secs = Math.floorDiv(a, 1000L) - Math.floorDiv(b, 1000L);
+        String interval = String.format("%02d:%02d:%02d", secs / 3600, secs % 3600 / 60, secs % 60);
+        return interval.replaceFirst("^00:", "");
+    }
+
+    /**
+     * Same as the SQL: array_to_string(array_agg(trip_id || ' (' || difference || ')' order by
+     * trip_id), '; ')
+     */
+    private static String sqlTrips(List<ArrDep> arrDeps, boolean early) {
+        List<ArrDep> sorted = new ArrayList<>(arrDeps);
+        sorted.sort(Comparator.comparing(ArrDep::tripId));
+        List<String> trips = new ArrayList<>();
+        for (ArrDep arrDep : sorted) {
+            String difference = early
+                    ? sqlDifference(arrDep.scheduledTime(), arrDep.time())
+                    : sqlDifference(arrDep.time(), arrDep.scheduledTime());
+            trips.add(arrDep.tripId() + " (" + difference + ")");
+        }
+        return trips.isEmpty() ? null : String.join("; ", trips);
+    }
+
+    private static ArrDep arrDep(String tripId, long adherenceMsecs) {
+        return new ArrDep(tripId, SCHEDULED_TIME, SCHEDULED_TIME + adherenceMsecs);
+    }
+
+    private static void assertSameAsSql(List<ArrDep> arrDeps) {
+        StopData stopData = new StopData(ALLOWABLE_EARLY_SECS, ALLOWABLE_LATE_SECS);
+        for (ArrDep arrDep : arrDeps) stopData.add(arrDep.tripId(), arrDep.time() - arrDep.scheduledTime());
+
+        List<ArrDep> early = arrDeps.stream().filter(ScheduleAdhRollupsQueryTest::sqlEarly).toList();
+        List<ArrDep> late = arrDeps.stream().filter(ScheduleAdhRollupsQueryTest::sqlLate).toList();
+
+        assertThat(stopData.getEarly()).isEqualTo(early.size());
+        assertThat(stopData.getLate()).isEqualTo(late.size());
+        assertThat(stopData.getOntime()).isEqualTo(arrDeps.size() - early.size() - late.size());
+        assertThat(stopData.getTripsEarly()).isEqualTo(sqlTrips(early, true));
+        assertThat(stopData.getTripsLate()).isEqualTo(sqlTrips(late, false));
+    }
+
+    @Test
+    void fractionsOfSecondAroundAllowableEarly() {
+        assertSameAsSql(List.of(
+                arrDep("t1", -60_000),
+                arrDep("t2", -60_001),
+                arrDep("t3", -60_999),
+                arrDep("t4", -61_000),
+                arrDep("t5", -59_999)));
+    }
+
+    @Test
+    void fractionsOfSecondAroundAllowableLate() {
+        assertSameAsSql(List.of(
+                arrDep("t1", 240_000),
+                arrDep("t2", 240_001),
+                arrDep("t3", 240_999),
+                arrDep("t4", 241_000),
+                arrDep("t5", 239_999)));
+    }
+
+    @Test
+    void tripsAreOrderedByTripAndDifferencesIncludeHours() {
+        assertSameAsSql(List.of(
+                arrDep("t9", -3_725_400),
+                arrDep("t10", 3_725_400),
+                arrDep("t2", -90_500),
+                arrDep("t1", 500),
+                arrDep("t3", 0),
+                arrDep("t11", 600_250)));
+    }
+
+    @Test
+    void noEarlyOrLateTrips() {
+        StopData stopData = new StopData(ALLOWABLE_EARLY_SECS, ALLOWABLE_LATE_SECS);
+        stopData.add("t1", 1_000);
+
+        assertThat(stopData.getOntime()).isEqualTo(1);
+        assertThat(stopData.getTripsEarly()).isNull();
+        assertThat(stopData.getTripsLate()).isNull();
+    }
+}
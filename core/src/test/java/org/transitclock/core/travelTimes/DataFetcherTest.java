@@ -0,0 +1,107 @@
+package org.transitclock.core.travelTimes;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DataFetcherTest {
+
+    private record Row(int id, long time, String vehicleId) {}
+
+    private static final Comparator<Row> KEY_ORDER =
+            Comparator.comparingLong(Row::time).thenComparing(Row::vehicleId);
+
+    private final List<Row> rows = new ArrayList<>();
+    private int pagesRead;
+
+    private void row(long time, String vehicleId) {
+        rows.add(new Row(rows.size(), time, vehicleId));
+    }
+
+    /**
+     * Same as the paged queries of ArrivalDeparture and Match: the rows ordered by time and
+     * vehicleId, starting at the time and vehicleId of the last row of the previous page.
+     */
+    private List<Row> readPage(Date afterTime, String afterVehicleId, int pageSize) {
+        ++pagesRead;
+        Row after = afterTime == null ? null : new Row(-1, afterTime.getTime(), afterVehicleId);
+        return rows.stream()
+                .sorted(KEY_ORDER)
+                .filter(row -> after == null || KEY_ORDER.compare(row, after) >= 0)
+                .limit(pageSize)
+                .toList();
+    }
+
+    private List<Row> readAll(int pageSize) {
+        List<Row> consumed = new ArrayList<>();
+        DataFetcher.readPages(
+                (afterTime, afterVehicleId) -> readPage(afterTime, afterVehicleId, pageSize),
+                row -> new Date(row.time()),
+                Row::vehicleId,
+                pageSize,
+                consumed::add,
+                "rows");
+        return consumed;
+    }
+
+    @Test
+    void pageBoundaryInsideRunOfSameTimeAndVehicle() {
+        row(1_000, "v1");
+        row(2_000, "v1");
+        // Same time as previous row but other vehicle, and split across the
+        // first and second pages
+        row(2_000, "v2");
+        row(2_000, "v2");
+        row(2_000, "v2");
+        row(3_000, "v1");
+        row(4_000, "v1");
+
+        assertThat(readAll(4)).isEqualTo(rows);
+        assertThat(pagesRead).isEqualTo(3);
+    }
+
+    @Test
+    void lastPageExactlyFull() {
+        row(1_000, "v1");
+        row(1_000, "v2");
+        row(2_000, "v1");
+        row(3_000, "v1");
+
+        // The last row is left for a page of its own
+        assertThat(readAll(4)).isEqualTo(rows);
+        assertThat(pagesRead).isEqualTo(2);
+    }
+
+    @Test
+    void noRows() {
+        assertThat(readAll(4)).isEmpty();
+        assertThat(pagesRead).isEqualTo(1);
+    }
+
+    @Test
+    void runLongerThanPageIsAnError() {
+        row(1_000, "v1");
+        for (int i = 0; i < 4; ++i) row(2_000, "v1");
+
+        // Rows with same time and vehicleId fill the whole page so can't make progress
+        assertThatThrownBy(() -> readAll(3)).hasMessageContaining("transitclock.updates.pageSize");
+    }
+
+    @Test
+    void failedReadIsAnError() {
+        assertThatThrownBy(() -> DataFetcher.<Row>readPages(
+                        (afterTime, afterVehicleId) -> null,
+                        row -> new Date(row.time()),
+                        Row::vehicleId,
+                        4,
+                        row -> {},
+                        "rows"))
+                .hasMessageContaining("Could not read page of rows");
+    }
+}
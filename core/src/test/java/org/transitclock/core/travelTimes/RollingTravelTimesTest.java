@@ -0,0 +1,161 @@
+package org.transitclock.core.travelTimes;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.core.SpatialMatch;
+import org.transitclock.core.TemporalDifference;
+import org.transitclock.core.TemporalMatch;
+import org.transitclock.core.VehicleState;
+import org.transitclock.core.travelTimes.TravelTimesProcessor.MatchPoint;
+import org.transitclock.core.travelTimes.TravelTimesProcessor.ProcessedDataMapKey;
+import org.transitclock.domain.structs.Arrival;
+import org.transitclock.domain.structs.ArrivalDeparture;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.domain.structs.Departure;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.utils.Time;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.domain.structs.TestingConfigFactory.block;
+import static org.transitclock.domain.structs.TestingConfigFactory.stopPath;
+import static org.transitclock.domain.structs.TestingConfigFactory.trip;
+import static org.transitclock.domain.structs.TestingConfigFactory.tripPattern;
+
+class RollingTravelTimesTest {
+
+    // 2023-05-10 00:00 UTC
+    private static final long DAY = 1_683_676_800_000L;
+
+    // The arrivals/departures don't have a block so the tripId and stopId
+    // are empty
+    private static final ProcessedDataMapKey STOP_PATH_2 = new ProcessedDataMapKey("", 2, "");
+
+    private final RollingTravelTimes rollingTravelTimes = new RollingTravelTimes(TimeZone.getTimeZone("UTC"));
+
+    private static ArrivalDeparture departure(String vehicleId, long time, int tripIndex, int stopPathIndex) {
+        return new Departure(0, vehicleId, new Date(time), new Date(time), null, tripIndex, stopPathIndex, null);
+    }
+
+    private static ArrivalDeparture arrival(String vehicleId, long time, int tripIndex, int stopPathIndex) {
+        return new Arrival(0, vehicleId, new Date(time), new Date(time), null, tripIndex, stopPathIndex, null);
+    }
+
+    private void put(ArrivalDeparture arrDep) {
+        rollingTravelTimes.putArrivalDeparture(new VehicleState(arrDep.getVehicleId()), arrDep);
+    }
+
+    private Map<ProcessedDataMapKey, List<Integer>> stopTimes() {
+        Map<ProcessedDataMapKey, List<Integer>> stopTimes = new HashMap<>();
+        rollingTravelTimes.addDataTo(stopTimes, new HashMap<>());
+        return stopTimes;
+    }
+
+    private Map<ProcessedDataMapKey, List<List<Integer>>> travelTimes() {
+        Map<ProcessedDataMapKey, List<List<Integer>>> travelTimes = new HashMap<>();
+        rollingTravelTimes.addDataTo(new HashMap<>(), travelTimes);
+        return travelTimes;
+    }
+
+    /** Departs stop path 1 and arrives at stop path 2 a minute later. */
+    private void putTripAt(String vehicleId, long time) {
+        put(departure(vehicleId, time, 0, 1));
+        put(arrival(vehicleId, time + Time.MS_PER_MIN, 0, 2));
+    }
+
+    @Test
+    void pairsArrivalsDeparturesOfSameTrip() {
+        long time = DAY + 10 * Time.MS_PER_HOUR;
+        put(departure("v1", time, 0, 1));
+        put(arrival("v1", time + 60_000, 0, 2));
+        put(departure("v1", time + 80_000, 0, 2));
+
+        assertThat(travelTimes()).containsExactly(Map.entry(STOP_PATH_2, List.of(List.of(60_000))));
+        assertThat(stopTimes()).containsExactly(Map.entry(STOP_PATH_2, List.of(20_000)));
+        assertThat(rollingTravelTimes.getNumberServiceDays()).isEqualTo(1);
+    }
+
+    @Test
+    void doesNotPairAcrossTripsOrVehicles() {
+        long time = DAY + 10 * Time.MS_PER_HOUR;
+        // Next trip of the block
+        put(departure("v1", time, 0, 1));
+        put(arrival("v1", time + 60_000, 1, 2));
+        // Interleaved with another vehicle
+        put(departure("v2", time, 0, 1));
+        put(departure("v1", time + 70_000, 0, 1));
+        put(arrival("v2", time + 80_000, 0, 2));
+
+        assertThat(travelTimes()).containsExactly(Map.entry(STOP_PATH_2, List.of(List.of(80_000))));
+        assertThat(stopTimes()).isEmpty();
+    }
+
+    @Test
+    void doesNotPairOutOfOrder() {
+        long time = DAY + 10 * Time.MS_PER_HOUR;
+        put(departure("v1", time, 0, 1));
+        put(arrival("v1", time - 60_000, 0, 2));
+
+        assertThat(RollingTravelTimes.sameTrip(departure("v1", time, 0, 2), arrival("v1", time + 1, 0, 1)))
+                .isFalse();
+        assertThat(travelTimes()).isEmpty();
+        assertThat(rollingTravelTimes.getNumberServiceDays()).isZero();
+    }
+
+    @Test
+    void removesServiceDaysOutsideWindow() {
+        putTripAt("v1", DAY + 10 * Time.MS_PER_HOUR);
+        putTripAt("v1", DAY + Time.MS_PER_DAY + 10 * Time.MS_PER_HOUR);
+        // Before 3am so still part of the previous service day
+        putTripAt("v1", DAY + 2 * Time.MS_PER_DAY + 2 * Time.MS_PER_HOUR);
+        putTripAt("v1", DAY + 2 * Time.MS_PER_DAY + 10 * Time.MS_PER_HOUR);
+        assertThat(rollingTravelTimes.getNumberServiceDays()).isEqualTo(3);
+
+        long now = DAY + 2 * Time.MS_PER_DAY + 12 * Time.MS_PER_HOUR;
+        rollingTravelTimes.removeOldServiceDays(now, 2);
+        assertThat(rollingTravelTimes.getNumberServiceDays()).isEqualTo(2);
+        assertThat(travelTimes().get(STOP_PATH_2)).hasSize(3);
+
+        rollingTravelTimes.removeOldServiceDays(now, 1);
+        assertThat(rollingTravelTimes.getNumberServiceDays()).isEqualTo(1);
+        assertThat(travelTimes().get(STOP_PATH_2)).hasSize(1);
+    }
+
+    @Test
+    void matchPointsAreThoseOnStopPathBetweenDepartureAndArrival() {
+        Trip trip = trip("t1", "r1");
+        tripPattern(
+                "tp1",
+                trip,
+                stopPath("r1", "s0", null, new Location(44.0, 26.0), new Location(44.0, 26.001)),
+                stopPath("r1", "s1", null, new Location(44.0, 26.001), new Location(44.0, 26.01)));
+        Block block = block("b1", trip);
+
+        ArrivalDeparture departure = departure("v1", 1_000, 0, 0);
+        ArrivalDeparture arrival = arrival("v1", 2_000, 0, 1);
+
+        // Match history is most recent first
+        List<TemporalMatch> matches = List.of(
+                match(block, 2_100, 1, 700),
+                match(block, 1_900, 1, 600),
+                match(block, 1_500, 0, 50),
+                match(block, 1_200, 1, 100),
+                match(block, 1_000, 1, 10),
+                match(block, 900, 1, 20));
+
+        List<MatchPoint> matchPoints = RollingTravelTimes.getMatchPoints(matches, departure, arrival);
+
+        assertThat(matchPoints).extracting(MatchPoint::getTime).containsExactly(1_200L, 1_900L);
+        assertThat(matchPoints).extracting(MatchPoint::getDistanceAlongStopPath).containsExactly(100f, 600f);
+    }
+
+    private static TemporalMatch match(Block block, long avlTime, int stopPathIndex, double distanceAlongSegment) {
+        SpatialMatch spatialMatch = new SpatialMatch(avlTime, block, 0, stopPathIndex, 0, 0.0, distanceAlongSegment);
+        return new TemporalMatch(spatialMatch, new TemporalDifference(0));
+    }
+}
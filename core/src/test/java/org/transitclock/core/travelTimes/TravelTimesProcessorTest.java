@@ -0,0 +1,119 @@
+package org.transitclock.core.travelTimes;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.utils.Time;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TravelTimesProcessorTest {
+
+    /**
+     * Splits the time span into service days and checks that the days start at the expected
+     * times, that they cover the time span, and that each is a single day for the keys of
+     * DataFetcher.
+     */
+    private static void assertServiceDays(String zone, String begin, String end, String... dayStarts) {
+        TimeZone timezone = TimeZone.getTimeZone(zone);
+        Date beginTime = Date.from(Instant.parse(begin));
+        Date endTime = Date.from(Instant.parse(end));
+
+        List<Date[]> serviceDays = TravelTimesProcessor.serviceDays(beginTime, endTime, timezone);
+
+        List<Date> boundaries = new ArrayList<>();
+        boundaries.add(beginTime);
+        for (String dayStart : dayStarts) boundaries.add(Date.from(Instant.parse(dayStart)));
+        boundaries.add(endTime);
+
+        assertThat(serviceDays).hasSize(boundaries.size() - 1);
+        for (int i = 0; i < serviceDays.size(); ++i) {
+            Date[] serviceDay = serviceDays.get(i);
+            assertThat(serviceDay[0]).isEqualTo(boundaries.get(i));
+            assertThat(serviceDay[1]).isEqualTo(boundaries.get(i + 1));
+            assertThat(dataFetcherDay(serviceDay[0], timezone))
+                    .isEqualTo(dataFetcherDay(new Date(serviceDay[1].getTime() - 1), timezone));
+        }
+    }
+
+    /** Same as DataFetcher: the date three hours earlier. */
+    private static String dataFetcherDay(Date date, TimeZone timezone) {
+        ZoneId zone = timezone.toZoneId();
+        return Instant.ofEpochMilli(date.getTime() - 3 * Time.MS_PER_HOUR)
+                .atZone(zone)
+                .toLocalDate()
+                .toString();
+    }
+
+    @Test
+    void ordinaryDaysStartAt3am() {
+        // 3am EEST is midnight UTC
+        assertServiceDays(
+                "Europe/Bucharest",
+                "2023-05-10T10:00:00Z",
+                "2023-05-12T10:00:00Z",
+                "2023-05-11T00:00:00Z",
+                "2023-05-12T00:00:00Z");
+    }
+
+    @Test
+    void beginBefore3amIsInPreviousServiceDay() {
+        // 2:30am EST. The previous service day ends at 3am EST
+        assertServiceDays(
+                "America/New_York",
+                "2023-02-10T07:30:00Z",
+                "2023-02-11T12:00:00Z",
+                "2023-02-10T08:00:00Z",
+                "2023-02-11T08:00:00Z");
+    }
+
+    @Test
+    void daylightSavingsTimeStarts() {
+        // Clocks go from 2am EST to 3am EDT on 2023-03-12 so that service day
+        // starts at 4am EDT and is 23 hours long. The next starts at 3am EDT.
+        assertServiceDays(
+                "America/New_York",
+                "2023-03-11T12:00:00Z",
+                "2023-03-14T12:00:00Z",
+                "2023-03-12T08:00:00Z",
+                "2023-03-13T07:00:00Z",
+                "2023-03-14T07:00:00Z");
+    }
+
+    @Test
+    void daylightSavingsTimeEnds() {
+        // Clocks go from 2am EDT back to 1am EST on 2023-11-05 so that service
+        // day starts at 2am EST and is 25 hours long
+        assertServiceDays(
+                "America/New_York",
+                "2023-11-04T12:00:00Z",
+                "2023-11-06T12:00:00Z",
+                "2023-11-05T07:00:00Z",
+                "2023-11-06T08:00:00Z");
+    }
+
+    @Test
+    void daylightSavingsTimeStartsAt3am() {
+        // Clocks go from 3am EET to 4am EEST on 2023-03-26 so there is no 3am.
+        // That service day starts at 4am EEST but the following ones at 3am EEST.
+        assertServiceDays(
+                "Europe/Bucharest",
+                "2023-03-25T10:00:00Z",
+                "2023-03-28T10:00:00Z",
+                "2023-03-26T01:00:00Z",
+                "2023-03-27T00:00:00Z",
+                "2023-03-28T00:00:00Z");
+    }
+
+    @Test
+    void emptyTimeSpan() {
+        Date time = Date.from(Instant.parse("2023-05-10T10:00:00Z"));
+        assertThat(TravelTimesProcessor.serviceDays(time, time, TimeZone.getTimeZone("UTC")))
+                .isEmpty();
+    }
+}
@@ -0,0 +1,109 @@
+package org.transitclock.domain.hibernate;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DbQueueSpillFileTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    public void replaysInOrder() throws Exception {
+        DbQueueSpillFile<String> spillFile = new DbQueueSpillFile<>(directory, "test");
+
+        // Nothing spilled yet so not forced means not spilled
+        assertFalse(spillFile.appendIfSpilling("a", false));
+        assertTrue(spillFile.appendIfSpilling("b", true));
+        // Once spilling everything is spilled to keep order
+        assertTrue(spillFile.appendIfSpilling("c", false));
+        assertTrue(spillFile.hasData());
+
+        Queue<String> queue = new ArrayDeque<>();
+        assertEquals(1, spillFile.replayInto(queue, 1));
+        assertEquals(1, spillFile.replayInto(queue, 10));
+        assertEquals(List.of("b", "c"), List.copyOf(queue));
+        assertFalse(spillFile.hasData());
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        DbQueueSpillFile<String> spillFile = new DbQueueSpillFile<>(directory, "test");
+        spillFile.appendIfSpilling("a", true);
+        spillFile.appendIfSpilling("b", true);
+        spillFile.appendIfSpilling("c", true);
+        spillFile.replayInto(new ArrayDeque<>(), 1);
+
+        // New instance, as after a restart, continues where left off
+        DbQueueSpillFile<String> restarted = new DbQueueSpillFile<>(directory, "test");
+        assertTrue(restarted.hasData());
+        Queue<String> queue = new ArrayDeque<>();
+        restarted.replayInto(queue, 10);
+        assertEquals(List.of("b", "c"), List.copyOf(queue));
+    }
+
+    @Test
+    public void dropsRecordTruncatedByCrash() throws Exception {
+        DbQueueSpillFile<String> spillFile = new DbQueueSpillFile<>(directory, "test");
+        spillFile.appendIfSpilling("a", true);
+        spillFile.appendIfSpilling("b", true);
+        spillFile.appendIfSpilling("c", true);
+
+        // As if the process died part way through appending "c"
+        Path segment = segment();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        DbQueueSpillFile<String> restarted = new DbQueueSpillFile<>(directory, "test");
+        Queue<String> queue = new ArrayDeque<>();
+        assertEquals(2, restarted.replayInto(queue, 10));
+        assertEquals(List.of("a", "b"), List.copyOf(queue));
+        assertFalse(restarted.hasData());
+        assertFalse(Files.exists(segment));
+
+        // Spilling works again afterwards
+        assertTrue(restarted.appendIfSpilling("d", true));
+        restarted.replayInto(queue, 10);
+        assertEquals(List.of("a", "b", "d"), List.copyOf(queue));
+    }
+
+    @Test
+    public void stopsAtCorruptedRecord() throws Exception {
+        DbQueueSpillFile<String> spillFile = new DbQueueSpillFile<>(directory, "test");
+        spillFile.appendIfSpilling("a", true);
+        spillFile.appendIfSpilling("b", true);
+        spillFile.appendIfSpilling("c", true);
+
+        // Flip the last byte of "b" so that its CRC doesn't match
+        Path segment = segment();
+        byte[] bytes = Files.readAllBytes(segment);
+        int recordLength = bytes.length / 3;
+        bytes[2 * recordLength - 1] ^= 0x7f;
+        Files.write(segment, bytes);
+
+        DbQueueSpillFile<String> restarted = new DbQueueSpillFile<>(directory, "test");
+        Queue<String> queue = new ArrayDeque<>();
+        assertEquals(1, restarted.replayInto(queue, 10));
+        assertEquals(List.of("a"), List.copyOf(queue));
+        assertFalse(restarted.hasData());
+    }
+
+    private Path segment() throws Exception {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).findFirst().orElseThrow();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.transitclock.domain.structs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Samples locations around points, for tests of the spatial indexes that check that no location
+ * within the max distance of a point is ruled out by the index.
+ */
+public class LocationSamples {
+    public static final int NUMBER_RANDOM_SAMPLES = 2_000;
+
+    /** The location the distances north and east of the location, in meters. */
+    public static Location offset(Location location, double north, double east) {
+        double lat = location.getLat() + north / 111_111.0;
+        double lon = location.getLon() + east / (111_111.0 * Math.cos(Math.toRadians(location.getLat())));
+        return new Location(lat, lon);
+    }
+
+    /**
+     * Returns NUMBER_RANDOM_SAMPLES locations each moved randomly by up to 1.5 times the max
+     * distance in both directions from a point, followed by locations just within the max distance
+     * of each of the ring centers every 15 degrees, where an expanded bounding box is tightest. The
+     * samples are the same every time.
+     *
+     * @param randomPoint Returns a point to move randomly from, such as a random point along a
+     *     segment. Can use the Random it is given.
+     * @param ringCenters The points to put the rings of locations around
+     * @param maxDistance The max distance of the index, in meters
+     * @return the sampled locations
+     */
+    public static List<Location> sample(
+            Function<Random, Location> randomPoint, List<Location> ringCenters, double maxDistance) {
+        Random random = new Random(42);
+        List<Location> locations = new ArrayList<>();
+        for (int i = 0; i < NUMBER_RANDOM_SAMPLES; ++i) {
+            Location point = randomPoint.apply(random);
+            locations.add(offset(
+                    point,
+                    (random.nextDouble() * 2 - 1) * 1.5 * maxDistance,
+                    (random.nextDouble() * 2 - 1) * 1.5 * maxDistance));
+        }
+        for (Location center : ringCenters) {
+            for (int degrees = 0; degrees < 360; degrees += 15) {
+                double angle = Math.toRadians(degrees);
+                locations.add(offset(
+                        center, 0.99 * maxDistance * Math.cos(angle), 0.99 * maxDistance * Math.sin(angle)));
+            }
+        }
+        return locations;
+    }
+
+    /** Same as sample() but the locations are all around the one point. */
+    public static List<Location> sampleAround(Location point, double maxDistance) {
+        return sample(random -> point, List.of(point), maxDistance);
+    }
+}
@@ -0,0 +1,62 @@
+package org.transitclock.domain.structs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.transitclock.gtfs.TitleFormatter;
+import org.transitclock.gtfs.model.GtfsRoute;
+import org.transitclock.gtfs.model.GtfsStop;
+import org.transitclock.gtfs.model.GtfsTrip;
+
+/**
+ * Creates config objects in memory, without GTFS data or a db, for tests that need real stop paths,
+ * trip patterns, trips and blocks.
+ */
+public class TestingConfigFactory {
+    public static final int CONFIG_REV = 0;
+
+    private static final TitleFormatter TITLE_FORMATTER = new TitleFormatter(null, false);
+
+    /**
+     * Creates a stop path through the locations, the last one being the location of the stop.
+     * The segment vectors are created the same as when the stop path is read from the db.
+     */
+    public static StopPath stopPath(String routeId, String stopId, Double maxDistance, Location... locations) {
+        StopPath stopPath = new StopPath(
+                CONFIG_REV, stopId, stopId, 0, false, routeId, false, false, false, null, maxDistance, null, null);
+        stopPath.setLocations(new ArrayList<>(Arrays.asList(locations)));
+        stopPath.onLoad(null, null);
+        return stopPath;
+    }
+
+    public static Stop stop(String stopId, Location location) {
+        GtfsStop gtfsStop = new GtfsStop(stopId, null, stopId, location.getLat(), location.getLon());
+        return new Stop(CONFIG_REV, gtfsStop, null, TITLE_FORMATTER);
+    }
+
+    public static Trip trip(String tripId, String routeId) {
+        GtfsTrip gtfsTrip = new GtfsTrip(routeId, "service", tripId, "headsign", null, "0", "block", "shape");
+        return new Trip(CONFIG_REV, gtfsTrip, routeId, routeId, "headsign", TITLE_FORMATTER);
+    }
+
+    /** Creates a trip pattern for the stop paths and sets it for the trip. */
+    public static TripPattern tripPattern(String tripPatternId, Trip trip, StopPath... stopPaths) {
+        TripPattern tripPattern = new TripPattern(CONFIG_REV, tripPatternId, List.of(stopPaths), trip);
+        trip.setTripPattern(tripPattern);
+        return tripPattern;
+    }
+
+    /** Creates a route with the same short name as the route ID, as the trips created here have. */
+    public static Route route(String routeId, TripPattern... tripPatterns) {
+        GtfsRoute gtfsRoute = new GtfsRoute(routeId, null, routeId, "Route " + routeId, "3", null, null);
+        Route route = new Route(CONFIG_REV, gtfsRoute, new ArrayList<>(Arrays.asList(tripPatterns)), TITLE_FORMATTER);
+        // Same as Route.getRoutes() does for routes without a route_order
+        route.setRouteOrder(1000);
+        return route;
+    }
+
+    public static Block block(String blockId, Trip... trips) {
+        return new Block(CONFIG_REV, blockId, "service", 0, 24 * 60 * 60, new ArrayList<>(Arrays.asList(trips)));
+    }
+}
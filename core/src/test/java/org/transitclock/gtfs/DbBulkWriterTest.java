@@ -0,0 +1,118 @@
+package org.transitclock.gtfs;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hibernate.Session;
+import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistry;
+import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
+import org.hibernate.cfg.AvailableSettings;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.jdbc.Work;
+import org.hibernate.mapping.Column;
+import org.hibernate.mapping.Table;
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.hibernate.AnnotatedClassesList;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DbBulkWriterTest {
+    private static final Pattern INSERT = Pattern.compile("INSERT INTO (\\w+) \\(([^)]*)\\) VALUES \\(.*\\)");
+
+    @FunctionalInterface
+    private interface Handler {
+        Object handle(Object[] args) throws Exception;
+    }
+
+    /** Implements the method with the handler, close() as doing nothing and everything else as unsupported. */
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, String methodName, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            if (method.getName().equals(methodName)) return handler.handle(args);
+            if (method.getName().equals("close")) return null;
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    /**
+     * The SQL of the statements the writer prepares. Runs it with a session and connection that
+     * only record the SQL. Nothing is written, but a statement is prepared for every table.
+     */
+    private static List<String> preparedStatements() {
+        List<String> statements = new ArrayList<>();
+        PreparedStatement statement = proxy(PreparedStatement.class, "executeBatch", args -> new int[0]);
+        Connection connection = proxy(Connection.class, "prepareStatement", args -> {
+            statements.add((String) args[0]);
+            return statement;
+        });
+        Session session = proxy(Session.class, "doWork", args -> {
+            ((Work) args[0]).execute(connection);
+            return null;
+        });
+
+        new DbBulkWriter(session, 100).write(List.of());
+        return statements;
+    }
+
+    /**
+     * The columns of each table as mapped by Hibernate, in lower case. The metamodel is built with
+     * the Postgres dialect without connecting to a db.
+     */
+    private static Map<String, Set<String>> mappedColumnsByTable() {
+        StandardServiceRegistry registry = new StandardServiceRegistryBuilder()
+                .applySetting(AvailableSettings.DIALECT, PostgreSQLDialect.class.getName())
+                .applySetting("hibernate.temp.use_jdbc_metadata_defaults", false)
+                .build();
+        try {
+            MetadataSources sources = new MetadataSources(registry);
+            AnnotatedClassesList.addAnnotatedClasses(new Configuration(sources));
+
+            Map<String, Set<String>> columnsByTable = new HashMap<>();
+            for (Table table : sources.buildMetadata().collectTableMappings()) {
+                Set<String> columns = new HashSet<>();
+                for (Column column : table.getColumns()) columns.add(column.getName().toLowerCase(Locale.ROOT));
+                columnsByTable.put(table.getName().toLowerCase(Locale.ROOT), columns);
+            }
+            return columnsByTable;
+        } finally {
+            StandardServiceRegistryBuilder.destroy(registry);
+        }
+    }
+
+    @Test
+    void insertsAllMappedColumnsOfEachTable() {
+        Map<String, Set<String>> mappedColumnsByTable = mappedColumnsByTable();
+        List<String> statements = preparedStatements();
+
+        // Trips, trip patterns, stop paths, blocks and travel times, and the
+        // collection tables of their lists
+        assertThat(statements).hasSize(11);
+        for (String statement : statements) {
+            Matcher matcher = INSERT.matcher(statement);
+            assertThat(matcher.matches()).as(statement).isTrue();
+            String table = matcher.group(1).toLowerCase(Locale.ROOT);
+            List<String> columns = Arrays.stream(matcher.group(2).split(", "))
+                    .map(column -> column.toLowerCase(Locale.ROOT))
+                    .toList();
+
+            assertThat(mappedColumnsByTable).as("mapped tables").containsKey(table);
+            assertThat(columns)
+                    .as("columns inserted into %s", table)
+                    .doesNotHaveDuplicates()
+                    .containsExactlyInAnyOrderElementsOf(mappedColumnsByTable.get(table));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.transitclock.gtfs;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hibernate.Hibernate;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.transitclock.domain.structs.Block;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.Stop;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.TravelTimesForStopPath;
+import org.transitclock.domain.structs.TravelTimesForStopPath.HowSet;
+import org.transitclock.domain.structs.TravelTimesForTrip;
+import org.transitclock.domain.structs.Trip;
+import org.transitclock.domain.structs.TripPattern;
+import org.transitclock.utils.SnapshotFile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.domain.structs.TestingConfigFactory.CONFIG_REV;
+import static org.transitclock.domain.structs.TestingConfigFactory.block;
+import static org.transitclock.domain.structs.TestingConfigFactory.route;
+import static org.transitclock.domain.structs.TestingConfigFactory.stop;
+import static org.transitclock.domain.structs.TestingConfigFactory.stopPath;
+import static org.transitclock.domain.structs.TestingConfigFactory.trip;
+import static org.transitclock.domain.structs.TestingConfigFactory.tripPattern;
+
+/**
+ * Checks that a materialized config needs no lazy loading. Without a db the config is read the way
+ * a materialized config is read back from its snapshot file at the next startup.
+ */
+class DbConfigMaterializedTest {
+    private static final String ROUTE_ID = "route";
+    private static final int TRAVEL_TIMES_REV = 0;
+    private static final int NUMBER_STOPS = 3;
+
+    private static TravelTimesForTrip travelTimes(Trip trip) {
+        TravelTimesForTrip travelTimes = new TravelTimesForTrip(CONFIG_REV, TRAVEL_TIMES_REV, trip);
+        for (StopPath stopPath : trip.getTripPattern().getStopPaths()) {
+            travelTimes.add(new TravelTimesForStopPath(
+                    CONFIG_REV,
+                    TRAVEL_TIMES_REV,
+                    stopPath.getId(),
+                    stopPath.length(),
+                    List.of(60_000),
+                    20_000,
+                    -1,
+                    HowSet.SCHED,
+                    trip));
+        }
+        return travelTimes;
+    }
+
+    /** A block of two trips that share a trip pattern, as they are read by readBlocksAndTrips(). */
+    private static ConfigSnapshot materializedConfig() {
+        List<Stop> stops = new ArrayList<>();
+        List<StopPath> stopPaths = new ArrayList<>();
+        Location previousLocation = null;
+        for (int i = 0; i < NUMBER_STOPS; ++i) {
+            Location location = new Location(44.43 + i * 0.005, 26.10);
+            stops.add(stop("stop" + i, location));
+            stopPaths.add(stopPath(
+                    ROUTE_ID, "stop" + i, null, previousLocation != null ? previousLocation : location, location));
+            previousLocation = location;
+        }
+
+        Trip trip1 = trip("trip1", ROUTE_ID);
+        Trip trip2 = trip("trip2", ROUTE_ID);
+        TripPattern tripPattern = tripPattern("tripPattern", trip1, stopPaths.toArray(StopPath[]::new));
+        tripPattern.addTrip(trip2);
+        trip2.setTripPattern(tripPattern);
+        trip1.setTravelTimes(travelTimes(trip1));
+        trip2.setTravelTimes(travelTimes(trip2));
+
+        return new ConfigSnapshot(
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(),
+                List.of(route(ROUTE_ID, tripPattern)),
+                stops,
+                List.of(tripPattern),
+                List.of(trip1, trip2),
+                List.of(block("block", trip1, trip2)));
+    }
+
+    @Test
+    void everythingTheBlocksReferToIsInitialized(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("config.snapshot");
+        SnapshotFile.write(file, CONFIG_REV, TRAVEL_TIMES_REV, materializedConfig());
+        ConfigSnapshot snapshot = SnapshotFile.read(file, CONFIG_REV, TRAVEL_TIMES_REV, ConfigSnapshot.class);
+        DbConfig dbConfig = new DbConfig("testing", CONFIG_REV, TRAVEL_TIMES_REV, snapshot);
+
+        assertThat(dbConfig.getBlocks()).hasSize(1);
+        // Only returns the trips if they were read in
+        List<Trip> trips = dbConfig.getBlocks().get(0).getTripsIfLoaded();
+        assertThat(trips).extracting(Trip::getId).containsExactly("trip1", "trip2");
+        for (Trip trip : trips) {
+            // Looking up the trip doesn't read it in again
+            assertThat(dbConfig.getTrip(trip.getId())).isSameAs(trip);
+
+            assertThat(Hibernate.isInitialized(trip.getTripPattern())).isTrue();
+            List<StopPath> stopPaths = trip.getTripPattern().getStopPaths();
+            assertThat(Hibernate.isInitialized(stopPaths)).isTrue();
+            assertThat(stopPaths).hasSize(NUMBER_STOPS);
+            for (StopPath stopPath : stopPaths) {
+                assertThat(Hibernate.isInitialized(stopPath.getLocations())).isTrue();
+                assertThat(stopPath.getLocations()).hasSize(2);
+                assertThat(stopPath.getSegmentVectors()).hasSize(1);
+            }
+
+            TravelTimesForTrip travelTimes = trip.getTravelTimes();
+            assertThat(Hibernate.isInitialized(travelTimes)).isTrue();
+            assertThat(Hibernate.isInitialized(travelTimes.getTravelTimesForStopPaths())).isTrue();
+            assertThat(travelTimes.getTravelTimesForStopPaths()).hasSize(NUMBER_STOPS);
+        }
+
+        // The trip pattern is still shared by the trips and is the one of the route
+        Block block = dbConfig.getBlocks().get(0);
+        assertThat(block.getTrip(1).getTripPattern()).isSameAs(block.getTrip(0).getTripPattern());
+        assertThat(dbConfig.getTripPatternsForRoute(ROUTE_ID)).containsExactly(block.getTrip(0).getTripPattern());
+    }
+}
@@ -0,0 +1,135 @@
+package org.transitclock.gtfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.domain.structs.Location;
+import org.transitclock.domain.structs.StopPath;
+import org.transitclock.domain.structs.TripPattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.transitclock.domain.structs.LocationSamples.NUMBER_RANDOM_SAMPLES;
+import static org.transitclock.domain.structs.LocationSamples.sampleAround;
+import static org.transitclock.domain.structs.TestingConfigFactory.stopPath;
+import static org.transitclock.domain.structs.TestingConfigFactory.trip;
+import static org.transitclock.domain.structs.TestingConfigFactory.tripPattern;
+
+class StopGridIndexTest {
+    /** Trip pattern for the route with a stop path to each of the stops. */
+    private static TripPattern tripPatternThroughStops(String routeId, Location... stops) {
+        List<StopPath> stopPaths = new ArrayList<>();
+        Location previous = stops[0];
+        for (Location stop : stops) {
+            stopPaths.add(stopPath(routeId, routeId + "-s" + stopPaths.size(), null, previous, stop));
+            previous = stop;
+        }
+        return tripPattern(routeId + "-tp", trip(routeId + "-t", routeId), stopPaths.toArray(new StopPath[0]));
+    }
+
+    private static boolean hasStopWithin(TripPattern tripPattern, Location location, double maxDistance) {
+        for (StopPath stopPath : tripPattern.getStopPaths()) {
+            if (stopPath.getStopLocation().distance(location) <= maxDistance) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Samples locations around every stop, both randomly and at just under the max distance from
+     * the stop, and checks that the index doesn't rule out any trip pattern with a stop within the
+     * max distance as StopsByLocation measures it. A null result means all trip patterns are looked
+     * at so rules out none.
+     */
+    private static void assertNeverRulesOut(StopGridIndex index, List<TripPattern> tripPatterns, double maxDistance) {
+        List<Location> locations = new ArrayList<>();
+        for (TripPattern tripPattern : tripPatterns) {
+            for (StopPath stopPath : tripPattern.getStopPaths()) {
+                locations.addAll(sampleAround(stopPath.getStopLocation(), maxDistance));
+            }
+        }
+
+        int withinRange = 0;
+        for (Location location : locations) {
+            Set<String> tripPatternIds = index.getTripPatternIdsNear(location, maxDistance);
+            for (TripPattern tripPattern : tripPatterns) {
+                if (!hasStopWithin(tripPattern, location, maxDistance)) continue;
+                ++withinRange;
+                if (tripPatternIds != null) {
+                    assertThat(tripPatternIds)
+                            .as("%s within %.0fm of a stop of %s", location, maxDistance, tripPattern.getId())
+                            .contains(tripPattern.getId());
+                }
+            }
+        }
+
+        // So that the test isn't passing because there was nothing to check
+        assertThat(withinRange).isGreaterThan(NUMBER_RANDOM_SAMPLES / 2);
+    }
+
+    @Test
+    void stopsOnCellEdgesAndCorners() {
+        // Cells are 0.002 degrees so all the stops are exactly on cell
+        // edges, and the ones with both coordinates a multiple of 0.002 on
+        // corners
+        TripPattern tripPattern = tripPatternThroughStops(
+                "r1",
+                new Location(44.430, 26.100),
+                new Location(44.432, 26.100),
+                new Location(44.432, 26.1035),
+                new Location(44.4335, 26.104));
+        StopGridIndex index = new StopGridIndex(List.of(tripPattern));
+
+        assertNeverRulesOut(index, List.of(tripPattern), 50.0);
+        assertNeverRulesOut(index, List.of(tripPattern), 300.0);
+        assertThat(index.getTripPatternIdsNear(new Location(44.420, 26.100), 50.0))
+                .isEmpty();
+    }
+
+    @Test
+    void stopsAtHighLatitude() {
+        // Near Longyearbyen, where a degree of longitude is only about 23km
+        // so a query covers several times more degrees of longitude than of
+        // latitude
+        TripPattern tripPattern = tripPatternThroughStops(
+                "r1",
+                new Location(78.2230, 15.6000),
+                new Location(78.2230, 15.6200),
+                new Location(78.2290, 15.6400),
+                new Location(78.2350, 15.6450));
+        StopGridIndex index = new StopGridIndex(List.of(tripPattern));
+
+        assertNeverRulesOut(index, List.of(tripPattern), 100.0);
+        assertNeverRulesOut(index, List.of(tripPattern), 500.0);
+        assertThat(index.getTripPatternIdsNear(new Location(78.2230, 15.5500), 100.0))
+                .isEmpty();
+    }
+
+    @Test
+    void maxDistancesOfQueries() {
+        // The max distance is per query so check small and large ones with
+        // trip patterns of several routes
+        TripPattern tripPattern1 = tripPatternThroughStops(
+                "r1", new Location(44.4321, 26.1013), new Location(44.4366, 26.1120), new Location(44.4402, 26.1131));
+        TripPattern tripPattern2 = tripPatternThroughStops(
+                "r2", new Location(44.4390, 26.0950), new Location(44.4372, 26.1105), new Location(44.4290, 26.1210));
+        List<TripPattern> tripPatterns = List.of(tripPattern1, tripPattern2);
+        StopGridIndex index = new StopGridIndex(tripPatterns);
+
+        for (double maxDistance : new double[] {10.0, 150.0, 1_500.0}) {
+            assertNeverRulesOut(index, tripPatterns, maxDistance);
+        }
+        assertThat(index.getTripPatternIdsNear(new Location(44.4402, 26.1131), 10.0))
+                .containsExactly("r1-tp");
+    }
+
+    @Test
+    void hugeMaxDistanceLooksAtAllTripPatterns() {
+        TripPattern tripPattern =
+                tripPatternThroughStops("r1", new Location(44.4321, 26.1013), new Location(44.4366, 26.1120));
+        StopGridIndex index = new StopGridIndex(List.of(tripPattern));
+
+        assertThat(index.getTripPatternIdsNear(new Location(44.4321, 26.1013), 100_000.0))
+                .isNull();
+    }
+}
@@ -0,0 +1,86 @@
+package org.transitclock.gtfs.readers;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.transitclock.core.dataCache.memory.StringTable;
+import org.transitclock.gtfs.model.GtfsStopTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class GtfsStopTimesColumnarReaderTest {
+
+    private static void writeStopTimes(Path directory) throws Exception {
+        StringBuilder sb = new StringBuilder("\uFEFFtrip_id,arrival_time,departure_time,stop_id,stop_sequence,stop_headsign,timepoint\n");
+        for (int trip = 0; trip < 50; ++trip) {
+            for (int stop = 0; stop < 20; ++stop) {
+                String time = String.format("%02d:%02d:00", 6 + trip / 10, stop * 2);
+                // Quoted headsigns with commas and newlines must not be
+                // split across chunks
+                String headsign = stop % 7 == 0 ? "\"To \"\"A\"\",\nvia B\"" : "";
+                sb.append("trip").append(trip).append(',')
+                        .append(time).append(',')
+                        .append(stop % 5 == 0 ? time : "").append(',')
+                        .append("stop").append(stop).append(',')
+                        .append(stop + 1).append(',')
+                        .append(headsign).append(',')
+                        .append(stop % 3 == 0 ? "1" : "").append('\n');
+            }
+            if (trip % 10 == 0) sb.append("-- comment with a \" quote\n");
+        }
+        Files.writeString(directory.resolve("stop_times.txt"), sb.toString(), StandardCharsets.UTF_8);
+    }
+
+    private static void assertSame(GtfsStopTime actual, GtfsStopTime expected) {
+        assertThat(actual.getTripId()).isEqualTo(expected.getTripId());
+        assertThat(actual.getStopId()).isEqualTo(expected.getStopId());
+        assertThat(actual.getStopSequence()).isEqualTo(expected.getStopSequence());
+        assertThat(actual.getArrivalTimeSecs()).isEqualTo(expected.getArrivalTimeSecs());
+        assertThat(actual.getDepartureTimeSecs()).isEqualTo(expected.getDepartureTimeSecs());
+        assertThat(actual.getStopHeadsign()).isEqualTo(expected.getStopHeadsign());
+        assertThat(actual.getTimepointStop()).isEqualTo(expected.getTimepointStop());
+        assertThat(actual.getShapeDistTraveled()).isEqualTo(expected.getShapeDistTraveled());
+        assertThat(actual.getLineNumber()).isEqualTo(expected.getLineNumber());
+    }
+
+    @Test
+    void sameAsLineByLineReader(@TempDir Path directory) throws Exception {
+        writeStopTimes(directory);
+        List<GtfsStopTime> expected = new GtfsStopTimesReader(directory.toString()).get();
+
+        // Small chunks so that the file is split many times
+        List<GtfsStopTime> actual =
+                new GtfsStopTimesColumnarReader(directory.toString(), new StringTable(), 4, 512).get();
+
+        assertThat(actual).hasSize(expected.size()).hasSize(1000);
+        for (int i = 0; i < expected.size(); ++i) assertSame(actual.get(i), expected.get(i));
+    }
+
+    @Test
+    void groupsByTripInFileOrder(@TempDir Path directory) throws Exception {
+        writeStopTimes(directory);
+        StringTable strings = new StringTable();
+
+        Map<String, List<GtfsStopTime>> byTrip =
+                new GtfsStopTimesColumnarReader(directory.toString(), strings, 3, 700).getByTrip();
+
+        assertThat(byTrip).hasSize(50);
+        List<GtfsStopTime> stopTimes = byTrip.get("trip17");
+        assertThat(stopTimes).extracting(GtfsStopTime::getStopSequence)
+                .containsExactly(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20);
+        // IDs are shared instead of a copy per stop time
+        assertThat(stopTimes.get(0).getTripId()).isSameAs(stopTimes.get(19).getTripId());
+        assertThat(stopTimes.get(3).getStopId()).isSameAs(byTrip.get("trip2").get(3).getStopId());
+    }
+
+    @Test
+    void missingFileIsEmpty(@TempDir Path directory) {
+        assertThat(new GtfsStopTimesColumnarReader(directory.toString(), new StringTable(), 2).get())
+                .isEmpty();
+    }
+}
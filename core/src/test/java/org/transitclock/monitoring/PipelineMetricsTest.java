@@ -0,0 +1,78 @@
+package org.transitclock.monitoring;
+
+import org.junit.jupiter.api.Test;
+import org.transitclock.monitoring.PipelineMetrics.Stage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PipelineMetricsTest {
+    private final PipelineMetrics metrics = new PipelineMetrics();
+
+    @Test
+    void stageDoneSeveralTimesIsRecordedOncePerReport() {
+        long startNanos = System.nanoTime();
+        metrics.reportStarted();
+        // Such as spatial matching to three blocks
+        for (int i = 0; i < 3; ++i) metrics.addSince(Stage.SPATIAL_MATCH, System.nanoTime() - 1_000);
+        metrics.addSince(Stage.DB_ENQUEUE, System.nanoTime() - 500);
+        metrics.addSince(Stage.DB_ENQUEUE, System.nanoTime() - 500);
+        metrics.reportProcessed(startNanos);
+
+        assertThat(metrics.getHistogram(Stage.SPATIAL_MATCH).getCount()).isEqualTo(1);
+        assertThat(metrics.getHistogram(Stage.SPATIAL_MATCH).getTotal()).isGreaterThanOrEqualTo(3_000);
+        assertThat(metrics.getHistogram(Stage.DB_ENQUEUE).getCount()).isEqualTo(1);
+        assertThat(metrics.getHistogram(Stage.DB_ENQUEUE).getTotal()).isGreaterThanOrEqualTo(1_000);
+        assertThat(metrics.getHistogram(Stage.TOTAL).getCount()).isEqualTo(1);
+        // Stages not done for the report aren't recorded
+        assertThat(metrics.getHistogram(Stage.TEMPORAL_MATCH).getCount()).isZero();
+        assertThat(metrics.getHistogram(Stage.PREDICTION_GENERATION).getCount()).isZero();
+    }
+
+    @Test
+    void eachReportRecordedSeparately() {
+        for (int report = 0; report < 2; ++report) {
+            long startNanos = System.nanoTime();
+            metrics.reportStarted();
+            metrics.addSince(Stage.CACHE_UPDATE, System.nanoTime() - 1_000_000);
+            metrics.reportProcessed(startNanos);
+        }
+
+        // Each of the reports took about 1 msec, not the second one 2 msec
+        assertThat(metrics.getHistogram(Stage.CACHE_UPDATE).getCount()).isEqualTo(2);
+        assertThat(metrics.getHistogram(Stage.CACHE_UPDATE).getMax()).isLessThan(2_000_000);
+        assertThat(metrics.getHistogram(Stage.TOTAL).getCount()).isEqualTo(2);
+    }
+
+    @Test
+    void stagesDoneOutsideOfReportAreDiscarded() {
+        metrics.addSince(Stage.PREDICTION_GENERATION, System.nanoTime() - 1_000);
+
+        long startNanos = System.nanoTime();
+        metrics.reportStarted();
+        metrics.reportProcessed(startNanos);
+
+        assertThat(metrics.getHistogram(Stage.PREDICTION_GENERATION).getCount()).isZero();
+        assertThat(metrics.getHistogram(Stage.TOTAL).getCount()).isEqualTo(1);
+    }
+
+    @Test
+    void stagesOfOtherThreadsAreSeparate() throws InterruptedException {
+        long startNanos = System.nanoTime();
+        metrics.reportStarted();
+        metrics.addSince(Stage.SPATIAL_MATCH, System.nanoTime() - 1_000);
+
+        Thread other = new Thread(() -> {
+            long otherStartNanos = System.nanoTime();
+            metrics.reportStarted();
+            metrics.addSince(Stage.TEMPORAL_MATCH, System.nanoTime() - 1_000);
+            metrics.reportProcessed(otherStartNanos);
+        });
+        other.start();
+        other.join();
+        metrics.reportProcessed(startNanos);
+
+        assertThat(metrics.getHistogram(Stage.SPATIAL_MATCH).getCount()).isEqualTo(1);
+        assertThat(metrics.getHistogram(Stage.TEMPORAL_MATCH).getCount()).isEqualTo(1);
+        assertThat(metrics.getHistogram(Stage.TOTAL).getCount()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,59 @@
+package org.transitclock.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ConcurrentLongKeyMapTest {
+
+    @Test
+    void putAndGetThroughResizes() {
+        ConcurrentLongKeyMap<String> map = new ConcurrentLongKeyMap<>();
+        for (int i = 0; i < 1_000; ++i) map.put(ConcurrentLongKeyMap.packKey(i, -i), "v" + i);
+        map.put(ConcurrentLongKeyMap.packKey(7, -7), "changed");
+
+        assertThat(map.size()).isEqualTo(1_000);
+        assertThat(map.get(ConcurrentLongKeyMap.packKey(0, 0))).isEqualTo("v0");
+        assertThat(map.get(ConcurrentLongKeyMap.packKey(999, -999))).isEqualTo("v999");
+        assertThat(map.get(ConcurrentLongKeyMap.packKey(7, -7))).isEqualTo("changed");
+        assertThat(map.get(ConcurrentLongKeyMap.packKey(-7, 7))).isNull();
+        assertThat(map.getOrDefault(ConcurrentLongKeyMap.packKey(1_000, 0), "none")).isEqualTo("none");
+        assertThat(map.values()).hasSize(1_000).contains("changed", "v999");
+    }
+
+    @Test
+    void packedKeysAreDistinct() {
+        assertThat(ConcurrentLongKeyMap.packKey(1, 2)).isNotEqualTo(ConcurrentLongKeyMap.packKey(2, 1));
+        assertThat(ConcurrentLongKeyMap.packKey(0, -1)).isNotEqualTo(ConcurrentLongKeyMap.packKey(-1, -1));
+    }
+
+    @Test
+    void computeIfAbsentCreatesValueOnceAcrossThreads() throws InterruptedException {
+        ConcurrentLongKeyMap<AtomicInteger> map = new ConcurrentLongKeyMap<>();
+        AtomicInteger numberCreated = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; ++t) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 5_000; ++i) {
+                    map.computeIfAbsent(i, key -> {
+                                numberCreated.incrementAndGet();
+                                return new AtomicInteger();
+                            })
+                            .incrementAndGet();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        assertThat(numberCreated.get()).isEqualTo(5_000);
+        assertThat(map.size()).isEqualTo(5_000);
+        for (int i = 0; i < 5_000; ++i) assertThat(map.get(i).get()).isEqualTo(4);
+    }
+}
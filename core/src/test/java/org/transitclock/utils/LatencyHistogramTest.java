@@ -0,0 +1,65 @@
+package org.transitclock.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class LatencyHistogramTest {
+
+    @Test
+    void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10_000; ++i) histogram.record(i * 1000L);
+
+        assertThat(histogram.getCount()).isEqualTo(10_000);
+        assertThat(histogram.getMax()).isEqualTo(10_000_000L);
+        assertThat(histogram.getMean()).isCloseTo(5_000_500.0, within(0.1));
+
+        // Within the precision of the buckets
+        assertThat((double) histogram.getValueAtPercentile(50)).isCloseTo(5_000_000, within(5_000_000 * 0.07));
+        assertThat((double) histogram.getValueAtPercentile(99)).isCloseTo(9_900_000, within(9_900_000 * 0.07));
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(10_000_000L);
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(7);
+        histogram.record(-5);
+
+        assertThat(histogram.getValueAtPercentile(0)).isEqualTo(0);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(3);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(7);
+    }
+
+    @Test
+    void sinceCopy() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10_000_000L);
+        LatencyHistogram copy = histogram.copy();
+        histogram.record(1000);
+        histogram.record(3000);
+
+        LatencyHistogram since = histogram.since(copy);
+        assertThat(since.getCount()).isEqualTo(2);
+        assertThat(since.getTotal()).isEqualTo(4000);
+        // Within the precision of the buckets
+        assertThat((double) since.getMax()).isCloseTo(3000, within(3000 * 0.07));
+        assertThat(since.getValueAtPercentile(100)).isEqualTo(since.getMax());
+        // The copy isn't affected by values recorded later
+        assertThat(copy.getCount()).isEqualTo(1);
+        assertThat(copy.getMax()).isEqualTo(10_000_000L);
+    }
+
+    @Test
+    void reset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.reset();
+
+        assertThat(histogram.getCount()).isZero();
+        assertThat(histogram.getValueAtPercentile(99)).isZero();
+    }
+}
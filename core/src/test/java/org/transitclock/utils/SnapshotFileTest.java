@@ -0,0 +1,110 @@
+package org.transitclock.utils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SnapshotFileTest {
+
+    private static ArrayList<String> data() {
+        ArrayList<String> data = new ArrayList<>();
+        for (int i = 0; i < 10_000; ++i) data.add("stop" + i);
+        return data;
+    }
+
+    @Test
+    void roundTrip(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("test.snapshot");
+        SnapshotFile.write(file, 3, 7, data());
+
+        List<?> read = SnapshotFile.read(file, 3, 7, ArrayList.class);
+        assertThat(read).isEqualTo(data());
+        // Temporary file was renamed
+        try (var files = Files.list(directory)) {
+            assertThat(files).containsExactly(file);
+        }
+    }
+
+    @Test
+    void ignoredIfForOtherConfigRev(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("test.snapshot");
+        SnapshotFile.write(file, 3, 7, data());
+
+        assertThat(SnapshotFile.read(file, 4, 7, ArrayList.class)).isNull();
+    }
+
+    @Test
+    void ignoredIfForOtherTravelTimesRev(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("test.snapshot");
+        SnapshotFile.write(file, 3, 7, data());
+
+        // Travel times updated without a new config rev
+        assertThat(SnapshotFile.read(file, 3, 8, ArrayList.class)).isNull();
+        assertThat(SnapshotFile.read(file, 3, SnapshotFile.NO_TRAVEL_TIMES_REV, ArrayList.class))
+                .isNull();
+    }
+
+    @Test
+    void ignoredIfCorrupt(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("test.snapshot");
+        SnapshotFile.write(file, 3, 7, data());
+
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(file, bytes);
+        assertThat(SnapshotFile.read(file, 3, 7, ArrayList.class)).isNull();
+
+        Files.write(file, new byte[] {1, 2, 3});
+        assertThat(SnapshotFile.read(file, 3, 7, ArrayList.class)).isNull();
+    }
+
+    @Test
+    void ignoredIfMissing(@TempDir Path directory) {
+        assertThat(SnapshotFile.read(directory.resolve("missing.snapshot"), 3, 7, ArrayList.class)).isNull();
+    }
+
+    @Test
+    void concurrentMapsAndDatesAllowed(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("test.snapshot");
+        ConcurrentHashMap<String, Date> map = new ConcurrentHashMap<>();
+        map.put("stop1", new Date(1_000));
+        SnapshotFile.write(file, 3, 7, map);
+
+        assertThat(SnapshotFile.read(file, 3, 7, ConcurrentHashMap.class)).isEqualTo(map);
+    }
+
+    @Test
+    void ignoredIfContainsClassNotAllowed(@TempDir Path directory) throws Exception {
+        // The checksum is correct since the file was written normally, but
+        // java.io classes are never part of a snapshot
+        Path file = directory.resolve("test.snapshot");
+        ArrayList<Object> data = new ArrayList<>(List.of("stop1", new File("stop2")));
+        SnapshotFile.write(file, 3, 7, data);
+
+        assertThat(SnapshotFile.read(file, 3, 7, ArrayList.class)).isNull();
+    }
+
+    @Test
+    void ignoredIfTooDeep(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("test.snapshot");
+        ArrayList<Object> data = new ArrayList<>();
+        ArrayList<Object> innermost = data;
+        for (int i = 0; i < 1_000; ++i) {
+            ArrayList<Object> inner = new ArrayList<>();
+            innermost.add(inner);
+            innermost = inner;
+        }
+        SnapshotFile.write(file, 3, 7, data);
+
+        assertThat(SnapshotFile.read(file, 3, 7, ArrayList.class)).isNull();
+    }
+}